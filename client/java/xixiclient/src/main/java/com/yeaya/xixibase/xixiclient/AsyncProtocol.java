@@ -0,0 +1,447 @@
+/*
+   Copyright [2015] [Yao Yuan(yeaya@163.com)]
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.yeaya.xixibase.xixiclient;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.yeaya.xixibase.xixiclient.network.PipelinedRequest;
+import com.yeaya.xixibase.xixiclient.network.PipelinedSocket;
+import com.yeaya.xixibase.xixiclient.network.SocketManager;
+import com.yeaya.xixibase.xixiclient.network.XixiSocket;
+
+/**
+ * The protocol of the async client, every request is sent over a pipelined socket
+ * and the response completes the returned future.
+ *
+ * @author Yao Yuan
+ *
+ */
+public class AsyncProtocol extends Defines {
+	final static Logger log = LoggerFactory.getLogger(AsyncProtocol.class);
+
+	private int groupId = 0;
+	private TransCoder transCoder = new ObjectTransCoder();
+	private SocketManager socketManager;
+	private LocalCache localCache;
+
+	public AsyncProtocol(XixiClientManager manager, SocketManager socketManager, int groupId) {
+		this.socketManager = socketManager;
+		this.localCache = manager.getLocalCache();
+		this.groupId = groupId;
+	}
+
+	public int getGroupId() {
+		return groupId;
+	}
+
+	public void setTransCoder(TransCoder transCoder) {
+		this.transCoder = transCoder;
+	}
+
+	public TransCoder getTransCoder() {
+		return transCoder;
+	}
+
+	public CompletableFuture<CacheItem> get(String key, boolean touch, int expiration) {
+		byte[] keyBuf = encodeKey("get", key);
+		if (keyBuf == null) {
+			return failed("get, invalid key=" + key);
+		}
+		return send("get", key, new GetRequest(key, keyBuf, touch, expiration));
+	}
+
+	public CompletableFuture<CacheBaseItem> getBase(String key) {
+		byte[] keyBuf = encodeKey("getBase", key);
+		if (keyBuf == null) {
+			return failed("getBase, invalid key=" + key);
+		}
+		return send("getBase", key, new GetBaseRequest(key, keyBuf));
+	}
+
+	public CompletableFuture<Long> add(String key, Object value, int expiration) {
+		return update(XIXI_UPDATE_SUB_OP_ADD, key, value, expiration, NO_CAS);
+	}
+
+	public CompletableFuture<Long> append(String key, Object value, long cacheId) {
+		return update(XIXI_UPDATE_SUB_OP_APPEND, key, value, NO_EXPIRATION, cacheId);
+	}
+
+	public CompletableFuture<Long> set(String key, Object value, int expiration, long cacheId) {
+		return update(XIXI_UPDATE_SUB_OP_SET, key, value, expiration, cacheId);
+	}
+
+	public CompletableFuture<Long> prepend(String key, Object value, long cacheId) {
+		return update(XIXI_UPDATE_SUB_OP_PREPEND, key, value, NO_EXPIRATION, cacheId);
+	}
+
+	public CompletableFuture<Long> replace(String key, Object value, int expiration, long cacheId) {
+		return update(XIXI_UPDATE_SUB_OP_REPLACE, key, value, expiration, cacheId);
+	}
+
+	private CompletableFuture<Long> update(byte subOp, String key, Object value, int expiration, long cacheId) {
+		byte[] keyBuf = encodeKey("update", key);
+		if (keyBuf == null) {
+			return failed("update, invalid key=" + key);
+		}
+		if (value == null) {
+			return failed("update, value == null");
+		}
+
+		int[] outflags = new int[1];
+		int[] objectSize = new int[1];
+		byte[] data;
+		try {
+			data = transCoder.encode(value, outflags, objectSize);
+		} catch (IOException e) {
+			log.error("update, failed to encode value, e=" + e);
+			CompletableFuture<Long> future = new CompletableFuture<Long>();
+			future.completeExceptionally(e);
+			return future;
+		}
+		return send("update", key, new UpdateRequest(subOp, key, keyBuf, data, outflags[0], expiration, cacheId));
+	}
+
+	public CompletableFuture<Boolean> delete(String key, long cacheId) {
+		byte[] keyBuf = encodeKey("delete", key);
+		if (keyBuf == null) {
+			return failed("delete, invalid key=" + key);
+		}
+		return send("delete", key, new DeleteRequest(key, keyBuf, cacheId));
+	}
+
+	public CompletableFuture<DeltaItem> incr(String key, long delta, long cacheId) {
+		return delta(key, XIXI_DELTA_SUB_OP_INCR, delta, cacheId);
+	}
+
+	public CompletableFuture<DeltaItem> decr(String key, long delta, long cacheId) {
+		return delta(key, XIXI_DELTA_SUB_OP_DECR, delta, cacheId);
+	}
+
+	private CompletableFuture<DeltaItem> delta(String key, byte subOp, long delta, long cacheId) {
+		byte[] keyBuf = encodeKey("delta", key);
+		if (keyBuf == null) {
+			return failed("delta, invalid key=" + key);
+		}
+		return send("delta", key, new DeltaRequest(key, keyBuf, subOp, delta, cacheId));
+	}
+
+	public CompletableFuture<Boolean> updateExpiration(String key, int expiration, long cacheId) {
+		byte[] keyBuf = encodeKey("updateExpiration", key);
+		if (keyBuf == null) {
+			return failed("updateExpiration, invalid key=" + key);
+		}
+		return send("updateExpiration", key, new UpdateExpirationRequest(key, keyBuf, expiration, cacheId));
+	}
+
+	private byte[] encodeKey(String op, String key) {
+		if (key == null) {
+			log.error(op + ", key == null");
+			return null;
+		}
+		byte[] keyBuf = transCoder.encodeKey(key);
+		if (keyBuf == null) {
+			log.error(op + ", failed to encode key");
+		}
+		return keyBuf;
+	}
+
+	private <T> CompletableFuture<T> send(String op, String key, KeyRequest<T> request) {
+		PipelinedSocket socket = socketManager.getPipelinedSocket(request.host, key.hashCode());
+		if (socket == null) {
+			String error = op + ", failed to get socket";
+			log.error(error);
+			CompletableFuture<T> future = new CompletableFuture<T>();
+			future.completeExceptionally(new IOException(error));
+			return future;
+		}
+		return socket.send(request);
+	}
+
+	private static <T> CompletableFuture<T> failed(String error) {
+		CompletableFuture<T> future = new CompletableFuture<T>();
+		future.completeExceptionally(new IllegalArgumentException(error));
+		return future;
+	}
+
+	abstract class KeyRequest<T> extends PipelinedRequest<T> {
+		protected final String host;
+		protected final String key;
+		protected final byte[] keyBuf;
+
+		KeyRequest(String key, byte[] keyBuf) {
+			this.host = socketManager.getHost(key, keyBuf);
+			this.key = key;
+			this.keyBuf = keyBuf;
+		}
+
+		protected void readError(XixiSocket socket, String op) throws IOException {
+			short reason = socket.readShort();
+			log.debug(op + ", response error, reason=" + reason);
+			if (reason == XIXI_REASON_UNKNOWN_COMMAND) {
+				throw new IOException(op + ", unknown command, host=" + host);
+			}
+		}
+	}
+
+	class GetRequest extends KeyRequest<CacheItem> {
+		private final boolean touch;
+		private final int expiration;
+
+		GetRequest(String key, byte[] keyBuf, boolean touch, int expiration) {
+			super(key, keyBuf);
+			this.touch = touch;
+			this.expiration = expiration;
+		}
+
+		protected int getHeaderSize() {
+			return touch ? 16 : 12;
+		}
+
+		protected void encode(XixiSocket socket) throws IOException {
+			ByteBuffer writeBuffer = socket.getWriteBuffer();
+			writeBuffer.put(XIXI_CATEGORY_CACHE);
+			if (touch) {
+				writeBuffer.put(XIXI_TYPE_GET_TOUCH_REQ);
+				writeBuffer.putInt(groupId);
+				writeBuffer.putInt(NO_WATCH);
+				writeBuffer.putInt(expiration);
+			} else {
+				writeBuffer.put(XIXI_TYPE_GET_REQ);
+				writeBuffer.putInt(groupId);
+				writeBuffer.putInt(NO_WATCH);
+			}
+			writeBuffer.putShort((short) keyBuf.length);
+			socket.write(keyBuf, 0, keyBuf.length);
+		}
+
+		protected CacheItem decode(XixiSocket socket, byte category, byte type) throws IOException {
+			if (category == XIXI_CATEGORY_CACHE && type == XIXI_TYPE_GET_RES) {
+				long cacheId = socket.readLong();
+				int flags = socket.readInt();
+				int expiration = socket.readInt();
+				int dataSize = socket.readInt();
+				byte[] data = socket.read(dataSize);
+				int[] objectSize = new int[1];
+				Object obj;
+				try {
+					obj = transCoder.decode(data, flags, objectSize);
+				} catch (IOException e) {
+					// the stream is still in sync, only this request fails
+					throw new UncheckedIOException(e);
+				}
+				return new CacheItem(key, cacheId, expiration, groupId, flags, obj, objectSize[0], dataSize);
+			}
+			readError(socket, "get");
+			return null;
+		}
+	}
+
+	class GetBaseRequest extends KeyRequest<CacheBaseItem> {
+		GetBaseRequest(String key, byte[] keyBuf) {
+			super(key, keyBuf);
+		}
+
+		protected int getHeaderSize() {
+			return 8;
+		}
+
+		protected void encode(XixiSocket socket) throws IOException {
+			ByteBuffer writeBuffer = socket.getWriteBuffer();
+			writeBuffer.put(XIXI_CATEGORY_CACHE);
+			writeBuffer.put(XIXI_TYPE_GET_BASE_REQ);
+			writeBuffer.putInt(groupId);
+			writeBuffer.putShort((short) keyBuf.length);
+			socket.write(keyBuf, 0, keyBuf.length);
+		}
+
+		protected CacheBaseItem decode(XixiSocket socket, byte category, byte type) throws IOException {
+			if (category == XIXI_CATEGORY_CACHE && type == XIXI_TYPE_GET_BASE_RES) {
+				long cacheId = socket.readLong();
+				int flags = socket.readInt();
+				int expiration = socket.readInt();
+				int valueSize = socket.readInt();
+				return new CacheBaseItem(key, cacheId, expiration, groupId, flags, valueSize);
+			}
+			readError(socket, "getBase");
+			return null;
+		}
+	}
+
+	class UpdateRequest extends KeyRequest<Long> {
+		private final byte subOp;
+		private final byte[] data;
+		private final int flags;
+		private final int expiration;
+		private final long cacheId;
+
+		UpdateRequest(byte subOp, String key, byte[] keyBuf, byte[] data, int flags, int expiration, long cacheId) {
+			super(key, keyBuf);
+			this.subOp = subOp;
+			this.data = data;
+			this.flags = flags;
+			this.expiration = expiration;
+			this.cacheId = cacheId;
+		}
+
+		protected int getHeaderSize() {
+			return 33;
+		}
+
+		protected void encode(XixiSocket socket) throws IOException {
+			ByteBuffer writeBuffer = socket.getWriteBuffer();
+			writeBuffer.put(XIXI_CATEGORY_CACHE);
+			writeBuffer.put(XIXI_TYPE_UPDATE_REQ);
+			writeBuffer.put((byte)(subOp | XIXI_UPDATE_REPLY));
+			writeBuffer.putLong(cacheId);
+			writeBuffer.putInt(groupId);
+			writeBuffer.putInt(flags);
+			writeBuffer.putInt(expiration);
+			writeBuffer.putInt(NO_WATCH);
+			writeBuffer.putShort((short) keyBuf.length);
+			writeBuffer.putInt(data.length);
+			socket.write(keyBuf, 0, keyBuf.length);
+			socket.write(data, 0, data.length);
+		}
+
+		protected Long decode(XixiSocket socket, byte category, byte type) throws IOException {
+			if (category == XIXI_CATEGORY_CACHE && type == XIXI_TYPE_UPDATE_RES) {
+				long newCacheId = socket.readLong();
+				localCache.remove(host, groupId, key);
+				return Long.valueOf(newCacheId);
+			}
+			readError(socket, "update");
+			return Long.valueOf(NO_CAS);
+		}
+	}
+
+	class DeleteRequest extends KeyRequest<Boolean> {
+		private final long cacheId;
+
+		DeleteRequest(String key, byte[] keyBuf, long cacheId) {
+			super(key, keyBuf);
+			this.cacheId = cacheId;
+		}
+
+		protected int getHeaderSize() {
+			return 17;
+		}
+
+		protected void encode(XixiSocket socket) throws IOException {
+			ByteBuffer writeBuffer = socket.getWriteBuffer();
+			writeBuffer.put(XIXI_CATEGORY_CACHE);
+			writeBuffer.put(XIXI_TYPE_DELETE_REQ);
+			writeBuffer.put((byte)(XIXI_DELETE_SUB_OP | XIXI_DELETE_REPLY));
+			writeBuffer.putLong(cacheId);
+			writeBuffer.putInt(groupId);
+			writeBuffer.putShort((short) keyBuf.length);
+			socket.write(keyBuf, 0, keyBuf.length);
+		}
+
+		protected Boolean decode(XixiSocket socket, byte category, byte type) throws IOException {
+			if (category == XIXI_CATEGORY_CACHE && type == XIXI_TYPE_DELETE_RES) {
+				localCache.remove(host, groupId, key);
+				return Boolean.TRUE;
+			}
+			readError(socket, "delete");
+			return Boolean.FALSE;
+		}
+	}
+
+	class DeltaRequest extends KeyRequest<DeltaItem> {
+		private final byte subOp;
+		private final long delta;
+		private final long cacheId;
+
+		DeltaRequest(String key, byte[] keyBuf, byte subOp, long delta, long cacheId) {
+			super(key, keyBuf);
+			this.subOp = subOp;
+			this.delta = delta;
+			this.cacheId = cacheId;
+		}
+
+		protected int getHeaderSize() {
+			return 25;
+		}
+
+		protected void encode(XixiSocket socket) throws IOException {
+			ByteBuffer writeBuffer = socket.getWriteBuffer();
+			writeBuffer.put(XIXI_CATEGORY_CACHE);
+			writeBuffer.put(XIXI_TYPE_DETLA_REQ);
+			writeBuffer.put((byte)(subOp | XIXI_DELTA_REPLY));
+			writeBuffer.putLong(cacheId);
+			writeBuffer.putInt(groupId);
+			writeBuffer.putLong(delta);
+			writeBuffer.putShort((short) keyBuf.length);
+			socket.write(keyBuf, 0, keyBuf.length);
+		}
+
+		protected DeltaItem decode(XixiSocket socket, byte category, byte type) throws IOException {
+			if (category == XIXI_CATEGORY_CACHE && type == XIXI_TYPE_DETLA_RES) {
+				DeltaItem item = new DeltaItem();
+				item.cacheId = socket.readLong();
+				item.value = socket.readLong();
+				localCache.remove(host, groupId, key);
+				return item;
+			}
+			readError(socket, "delta");
+			return null;
+		}
+	}
+
+	class UpdateExpirationRequest extends KeyRequest<Boolean> {
+		private final int expiration;
+		private final long cacheId;
+
+		UpdateExpirationRequest(String key, byte[] keyBuf, int expiration, long cacheId) {
+			super(key, keyBuf);
+			this.expiration = expiration;
+			this.cacheId = cacheId;
+		}
+
+		protected int getHeaderSize() {
+			return 21;
+		}
+
+		protected void encode(XixiSocket socket) throws IOException {
+			ByteBuffer writeBuffer = socket.getWriteBuffer();
+			writeBuffer.put(XIXI_CATEGORY_CACHE);
+			writeBuffer.put(XIXI_TYPE_UPDATE_EXPIRATION_REQ);
+			writeBuffer.put(XIXI_UPDATE_EXPIRATION_REPLY);
+			writeBuffer.putLong(cacheId);
+			writeBuffer.putInt(groupId);
+			writeBuffer.putInt(expiration);
+			writeBuffer.putShort((short) keyBuf.length);
+			socket.write(keyBuf, 0, keyBuf.length);
+		}
+
+		protected Boolean decode(XixiSocket socket, byte category, byte type) throws IOException {
+			if (category == XIXI_CATEGORY_CACHE && type == XIXI_TYPE_UPDATE_EXPIRATION_RES) {
+				socket.readLong(); // cacheId
+				localCache.remove(host, groupId, key);
+				return Boolean.TRUE;
+			}
+			readError(socket, "updateExpiration");
+			return Boolean.FALSE;
+		}
+	}
+}
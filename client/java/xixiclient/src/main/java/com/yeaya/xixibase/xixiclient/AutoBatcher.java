@@ -0,0 +1,499 @@
+/*
+   Copyright [2015] [Yao Yuan(yeaya@163.com)]
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.yeaya.xixibase.xixiclient;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.yeaya.xixibase.xixiclient.network.SocketManager;
+import com.yeaya.xixibase.xixiclient.network.TrafficClass;
+import com.yeaya.xixibase.xixiclient.network.XixiSocket;
+
+/**
+ * Combines the single-key gets, sets and deletes which many threads send at the
+ * same time into pipelined requests.
+ * <p>
+ * The first caller which finds no open batch opens one and becomes its leader, it
+ * waits up to <tt>window</tt> for other callers to join or until the batch holds
+ * <tt>maxSize</tt> operations. Then it borrows one socket per host, writes all the
+ * requests of a host in one frame, and reads the responses in order. The other
+ * callers park until the leader hands them their own result. A batch which nobody
+ * joined is sent by its caller as a normal request.
+ * <p>
+ * Gets, sets and deletes are batched apart, and so are the operations with and
+ * without a deadline. A batch ends at the earliest deadline of its operations.
+ * There is one batcher per group and traffic class of a manager. The clients with
+ * a local cache, the replicated keys and the <tt>ByteBuffer</tt> values are never
+ * batched.
+ *
+ * @author Yao Yuan
+ *
+ */
+class AutoBatcher extends Defines {
+	final static Logger log = LoggerFactory.getLogger(AutoBatcher.class);
+
+	static final int GET = 0;
+	static final int SET = 1;
+	static final int DELETE = 2;
+	// the bytes of a request before its key and value
+	private static final int GET_HEADER_SIZE = 1 + 1 + 4 + 4 + 2;
+	private static final int SET_HEADER_SIZE = 1 + 1 + 1 + 8 + 4 + 4 + 4 + 4 + 2 + 4;
+	private static final int DELETE_HEADER_SIZE = 1 + 1 + 1 + 8 + 4 + 2;
+	// a shorter wait yields instead of parking, a park takes longer than that
+	private static final long PARK_THRESHOLD = 50000;
+
+	private final SocketManager socketManager;
+	private final LocalCache localCache;
+	private final int groupId;
+	private final TrafficClass trafficClass;
+	private final long window;
+	private final int maxSize;
+	private final boolean batchWrites;
+	// the open batch of each operation type, with and without a deadline
+	private final AtomicReferenceArray<Batch> openBatches = new AtomicReferenceArray<Batch>(6);
+
+	private final LongAdder batchCount = new LongAdder();
+	private final LongAdder batchedCount = new LongAdder();
+
+	/**
+	 * @param window the time(nanosecond) the leader waits for other operations
+	 * @param maxSize the max number of operations of one batch
+	 * @param batchWrites <tt>true</tt> if the sets and deletes are batched too
+	 */
+	AutoBatcher(XixiClientManager manager, SocketManager socketManager, int groupId,
+			TrafficClass trafficClass, long window, int maxSize, boolean batchWrites) {
+		this.socketManager = socketManager;
+		this.localCache = manager.getLocalCache();
+		this.groupId = groupId;
+		this.trafficClass = trafficClass;
+		this.window = window;
+		this.maxSize = Math.max(2, maxSize);
+		this.batchWrites = batchWrites;
+	}
+
+	/**
+	 * Get the number of batches sent.
+	 * @return the number of batches
+	 */
+	long getBatchCount() {
+		return batchCount.sum();
+	}
+
+	/**
+	 * Get the number of operations sent in batches.
+	 * @return the number of batched operations
+	 */
+	long getBatchedCount() {
+		return batchedCount.sum();
+	}
+
+	/**
+	 * Get one key with the other callers.
+	 * @param deadline deadline(System.nanoTime), <tt>0</tt> for none
+	 * @return the done operation, or <tt>null</tt> if the caller must send it alone
+	 */
+	Op get(String key, TransCoder transCoder, long deadline) {
+		if (socketManager.getReplicas() > 1) {
+			return null;
+		}
+		byte[] keyBuf = transCoder.encodeKey(key);
+		if (keyBuf == null) {
+			return null;
+		}
+		return submit(new Op(GET, key, keyBuf, transCoder, deadline));
+	}
+
+	/**
+	 * Set one key with the other callers.
+	 * @param keyBuf the encoded key, it routes the key
+	 * @return the done operation, or <tt>null</tt> if the caller must send it alone
+	 */
+	Op set(String key, byte[] keyBuf, Object value, int expiration, long cacheId, TransCoder transCoder, long deadline) {
+		if (!batchWrites || socketManager.getReplicas() > 1 || value == null
+				|| value instanceof ByteBuffer) {
+			return null;
+		}
+		Op op = new Op(SET, key, keyBuf, transCoder, deadline);
+		int[] flags = new int[1];
+		int[] objectSize = new int[1];
+		try {
+			op.data = transCoder.encode(value, flags, objectSize);
+		} catch (IOException e) {
+			return null;
+		}
+		op.flags = flags[0];
+		op.expiration = expiration;
+		op.cacheId = cacheId;
+		return submit(op);
+	}
+
+	/**
+	 * Delete one key with the other callers.
+	 * @param keyBuf the encoded key, it routes the key
+	 * @return the done operation, or <tt>null</tt> if the caller must send it alone
+	 */
+	Op delete(String key, byte[] keyBuf, long cacheId, TransCoder transCoder, long deadline) {
+		if (!batchWrites || socketManager.getReplicas() > 1) {
+			return null;
+		}
+		Op op = new Op(DELETE, key, keyBuf, transCoder, deadline);
+		op.cacheId = cacheId;
+		return submit(op);
+	}
+
+	private Op submit(Op op) {
+		int slot = op.type * 2 + (op.deadline != 0 ? 1 : 0);
+		Batch batch;
+		while (true) {
+			batch = openBatches.get(slot);
+			if (batch != null && batch.add(op)) {
+				op.await();
+				return op;
+			}
+			Batch created = new Batch(maxSize);
+			created.add(op);
+			if (openBatches.compareAndSet(slot, batch, created)) {
+				batch = created;
+				break;
+			}
+		}
+
+		batch.awaitJoin(window);
+		openBatches.compareAndSet(slot, batch, null);
+		List<Op> ops = batch.seal();
+		if (ops.size() == 1) {
+			return null;
+		}
+		try {
+			run(ops);
+		} catch (RuntimeException e) {
+			log.error("autoBatch, failed to run the batch, e=" + e);
+		} finally {
+			for (int i = 0; i < ops.size(); i++) {
+				Op o = ops.get(i);
+				if (!o.done) {
+					if (o.error == null) {
+						o.error = "autoBatch, the batch failed";
+					}
+					o.complete();
+				}
+			}
+		}
+		return op;
+	}
+
+	private void run(List<Op> ops) {
+		batchCount.increment();
+		batchedCount.add(ops.size());
+		long deadline = 0;
+		Map<String, List<Op>> hostOps = new LinkedHashMap<String, List<Op>>();
+		for (int i = 0; i < ops.size(); i++) {
+			Op op = ops.get(i);
+			if (op.deadline != 0 && (deadline == 0 || op.deadline - deadline < 0)) {
+				deadline = op.deadline;
+			}
+			String host = socketManager.getHost(op.key, op.keyBuf);
+			List<Op> list = hostOps.get(host);
+			if (list == null) {
+				list = new ArrayList<Op>();
+				hostOps.put(host, list);
+			}
+			list.add(op);
+		}
+
+		// write to all the hosts before reading, so that they work at the same time
+		Map<String, XixiSocket> sockets = new LinkedHashMap<String, XixiSocket>();
+		try {
+			Iterator<Map.Entry<String, List<Op>>> it = hostOps.entrySet().iterator();
+			while (it.hasNext()) {
+				Map.Entry<String, List<Op>> e = it.next();
+				XixiSocket socket = socketManager.getSocketByHost(e.getKey(), trafficClass, deadline);
+				if (socket == null) {
+					fail(e.getValue(), 0, "autoBatch, failed to get socket");
+					continue;
+				}
+				socket.setBorrowTime(XixiSocket.NO_RTT);
+				sockets.put(e.getKey(), socket);
+				try {
+					write(socket, e.getValue());
+				} catch (IOException ex) {
+					fail(e.getValue(), 0, "autoBatch, exception=" + ex);
+					log.error("autoBatch, failed to write, host=" + e.getKey() + " e=" + ex);
+					sockets.remove(e.getKey());
+					socket.trueClose();
+				}
+			}
+
+			Iterator<Map.Entry<String, XixiSocket>> its = sockets.entrySet().iterator();
+			while (its.hasNext()) {
+				Map.Entry<String, XixiSocket> e = its.next();
+				XixiSocket socket = e.getValue();
+				List<Op> list = hostOps.get(e.getKey());
+				int index = 0;
+				try {
+					while (index < list.size()) {
+						read(socket, list.get(index));
+						index++;
+					}
+					its.remove();
+					socket.close();
+				} catch (IOException ex) {
+					fail(list, index, "autoBatch, exception=" + ex);
+					log.error("autoBatch, failed to read, host=" + e.getKey() + " e=" + ex);
+					its.remove();
+					socket.trueClose();
+				}
+			}
+		} finally {
+			// the sockets left by an unexpected error are out of sync, they are dropped
+			Iterator<XixiSocket> its = sockets.values().iterator();
+			while (its.hasNext()) {
+				its.next().trueClose();
+			}
+		}
+	}
+
+	private static void fail(List<Op> ops, int from, String error) {
+		for (int i = from; i < ops.size(); i++) {
+			Op op = ops.get(i);
+			op.error = error;
+			op.complete();
+		}
+	}
+
+	/**
+	 * Write the requests into the write buffer of the socket and flush it
+	 * when it is full, the encoding is the one of <tt>Protocol</tt>.
+	 */
+	private void write(XixiSocket socket, List<Op> ops) throws IOException {
+		ByteBuffer writeBuffer = socket.getWriteBuffer();
+		writeBuffer.clear();
+		for (int i = 0; i < ops.size(); i++) {
+			Op op = ops.get(i);
+			int size = op.keyBuf.length + (op.type == GET ? GET_HEADER_SIZE
+					: op.type == SET ? SET_HEADER_SIZE : DELETE_HEADER_SIZE);
+			if (writeBuffer.remaining() < size) {
+				socket.flush();
+				if (writeBuffer.remaining() < size) {
+					throw new IOException("autoBatch, the key is too long, length=" + op.keyBuf.length);
+				}
+			}
+			writeBuffer.put(XIXI_CATEGORY_CACHE);
+			if (op.type == GET) {
+				writeBuffer.put(XIXI_TYPE_GET_REQ);
+				writeBuffer.putInt(groupId);
+				writeBuffer.putInt(NO_WATCH);
+				writeBuffer.putShort((short) op.keyBuf.length);
+				writeBuffer.put(op.keyBuf);
+			} else if (op.type == SET) {
+				writeBuffer.put(XIXI_TYPE_UPDATE_REQ);
+				writeBuffer.put((byte) (XIXI_UPDATE_SUB_OP_SET | XIXI_UPDATE_REPLY));
+				writeBuffer.putLong(op.cacheId);
+				writeBuffer.putInt(groupId);
+				writeBuffer.putInt(op.flags);
+				writeBuffer.putInt(op.expiration);
+				writeBuffer.putInt(NO_WATCH);
+				writeBuffer.putShort((short) op.keyBuf.length);
+				writeBuffer.putInt(op.data.length);
+				writeBuffer.put(op.keyBuf);
+				if (op.data.length <= writeBuffer.remaining()) {
+					writeBuffer.put(op.data);
+				} else {
+					socket.flush(ByteBuffer.wrap(op.data));
+				}
+			} else {
+				writeBuffer.put(XIXI_TYPE_DELETE_REQ);
+				writeBuffer.put((byte) (XIXI_DELETE_SUB_OP | XIXI_DELETE_REPLY));
+				writeBuffer.putLong(op.cacheId);
+				writeBuffer.putInt(groupId);
+				writeBuffer.putShort((short) op.keyBuf.length);
+				writeBuffer.put(op.keyBuf);
+			}
+		}
+		socket.flush();
+	}
+
+	private void read(XixiSocket socket, Op op) throws IOException {
+		byte category = socket.readByte();
+		byte type = socket.readByte();
+		if (category != XIXI_CATEGORY_CACHE || (type != XIXI_TYPE_GET_RES
+				&& type != XIXI_TYPE_UPDATE_RES && type != XIXI_TYPE_DELETE_RES)) {
+			short reason = socket.readShort();
+			if (reason == XIXI_REASON_UNKNOWN_COMMAND) {
+				throw new IOException("unknown command, type=" + type);
+			}
+			op.error = (op.type == GET ? "get" : op.type == SET ? "set" : "delete")
+					+ ", response error, reason=" + reason;
+		} else if (op.type == GET) {
+			long cacheId = socket.readLong();
+			int flags = socket.readInt();
+			int expiration = socket.readInt();
+			int dataSize = socket.readInt();
+			byte[] data = socket.read(dataSize);
+			int[] objectSize = new int[1];
+			try {
+				Object obj = op.transCoder.decode(data, flags, objectSize);
+				op.item = new CacheItem(op.key, cacheId, expiration, groupId, flags,
+						obj, objectSize[0], dataSize);
+			} catch (IOException e) {
+				// the response was read, the socket is still in sync
+				op.error = "get, failed to decode, e=" + e;
+			}
+		} else if (op.type == SET) {
+			op.cacheId = socket.readLong();
+			localCache.remove(socket.getHost(), groupId, op.key);
+		} else {
+			op.deleted = true;
+			localCache.remove(socket.getHost(), groupId, op.key);
+		}
+		if (op.type == SET && op.error != null) {
+			op.cacheId = NO_CAS;
+		}
+		op.complete();
+	}
+
+	/**
+	 * One operation of a caller and its result.
+	 */
+	static final class Op {
+		final int type;
+		final String key;
+		final byte[] keyBuf;
+		final TransCoder transCoder;
+		final long deadline;
+		byte[] data;
+		int flags;
+		int expiration;
+		long cacheId;
+
+		CacheItem item;
+		boolean deleted;
+		String error;
+		private final Thread caller = Thread.currentThread();
+		private volatile boolean done = false;
+
+		Op(int type, String key, byte[] keyBuf, TransCoder transCoder, long deadline) {
+			this.type = type;
+			this.key = key;
+			this.keyBuf = keyBuf;
+			this.transCoder = transCoder;
+			this.deadline = deadline;
+		}
+
+		CacheItem getItem() {
+			return item;
+		}
+
+		long getCacheId() {
+			return cacheId;
+		}
+
+		boolean isDeleted() {
+			return deleted;
+		}
+
+		String getError() {
+			return error;
+		}
+
+		void complete() {
+			done = true;
+			LockSupport.unpark(caller);
+		}
+
+		void await() {
+			boolean interrupted = false;
+			while (!done) {
+				LockSupport.park(this);
+				if (Thread.interrupted()) {
+					interrupted = true;
+				}
+			}
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * The operations collected by one leader. A caller takes a slot with one
+	 * increment, the leader seals the batch by pushing the count past the end.
+	 */
+	static final class Batch {
+		private final AtomicInteger count = new AtomicInteger(0);
+		private final AtomicReferenceArray<Op> ops;
+		private final Thread leader = Thread.currentThread();
+
+		Batch(int maxSize) {
+			ops = new AtomicReferenceArray<Op>(maxSize);
+		}
+
+		boolean add(Op op) {
+			int index = count.getAndIncrement();
+			if (index >= ops.length()) {
+				return false;
+			}
+			ops.set(index, op);
+			if (index == ops.length() - 1) {
+				LockSupport.unpark(leader);
+			}
+			return true;
+		}
+
+		void awaitJoin(long window) {
+			long end = System.nanoTime() + window;
+			while (count.get() < ops.length()) {
+				long remain = end - System.nanoTime();
+				if (remain <= 0) {
+					break;
+				}
+				if (remain > PARK_THRESHOLD) {
+					LockSupport.parkNanos(this, remain);
+				} else {
+					Thread.yield();
+				}
+			}
+		}
+
+		List<Op> seal() {
+			int n = Math.min(count.getAndAdd(ops.length() + 1), ops.length());
+			List<Op> list = new ArrayList<Op>(n);
+			for (int i = 0; i < n; i++) {
+				// a caller which took the slot may not have filled it yet
+				Op op = ops.get(i);
+				while (op == null) {
+					Thread.yield();
+					op = ops.get(i);
+				}
+				list.add(op);
+			}
+			return list;
+		}
+	}
+}
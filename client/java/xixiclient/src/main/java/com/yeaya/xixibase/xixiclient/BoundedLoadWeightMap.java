@@ -0,0 +1,166 @@
+/*
+   Copyright [2015] [Yao Yuan(yeaya@163.com)]
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.yeaya.xixibase.xixiclient;
+
+import java.util.Set;
+
+import com.yeaya.xixibase.xixiclient.util.KeyHasher;
+import com.yeaya.xixibase.xixiclient.util.LoadAwareWeightMap;
+import com.yeaya.xixibase.xixiclient.util.LoadSource;
+
+/**
+ * Consistent hashing with bounded loads (Mirrokni, Thorup and Zadimoghaddam) on the
+ * ketama ring. A value takes a key only while its load is below
+ * <tt>(1 + epsilon)</tt> times its share of the total load, otherwise the key goes
+ * on to the next value on the ring which is below its bound.
+ * <p>
+ * <tt>SocketManager</tt> gives the map the requests in flight of each server, so a
+ * hot server hands its keys over to the next servers of the ring until it catches
+ * up. Without a load source the map is a plain ketama ring. The total load is
+ * summed once a millisecond, a lookup reads only the loads of the values it walks.
+ * <pre>
+ *     WeightMap&lt;Integer&gt; weightMap = new BoundedLoadWeightMap&lt;Integer&gt;(160, 0.25);
+ *     mgr.initialize(servers, weights, weightMap, enableSSL);</pre>
+ * The host of a key depends on the load when the request is sent, a value set on
+ * one host may be read from another one. It fits values which are cheap to load
+ * again and stand a short staleness, a miss on the second host fills it. The
+ * replicas of a key, see <tt>get(k, count)</tt>, do not depend on the load.
+ *
+ * @author Yao Yuan
+ *
+ */
+public class BoundedLoadWeightMap<V> extends KetamaWeightMap<V> implements LoadAwareWeightMap<V> {
+	public static final double DEFAULT_EPSILON = 0.25;
+	// the total load is summed at most once a period(nanosecond), not on each lookup
+	private static final long TOTAL_LOAD_PERIOD = 1000000;
+
+	private final double epsilon;
+	private volatile LoadSource<V> loadSource = null;
+	private volatile TotalLoad<V> totalLoad = null;
+
+	public BoundedLoadWeightMap() {
+		this(DEFAULT_VIRTUAL_NODES, DEFAULT_EPSILON);
+	}
+
+	/**
+	 * @param virtualNodes the number of points of one unit of weight
+	 * @param epsilon how far a value may go over its share of the load, &gt; 0
+	 */
+	public BoundedLoadWeightMap(int virtualNodes, double epsilon) {
+		this(virtualNodes, epsilon, XixiWeightMap.MURMUR3_HASH);
+	}
+
+	/**
+	 * @param virtualNodes the number of points of one unit of weight
+	 * @param epsilon how far a value may go over its share of the load, &gt; 0
+	 * @param hashingAlg the hash of the keys, see <tt>XixiWeightMap</tt>
+	 */
+	public BoundedLoadWeightMap(int virtualNodes, double epsilon, int hashingAlg) {
+		super(virtualNodes, hashingAlg);
+		this.epsilon = epsilon > 0 ? epsilon : DEFAULT_EPSILON;
+	}
+
+	/**
+	 * @param virtualNodes the number of points of one unit of weight
+	 * @param epsilon how far a value may go over its share of the load, &gt; 0
+	 * @param hasher the hasher of the encoded keys
+	 */
+	public BoundedLoadWeightMap(int virtualNodes, double epsilon, KeyHasher hasher) {
+		super(virtualNodes, hasher);
+		this.epsilon = epsilon > 0 ? epsilon : DEFAULT_EPSILON;
+	}
+
+	public double getEpsilon() {
+		return epsilon;
+	}
+
+	public void setLoadSource(LoadSource<V> loadSource) {
+		this.loadSource = loadSource;
+	}
+
+	public LoadSource<V> getLoadSource() {
+		return loadSource;
+	}
+
+	public V getByHash(int hash) {
+		return getByHash(hash, null);
+	}
+
+	/**
+	 * Get the first value at or after the hash which is below its bound and not
+	 * excluded.
+	 */
+	public V getByHash(int hash, Set<V> excluded) {
+		Ring<V> r = getRing();
+		LoadSource<V> source = loadSource;
+		int start = r.find(hash);
+		if (source == null) {
+			return excluded == null ? r.nodes[start] : super.getByHash(hash, excluded);
+		}
+		// one more request is coming, the bounds add up to more than the total
+		long total = getTotalLoad(r, source) + 1;
+		double bound = (1 + epsilon) * total / r.totalWeight;
+		V first = null;
+		for (int i = 0; i < r.nodes.length; i++) {
+			int p = start + i < r.nodes.length ? start + i : start + i - r.nodes.length;
+			V v = r.nodes[p];
+			if (excluded != null && excluded.contains(v)) {
+				continue;
+			}
+			if (first == null) {
+				first = v;
+			}
+			if (source.getLoad(v) < Math.ceil(bound * r.weights[r.owners[p]])) {
+				return v;
+			}
+		}
+		// the loads moved while they were read
+		return first;
+	}
+
+	/**
+	 * Get the total load of the values of the ring, summed again once it is older
+	 * than <tt>TOTAL_LOAD_PERIOD</tt>.
+	 */
+	private long getTotalLoad(Ring<V> r, LoadSource<V> source) {
+		long now = System.nanoTime();
+		TotalLoad<V> t = totalLoad;
+		if (t != null && t.ring == r && t.source == source && now - t.time < TOTAL_LOAD_PERIOD) {
+			return t.total;
+		}
+		long total = 0;
+		for (int i = 0; i < r.values.length; i++) {
+			total += source.getLoad(r.values[i]);
+		}
+		totalLoad = new TotalLoad<V>(r, source, total, now);
+		return total;
+	}
+
+	private static final class TotalLoad<V> {
+		final Ring<V> ring;
+		final LoadSource<V> source;
+		final long total;
+		final long time;
+
+		TotalLoad(Ring<V> ring, LoadSource<V> source, long total, long time) {
+			this.ring = ring;
+			this.source = source;
+			this.total = total;
+			this.time = time;
+		}
+	}
+}
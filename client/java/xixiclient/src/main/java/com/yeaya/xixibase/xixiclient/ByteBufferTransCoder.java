@@ -0,0 +1,40 @@
+/*
+   Copyright [2015] [Yao Yuan(yeaya@163.com)]
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.yeaya.xixibase.xixiclient;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A <tt>TransCoder</tt> which writes values straight into the write buffer of a socket,
+ * so that a set does not build a temporary <tt>byte[]</tt> for the value.
+ * <p>
+ * The client tries <tt>encode(Object, ByteBuffer, ...)</tt> first, then <tt>wrap</tt>,
+ * then falls back to <tt>encode(Object, int[], int[])</tt>. The flags must be the same
+ * whichever method encodes the value.
+ *
+ * @author Yao Yuan
+ *
+ */
+public interface ByteBufferTransCoder extends TransCoder {
+	// encode the object at the position of buf and return the number of bytes put,
+	// if the object does not fit or can not be encoded in place, return -1 and keep the position of buf
+	int encode(final Object object, ByteBuffer buf, int[]/*out*/ flags, int[]/*out*/ objectSize) throws IOException;
+
+	// if the object is sent as it is, return its bytes without copying them, else return null
+	ByteBuffer wrap(final Object object, int[]/*out*/ flags, int[]/*out*/ objectSize);
+}
@@ -19,6 +19,8 @@ package com.yeaya.xixibase.xixiclient;
 public final class CacheItem extends CacheBaseItem {
 	protected Object value;
 	protected int itemSize;
+	// the encoded key of an item of the local cache, it routes the key again
+	byte[] keyBuf;
 
 	public CacheItem(String key, long cacheID, int expiration, int groupId, int flags,
 			Object value, int objectSize, int valueSize) {
@@ -0,0 +1,350 @@
+/*
+   Copyright [2015] [Yao Yuan(yeaya@163.com)]
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.yeaya.xixibase.xixiclient;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The append-only journal of the sets and deletes of one host, kept in a memory
+ * mapped file of a fixed size.
+ * <p>
+ * <pre>
+ *     header: int magic, int readPos, int writePos, int reserved
+ *     record: int length, long seq, byte type, int groupId, long cacheId,
+ *             int expiration, int flags, short keyLength, int dataLength, key, data</pre>
+ * Only the latest record of a key is replayed, an older one is skipped and dropped
+ * by the next compaction. The records survive a restart of the process, the file
+ * is not forced to the disk.
+ * <p>
+ * When the file is full the records which are replayed or replaced are dropped.
+ * If that is not enough for a delete, the sets are dropped too: a lost delete leaves
+ * a stale value on the host, a lost set only a miss.
+ *
+ * @author Yao Yuan
+ *
+ */
+class HostJournal {
+	final static Logger log = LoggerFactory.getLogger(HostJournal.class);
+
+	static final byte SET = 1;
+	static final byte DELETE = 2;
+
+	private static final int MAGIC = 0x584A4E4C;
+	private static final int HEADER_SIZE = 16;
+	private static final int RECORD_HEADER_SIZE = 39;
+	private static final Charset KEY_CHARSET = Charset.forName("ISO-8859-1");
+
+	private final String host;
+	private final int capacity;
+	private RandomAccessFile file;
+	private MappedByteBuffer buffer;
+	private int readPos;
+	private int writePos;
+	private long nextSeq = 1;
+	// the seq of the latest record of each key
+	private final HashMap<String, Long> latest = new HashMap<String, Long>();
+	private long droppedCount = 0;
+	// the time(System.nanoTime) before which the host is not replayed again
+	long retryTime = 0;
+
+	HostJournal(String host, File path, int capacity) throws IOException {
+		this.host = host;
+		file = new RandomAccessFile(path, "rw");
+		int size = (int) Math.max(file.length(), capacity);
+		this.capacity = size;
+		buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+		if (buffer.getInt(0) == MAGIC) {
+			load();
+		} else {
+			reset();
+		}
+	}
+
+	String getHost() {
+		return host;
+	}
+
+	/**
+	 * The key of a record, the encoded key is kept byte by byte in a <tt>String</tt>.
+	 */
+	static String toKey(byte[] keyBuf) {
+		return new String(keyBuf, KEY_CHARSET);
+	}
+
+	static byte[] toKeyBuf(String key) {
+		return key.getBytes(KEY_CHARSET);
+	}
+
+	private static String indexKey(int groupId, String key) {
+		return groupId + ":" + key;
+	}
+
+	private void reset() {
+		readPos = HEADER_SIZE;
+		writePos = HEADER_SIZE;
+		buffer.putInt(0, MAGIC);
+		writeHeader();
+	}
+
+	private void writeHeader() {
+		buffer.putInt(4, readPos);
+		buffer.putInt(8, writePos);
+	}
+
+	private void load() {
+		readPos = buffer.getInt(4);
+		writePos = buffer.getInt(8);
+		if (readPos < HEADER_SIZE || writePos < readPos || writePos > capacity) {
+			log.error("load, bad journal header, host=" + host + " readPos=" + readPos + " writePos=" + writePos);
+			reset();
+			return;
+		}
+		int pos = readPos;
+		while (pos < writePos) {
+			int length = buffer.getInt(pos);
+			if (length < RECORD_HEADER_SIZE || length > writePos - pos) {
+				log.error("load, bad journal record, host=" + host + " position=" + pos);
+				break;
+			}
+			Record record = read(pos);
+			latest.put(indexKey(record.groupId, record.key), Long.valueOf(record.seq));
+			nextSeq = Math.max(nextSeq, record.seq + 1);
+			pos += length;
+		}
+		writePos = pos;
+		writeHeader();
+	}
+
+	private Record read(int pos) {
+		Record record = new Record();
+		record.seq = buffer.getLong(pos + 4);
+		record.type = buffer.get(pos + 12);
+		record.groupId = buffer.getInt(pos + 13);
+		record.cacheId = buffer.getLong(pos + 17);
+		record.expiration = buffer.getInt(pos + 25);
+		record.flags = buffer.getInt(pos + 29);
+		int keyLength = buffer.getShort(pos + 33) & 0xFFFF;
+		int dataLength = buffer.getInt(pos + 35);
+		ByteBuffer src = buffer.duplicate();
+		src.position(pos + RECORD_HEADER_SIZE);
+		byte[] keyBuf = new byte[keyLength];
+		src.get(keyBuf);
+		record.key = toKey(keyBuf);
+		if (record.type == SET) {
+			record.data = new byte[dataLength];
+			src.get(record.data);
+		}
+		return record;
+	}
+
+	private boolean isLive(int pos) {
+		long seq = buffer.getLong(pos + 4);
+		int groupId = buffer.getInt(pos + 13);
+		int keyLength = buffer.getShort(pos + 33) & 0xFFFF;
+		byte[] keyBuf = new byte[keyLength];
+		ByteBuffer src = buffer.duplicate();
+		src.position(pos + RECORD_HEADER_SIZE);
+		src.get(keyBuf);
+		Long s = latest.get(indexKey(groupId, toKey(keyBuf)));
+		return s != null && s.longValue() == seq;
+	}
+
+	/**
+	 * Append one record, the older records of the key are not replayed any more.
+	 * @return <tt>false</tt> if the journal is full, the record is dropped
+	 */
+	synchronized boolean append(byte type, int groupId, byte[] keyBuf, long cacheId,
+			int expiration, int flags, byte[] data) {
+		if (buffer == null) {
+			return false;
+		}
+		int dataLength = type == SET ? data.length : 0;
+		int length = RECORD_HEADER_SIZE + keyBuf.length + dataLength;
+		if (capacity - writePos < length) {
+			compact(false);
+			if (capacity - writePos < length && type == DELETE) {
+				compact(true);
+			}
+			if (capacity - writePos < length) {
+				droppedCount++;
+				log.warn("append, journal is full, host=" + host + " capacity=" + capacity);
+				return false;
+			}
+		}
+		long seq = nextSeq++;
+		ByteBuffer dst = buffer.duplicate();
+		dst.position(writePos);
+		dst.putInt(length);
+		dst.putLong(seq);
+		dst.put(type);
+		dst.putInt(groupId);
+		dst.putLong(cacheId);
+		dst.putInt(expiration);
+		dst.putInt(flags);
+		dst.putShort((short) keyBuf.length);
+		dst.putInt(dataLength);
+		dst.put(keyBuf);
+		if (type == SET) {
+			dst.put(data);
+		}
+		if (latest.put(indexKey(groupId, toKey(keyBuf)), Long.valueOf(seq)) != null) {
+			droppedCount++;
+		}
+		writePos += length;
+		writeHeader();
+		return true;
+	}
+
+	/**
+	 * Move the live records to the front of the file.
+	 * @param dropSets <tt>true</tt> to drop the sets too
+	 */
+	private void compact(boolean dropSets) {
+		int dest = HEADER_SIZE;
+		int pos = readPos;
+		byte[] tmp = null;
+		while (pos < writePos) {
+			int length = buffer.getInt(pos);
+			boolean live = isLive(pos);
+			if (live && dropSets && buffer.get(pos + 12) == SET) {
+				Record record = read(pos);
+				latest.remove(indexKey(record.groupId, record.key));
+				droppedCount++;
+				live = false;
+			}
+			if (live) {
+				if (dest != pos) {
+					if (tmp == null || tmp.length < length) {
+						tmp = new byte[length];
+					}
+					ByteBuffer src = buffer.duplicate();
+					src.position(pos);
+					src.get(tmp, 0, length);
+					ByteBuffer dst = buffer.duplicate();
+					dst.position(dest);
+					dst.put(tmp, 0, length);
+				}
+				dest += length;
+			}
+			pos += length;
+		}
+		readPos = HEADER_SIZE;
+		writePos = dest;
+		writeHeader();
+	}
+
+	/**
+	 * Is a record of the key waiting for the replay?
+	 */
+	synchronized boolean contains(int groupId, byte[] keyBuf) {
+		return latest.containsKey(indexKey(groupId, toKey(keyBuf)));
+	}
+
+	synchronized boolean isEmpty() {
+		return latest.isEmpty();
+	}
+
+	synchronized int getPendingCount() {
+		return latest.size();
+	}
+
+	synchronized long getDroppedCount() {
+		return droppedCount;
+	}
+
+	/**
+	 * Get the oldest records which wait for the replay, in order.
+	 * @param max the max number of records
+	 * @return the records, they stay in the journal until <tt>commit</tt>
+	 */
+	synchronized List<Record> peek(int max) {
+		List<Record> records = new ArrayList<Record>();
+		if (buffer == null) {
+			return records;
+		}
+		int pos = readPos;
+		while (pos < writePos && records.size() < max) {
+			if (isLive(pos)) {
+				records.add(read(pos));
+			}
+			pos += buffer.getInt(pos);
+		}
+		return records;
+	}
+
+	/**
+	 * Remove the replayed records, unless a newer record of the key came meanwhile.
+	 * @param records
+	 */
+	synchronized void commit(List<Record> records) {
+		if (buffer == null) {
+			return;
+		}
+		for (int i = 0; i < records.size(); i++) {
+			Record record = records.get(i);
+			String key = indexKey(record.groupId, record.key);
+			Long seq = latest.get(key);
+			if (seq != null && seq.longValue() == record.seq) {
+				latest.remove(key);
+			}
+		}
+		while (readPos < writePos && !isLive(readPos)) {
+			readPos += buffer.getInt(readPos);
+		}
+		if (readPos == writePos) {
+			readPos = HEADER_SIZE;
+			writePos = HEADER_SIZE;
+		}
+		writeHeader();
+	}
+
+	synchronized void close() {
+		if (buffer == null) {
+			return;
+		}
+		buffer.force();
+		buffer = null;
+		try {
+			file.close();
+		} catch (IOException e) {
+			log.error("close, host=" + host + " e=" + e);
+		}
+	}
+
+	static final class Record {
+		long seq;
+		byte type;
+		int groupId;
+		long cacheId;
+		int expiration;
+		int flags;
+		String key;
+		byte[] data;
+	}
+}
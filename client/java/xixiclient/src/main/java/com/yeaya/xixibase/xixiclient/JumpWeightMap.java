@@ -0,0 +1,237 @@
+/*
+   Copyright [2015] [Yao Yuan(yeaya@163.com)]
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.yeaya.xixibase.xixiclient;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import com.yeaya.xixibase.xixiclient.util.HashedWeightMap;
+import com.yeaya.xixibase.xixiclient.util.KeyHasher;
+
+/**
+ * Jump consistent hash (Lamping and Veach). A key is mapped to one of the buckets
+ * by a few multiplications, there is no ring, and the buckets get the keys almost
+ * evenly.
+ * <p>
+ * A value gets <tt>weight</tt> buckets, the buckets are laid out value after value.
+ * The keys move the least when values are added at the end or removed from the
+ * end, a value removed from the middle moves the buckets after it.
+ * <pre>
+ *     WeightMap&lt;Integer&gt; weightMap = new JumpWeightMap&lt;Integer&gt;();
+ *     mgr.initialize(servers, weights, weightMap, enableSSL);</pre>
+ * A key which skips a value, see <tt>get(k, excluded)</tt>, is jumped again with the
+ * next hash of a sequence, then taken by the next bucket.
+ *
+ * @author Yao Yuan
+ *
+ */
+public class JumpWeightMap<V> implements HashedWeightMap<V> {
+	private static final int MAX_REHASH = 32;
+
+	private final int hashingAlg;
+	private final KeyHasher hasher;
+	// the buckets are replaced as a whole by set and clear
+	private volatile Buckets<V> buckets = null;
+
+	public JumpWeightMap() {
+		this(XixiWeightMap.MURMUR3_HASH);
+	}
+
+	/**
+	 * @param hashingAlg the hash of the keys, see <tt>XixiWeightMap</tt>
+	 */
+	public JumpWeightMap(int hashingAlg) {
+		this.hashingAlg = hashingAlg;
+		this.hasher = XixiWeightMap.getKeyHasher(hashingAlg);
+	}
+
+	/**
+	 * @param hasher the hasher of the encoded keys
+	 */
+	public JumpWeightMap(KeyHasher hasher) {
+		this.hashingAlg = XixiWeightMap.CUSTOM_HASH;
+		this.hasher = hasher;
+	}
+
+	public final int getHashingAlg() {
+		return hashingAlg;
+	}
+
+	public final boolean isConsistent() {
+		return true;
+	}
+
+	public final boolean isPlacedByValue() {
+		return false;
+	}
+
+	public void clear() {
+		buckets = null;
+	}
+
+	/**
+	 * Get the number of buckets.
+	 * @return the number of buckets
+	 */
+	public int getBucketCount() {
+		Buckets<V> b = buckets;
+		return b != null ? b.nodes.length : 0;
+	}
+
+	/**
+	 * Set the values and their weights, the weights are taken in 1..100 like
+	 * <tt>XixiWeightMap</tt>, a missing weight is 1.
+	 */
+	@SuppressWarnings("unchecked")
+	public void set(V[] values, Integer[] weights) {
+		if (values == null || values.length == 0) {
+			return;
+		}
+		int total = 0;
+		int[] counts = new int[values.length];
+		for (int i = 0; i < values.length; i++) {
+			int weight = 1;
+			if (weights != null && i < weights.length && weights[i] != null) {
+				weight = Math.min(100, Math.max(1, weights[i].intValue()));
+			}
+			counts[i] = weight;
+			total += weight;
+		}
+		Object[] nodes = new Object[total];
+		int n = 0;
+		for (int i = 0; i < values.length; i++) {
+			for (int j = 0; j < counts[i]; j++) {
+				nodes[n++] = values[i];
+			}
+		}
+		buckets = new Buckets<V>((V[]) nodes, values.length);
+	}
+
+	public V get(String k) {
+		return getByHash(hash(k, null));
+	}
+
+	public V get(String k, Set<V> excluded) {
+		return getByHash(hash(k, null), excluded);
+	}
+
+	public List<V> get(String k, int count) {
+		return getByHash(hash(k, null), count);
+	}
+
+	public int hash(String k, byte[] keyBuf) {
+		if (hasher == null) {
+			return k.hashCode();
+		}
+		if (keyBuf == null) {
+			keyBuf = k.getBytes();
+		}
+		return hasher.hash(keyBuf, 0, keyBuf.length);
+	}
+
+	public V getByHash(int hash) {
+		Buckets<V> b = buckets;
+		return b.nodes[jump(mix(hash), b.nodes.length)];
+	}
+
+	public V getByHash(int hash, Set<V> excluded) {
+		Buckets<V> b = buckets;
+		long key = mix(hash);
+		int bucket = 0;
+		for (int i = 0; i < MAX_REHASH; i++) {
+			bucket = jump(key, b.nodes.length);
+			if (!excluded.contains(b.nodes[bucket])) {
+				return b.nodes[bucket];
+			}
+			key = next(key);
+		}
+		for (int i = 1; i < b.nodes.length; i++) {
+			V v = b.nodes[(bucket + i) % b.nodes.length];
+			if (!excluded.contains(v)) {
+				return v;
+			}
+		}
+		return null;
+	}
+
+	public List<V> getByHash(int hash, int count) {
+		Buckets<V> b = buckets;
+		int max = Math.min(count, b.valueCount);
+		List<V> result = new ArrayList<V>(max);
+		long key = mix(hash);
+		int bucket = 0;
+		for (int i = 0; i < MAX_REHASH && result.size() < max; i++) {
+			bucket = jump(key, b.nodes.length);
+			if (!result.contains(b.nodes[bucket])) {
+				result.add(b.nodes[bucket]);
+			}
+			key = next(key);
+		}
+		for (int i = 1; i < b.nodes.length && result.size() < max; i++) {
+			V v = b.nodes[(bucket + i) % b.nodes.length];
+			if (!result.contains(v)) {
+				result.add(v);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Get the bucket of a 64 bits key.
+	 * @param key
+	 * @param count the number of buckets
+	 * @return the bucket, in 0..count-1
+	 */
+	static int jump(long key, int count) {
+		long b = -1;
+		long j = 0;
+		while (j < count) {
+			b = j;
+			key = key * 2862933555777941757L + 1;
+			j = (long) ((b + 1) * ((double) (1L << 31) / (double) ((key >>> 33) + 1)));
+		}
+		return (int) b;
+	}
+
+	/**
+	 * Spread the 32 bits hash of a key over 64 bits, the finalizer of SplitMix64.
+	 */
+	static long mix(int hash) {
+		long z = (hash & 0xFFFFFFFFL) * 0x9E3779B97F4A7C15L;
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return z ^ (z >>> 31);
+	}
+
+	private static long next(long key) {
+		long z = key + 0x9E3779B97F4A7C15L;
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return z ^ (z >>> 31);
+	}
+
+	private static final class Buckets<V> {
+		final V[] nodes;
+		final int valueCount;
+
+		Buckets(V[] nodes, int valueCount) {
+			this.nodes = nodes;
+			this.valueCount = valueCount;
+		}
+	}
+}
@@ -0,0 +1,302 @@
+/*
+   Copyright [2015] [Yao Yuan(yeaya@163.com)]
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+
+package com.yeaya.xixibase.xixiclient;
+
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+
+import com.yeaya.xixibase.xixiclient.util.HashedWeightMap;
+import com.yeaya.xixibase.xixiclient.util.KeyHasher;
+
+/**
+ * A consistent hashing ring in the way of ketama.
+ * <p>
+ * Each value gets <tt>virtualNodes * weight</tt> points on the ring, the points are
+ * taken from the MD5 of <tt>"value-n"</tt>, four points of each digest. A key goes
+ * to the first point at or after the hash of the key, Murmur3 by default. The points
+ * are kept in a sorted <tt>int[]</tt> and looked up by binary search, so a lookup by
+ * the hash does not allocate. An index by the high bits of the hash limits the search
+ * to a few points.
+ * <pre>
+ *     WeightMap&lt;Integer&gt; weightMap = new KetamaWeightMap&lt;Integer&gt;(160);
+ *     mgr.initialize(servers, weights, weightMap, enableSSL);</pre>
+ * The points depend on <tt>value.toString()</tt>, for <tt>SocketManager</tt> that is
+ * the index of the server, so the servers must be kept in the same order.
+ *
+ * @author Yao Yuan
+ *
+ */
+public class KetamaWeightMap<V> implements HashedWeightMap<V> {
+	public static final int DEFAULT_VIRTUAL_NODES = 160;
+
+	private static final Charset POINT_CHARSET = Charset.forName("UTF-8");
+
+	private final int virtualNodes;
+	private final int hashingAlg;
+	private final KeyHasher hasher;
+	// the ring is replaced as a whole by set and clear
+	private volatile Ring<V> ring = null;
+
+	public KetamaWeightMap() {
+		this(DEFAULT_VIRTUAL_NODES);
+	}
+
+	/**
+	 * @param virtualNodes the number of points of one unit of weight
+	 */
+	public KetamaWeightMap(int virtualNodes) {
+		this(virtualNodes, XixiWeightMap.MURMUR3_HASH);
+	}
+
+	/**
+	 * @param virtualNodes the number of points of one unit of weight
+	 * @param hashingAlg the hash of the keys, see <tt>XixiWeightMap</tt>
+	 */
+	public KetamaWeightMap(int virtualNodes, int hashingAlg) {
+		this.virtualNodes = Math.max(1, virtualNodes);
+		this.hashingAlg = hashingAlg;
+		this.hasher = XixiWeightMap.getKeyHasher(hashingAlg);
+	}
+
+	/**
+	 * @param virtualNodes the number of points of one unit of weight
+	 * @param hasher the hasher of the encoded keys
+	 */
+	public KetamaWeightMap(int virtualNodes, KeyHasher hasher) {
+		this.virtualNodes = Math.max(1, virtualNodes);
+		this.hashingAlg = XixiWeightMap.CUSTOM_HASH;
+		this.hasher = hasher;
+	}
+
+	public int getVirtualNodes() {
+		return virtualNodes;
+	}
+
+	public final int getHashingAlg() {
+		return hashingAlg;
+	}
+
+	public final boolean isConsistent() {
+		return true;
+	}
+
+	public final boolean isPlacedByValue() {
+		return true;
+	}
+
+	public void clear() {
+		ring = null;
+	}
+
+	/**
+	 * Get the number of points on the ring.
+	 * @return the number of points
+	 */
+	public int getPointCount() {
+		Ring<V> r = ring;
+		return r != null ? r.points.length : 0;
+	}
+
+	/**
+	 * Set the values and their weights, the weights are taken in 1..100 like
+	 * <tt>XixiWeightMap</tt>, a missing weight is 1.
+	 */
+	@SuppressWarnings("unchecked")
+	public void set(V[] values, Integer[] weights) {
+		if (values == null || values.length == 0) {
+			return;
+		}
+		MessageDigest md5;
+		try {
+			md5 = MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("no md5 algorythm found");
+		}
+		int total = 0;
+		int[] counts = new int[values.length];
+		int[] valueWeights = new int[values.length];
+		for (int i = 0; i < values.length; i++) {
+			int weight = 1;
+			if (weights != null && i < weights.length && weights[i] != null) {
+				weight = Math.min(100, Math.max(1, weights[i].intValue()));
+			}
+			valueWeights[i] = weight;
+			counts[i] = weight * virtualNodes;
+			total += counts[i];
+		}
+		// the point in the high 32 bits, the index of the value in the low 32 bits
+		long[] entries = new long[total];
+		int n = 0;
+		for (int i = 0; i < values.length; i++) {
+			String name = String.valueOf(values[i]);
+			for (int j = 0; j * 4 < counts[i]; j++) {
+				byte[] digest = md5.digest((name + "-" + j).getBytes(POINT_CHARSET));
+				for (int h = 0; h < 4 && j * 4 + h < counts[i]; h++) {
+					int point = ((digest[3 + h * 4] & 0xFF) << 24) | ((digest[2 + h * 4] & 0xFF) << 16)
+							| ((digest[1 + h * 4] & 0xFF) << 8) | (digest[h * 4] & 0xFF);
+					entries[n++] = ((long) point << 32) | i;
+				}
+			}
+		}
+		Arrays.sort(entries);
+		// two values on one point, the first value keeps it
+		int size = 0;
+		for (int i = 0; i < entries.length; i++) {
+			if (size == 0 || (int) (entries[i] >> 32) != (int) (entries[size - 1] >> 32)) {
+				entries[size++] = entries[i];
+			}
+		}
+		int[] points = new int[size];
+		Object[] nodes = new Object[size];
+		int[] owners = new int[size];
+		for (int i = 0; i < size; i++) {
+			points[i] = (int) (entries[i] >> 32);
+			owners[i] = (int) entries[i];
+			nodes[i] = values[owners[i]];
+		}
+		ring = new Ring<V>(points, (V[]) nodes, owners, values.clone(), valueWeights);
+	}
+
+	public V get(String k) {
+		return getByHash(hash(k, null));
+	}
+
+	public V get(String k, Set<V> excluded) {
+		return getByHash(hash(k, null), excluded);
+	}
+
+	public List<V> get(String k, int count) {
+		return getByHash(hash(k, null), count);
+	}
+
+	public int hash(String k, byte[] keyBuf) {
+		if (hasher == null) {
+			return k.hashCode();
+		}
+		if (keyBuf == null) {
+			keyBuf = k.getBytes();
+		}
+		return hasher.hash(keyBuf, 0, keyBuf.length);
+	}
+
+	public V getByHash(int hash) {
+		Ring<V> r = ring;
+		return r.nodes[r.find(hash)];
+	}
+
+	public V getByHash(int hash, Set<V> excluded) {
+		Ring<V> r = ring;
+		int start = r.find(hash);
+		for (int i = 0; i < r.nodes.length; i++) {
+			V v = r.nodes[(start + i) % r.nodes.length];
+			if (!excluded.contains(v)) {
+				return v;
+			}
+		}
+		return null;
+	}
+
+	public List<V> getByHash(int hash, int count) {
+		Ring<V> r = ring;
+		int max = Math.min(count, r.valueCount);
+		List<V> result = new ArrayList<V>(max);
+		int start = r.find(hash);
+		for (int i = 0; i < r.nodes.length && result.size() < max; i++) {
+			V v = r.nodes[(start + i) % r.nodes.length];
+			if (!result.contains(v)) {
+				result.add(v);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Get the current ring, <tt>null</tt> before <tt>set</tt>.
+	 */
+	final Ring<V> getRing() {
+		return ring;
+	}
+
+	static final class Ring<V> {
+		final int[] points;
+		final V[] nodes;
+		// the index in values of the node of each point
+		final int[] owners;
+		final V[] values;
+		final int[] weights;
+		final int totalWeight;
+		final int valueCount;
+		// the first point of each range of the high bits of the hash, about one point per range
+		final int[] index;
+		final int shift;
+
+		Ring(int[] points, V[] nodes, int[] owners, V[] values, int[] weights) {
+			this.points = points;
+			this.nodes = nodes;
+			this.owners = owners;
+			this.values = values;
+			this.weights = weights;
+			int total = 0;
+			for (int i = 0; i < weights.length; i++) {
+				total += weights[i];
+			}
+			this.totalWeight = total;
+			this.valueCount = values.length;
+			int bits = 1;
+			while (bits < 24 && (1 << bits) < points.length) {
+				bits++;
+			}
+			shift = 32 - bits;
+			index = new int[(1 << bits) + 1];
+			int p = 0;
+			for (int i = 0; i < index.length; i++) {
+				while (p < points.length && range(points[p]) < i) {
+					p++;
+				}
+				index[i] = p;
+			}
+		}
+
+		/**
+		 * Get the range of a hash, the ranges are in the order of the signed points.
+		 */
+		private int range(int hash) {
+			return (hash ^ Integer.MIN_VALUE) >>> shift;
+		}
+
+		/**
+		 * Get the index of the first point at or after the hash, the ring wraps around.
+		 */
+		int find(int hash) {
+			int r = range(hash);
+			int i = Arrays.binarySearch(points, index[r], index[r + 1], hash);
+			if (i < 0) {
+				i = -i - 1;
+				if (i == points.length) {
+					i = 0;
+				}
+			}
+			return i;
+		}
+	}
+}
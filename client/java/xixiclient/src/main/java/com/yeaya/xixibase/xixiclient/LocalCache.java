@@ -114,6 +114,45 @@ public class LocalCache {
 		started = false;
 	}
 
+	/**
+	 * Start the watch of a host which is added to the cluster.
+	 */
+	protected void addHost(String host) {
+		if (!started || watchMap.containsKey(host)) {
+			return;
+		}
+		LocalCacheWatch updater = new LocalCacheWatch(host, manager,
+				cacheSize, cacheCount);
+		watchMap.put(host, updater);
+		log.info("addHost, localCache updater " + host + " start");
+		updater.init();
+	}
+
+	/**
+	 * Stop the watch of a host which is removed from the cluster, its items are dropped.
+	 */
+	protected void removeHost(String host) {
+		LocalCacheWatch updater = watchMap.remove(host);
+		if (updater != null) {
+			log.info("removeHost, localCache updater " + host + " stop");
+			updater.shutdown();
+		}
+	}
+
+	/**
+	 * Drop the items whose keys moved to another host, the other items are kept.
+	 * 
+	 * @return the number of dropped items
+	 */
+	protected int dropMoved() {
+		int count = 0;
+		Iterator<LocalCacheWatch> it = watchMap.values().iterator();
+		while (it.hasNext()) {
+			count += it.next().dropMoved();
+		}
+		return count;
+	}
+
 	public void dropInactive(int maxDropCount) {
 		Iterator<LocalCacheWatch> it = watchMap.values().iterator();
 		while (it.hasNext()) {
@@ -131,9 +170,19 @@ public class LocalCache {
 		return null;
 	}
 
+	/**
+	 * Get the item of a key from the watch which has it. The key is not routed,
+	 * only the client knows how its keys are encoded.
+	 */
 	public CacheItem get(int groupId, String key) {
-		String host = socketManager.getHost(key);
-		return get(host, groupId, key);
+		Iterator<LocalCacheWatch> it = watchMap.values().iterator();
+		while (it.hasNext()) {
+			CacheItem item = it.next().get(groupId, key);
+			if (item != null) {
+				return item;
+			}
+		}
+		return null;
 	}
 
 	public CacheItem getAndTouch(String host, int groupId, String key, int expiration) {
@@ -150,9 +199,14 @@ public class LocalCache {
 		return getAndTouch(host, groupId, key, expiration);
 	}
 */	
-	public void put(String host, String key, CacheItem item) {
+	/**
+	 * Put the item of a key to the watch of its host.
+	 * @param keyBuf the encoded key, it routes the key again when the hosts change
+	 */
+	public void put(String host, String key, byte[] keyBuf, CacheItem item) {
 		LocalCacheWatch watch = watchMap.get(host);
 		if (watch != null) {
+			item.keyBuf = keyBuf;
 			if (cacheSize.longValue() > warningCacheSize) {
 				dropInactive(maxDropCount);
 				if (cacheSize.longValue() + item.itemSize < maxCacheSize) {
@@ -178,9 +232,19 @@ public class LocalCache {
 		return null;
 	}
 	
+	/**
+	 * Remove the item of a key from every watch, see <tt>get(int, String)</tt>.
+	 */
 	public CacheItem remove(int groupId, String key) {
-		String host = socketManager.getHost(key);
-		return remove(host, groupId, key);
+		CacheItem removed = null;
+		Iterator<LocalCacheWatch> it = watchMap.values().iterator();
+		while (it.hasNext()) {
+			CacheItem item = it.next().remove(groupId, key);
+			if (removed == null) {
+				removed = item;
+			}
+		}
+		return removed;
 	}
 	
 	public void flush(String host, int groupId) {
@@ -23,11 +23,13 @@ import java.util.Map.Entry;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.yeaya.xixibase.xixiclient.multi.MultiUpdateExpirationItem;
+import com.yeaya.xixibase.xixiclient.network.SocketManager;
 
 class GroupItem {
 	private HashMap<String, CacheItem> inactiveCacheMap = new HashMap<String, CacheItem>();
@@ -35,6 +37,8 @@ class GroupItem {
 	private AtomicLong cacheSize = null;
 	private AtomicInteger cacheCount = null;
 	private HashMap<Long, CacheItem> cacheIdMap = null;
+	// a lock instead of synchronized, a virtual thread which waits for it does not pin its carrier
+	private final ReentrantLock lock = new ReentrantLock();
 	
 	public GroupItem(AtomicLong cacheSize, AtomicInteger cacheCount, HashMap<Long, CacheItem> cacheIdMap) {
 		this.cacheSize = cacheSize;
@@ -42,54 +46,64 @@ class GroupItem {
 		this.cacheIdMap = cacheIdMap;
 	}
 	
-	public synchronized void clear() {
-		Iterator<CacheItem> it = inactiveCacheMap.values().iterator();
-		while (it.hasNext()) {
-			CacheItem item = it.next();
-			cacheSize.addAndGet(-item.itemSize);
-			cacheCount.getAndDecrement();
-		}
-		inactiveCacheMap.clear();
-		it = activeCacheMap.values().iterator();
-		while (it.hasNext()) {
-			CacheItem item = it.next();
-			cacheSize.addAndGet(-item.itemSize);
-			cacheCount.getAndDecrement();
+	public void clear() {
+		lock.lock();
+		try {
+			Iterator<CacheItem> it = inactiveCacheMap.values().iterator();
+			while (it.hasNext()) {
+				CacheItem item = it.next();
+				cacheSize.addAndGet(-item.itemSize);
+				cacheCount.getAndDecrement();
+			}
+			inactiveCacheMap.clear();
+			it = activeCacheMap.values().iterator();
+			while (it.hasNext()) {
+				CacheItem item = it.next();
+				cacheSize.addAndGet(-item.itemSize);
+				cacheCount.getAndDecrement();
+			}
+			activeCacheMap.clear();
+		} finally {
+			lock.unlock();
 		}
-		activeCacheMap.clear();
 	}
 	
-	public synchronized void dropInactive(int maxCount) {
-	//	log.debug("dropInactive host=" + host + " inactiveSize=" + inactiveCacheMap.size()
-	//			+ " activeSize=" + activeCacheMap.size());
-//		LinkedList<CacheItem> list = new LinkedList<CacheItem>();
-		Iterator<CacheItem> it = inactiveCacheMap.values().iterator();
-		while (maxCount > 0 && it.hasNext()) {
-			CacheItem item = it.next();
-//			list.add(item);
-			maxCount--;
-//		}
-	//	while (!list.isEmpty()) {
-		//	CacheItem item = list.pop();
-			CacheItem item2 = cacheIdMap.remove(new Long(item.cacheId));
-			if (item2 != null) {
-				item = inactiveCacheMap.remove(item2.key);
-				if (item != null) {
-					cacheSize.addAndGet(-item.itemSize);
-					cacheCount.getAndDecrement();
+	public void dropInactive(int maxCount) {
+		lock.lock();
+		try {
+		//	log.debug("dropInactive host=" + host + " inactiveSize=" + inactiveCacheMap.size()
+		//			+ " activeSize=" + activeCacheMap.size());
+	//		LinkedList<CacheItem> list = new LinkedList<CacheItem>();
+			Iterator<CacheItem> it = inactiveCacheMap.values().iterator();
+			while (maxCount > 0 && it.hasNext()) {
+				CacheItem item = it.next();
+	//			list.add(item);
+				maxCount--;
+	//		}
+		//	while (!list.isEmpty()) {
+			//	CacheItem item = list.pop();
+				CacheItem item2 = cacheIdMap.remove(new Long(item.cacheId));
+				if (item2 != null) {
+					item = inactiveCacheMap.remove(item2.key);
+					if (item != null) {
+						cacheSize.addAndGet(-item.itemSize);
+						cacheCount.getAndDecrement();
+					}
+					it = inactiveCacheMap.values().iterator();
 				}
-				it = inactiveCacheMap.values().iterator();
 			}
-		}
 
-		Iterator<Entry<String, CacheItem>> ite = activeCacheMap.entrySet().iterator();
-		while (ite.hasNext()) {
-			Entry<String, CacheItem> e = ite.next();
-	//		String key = e.getKey();
-			CacheItem item = e.getValue();
-			inactiveCacheMap.put(item.key, item);
+			Iterator<Entry<String, CacheItem>> ite = activeCacheMap.entrySet().iterator();
+			while (ite.hasNext()) {
+				Entry<String, CacheItem> e = ite.next();
+		//		String key = e.getKey();
+				CacheItem item = e.getValue();
+				inactiveCacheMap.put(item.key, item);
+			}
+			activeCacheMap.clear();
+		} finally {
+			lock.unlock();
 		}
-		activeCacheMap.clear();
 	}
 	
 	public CacheItem get(int groupId, String key) {
@@ -97,71 +111,118 @@ class GroupItem {
 		if (item != null) {
 			return item;
 		}
-		synchronized (this) {
+		lock.lock();
+		try {
 			item = inactiveCacheMap.remove(key);
 			if (item != null) {
 				activeCacheMap.put(key, item);
 			}
+		} finally {
+			lock.unlock();
 		}
 		return item;
 	}
 	
-	public synchronized void put(String key, CacheItem value) {
-		CacheItem oldItem = inactiveCacheMap.put(key, value);
-		if (oldItem != null) {
-			cacheSize.addAndGet(-oldItem.itemSize);
-			cacheCount.getAndDecrement();
-			cacheIdMap.remove(new Long(oldItem.cacheId));
-		} else {
-			oldItem = activeCacheMap.remove(key);
+	public void put(String key, CacheItem value) {
+		lock.lock();
+		try {
+			CacheItem oldItem = inactiveCacheMap.put(key, value);
 			if (oldItem != null) {
 				cacheSize.addAndGet(-oldItem.itemSize);
 				cacheCount.getAndDecrement();
 				cacheIdMap.remove(new Long(oldItem.cacheId));
+			} else {
+				oldItem = activeCacheMap.remove(key);
+				if (oldItem != null) {
+					cacheSize.addAndGet(-oldItem.itemSize);
+					cacheCount.getAndDecrement();
+					cacheIdMap.remove(new Long(oldItem.cacheId));
+				}
 			}
+			cacheSize.addAndGet(value.itemSize);
+			cacheCount.getAndIncrement();
+			cacheIdMap.put(new Long(value.cacheId), value);
+		} finally {
+			lock.unlock();
 		}
-		cacheSize.addAndGet(value.itemSize);
-		cacheCount.getAndIncrement();
-		cacheIdMap.put(new Long(value.cacheId), value);
 	}
 
-	public synchronized CacheItem remove(String key) {
-		CacheItem item = activeCacheMap.remove(key);
-		if (item != null) {
-			cacheSize.addAndGet(-item.itemSize);
-			cacheCount.getAndDecrement();
-			cacheIdMap.remove(new Long(item.cacheId));
-		} else {
-			item = inactiveCacheMap.remove(key);
+	public CacheItem remove(String key) {
+		lock.lock();
+		try {
+			CacheItem item = activeCacheMap.remove(key);
 			if (item != null) {
 				cacheSize.addAndGet(-item.itemSize);
 				cacheCount.getAndDecrement();
 				cacheIdMap.remove(new Long(item.cacheId));
+			} else {
+				item = inactiveCacheMap.remove(key);
+				if (item != null) {
+					cacheSize.addAndGet(-item.itemSize);
+					cacheCount.getAndDecrement();
+					cacheIdMap.remove(new Long(item.cacheId));
+				}
 			}
+			return item;
+		} finally {
+			lock.unlock();
 		}
-		return item;
 	}
 	
-	public synchronized void update(CacheItem it) {
-		CacheItem item = activeCacheMap.remove(it.key);
-		if (item != null) {
-//			if (item.cacheId != it.cacheId) {
-//				activeCacheMap.put(it.key, item);
-//			} else {
+	/**
+	 * Remove the items whose keys are not on the host any more.
+	 * @return the number of removed items
+	 */
+	public int removeMoved(String host, SocketManager socketManager) {
+		lock.lock();
+		try {
+			int count = removeMoved(inactiveCacheMap.values().iterator(), host, socketManager);
+			return count + removeMoved(activeCacheMap.values().iterator(), host, socketManager);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private int removeMoved(Iterator<CacheItem> it, String host, SocketManager socketManager) {
+		int count = 0;
+		while (it.hasNext()) {
+			CacheItem item = it.next();
+			if (!host.equals(socketManager.getHost(item.key, item.keyBuf))) {
+				it.remove();
 				cacheSize.addAndGet(-item.itemSize);
 				cacheCount.getAndDecrement();
-//			}
-		} else {
-			item = inactiveCacheMap.remove(it.key);
+				cacheIdMap.remove(new Long(item.cacheId));
+				count++;
+			}
+		}
+		return count;
+	}
+
+	public void update(CacheItem it) {
+		lock.lock();
+		try {
+			CacheItem item = activeCacheMap.remove(it.key);
 			if (item != null) {
-//				if (item.cacheId != it.cacheId) {
-//					inactiveCacheMap.put(it.key, item);
-//				} else {
+	//			if (item.cacheId != it.cacheId) {
+	//				activeCacheMap.put(it.key, item);
+	//			} else {
 					cacheSize.addAndGet(-item.itemSize);
 					cacheCount.getAndDecrement();
-//				}					
-			}
-		}		
+	//			}
+			} else {
+				item = inactiveCacheMap.remove(it.key);
+				if (item != null) {
+	//				if (item.cacheId != it.cacheId) {
+	//					inactiveCacheMap.put(it.key, item);
+	//				} else {
+						cacheSize.addAndGet(-item.itemSize);
+						cacheCount.getAndDecrement();
+	//				}					
+				}
+			}		
+		} finally {
+			lock.unlock();
+		}
 	}
 }
 
@@ -181,6 +242,7 @@ class LocalCacheWatch extends Thread {
 	private int maxNextCheckInterval = 600;
 	private Protocol cc = null;
 	private LocalCacheTouch cacheTouch = null;
+	private final ReentrantLock lock = new ReentrantLock();
 
 	public LocalCacheWatch(String host, XixiClientManager manager,
 			AtomicLong cacheSize, AtomicInteger cacheCount) {
@@ -208,21 +270,50 @@ class LocalCacheWatch extends Thread {
 		clear();
 	}
 
-	private synchronized void clear() {
-		watchId = 0;
-		Iterator<GroupItem> it = groupMap.values().iterator();
-		while (it.hasNext()) {
-			GroupItem item = it.next();
-			item.clear();
+	private void clear() {
+		lock.lock();
+		try {
+			watchId = 0;
+			Iterator<GroupItem> it = groupMap.values().iterator();
+			while (it.hasNext()) {
+				GroupItem item = it.next();
+				item.clear();
+			}
+			cacheIdMap.clear();
+		} finally {
+			lock.unlock();
 		}
-		cacheIdMap.clear();
 	}
 
-	public synchronized void dropInactive(int maxCount) {
-		Iterator<GroupItem> it = groupMap.values().iterator();
-		while (it.hasNext()) {
-			GroupItem item = it.next();
-			item.dropInactive(maxCount);
+	public void dropInactive(int maxCount) {
+		lock.lock();
+		try {
+			Iterator<GroupItem> it = groupMap.values().iterator();
+			while (it.hasNext()) {
+				GroupItem item = it.next();
+				item.dropInactive(maxCount);
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Drop the items whose keys moved to another host, the watch of this host
+	 * does not see their updates any more.
+	 * @return the number of dropped items
+	 */
+	public int dropMoved() {
+		lock.lock();
+		try {
+			int count = 0;
+			Iterator<GroupItem> it = groupMap.values().iterator();
+			while (it.hasNext()) {
+				count += it.next().removeMoved(host, manager.socketManager);
+			}
+			return count;
+		} finally {
+			lock.unlock();
 		}
 	}
 
@@ -242,43 +333,63 @@ class LocalCacheWatch extends Thread {
 		return item;
 	}
 
-	public synchronized void put(String key, CacheItem item) {
-		GroupItem gitem = groupMap.get(Integer.valueOf(item.groupId));
-		if (gitem != null) {
-			gitem.put(key, item);
-		} else {
-			gitem = new GroupItem(cacheSize, cacheCount, cacheIdMap);
-			groupMap.put(Integer.valueOf(item.groupId), gitem);
-			gitem.put(key, item);
+	public void put(String key, CacheItem item) {
+		lock.lock();
+		try {
+			GroupItem gitem = groupMap.get(Integer.valueOf(item.groupId));
+			if (gitem != null) {
+				gitem.put(key, item);
+			} else {
+				gitem = new GroupItem(cacheSize, cacheCount, cacheIdMap);
+				groupMap.put(Integer.valueOf(item.groupId), gitem);
+				gitem.put(key, item);
+			}
+		} finally {
+			lock.unlock();
 		}
 	}
 
-	public synchronized CacheItem remove(int groupId, String key) {
-		GroupItem gitem = groupMap.get(Integer.valueOf(groupId));
-		if (gitem != null) {
-			return gitem.remove(key);
+	public CacheItem remove(int groupId, String key) {
+		lock.lock();
+		try {
+			GroupItem gitem = groupMap.get(Integer.valueOf(groupId));
+			if (gitem != null) {
+				return gitem.remove(key);
+			}
+			return null;
+		} finally {
+			lock.unlock();
 		}
-		return null;
 	}
 	
-	public synchronized void flush(int groupId) {
-		GroupItem gitem = groupMap.get(Integer.valueOf(groupId));
-		if (gitem != null) {
-			gitem.clear();
+	public void flush(int groupId) {
+		lock.lock();
+		try {
+			GroupItem gitem = groupMap.get(Integer.valueOf(groupId));
+			if (gitem != null) {
+				gitem.clear();
+			}
+		} finally {
+			lock.unlock();
 		}
 	}
 
-	protected synchronized void update(WatchResult wr) {
-		//	log.debug("update count=" + updated.length);
-		for (int i = 0; i < wr.cacheIds.length; i++) {
-			Long cacheId = new Long(wr.cacheIds[i]);
-			CacheItem it = cacheIdMap.remove(cacheId);
-			if (it != null) {
-				GroupItem gitem = groupMap.get(it.groupId);
-				if (gitem != null) {
-					gitem.update(it);
+	protected void update(WatchResult wr) {
+		lock.lock();
+		try {
+			//	log.debug("update count=" + updated.length);
+			for (int i = 0; i < wr.cacheIds.length; i++) {
+				Long cacheId = new Long(wr.cacheIds[i]);
+				CacheItem it = cacheIdMap.remove(cacheId);
+				if (it != null) {
+					GroupItem gitem = groupMap.get(it.groupId);
+					if (gitem != null) {
+						gitem.update(it);
+					}
 				}
 			}
+		} finally {
+			lock.unlock();
 		}
 	}
 	
@@ -286,8 +397,11 @@ class LocalCacheWatch extends Thread {
 		log.info("run, host=" + host);
 		while (runFlag) {
 			while (watchId == 0 && runFlag) {
-				watchId = cc.createWatch(host, maxNextCheckInterval);
-				log.debug("run, host=" + host + " watchId=" + watchId);
+				// do not wait for the connect timeout of a down host, the maintain thread probes it
+				if (!manager.socketManager.isHostDown(host)) {
+					watchId = cc.createWatch(host, maxNextCheckInterval);
+					log.debug("run, host=" + host + " watchId=" + watchId);
+				}
 				if (watchId == 0 && runFlag) {
 					try {
 						Thread.sleep(1000);
@@ -0,0 +1,245 @@
+/*
+   Copyright [2015] [Yao Yuan(yeaya@163.com)]
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.yeaya.xixibase.xixiclient;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.yeaya.xixibase.xixiclient.network.SocketManager;
+import com.yeaya.xixibase.xixiclient.network.TrafficClass;
+import com.yeaya.xixibase.xixiclient.network.XixiSocket;
+
+/**
+ * Sends sets, deletes and expiration updates without waiting for their responses.
+ * <p>
+ * The requests of one host are streamed on one pooled socket, then the socket goes
+ * back to the pool with the number of unread responses. The next borrower of the
+ * socket reads them before its own request, a failed request is counted by
+ * <tt>SocketManager.getNoreplyErrorCount</tt>. A socket never holds more than
+ * <tt>SocketManager.MAX_PENDING_REPLIES</tt> unread responses, a longer stream
+ * reads them on the way.
+ * <p>
+ * The server replies to every request, so the reply flag stays set and only the
+ * client stops waiting.
+ *
+ * @author Yao Yuan
+ *
+ */
+class NoreplySender extends Defines {
+	final static Logger log = LoggerFactory.getLogger(NoreplySender.class);
+
+	static final int SET = 0;
+	static final int DELETE = 1;
+	static final int UPDATE_EXPIRATION = 2;
+
+	private final SocketManager socketManager;
+	private final LocalCache localCache;
+	private final int groupId;
+	private final TrafficClass trafficClass;
+	private final long deadline;
+	private final Map<String, List<Request>> hostRequests = new LinkedHashMap<String, List<Request>>();
+	private final boolean[] sent;
+	private String lastError;
+
+	/**
+	 * @param itemCount the number of items of the caller
+	 * @param deadline deadline(System.nanoTime), <tt>0</tt> for none
+	 */
+	NoreplySender(SocketManager socketManager, LocalCache localCache, int groupId,
+			TrafficClass trafficClass, int itemCount, long deadline) {
+		this.socketManager = socketManager;
+		this.localCache = localCache;
+		this.groupId = groupId;
+		this.trafficClass = trafficClass;
+		this.deadline = deadline;
+		this.sent = new boolean[itemCount];
+	}
+
+	String getLastError() {
+		return lastError;
+	}
+
+	/**
+	 * Add one request of an item, to the host of the key or to each of its replicas which is up.
+	 * @param index the index of the item
+	 * @return <tt>false</tt> if no host is found
+	 */
+	boolean add(int index, int type, String key, byte[] keyBuf, byte[] data, int flags, int expiration, long cacheId) {
+		Request request = new Request(index, type, key, keyBuf, data, flags, expiration, cacheId);
+		String[] hosts = socketManager.getReplicaHosts(key, keyBuf);
+		if (hosts == null) {
+			String host = socketManager.getHost(key, keyBuf);
+			if (host == null) {
+				return false;
+			}
+			add(host, request);
+			return true;
+		}
+		boolean added = false;
+		for (int i = 0; i < hosts.length; i++) {
+			if (!socketManager.isHostDown(hosts[i])) {
+				add(hosts[i], request);
+				added = true;
+			}
+		}
+		return added;
+	}
+
+	private void add(String host, Request request) {
+		List<Request> requests = hostRequests.get(host);
+		if (requests == null) {
+			requests = new ArrayList<Request>();
+			hostRequests.put(host, requests);
+		}
+		requests.add(request);
+	}
+
+	/**
+	 * Send all the requests.
+	 * @return the number of items which were written to at least one host
+	 */
+	int send() {
+		Iterator<Map.Entry<String, List<Request>>> it = hostRequests.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<String, List<Request>> e = it.next();
+			send(e.getKey(), e.getValue());
+		}
+		int count = 0;
+		for (int i = 0; i < sent.length; i++) {
+			if (sent[i]) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	private void send(String host, List<Request> requests) {
+		XixiSocket socket = socketManager.getSocketByHost(host, trafficClass, deadline);
+		if (socket == null) {
+			lastError = "noreply, failed to get socket, host=" + host;
+			log.error(lastError);
+			return;
+		}
+		socket.setBorrowTime(XixiSocket.NO_RTT);
+		// the requests from flushed on are not sent yet
+		int flushed = 0;
+		try {
+			ByteBuffer writeBuffer = socket.getWriteBuffer();
+			writeBuffer.clear();
+			for (int i = 0; i < requests.size(); i++) {
+				Request request = requests.get(i);
+				if (socket.getPendingReplies() >= SocketManager.MAX_PENDING_REPLIES) {
+					socket.flush();
+					flushed = markSent(requests, flushed, i);
+					socketManager.drainReplies(socket);
+				}
+				if (writeBuffer.remaining() < request.keyBuf.length + 40) {
+					socket.flush();
+					flushed = markSent(requests, flushed, i);
+				}
+				write(socket, writeBuffer, request);
+				socket.setPendingReplies(socket.getPendingReplies() + 1);
+				localCache.remove(host, groupId, request.key);
+			}
+			socket.flush();
+			markSent(requests, flushed, requests.size());
+		} catch (IOException e) {
+			lastError = "noreply, exception=" + e;
+			log.error(lastError);
+			socket.trueClose();
+			socket = null;
+		} finally {
+			if (socket != null) {
+				socket.close();
+				socket = null;
+			}
+		}
+	}
+
+	private int markSent(List<Request> requests, int from, int to) {
+		for (int i = from; i < to; i++) {
+			sent[requests.get(i).index] = true;
+		}
+		return to;
+	}
+
+	private void write(XixiSocket socket, ByteBuffer writeBuffer, Request request) throws IOException {
+		writeBuffer.put(XIXI_CATEGORY_CACHE);
+		if (request.type == SET) {
+			writeBuffer.put(XIXI_TYPE_UPDATE_REQ);
+			writeBuffer.put((byte) (XIXI_UPDATE_SUB_OP_SET | XIXI_UPDATE_REPLY));
+			writeBuffer.putLong(request.cacheId);
+			writeBuffer.putInt(groupId);
+			writeBuffer.putInt(request.flags);
+			writeBuffer.putInt(request.expiration);
+			writeBuffer.putInt(NO_WATCH);
+			writeBuffer.putShort((short) request.keyBuf.length);
+			writeBuffer.putInt(request.data.length);
+			writeBuffer.put(request.keyBuf);
+			if (request.data.length <= writeBuffer.remaining()) {
+				writeBuffer.put(request.data);
+			} else {
+				socket.flush(ByteBuffer.wrap(request.data));
+			}
+		} else if (request.type == DELETE) {
+			writeBuffer.put(XIXI_TYPE_DELETE_REQ);
+			writeBuffer.put((byte) (XIXI_DELETE_SUB_OP | XIXI_DELETE_REPLY));
+			writeBuffer.putLong(request.cacheId);
+			writeBuffer.putInt(groupId);
+			writeBuffer.putShort((short) request.keyBuf.length);
+			writeBuffer.put(request.keyBuf);
+		} else {
+			writeBuffer.put(XIXI_TYPE_UPDATE_EXPIRATION_REQ);
+			writeBuffer.put(XIXI_UPDATE_EXPIRATION_REPLY);
+			writeBuffer.putLong(request.cacheId);
+			writeBuffer.putInt(groupId);
+			writeBuffer.putInt(request.expiration);
+			writeBuffer.putShort((short) request.keyBuf.length);
+			writeBuffer.put(request.keyBuf);
+		}
+	}
+
+	private static final class Request {
+		final int index;
+		final int type;
+		final String key;
+		final byte[] keyBuf;
+		final byte[] data;
+		final int flags;
+		final int expiration;
+		final long cacheId;
+
+		Request(int index, int type, String key, byte[] keyBuf, byte[] data, int flags, int expiration, long cacheId) {
+			this.index = index;
+			this.type = type;
+			this.key = key;
+			this.keyBuf = keyBuf;
+			this.data = data;
+			this.flags = flags;
+			this.expiration = expiration;
+			this.cacheId = cacheId;
+		}
+	}
+}
@@ -23,11 +23,18 @@ import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.URLEncoder;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
 import java.util.Date;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
 
-public class ObjectTransCoder implements TransCoder {
+public class ObjectTransCoder implements ByteBufferTransCoder {
 	public static final int FLAGS_COMPRESSED = 0x80;
 	public static final int FLAGS_TYPE_MASK = 0xF;
 	public static final int FLAGS_TYPE_BOOLEAN = 1;
@@ -50,6 +57,7 @@ public class ObjectTransCoder implements TransCoder {
 	protected boolean sanitizeKeys = false;
 	protected int option1 = 0;
 	protected int option2 = 0;
+	private final ThreadLocal<CharsetEncoder> charsetEncoder = new ThreadLocal<CharsetEncoder>();
 
 	public ObjectTransCoder() {
 //		setOptions1((short)3);
@@ -150,6 +158,10 @@ public class ObjectTransCoder implements TransCoder {
 		} else if (obj instanceof byte[]) {
 			flags = FLAGS_TYPE_BYTEARR;
 			b = (byte[]) obj;
+		} else if (obj instanceof ByteBuffer) {
+			flags = FLAGS_TYPE_BYTEARR;
+			b = new byte[((ByteBuffer) obj).remaining()];
+			((ByteBuffer) obj).duplicate().get(b);
 		} else {
 			flags = FLAGS_TYPE_SERIALIZED;
 			ByteArrayOutputStream bos = new ByteArrayOutputStream();
@@ -178,6 +190,115 @@ public class ObjectTransCoder implements TransCoder {
 		return b;
 	}
 
+	public int encode(final Object obj, ByteBuffer buf, int[]/*out*/ outflags, int[]/*out*/ objectSize) throws IOException {
+		int start = buf.position();
+		int flags = 0;
+		try {
+			if (obj instanceof String) {
+				flags = FLAGS_TYPE_STRING;
+				if (!encodeChars((String) obj, buf)) {
+					buf.position(start);
+					return -1;
+				}
+			} else if (obj instanceof Boolean) {
+				flags = FLAGS_TYPE_BOOLEAN;
+				buf.put(((Boolean) obj).booleanValue() ? (byte) 1 : (byte) 0);
+			} else if (obj instanceof Byte) {
+				flags = FLAGS_TYPE_BYTE;
+				buf.put(((Byte) obj).byteValue());
+			} else if (obj instanceof Short) {
+				flags = FLAGS_TYPE_SHORT;
+				buf.putShort(((Short) obj).shortValue());
+			} else if (obj instanceof Character) {
+				flags = FLAGS_TYPE_CHARACTER;
+				buf.putShort((short)((Character) obj).charValue());
+			} else if (obj instanceof Integer) {
+				flags = FLAGS_TYPE_INTEGER;
+				buf.putInt(((Integer) obj).intValue());
+			} else if (obj instanceof Float) {
+				flags = FLAGS_TYPE_FLOAT;
+				buf.putInt(Float.floatToIntBits(((Float) obj).floatValue()));
+			} else if (obj instanceof Long) {
+				flags = FLAGS_TYPE_LONG;
+				buf.putLong(((Long) obj).longValue());
+			} else if (obj instanceof Double) {
+				flags = FLAGS_TYPE_DOUBLE;
+				buf.putLong(Double.doubleToLongBits(((Double) obj).doubleValue()));
+			} else if (obj instanceof Date) {
+				flags = FLAGS_TYPE_DATE;
+				buf.putLong(((Date) obj).getTime());
+			} else if (obj instanceof StringBuffer || obj instanceof StringBuilder) {
+				flags = obj instanceof StringBuffer ? FLAGS_TYPE_STRINGBUFFER : FLAGS_TYPE_STRINGBUILDER;
+				if (!encodeChars((CharSequence) obj, buf)) {
+					buf.position(start);
+					return -1;
+				}
+			} else if (obj instanceof byte[]) {
+				flags = FLAGS_TYPE_BYTEARR;
+				buf.put((byte[]) obj);
+			} else if (obj instanceof ByteBuffer) {
+				flags = FLAGS_TYPE_BYTEARR;
+				buf.put(((ByteBuffer) obj).duplicate());
+			} else {
+				// serialized objects keep the ByteArrayOutputStream path
+				return -1;
+			}
+		} catch (BufferOverflowException e) {
+			buf.position(start);
+			return -1;
+		}
+
+		int size = buf.position() - start;
+		if (size >= compressionThreshold && compressionThreshold > 0) {
+			buf.position(start);
+			return -1;
+		}
+		if (objectSize != null) {
+			objectSize[0] = size;
+		}
+		outflags[0] = flags + option1 + option2;
+		return size;
+	}
+
+	public ByteBuffer wrap(final Object obj, int[]/*out*/ outflags, int[]/*out*/ objectSize) {
+		ByteBuffer b = null;
+		if (obj instanceof byte[]) {
+			b = ByteBuffer.wrap((byte[]) obj);
+		} else if (obj instanceof ByteBuffer) {
+			b = ((ByteBuffer) obj).duplicate();
+		}
+		if (b == null || (b.remaining() >= compressionThreshold && compressionThreshold > 0)) {
+			return null;
+		}
+		if (objectSize != null) {
+			objectSize[0] = b.remaining();
+		}
+		outflags[0] = FLAGS_TYPE_BYTEARR + option1 + option2;
+		return b;
+	}
+
+	private boolean encodeChars(CharSequence chars, ByteBuffer buf) {
+		CharsetEncoder encoder = charsetEncoder.get();
+		if (encoder == null || !encoder.charset().name().equalsIgnoreCase(encodingCharsetName)
+				&& !encoder.charset().aliases().contains(encodingCharsetName)) {
+			try {
+				encoder = Charset.forName(encodingCharsetName).newEncoder()
+						.onMalformedInput(CodingErrorAction.REPLACE)
+						.onUnmappableCharacter(CodingErrorAction.REPLACE);
+			} catch (IllegalArgumentException e) {
+				// let encode(Object, int[], int[]) report the bad charset
+				return false;
+			}
+			charsetEncoder.set(encoder);
+		}
+		encoder.reset();
+		CoderResult result = encoder.encode(CharBuffer.wrap(chars), buf, true);
+		if (result.isUnderflow()) {
+			result = encoder.flush(buf);
+		}
+		return result.isUnderflow();
+	}
+
 	public Object decode(final byte[] in, int flags, int[]/*out*/ objectSize) throws IOException {
 		byte[] b = in;
 		if ((flags & FLAGS_COMPRESSED) == FLAGS_COMPRESSED) {
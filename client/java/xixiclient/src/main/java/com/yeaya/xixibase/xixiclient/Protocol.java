@@ -18,6 +18,9 @@ package com.yeaya.xixibase.xixiclient;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -25,6 +28,8 @@ import java.util.Map;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.yeaya.xixibase.xixiclient.multi.Broadcast;
+import com.yeaya.xixibase.xixiclient.multi.HostResult;
 import com.yeaya.xixibase.xixiclient.multi.MultiDelete;
 import com.yeaya.xixibase.xixiclient.multi.MultiDeleteItem;
 import com.yeaya.xixibase.xixiclient.multi.MultiGet;
@@ -33,6 +38,7 @@ import com.yeaya.xixibase.xixiclient.multi.MultiUpdateExpiration;
 import com.yeaya.xixibase.xixiclient.multi.MultiUpdateExpirationItem;
 import com.yeaya.xixibase.xixiclient.multi.MultiUpdateItem;
 import com.yeaya.xixibase.xixiclient.network.SocketManager;
+import com.yeaya.xixibase.xixiclient.network.TrafficClass;
 import com.yeaya.xixibase.xixiclient.network.XixiSocket;
 
 public class Protocol extends Defines {
@@ -44,14 +50,31 @@ public class Protocol extends Defines {
 	private SocketManager socketManager;
 	private LocalCache localCache = null;
 	private String lastError;
+	// the last read failed on its host, a miss leaves it false
+	private boolean hostFailed;
 	protected boolean enableLocalCache;
+	// the lane of the blocking sockets, null is the interactive lane
+	private TrafficClass trafficClass = null;
+	// the timeout(millisecond) of each request, 0 for none
+	private long operationTimeout = 0;
+	// the deadline(System.currentTimeMillis) of all the requests, 0 for none
+	private long deadline = 0;
+	private List<String> timedOutKeys = new ArrayList<String>();
+	// combines the single-key requests of the clients, or null
+	private AutoBatcher autoBatcher = null;
 
 	public String getLastError() {
 		return lastError;
 	}
 
 	public Protocol(XixiClientManager manager, SocketManager socketManager, int groupId, boolean enableLocalCache) {
+		this(manager, socketManager, groupId, enableLocalCache, null);
+	}
+
+	public Protocol(XixiClientManager manager, SocketManager socketManager, int groupId, boolean enableLocalCache,
+			TrafficClass trafficClass) {
 		this.manager = manager;
+		this.trafficClass = trafficClass;
 		this.socketManager = socketManager;
 		if (enableLocalCache) {
 			manager.openLocalCache();
@@ -59,12 +82,19 @@ public class Protocol extends Defines {
 		this.localCache = manager.getLocalCache();
 		this.groupId = groupId;
 		this.enableLocalCache = enableLocalCache;
+		if (!enableLocalCache) {
+			this.autoBatcher = manager.getAutoBatcher(groupId, trafficClass);
+		}
 	}
 
 	public int getGroupId() {
 		return groupId;
 	}
 
+	public TrafficClass getTrafficClass() {
+		return trafficClass;
+	}
+
 	public void setTransCoder(TransCoder transCoder) {
 		this.transCoder = transCoder;
 	}
@@ -73,8 +103,215 @@ public class Protocol extends Defines {
 		return transCoder;
 	}
 
+	public void setOperationTimeout(long operationTimeout) {
+		this.operationTimeout = operationTimeout;
+	}
+
+	public long getOperationTimeout() {
+		return operationTimeout;
+	}
+
+	public void setDeadline(long deadline) {
+		this.deadline = deadline;
+	}
+
+	public long getDeadline() {
+		return deadline;
+	}
+
+	public List<String> getTimedOutKeys() {
+		return timedOutKeys;
+	}
+
+	/**
+	 * Get the deadline of a request which starts now, the earlier one of the
+	 * operation timeout and the deadline of the client.
+	 * @return deadline(System.nanoTime), <tt>0</tt> for none
+	 */
+	private long nextDeadline() {
+		if (operationTimeout <= 0 && deadline <= 0) {
+			return 0;
+		}
+		long now = System.nanoTime();
+		long next = 0;
+		if (operationTimeout > 0) {
+			next = now + operationTimeout * 1000000L;
+		}
+		if (deadline > 0) {
+			long d = now + (deadline - System.currentTimeMillis()) * 1000000L;
+			if (next == 0 || d - next < 0) {
+				next = d;
+			}
+		}
+		// 0 means no deadline
+		return next != 0 ? next : 1;
+	}
+
+	/**
+	 * Get the socket of the host, or of the host of the encoded key if <tt>host</tt> is <tt>null</tt>.
+	 */
+	private XixiSocket getSocket(String host, String key, byte[] keyBuf) {
+		if (host == null) {
+			return socketManager.getSocket(key, keyBuf, trafficClass, nextDeadline());
+		}
+		return socketManager.getSocketByHost(host, trafficClass, nextDeadline());
+	}
+
+	private String getJournalHost(String host, String key, byte[] keyBuf) {
+		return host != null ? host : socketManager.getHost(key, keyBuf);
+	}
+
+	/**
+	 * Get the hosts of the key, routed with the encoded key as its requests are.
+	 * @return hosts, or <tt>null</tt> if the key is <tt>null</tt> or the keys are not replicated
+	 */
+	private String[] getReplicaHosts(String key) {
+		if (key == null || socketManager.getReplicas() <= 1) {
+			return null;
+		}
+		byte[] keyBuf = transCoder.encodeKey(key);
+		return keyBuf != null ? socketManager.getReplicaHosts(key, keyBuf) : null;
+	}
+
+	/**
+	 * Is a set or delete of the key waiting in the journal of the host?
+	 * A later write of the key goes to the journal too, to keep the order.
+	 */
+	private boolean isJournalPending(String host, String key, byte[] keyBuf) {
+		WriteJournal journal = manager.getJournal();
+		if (journal == null) {
+			return false;
+		}
+		String journalHost = getJournalHost(host, key, keyBuf);
+		return journalHost != null && journal.contains(journalHost, groupId, keyBuf);
+	}
+
+	/**
+	 * Keep a set in the journal of the host, a <tt>ByteBuffer</tt> value is not kept.
+	 * @return <tt>true</tt> if the set was kept
+	 */
+	private boolean journalSet(String host, String key, byte[] keyBuf, Object value, int expiration, long cacheId) {
+		WriteJournal journal = manager.getJournal();
+		if (journal == null || host == null || keyBuf == null || value instanceof ByteBuffer) {
+			return false;
+		}
+		try {
+			int[] outflags = new int[1];
+			byte[] data = transCoder.encode(value, outflags, null);
+			if (!journal.append(host, HostJournal.SET, groupId, keyBuf, cacheId, expiration, outflags[0], data)) {
+				return false;
+			}
+		} catch (IOException e) {
+			log.error("journalSet, exception=" + e);
+			return false;
+		}
+		localCache.remove(host, groupId, key);
+		return true;
+	}
+
+	/**
+	 * Keep a delete in the journal of the host.
+	 * @return <tt>true</tt> if the delete was kept
+	 */
+	private boolean journalDelete(String host, String key, byte[] keyBuf, long cacheId) {
+		WriteJournal journal = manager.getJournal();
+		if (journal == null || host == null || keyBuf == null
+				|| !journal.append(host, HostJournal.DELETE, groupId, keyBuf, cacheId, 0, 0, null)) {
+			return false;
+		}
+		localCache.remove(host, groupId, key);
+		return true;
+	}
+
+	/**
+	 * Get the replica which handles the writes of a key, the first host which is up.
+	 */
+	private int getLeader(String[] hosts) {
+		for (int i = 0; i < hosts.length; i++) {
+			if (!socketManager.isHostDown(hosts[i])) {
+				return i;
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * Get the hosts of each key, an entry is <tt>null</tt> if the key is <tt>null</tt>.
+	 * @return the hosts of each key, or <tt>null</tt> if the keys are not replicated
+	 */
+	private List<String[]> getReplicaHosts(List<String> keys) {
+		if (keys == null || socketManager.getReplicas() <= 1) {
+			return null;
+		}
+		List<String[]> result = new ArrayList<String[]>(keys.size());
+		for (int i = 0; i < keys.size(); i++) {
+			String key = keys.get(i);
+			String[] hosts = null;
+			if (key != null) {
+				hosts = getReplicaHosts(key);
+				if (hosts == null) {
+					return null;
+				}
+			}
+			result.add(hosts);
+		}
+		return result;
+	}
+
+	private List<String> getLeaders(List<String[]> replicaHosts) {
+		List<String> leaders = new ArrayList<String>(replicaHosts.size());
+		for (int i = 0; i < replicaHosts.size(); i++) {
+			String[] hosts = replicaHosts.get(i);
+			leaders.add(hosts != null ? hosts[getLeader(hosts)] : null);
+		}
+		return leaders;
+	}
+
 	public CacheItem get(String key, boolean touch, int expiration) {
+		if (autoBatcher != null && !touch && key != null) {
+			AutoBatcher.Op op = autoBatcher.get(key, transCoder, nextDeadline());
+			if (op != null) {
+				lastError = op.getError();
+				return op.getItem();
+			}
+		}
+		String[] hosts = enableLocalCache ? null : getReplicaHosts(key);
+		if (hosts == null) {
+			return get(null, key, touch, expiration);
+		}
+		// read the fastest replica, the others are only asked if its host fails
+		int first = socketManager.selectReplica(hosts);
+		CacheItem item = null;
+		for (int i = 0; i < hosts.length && item == null; i++) {
+			String host = hosts[(first + i) % hosts.length];
+			if (i > 0 && socketManager.isHostDown(host)) {
+				continue;
+			}
+			long start = System.nanoTime();
+			item = get(host, key, touch, expiration);
+			socketManager.recordLatency(host, System.nanoTime() - start);
+			if (!hostFailed) {
+				break;
+			}
+		}
+		return item;
+	}
+
+	/**
+	 * Get one item from the replica which handles the writes of the key, its cacheId
+	 * can be used by a write with cacheId.
+	 */
+	public CacheItem getForUpdate(String key) {
+		String[] hosts = getReplicaHosts(key);
+		if (hosts == null) {
+			return get(null, key, false, 0);
+		}
+		return get(hosts[getLeader(hosts)], key, false, 0);
+	}
+
+	private CacheItem get(String replicaHost, String key, boolean touch, int expiration) {
 		lastError = null;
+		hostFailed = false;
 		if (key == null) {
 			lastError = "get, key == null";
 			log.error(lastError);
@@ -88,7 +325,9 @@ public class Protocol extends Defines {
 			return null;
 		}
 
-		String host = socketManager.getHost(key);
+		// the key is hashed once, for the local cache and for the socket
+		int hostIndex = replicaHost != null ? -1 : socketManager.getHostIndex(key, keyBuf);
+		String host = replicaHost != null ? replicaHost : socketManager.getHostByIndex(hostIndex);
 // manager.getHost never return null
 //		if (host == null) {
 //			lastError = "get, failed to get host";
@@ -112,10 +351,12 @@ public class Protocol extends Defines {
 			watchId = localCache.getWatchId(host);
 		}
 		
-		XixiSocket socket = socketManager.getSocket(key);
+		XixiSocket socket = replicaHost != null ? getSocket(replicaHost, key, keyBuf)
+				: socketManager.getSocketByIndex(hostIndex, trafficClass, nextDeadline());
 		if (socket == null) {
 			lastError = "get, failed to get socket";
 			log.error(lastError);
+			hostFailed = true;
 			return null;
 		}
 
@@ -158,7 +399,7 @@ public class Protocol extends Defines {
 							objectSize[0],
 							dataSize);
 					if (watchId != 0) {
-						localCache.put(socket.getHost(), key, item);
+						localCache.put(socket.getHost(), key, keyBuf, item);
 					}
 					return item;
 				}
@@ -175,6 +416,7 @@ public class Protocol extends Defines {
 			e.printStackTrace();
 			lastError = "get, exception=" + e;
 			log.error(lastError);
+			hostFailed = true;
 			socket.trueClose();
 			socket = null;
 		} finally {
@@ -186,8 +428,43 @@ public class Protocol extends Defines {
 		return null;
 	}
 
+	/**
+	 * Get the base of one item from the replica which handles the writes of the key,
+	 * its cacheId can be used by a write with cacheId.
+	 */
 	public CacheBaseItem getBase(String key) {
+		String[] hosts = getReplicaHosts(key);
+		return getBase(hosts != null ? hosts[getLeader(hosts)] : null, key);
+	}
+
+	/**
+	 * Is the key on the fastest replica? The others are only asked if it fails.
+	 */
+	public boolean exists(String key) {
+		String[] hosts = getReplicaHosts(key);
+		if (hosts == null) {
+			return getBase(null, key) != null;
+		}
+		int first = socketManager.selectReplica(hosts);
+		CacheBaseItem item = null;
+		for (int i = 0; i < hosts.length && item == null; i++) {
+			String host = hosts[(first + i) % hosts.length];
+			if (i > 0 && socketManager.isHostDown(host)) {
+				continue;
+			}
+			long start = System.nanoTime();
+			item = getBase(host, key);
+			socketManager.recordLatency(host, System.nanoTime() - start);
+			if (!hostFailed) {
+				break;
+			}
+		}
+		return item != null;
+	}
+
+	private CacheBaseItem getBase(String host, String key) {
 		lastError = null;
+		hostFailed = false;
 		if (key == null) {
 			lastError = "getBase, key == null";
 			log.error(lastError);
@@ -201,10 +478,11 @@ public class Protocol extends Defines {
 			return null;
 		}
 
-		XixiSocket socket = socketManager.getSocket(key);
+		XixiSocket socket = getSocket(host, key, keyBuf);
 		if (socket == null) {
 			lastError = "getBase, failed to get socket";
 			log.error(lastError);
+			hostFailed = true;
 			return null;
 		}
 
@@ -245,6 +523,7 @@ public class Protocol extends Defines {
 		} catch (IOException e) {
 			lastError = "getBase, exception=" + e;
 			log.error(lastError);
+			hostFailed = true;
 			socket.trueClose();
 			socket = null;
 		} finally {
@@ -265,6 +544,24 @@ public class Protocol extends Defines {
 //	}
 
 	protected boolean updateFlags(String key, int flags, long cacheId) {
+		String[] hosts = getReplicaHosts(key);
+		if (hosts == null) {
+			return updateFlags(null, key, flags, cacheId);
+		}
+		int leader = getLeader(hosts);
+		boolean ret = updateFlags(hosts[leader], key, flags, cacheId);
+		if (ret) {
+			for (int i = 0; i < hosts.length; i++) {
+				if (i != leader && !socketManager.isHostDown(hosts[i])) {
+					updateFlags(hosts[i], key, flags, NO_CAS);
+				}
+			}
+			lastError = null;
+		}
+		return ret;
+	}
+
+	private boolean updateFlags(String host, String key, int flags, long cacheId) {
 		lastError = null;
 		if (key == null) {
 			lastError = "updateFlags, key == null";
@@ -279,7 +576,7 @@ public class Protocol extends Defines {
 			return false;
 		}
 
-		XixiSocket socket = socketManager.getSocket(key);
+		XixiSocket socket = getSocket(host, key, keyBuf);
 		if (socket == null) {
 			lastError = "updateFlags, failed to get socket";
 			log.error(lastError);
@@ -330,6 +627,24 @@ public class Protocol extends Defines {
 	}
 	
 	public boolean updateExpiration(String key, int expiration, long cacheId) {
+		String[] hosts = getReplicaHosts(key);
+		if (hosts == null) {
+			return updateExpiration(null, key, expiration, cacheId);
+		}
+		int leader = getLeader(hosts);
+		boolean ret = updateExpiration(hosts[leader], key, expiration, cacheId);
+		if (ret) {
+			for (int i = 0; i < hosts.length; i++) {
+				if (i != leader && !socketManager.isHostDown(hosts[i])) {
+					updateExpiration(hosts[i], key, expiration, NO_CAS);
+				}
+			}
+			lastError = null;
+		}
+		return ret;
+	}
+
+	private boolean updateExpiration(String host, String key, int expiration, long cacheId) {
 		lastError = null;
 		if (key == null) {
 			lastError = "updateExpiration, key == null";
@@ -344,7 +659,7 @@ public class Protocol extends Defines {
 			return false;
 		}
 
-		XixiSocket socket = socketManager.getSocket(key);
+		XixiSocket socket = getSocket(host, key, keyBuf);
 		if (socket == null) {
 			lastError = "updateExpiration, failed to get socket";
 			log.error(lastError);
@@ -403,6 +718,16 @@ public class Protocol extends Defines {
 	}
 
 	public long set(String key, Object value, int expiration, long cacheId) {
+		// the batcher does not journal a failed write, so a journaled set is not batched
+		byte[] keyBuf = autoBatcher != null && key != null && manager.getJournal() == null
+				? transCoder.encodeKey(key) : null;
+		if (keyBuf != null) {
+			AutoBatcher.Op op = autoBatcher.set(key, keyBuf, value, expiration, cacheId, transCoder, nextDeadline());
+			if (op != null) {
+				lastError = op.getError();
+				return op.getCacheId();
+			}
+		}
 		return update(XIXI_UPDATE_SUB_OP_SET, key, value, expiration, cacheId);
 	}
 
@@ -415,6 +740,43 @@ public class Protocol extends Defines {
 	}
 
 	private long update(byte subOp, String key, Object value, int expiration, long cacheId) {
+		String[] hosts = getReplicaHosts(key);
+		if (hosts == null) {
+			return update(null, subOp, key, value, expiration, cacheId);
+		}
+		// the first host which is up decides, the other replicas take its result
+		int leader = getLeader(hosts);
+		long newCacheId = update(hosts[leader], subOp, key, value, expiration, cacheId);
+		if (newCacheId != NO_CAS) {
+			byte replicaSubOp = getReplicaSubOp(subOp);
+			for (int i = 0; i < hosts.length; i++) {
+				if (i == leader) {
+					continue;
+				}
+				if (socketManager.isHostDown(hosts[i])) {
+					if (replicaSubOp == XIXI_UPDATE_SUB_OP_SET) {
+						journalSet(hosts[i], key, transCoder.encodeKey(key), value, expiration, NO_CAS);
+					}
+				} else if (update(hosts[i], replicaSubOp, key, value, expiration, NO_CAS) == NO_CAS) {
+					delete(hosts[i], key, NO_CAS);
+				}
+			}
+			lastError = null;
+		}
+		return newCacheId;
+	}
+
+	/**
+	 * Get the sub operation which copies a successful update to a replica.
+	 */
+	private static byte getReplicaSubOp(byte subOp) {
+		if (subOp == XIXI_UPDATE_SUB_OP_APPEND || subOp == XIXI_UPDATE_SUB_OP_PREPEND) {
+			return subOp;
+		}
+		return XIXI_UPDATE_SUB_OP_SET;
+	}
+
+	private long update(String host, byte subOp, String key, Object value, int expiration, long cacheId) {
 		lastError = null;
 		if (key == null) {
 			lastError = "update, key == null";
@@ -435,13 +797,26 @@ public class Protocol extends Defines {
 			return NO_CAS;
 		}
 
-		XixiSocket socket = socketManager.getSocket(key);
+		boolean journaled = subOp == XIXI_UPDATE_SUB_OP_SET && manager.getJournal() != null;
+		if (journaled && isJournalPending(host, key, keyBuf)
+				&& journalSet(getJournalHost(host, key, keyBuf), key, keyBuf, value, expiration, cacheId)) {
+			lastError = "update, deferred to the journal";
+			log.debug(lastError);
+			return NO_CAS;
+		}
+
+		XixiSocket socket = getSocket(host, key, keyBuf);
 		if (socket == null) {
 			lastError = "update, failed to get socket";
+			if (journaled && journalSet(getJournalHost(host, key, keyBuf), key, keyBuf, value, expiration, cacheId)) {
+				lastError += ", journaled";
+			}
 			log.error(lastError);
 			return NO_CAS;
 		}
 
+		// once the request is sent the server may have applied it, it is not journaled then
+		boolean sent = false;
 		try {
 			byte op_flag = (byte)(subOp | XIXI_UPDATE_REPLY);
 			int watchId = 0;
@@ -449,12 +824,6 @@ public class Protocol extends Defines {
 				watchId = localCache.getWatchId(socket.getHost());
 			}
 
-			int[] outflags = new int[1];
-			int[] objectSize = new int[1];
-			byte[] data = transCoder.encode(value, outflags, objectSize);
-			int flags = outflags[0];
-			int dataSize = data.length;//output.getSize();
-
 			ByteBuffer writeBuffer = socket.getWriteBuffer();
 			writeBuffer.clear();
 			writeBuffer.put(XIXI_CATEGORY_CACHE);
@@ -462,23 +831,57 @@ public class Protocol extends Defines {
 			writeBuffer.put(op_flag);
 			writeBuffer.putLong(cacheId);//uint64_t cacheId;
 			writeBuffer.putInt(groupId);
-			writeBuffer.putInt(flags); // flags
+			int flagsPosition = writeBuffer.position();
+			writeBuffer.putInt(0); // flags, set after the value is encoded
 			writeBuffer.putInt(expiration);//			uint32_t expiration;
 			writeBuffer.putInt(watchId);
 			writeBuffer.putShort((short) keyBuf.length); // uint16_t key_length;
 
-			writeBuffer.putInt(dataSize); // uint32_t data_length;
+			int dataSizePosition = writeBuffer.position();
+			writeBuffer.putInt(0); // uint32_t data_length, set after the value is encoded
 			writeBuffer.put(keyBuf);
 
-			socket.write(data, 0, dataSize);
-			socket.flush();
+			int[] outflags = new int[1];
+			int[] objectSize = new int[1];
+			ByteBuffer payload = null;
+			int dataSize = -1;
+			if (transCoder instanceof ByteBufferTransCoder) {
+				ByteBufferTransCoder bufferTransCoder = (ByteBufferTransCoder) transCoder;
+				dataSize = bufferTransCoder.encode(value, writeBuffer, outflags, objectSize);
+				if (dataSize < 0) {
+					payload = bufferTransCoder.wrap(value, outflags, objectSize);
+				}
+			}
+			if (dataSize < 0 && payload == null) {
+				byte[] data = transCoder.encode(value, outflags, objectSize);
+				if (data.length <= writeBuffer.remaining()) {
+					writeBuffer.put(data);
+					dataSize = data.length;
+				} else {
+					payload = ByteBuffer.wrap(data);
+				}
+			}
+			if (payload != null) {
+				dataSize = payload.remaining();
+			}
+			int flags = outflags[0];
+			writeBuffer.putInt(flagsPosition, flags);
+			writeBuffer.putInt(dataSizePosition, dataSize);
+
+			if (payload != null) {
+				socket.flush(payload);
+			} else {
+				socket.flush();
+			}
+			sent = true;
 
 			byte category = socket.readByte();
 			byte type = socket.readByte();
 			if (category == XIXI_CATEGORY_CACHE && type == XIXI_TYPE_UPDATE_RES) {
 				long newCacheId = socket.readLong();
 				localCache.remove(socket.getHost(), groupId, key);
-				if (watchId != 0) {
+				// a ByteBuffer value belongs to the caller, it is read back as byte[]
+				if (watchId != 0 && !(value instanceof ByteBuffer)) {
 					CacheItem item = new CacheItem(
 							key,
 							newCacheId,
@@ -488,7 +891,7 @@ public class Protocol extends Defines {
 							value,
 							objectSize[0],
 							dataSize);
-					localCache.put(socket.getHost(), key, item);
+					localCache.put(socket.getHost(), key, keyBuf, item);
 				}
 				return newCacheId;
 			} else {
@@ -502,6 +905,9 @@ public class Protocol extends Defines {
 			}
 		} catch (IOException e) {
 			lastError = "update, exception=" + e;
+			if (journaled && !sent && journalSet(socket.getHost(), key, keyBuf, value, expiration, cacheId)) {
+				lastError += ", journaled";
+			}
 			log.error(lastError);
 			socket.trueClose();
 			socket = null;
@@ -515,7 +921,225 @@ public class Protocol extends Defines {
 		return NO_CAS;
 	}
 
+	public long setFromChannel(String key, ReadableByteChannel src, long length, int expiration, long cacheId) {
+		String[] hosts = getReplicaHosts(key);
+		if (hosts == null) {
+			return setFromChannel(null, key, src, length, expiration, cacheId);
+		}
+		// the channel can be read only once, the other replicas drop the key
+		int leader = getLeader(hosts);
+		long newCacheId = setFromChannel(hosts[leader], key, src, length, expiration, cacheId);
+		if (newCacheId != NO_CAS) {
+			for (int i = 0; i < hosts.length; i++) {
+				if (i != leader && !socketManager.isHostDown(hosts[i])) {
+					delete(hosts[i], key, NO_CAS);
+				}
+			}
+			lastError = null;
+		}
+		return newCacheId;
+	}
+
+	private long setFromChannel(String host, String key, ReadableByteChannel src, long length, int expiration, long cacheId) {
+		lastError = null;
+		if (key == null) {
+			lastError = "setFromChannel, key == null";
+			log.error(lastError);
+			return NO_CAS;
+		}
+
+		byte[] keyBuf = transCoder.encodeKey(key);
+		if (keyBuf == null) {
+			lastError = "setFromChannel, failed to encode key";
+			log.error(lastError);
+			return NO_CAS;
+		}
+
+		if (src == null) {
+			lastError = "setFromChannel, src == null";
+			log.error(lastError);
+			return NO_CAS;
+		}
+
+		if (length < 0 || length > Integer.MAX_VALUE) {
+			lastError = "setFromChannel, invalid length=" + length;
+			log.error(lastError);
+			return NO_CAS;
+		}
+
+		XixiSocket socket = getSocket(host, key, keyBuf);
+		if (socket == null) {
+			lastError = "setFromChannel, failed to get socket";
+			log.error(lastError);
+			return NO_CAS;
+		}
+		// a stream is not comparable with a single request
+		socket.setBorrowTime(XixiSocket.NO_RTT);
+
+		try {
+			byte op_flag = (byte)(XIXI_UPDATE_SUB_OP_SET | XIXI_UPDATE_REPLY);
+			ByteBuffer writeBuffer = socket.getWriteBuffer();
+			writeBuffer.clear();
+			writeBuffer.put(XIXI_CATEGORY_CACHE);
+			writeBuffer.put(XIXI_TYPE_UPDATE_REQ);
+			writeBuffer.put(op_flag);
+			writeBuffer.putLong(cacheId);
+			writeBuffer.putInt(groupId);
+			writeBuffer.putInt(ObjectTransCoder.FLAGS_TYPE_BYTEARR); // flags
+			writeBuffer.putInt(expiration);
+			writeBuffer.putInt(0); // watchId
+			writeBuffer.putShort((short) keyBuf.length);
+			writeBuffer.putInt((int) length);
+			writeBuffer.put(keyBuf);
+
+			socket.transferFrom(src, length);
+			socket.flush();
+
+			byte category = socket.readByte();
+			byte type = socket.readByte();
+			if (category == XIXI_CATEGORY_CACHE && type == XIXI_TYPE_UPDATE_RES) {
+				long newCacheId = socket.readLong();
+				localCache.remove(socket.getHost(), groupId, key);
+				return newCacheId;
+			} else {
+				short reason = socket.readShort();
+				lastError = "setFromChannel, response error, reason=" + reason;
+				log.debug(lastError);
+				if (reason == XIXI_REASON_UNKNOWN_COMMAND) {
+					socket.trueClose();
+					socket = null;
+				}
+			}
+		} catch (IOException e) {
+			lastError = "setFromChannel, exception=" + e;
+			log.error(lastError);
+			socket.trueClose();
+			socket = null;
+		} finally {
+			if (socket != null) {
+				socket.close();
+				socket = null;
+			}
+		}
+
+		return NO_CAS;
+	}
+
+	public CacheBaseItem getToChannel(String key, WritableByteChannel dst) {
+		lastError = null;
+		if (key == null) {
+			lastError = "getToChannel, key == null";
+			log.error(lastError);
+			return null;
+		}
+
+		byte[] keyBuf = transCoder.encodeKey(key);
+		if (keyBuf == null) {
+			lastError = "getToChannel, failed to encode key";
+			log.error(lastError);
+			return null;
+		}
+
+		if (dst == null) {
+			lastError = "getToChannel, dst == null";
+			log.error(lastError);
+			return null;
+		}
+
+		String[] hosts = socketManager.getReplicaHosts(key, keyBuf);
+		XixiSocket socket = getSocket(hosts != null ? hosts[getLeader(hosts)] : null, key, keyBuf);
+		if (socket == null) {
+			lastError = "getToChannel, failed to get socket";
+			log.error(lastError);
+			return null;
+		}
+		// a stream is not comparable with a single request
+		socket.setBorrowTime(XixiSocket.NO_RTT);
+
+		try {
+			ByteBuffer writeBuffer = socket.getWriteBuffer();
+			writeBuffer.clear();
+			writeBuffer.put(XIXI_CATEGORY_CACHE);
+			writeBuffer.put(XIXI_TYPE_GET_REQ);
+			writeBuffer.putInt(groupId);
+			writeBuffer.putInt(0); // watchId
+			writeBuffer.putShort((short) keyBuf.length);
+			writeBuffer.put(keyBuf);
+			socket.flush();
+
+			byte category = socket.readByte();
+			byte type = socket.readByte();
+			if (category == XIXI_CATEGORY_CACHE && type == XIXI_TYPE_GET_RES) {
+				long cacheId = socket.readLong();
+				int flags = socket.readInt();
+				int expiration = socket.readInt();
+				int dataSize = socket.readInt();
+				socket.transferTo(dst, dataSize & 0xFFFFFFFFL);
+				return new CacheBaseItem(
+						key,
+						cacheId,
+						expiration,
+						groupId,
+						flags,
+						dataSize);
+			} else {
+				short reason = socket.readShort();
+				lastError = "getToChannel, response error, reason=" + reason;
+				log.debug(lastError);
+				if (reason == XIXI_REASON_UNKNOWN_COMMAND) {
+					socket.trueClose();
+					socket = null;
+				}
+			}
+		} catch (IOException e) {
+			lastError = "getToChannel, exception=" + e;
+			log.error(lastError);
+			socket.trueClose();
+			socket = null;
+		} finally {
+			if (socket != null) {
+				socket.close();
+				socket = null;
+			}
+		}
+		return null;
+	}
+
 	public boolean delete(String key, long cacheId) {
+		// the batcher does not journal a failed write, so a journaled delete is not batched
+		byte[] keyBuf = autoBatcher != null && key != null && manager.getJournal() == null
+				? transCoder.encodeKey(key) : null;
+		if (keyBuf != null) {
+			AutoBatcher.Op op = autoBatcher.delete(key, keyBuf, cacheId, transCoder, nextDeadline());
+			if (op != null) {
+				lastError = op.getError();
+				return op.isDeleted();
+			}
+		}
+		String[] hosts = getReplicaHosts(key);
+		if (hosts == null) {
+			return delete(null, key, cacheId);
+		}
+		int leader = getLeader(hosts);
+		boolean deleted = delete(hosts[leader], key, cacheId);
+		if (deleted || cacheId == NO_CAS) {
+			String error = lastError;
+			for (int i = 0; i < hosts.length; i++) {
+				if (i == leader) {
+					continue;
+				}
+				if (socketManager.isHostDown(hosts[i])) {
+					journalDelete(hosts[i], key, transCoder.encodeKey(key), NO_CAS);
+				} else if (delete(hosts[i], key, NO_CAS)) {
+					deleted = true;
+				}
+			}
+			lastError = deleted ? null : error;
+		}
+		return deleted;
+	}
+
+	private boolean delete(String host, String key, long cacheId) {
 		lastError = null;
 		if (key == null) {
 			lastError = "delete, key == null"; 
@@ -530,13 +1154,25 @@ public class Protocol extends Defines {
 			return false;
 		}
 
-		XixiSocket socket = socketManager.getSocket(key);
+		if (isJournalPending(host, key, keyBuf)
+				&& journalDelete(getJournalHost(host, key, keyBuf), key, keyBuf, cacheId)) {
+			lastError = "delete, deferred to the journal";
+			log.debug(lastError);
+			return false;
+		}
+
+		XixiSocket socket = getSocket(host, key, keyBuf);
 		if (socket == null) {
 			lastError = "delete, failed to get socket";
+			if (journalDelete(getJournalHost(host, key, keyBuf), key, keyBuf, cacheId)) {
+				lastError += ", journaled";
+			}
 			log.error(lastError);
 			return false;
 		}
 
+		// once the request is sent the server may have applied it, it is not journaled then
+		boolean sent = false;
 		try {
 			byte op_flag = (byte)(XIXI_DELETE_SUB_OP | XIXI_DELETE_REPLY);
 			ByteBuffer writeBuffer = socket.getWriteBuffer();
@@ -549,6 +1185,7 @@ public class Protocol extends Defines {
 			writeBuffer.putShort((short) keyBuf.length);
 			writeBuffer.put(keyBuf);
 			socket.flush();
+			sent = true;
 			
 			byte category = socket.readByte();
 			byte type = socket.readByte();
@@ -556,7 +1193,7 @@ public class Protocol extends Defines {
 				localCache.remove(socket.getHost(), groupId, key);
 				return true;
 			} else {
-				short reason = ObjectTransCoder.decodeShort(socket.read(2));
+				short reason = socket.readShort();
 				lastError = "delete, response error, reason=" + reason;
 				log.debug(lastError);
 				if (reason == XIXI_REASON_UNKNOWN_COMMAND) {
@@ -566,6 +1203,9 @@ public class Protocol extends Defines {
 			}
 		} catch (IOException e) {
 			lastError = "delete, exception=" + e;
+			if (!sent && journalDelete(socket.getHost(), key, keyBuf, cacheId)) {
+				lastError += ", journaled";
+			}
 			log.error(lastError);
 			socket.trueClose();
 			socket = null;
@@ -596,6 +1236,28 @@ public class Protocol extends Defines {
 	}
 	
 	private DeltaItem delta(String key, byte subOp, long delta, long cacheId) {
+		String[] hosts = getReplicaHosts(key);
+		if (hosts == null) {
+			return delta(null, key, subOp, delta, cacheId);
+		}
+		int leader = getLeader(hosts);
+		DeltaItem item = delta(hosts[leader], key, subOp, delta, cacheId);
+		if (item != null) {
+			for (int i = 0; i < hosts.length; i++) {
+				if (i != leader && !socketManager.isHostDown(hosts[i])) {
+					// a replica which had another value drops the key
+					DeltaItem replicaItem = delta(hosts[i], key, subOp, delta, NO_CAS);
+					if (replicaItem == null || replicaItem.value != item.value) {
+						delete(hosts[i], key, NO_CAS);
+					}
+				}
+			}
+			lastError = null;
+		}
+		return item;
+	}
+
+	private DeltaItem delta(String host, String key, byte subOp, long delta, long cacheId) {
 		lastError = null;
 		if (key == null) {
 			lastError = "delta, key == null";
@@ -610,7 +1272,7 @@ public class Protocol extends Defines {
 			return null;
 		}
 
-		XixiSocket socket = socketManager.getSocket(key);
+		XixiSocket socket = getSocket(host, key, keyBuf);
 		if (socket == null) {
 			lastError = "delta, failed to get socket";
 			log.error(lastError);
@@ -665,51 +1327,234 @@ public class Protocol extends Defines {
 	}
 
 	public List<CacheItem> multiGet(List<String> keys) {
+		long requestDeadline = nextDeadline();
 		MultiGet multi = new MultiGet(this.manager, socketManager, this.groupId, this.transCoder);
-		List<CacheItem> list = multi.multiGet(keys);
+		multi.setDeadline(requestDeadline);
+		List<String[]> replicaHosts = getReplicaHosts(keys);
+		if (replicaHosts == null) {
+			List<CacheItem> list = multi.multiGet(keys);
+			lastError = multi.getLastError();
+			timedOutKeys = multi.getTimedOutKeys();
+			return list;
+		}
+
+		// spread the keys over their replicas, the misses are read again from the other replicas
+		int size = keys.size();
+		int[] firsts = new int[size];
+		int[] tries = new int[size];
+		List<String> hosts = new ArrayList<String>(size);
+		Map<String, Integer> loads = new HashMap<String, Integer>();
+		for (int i = 0; i < size; i++) {
+			String[] keyHosts = replicaHosts.get(i);
+			if (keyHosts == null) {
+				hosts.add(null);
+				continue;
+			}
+			firsts[i] = selectReplica(keyHosts, loads);
+			tries[i] = 1;
+			hosts.add(keyHosts[firsts[i]]);
+		}
+		List<CacheItem> list = multi.multiGet(keys, hosts);
 		lastError = multi.getLastError();
+		timedOutKeys = multi.getTimedOutKeys();
+
+		// the misses are not read again once the deadline passed
+		while (list != null && (requestDeadline == 0 || requestDeadline - System.nanoTime() > 0)) {
+			List<String> retryKeys = new ArrayList<String>();
+			List<String> retryHosts = new ArrayList<String>();
+			List<Integer> retryIndexes = new ArrayList<Integer>();
+			for (int i = 0; i < size; i++) {
+				String[] keyHosts = replicaHosts.get(i);
+				if (keyHosts == null || list.get(i) != null) {
+					continue;
+				}
+				while (tries[i] < keyHosts.length) {
+					String host = keyHosts[(firsts[i] + tries[i]) % keyHosts.length];
+					tries[i]++;
+					if (!socketManager.isHostDown(host)) {
+						retryKeys.add(keys.get(i));
+						retryHosts.add(host);
+						retryIndexes.add(Integer.valueOf(i));
+						break;
+					}
+				}
+			}
+			if (retryKeys.isEmpty()) {
+				break;
+			}
+			multi = new MultiGet(this.manager, socketManager, this.groupId, this.transCoder);
+			multi.setDeadline(requestDeadline);
+			List<CacheItem> retryList = multi.multiGet(retryKeys, retryHosts);
+			if (retryList == null) {
+				break;
+			}
+			lastError = multi.getLastError();
+			timedOutKeys = multi.getTimedOutKeys();
+			for (int i = 0; i < retryList.size(); i++) {
+				list.set(retryIndexes.get(i).intValue(), retryList.get(i));
+			}
+		}
 		return list;
 	}
 
-	public int multiSet(List<MultiUpdateItem> items) {
+	/**
+	 * Select the replica of one key which has the fewest keys of this request so far,
+	 * the one with the lower response time if they have as many.
+	 */
+	private int selectReplica(String[] hosts, Map<String, Integer> loads) {
+		int selected = socketManager.selectReplica(hosts);
+		Integer selectedLoad = loads.get(hosts[selected]);
+		int minLoad = selectedLoad != null ? selectedLoad.intValue() : 0;
+		for (int i = 0; i < hosts.length; i++) {
+			Integer load = loads.get(hosts[i]);
+			int count = load != null ? load.intValue() : 0;
+			if (count < minLoad && !socketManager.isHostDown(hosts[i])) {
+				selected = i;
+				minLoad = count;
+			}
+		}
+		loads.put(hosts[selected], Integer.valueOf(minLoad + 1));
+		return selected;
+	}
+
+	private List<String> getKeys(List<?> items) {
+		if (items == null) {
+			return null;
+		}
+		List<String> keys = new ArrayList<String>(items.size());
+		for (int i = 0; i < items.size(); i++) {
+			Object item = items.get(i);
+			if (item instanceof MultiUpdateItem) {
+				keys.add(((MultiUpdateItem) item).key);
+			} else if (item instanceof MultiDeleteItem) {
+				keys.add(((MultiDeleteItem) item).key);
+			} else {
+				keys.add(null);
+			}
+		}
+		return keys;
+	}
+
+	private int multiUpdate(List<MultiUpdateItem> items, byte subOp) {
+		long requestDeadline = nextDeadline();
 		MultiUpdate multi = new MultiUpdate(this.manager, socketManager, this.groupId, this.transCoder);
-		int ret = multi.multiUpdate(items, XIXI_UPDATE_SUB_OP_SET);
+		multi.setDeadline(requestDeadline);
+		List<String[]> replicaHosts = getReplicaHosts(getKeys(items));
+		if (replicaHosts == null) {
+			int ret = multi.multiUpdate(items, subOp);
+			lastError = multi.getLastError();
+			return ret;
+		}
+
+		List<String> leaders = getLeaders(replicaHosts);
+		int ret = multi.multiUpdate(items, subOp, leaders);
 		lastError = multi.getLastError();
+
+		// copy the items which succeeded to the other replicas
+		List<MultiUpdateItem> replicaItems = new ArrayList<MultiUpdateItem>();
+		List<String> hosts = new ArrayList<String>();
+		for (int i = 0; i < items.size(); i++) {
+			MultiUpdateItem item = items.get(i);
+			if (item == null || item.getNewCacheID() == NO_CAS) {
+				continue;
+			}
+			String[] itemHosts = replicaHosts.get(i);
+			for (int j = 0; j < itemHosts.length; j++) {
+				if (!itemHosts[j].equals(leaders.get(i)) && !socketManager.isHostDown(itemHosts[j])) {
+					MultiUpdateItem replicaItem = new MultiUpdateItem();
+					replicaItem.key = item.key;
+					replicaItem.value = item.value;
+					replicaItem.expiration = item.expiration;
+					replicaItem.cacheID = NO_CAS;
+					replicaItems.add(replicaItem);
+					hosts.add(itemHosts[j]);
+				}
+			}
+		}
+		if (replicaItems.isEmpty()) {
+			return ret;
+		}
+		multi = new MultiUpdate(this.manager, socketManager, this.groupId, this.transCoder);
+		multi.setDeadline(requestDeadline);
+		multi.multiUpdate(replicaItems, getReplicaSubOp(subOp), hosts);
+
+		// the replicas which failed drop the key, even after the deadline
+		List<MultiDeleteItem> deleteItems = new ArrayList<MultiDeleteItem>();
+		List<String> deleteHosts = new ArrayList<String>();
+		for (int i = 0; i < replicaItems.size(); i++) {
+			if (replicaItems.get(i).getNewCacheID() == NO_CAS) {
+				MultiDeleteItem deleteItem = new MultiDeleteItem();
+				deleteItem.key = replicaItems.get(i).key;
+				deleteItems.add(deleteItem);
+				deleteHosts.add(hosts.get(i));
+			}
+		}
+		if (!deleteItems.isEmpty()) {
+			MultiDelete multiDelete = new MultiDelete(this.manager, socketManager, this.groupId, this.transCoder);
+			multiDelete.multiDelete(deleteItems, deleteHosts);
+		}
 		return ret;
 	}
+
+	public int multiSet(List<MultiUpdateItem> items) {
+		return multiUpdate(items, XIXI_UPDATE_SUB_OP_SET);
+	}
 	
 	public int multiAdd(List<MultiUpdateItem> items) {
-		MultiUpdate multi = new MultiUpdate(this.manager, socketManager, this.groupId, this.transCoder);
-		int ret = multi.multiUpdate(items, XIXI_UPDATE_SUB_OP_ADD);
-		lastError = multi.getLastError();
-		return ret;
+		return multiUpdate(items, XIXI_UPDATE_SUB_OP_ADD);
 	}
 	
 	public int multiReplace(List<MultiUpdateItem> items) {
-		MultiUpdate multi = new MultiUpdate(this.manager, socketManager, this.groupId, this.transCoder);
-		int ret = multi.multiUpdate(items, XIXI_UPDATE_SUB_OP_REPLACE);
-		lastError = multi.getLastError();
-		return ret;
+		return multiUpdate(items, XIXI_UPDATE_SUB_OP_REPLACE);
 	}
 	
 	public int multiAppend(List<MultiUpdateItem> items) {
-		MultiUpdate multi = new MultiUpdate(this.manager, socketManager, this.groupId, this.transCoder);
-		int ret = multi.multiUpdate(items, XIXI_UPDATE_SUB_OP_APPEND);
-		lastError = multi.getLastError();
-		return ret;
+		return multiUpdate(items, XIXI_UPDATE_SUB_OP_APPEND);
 	}
 	
 	public int multiPrepend(List<MultiUpdateItem> items) {
-		MultiUpdate multi = new MultiUpdate(this.manager, socketManager, this.groupId, this.transCoder);
-		int ret = multi.multiUpdate(items, XIXI_UPDATE_SUB_OP_PREPEND);
-		lastError = multi.getLastError();
-		return ret;
+		return multiUpdate(items, XIXI_UPDATE_SUB_OP_PREPEND);
 	}
 	
 	public int multiDelete(List<MultiDeleteItem> items) {
+		long requestDeadline = nextDeadline();
 		MultiDelete multi = new MultiDelete(this.manager, socketManager, this.groupId, this.transCoder);
-		int ret = multi.multiDelete(items);
+		multi.setDeadline(requestDeadline);
+		List<String[]> replicaHosts = getReplicaHosts(getKeys(items));
+		if (replicaHosts == null) {
+			int ret = multi.multiDelete(items);
+			lastError = multi.getLastError();
+			return ret;
+		}
+
+		List<String> leaders = getLeaders(replicaHosts);
+		int ret = multi.multiDelete(items, leaders);
 		lastError = multi.getLastError();
+
+		// the other replicas drop the keys deleted on the first host, and all the keys without cacheId
+		List<MultiDeleteItem> replicaItems = new ArrayList<MultiDeleteItem>();
+		List<String> hosts = new ArrayList<String>();
+		for (int i = 0; i < items.size(); i++) {
+			MultiDeleteItem item = items.get(i);
+			if (item == null || item.key == null
+					|| (item.getReason() != XIXI_REASON_SUCCESS && item.cacheID != NO_CAS)) {
+				continue;
+			}
+			String[] itemHosts = replicaHosts.get(i);
+			for (int j = 0; j < itemHosts.length; j++) {
+				if (!itemHosts[j].equals(leaders.get(i)) && !socketManager.isHostDown(itemHosts[j])) {
+					MultiDeleteItem replicaItem = new MultiDeleteItem();
+					replicaItem.key = item.key;
+					replicaItems.add(replicaItem);
+					hosts.add(itemHosts[j]);
+				}
+			}
+		}
+		if (!replicaItems.isEmpty()) {
+			multi = new MultiDelete(this.manager, socketManager, this.groupId, this.transCoder);
+			multi.setDeadline(requestDeadline);
+			multi.multiDelete(replicaItems, hosts);
+		}
 		return ret;
 	}
 /*
@@ -722,72 +1567,204 @@ public class Protocol extends Defines {
 */
 	public int multiUpdateExpiration(List<MultiUpdateExpirationItem> items) {
 		MultiUpdateExpiration multi = new MultiUpdateExpiration(this.manager, socketManager, this.groupId, this.transCoder);
+		multi.setDeadline(nextDeadline());
 		int ret = multi.multiUpdateExpiration(items);
 		lastError = multi.getLastError();
 		return ret;
 	}
 
+	public boolean setNoreply(String key, Object value, int expiration) {
+		lastError = null;
+		if (key == null) {
+			lastError = "setNoreply, key == null";
+			log.error(lastError);
+			return false;
+		}
+		if (value == null) {
+			lastError = "setNoreply, value == null";
+			log.error(lastError);
+			return false;
+		}
+		NoreplySender sender = new NoreplySender(socketManager, localCache, groupId, trafficClass, 1, nextDeadline());
+		if (!addNoreplySet(sender, 0, key, value, expiration, NO_CAS)) {
+			return false;
+		}
+		boolean ret = sender.send() == 1;
+		lastError = sender.getLastError();
+		return ret;
+	}
+
+	public boolean deleteNoreply(String key) {
+		lastError = null;
+		if (key == null) {
+			lastError = "deleteNoreply, key == null";
+			log.error(lastError);
+			return false;
+		}
+		NoreplySender sender = new NoreplySender(socketManager, localCache, groupId, trafficClass, 1, nextDeadline());
+		if (!addNoreply(sender, 0, NoreplySender.DELETE, key, NO_EXPIRATION, NO_CAS)) {
+			return false;
+		}
+		boolean ret = sender.send() == 1;
+		lastError = sender.getLastError();
+		return ret;
+	}
+
+	public boolean updateExpirationNoreply(String key, int expiration) {
+		lastError = null;
+		if (key == null) {
+			lastError = "updateExpirationNoreply, key == null";
+			log.error(lastError);
+			return false;
+		}
+		NoreplySender sender = new NoreplySender(socketManager, localCache, groupId, trafficClass, 1, nextDeadline());
+		if (!addNoreply(sender, 0, NoreplySender.UPDATE_EXPIRATION, key, expiration, NO_CAS)) {
+			return false;
+		}
+		boolean ret = sender.send() == 1;
+		lastError = sender.getLastError();
+		return ret;
+	}
+
+	public int multiSetNoreply(List<MultiUpdateItem> items) {
+		lastError = null;
+		if (items == null) {
+			lastError = "multiSetNoreply, items == null";
+			log.error(lastError);
+			return 0;
+		}
+		NoreplySender sender = new NoreplySender(socketManager, localCache, groupId, trafficClass, items.size(), nextDeadline());
+		for (int i = 0; i < items.size(); i++) {
+			MultiUpdateItem item = items.get(i);
+			if (item != null && item.key != null && item.value != null) {
+				addNoreplySet(sender, i, item.key, item.value, item.expiration, item.cacheID);
+			}
+		}
+		String error = lastError;
+		int ret = sender.send();
+		lastError = sender.getLastError() != null ? sender.getLastError() : error;
+		return ret;
+	}
+
+	public int multiDeleteNoreply(List<MultiDeleteItem> items) {
+		lastError = null;
+		if (items == null) {
+			lastError = "multiDeleteNoreply, items == null";
+			log.error(lastError);
+			return 0;
+		}
+		NoreplySender sender = new NoreplySender(socketManager, localCache, groupId, trafficClass, items.size(), nextDeadline());
+		for (int i = 0; i < items.size(); i++) {
+			MultiDeleteItem item = items.get(i);
+			if (item != null && item.key != null) {
+				addNoreply(sender, i, NoreplySender.DELETE, item.key, NO_EXPIRATION, item.cacheID);
+			}
+		}
+		String error = lastError;
+		int ret = sender.send();
+		lastError = sender.getLastError() != null ? sender.getLastError() : error;
+		return ret;
+	}
+
+	public int multiUpdateExpirationNoreply(List<MultiUpdateExpirationItem> items) {
+		lastError = null;
+		if (items == null) {
+			lastError = "multiUpdateExpirationNoreply, items == null";
+			log.error(lastError);
+			return 0;
+		}
+		NoreplySender sender = new NoreplySender(socketManager, localCache, groupId, trafficClass, items.size(), nextDeadline());
+		for (int i = 0; i < items.size(); i++) {
+			MultiUpdateExpirationItem item = items.get(i);
+			if (item != null && item.key != null) {
+				addNoreply(sender, i, NoreplySender.UPDATE_EXPIRATION, item.key, item.expiration, item.cacheId);
+			}
+		}
+		String error = lastError;
+		int ret = sender.send();
+		lastError = sender.getLastError() != null ? sender.getLastError() : error;
+		return ret;
+	}
+
+	private boolean addNoreplySet(NoreplySender sender, int index, String key, Object value, int expiration, long cacheId) {
+		byte[] keyBuf = transCoder.encodeKey(key);
+		if (keyBuf == null) {
+			lastError = "setNoreply, failed to encode key";
+			log.error(lastError);
+			return false;
+		}
+		int[] flags = new int[1];
+		byte[] data;
+		try {
+			data = transCoder.encode(value, flags, null);
+		} catch (IOException e) {
+			lastError = "setNoreply, failed to encode value, e=" + e;
+			log.error(lastError);
+			return false;
+		}
+		if (!sender.add(index, NoreplySender.SET, key, keyBuf, data, flags[0], expiration, cacheId)) {
+			lastError = "setNoreply, failed to get host";
+			log.error(lastError);
+			return false;
+		}
+		return true;
+	}
+
+	private boolean addNoreply(NoreplySender sender, int index, int type, String key, int expiration, long cacheId) {
+		byte[] keyBuf = transCoder.encodeKey(key);
+		if (keyBuf == null) {
+			lastError = "noreply, failed to encode key";
+			log.error(lastError);
+			return false;
+		}
+		if (!sender.add(index, type, key, keyBuf, null, 0, expiration, cacheId)) {
+			lastError = "noreply, failed to get host";
+			log.error(lastError);
+			return false;
+		}
+		return true;
+	}
+
 	public int flush() {
 		return flush(null);
 	}
 
 	public int flush(String[] servers) {
-		lastError = null;
+		List<HostResult> results = flushByHost(servers);
 		int count = 0;
+		for (int i = 0; i < results.size(); i++) {
+			if (results.get(i).isSuccess()) {
+				count += results.get(i).getFlushCount();
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Flush the group on all the servers at the same time.
+	 * @param servers <tt>null</tt> for all the servers of the manager
+	 * @return the result of each server
+	 */
+	public List<HostResult> flushByHost(String[] servers) {
+		lastError = null;
 		servers = (servers == null) ? manager.getServers() : servers;
 
 		if (servers == null || servers.length <= 0) {
 			lastError = "flush, no servers to flush";
 			log.error(lastError);
-			return count;
+			return new ArrayList<HostResult>();
 		}
 
-		for (int i = 0; i < servers.length; i++) {
-			XixiSocket socket = socketManager.getSocketByHost(servers[i]);
-			if (socket == null) {
-				lastError = "flush, can not to get socket by host:" + servers[i];
-				log.error(lastError);
-				continue;
-			}
-			try {
-				ByteBuffer writeBuffer = socket.getWriteBuffer();
-				writeBuffer.clear();
-				writeBuffer.put(XIXI_CATEGORY_CACHE);
-				writeBuffer.put(XIXI_TYPE_FLUSH_REQ);
-				writeBuffer.putInt(groupId);
-			
-				socket.flush();
-
-				byte category = socket.readByte();
-				byte type = socket.readByte(); // type
-				if (category == XIXI_CATEGORY_CACHE && type == XIXI_TYPE_FLUSH_RES) {
-					int flushCount = socket.readInt(); // int flush_count = 
-					socket.readLong(); // long flush_size =
-					localCache.flush(socket.getHost(), groupId);
-					count += flushCount;
-				} else {
-					short reason = socket.readShort();
-					lastError = "flush, response error, reason=" + reason;
-					log.debug(lastError);
-					if (reason == XIXI_REASON_UNKNOWN_COMMAND) {
-						socket.trueClose();
-						socket = null;
-					}
-				}
-			} catch (IOException e) {
-				lastError = "exception, " + e;
-				log.error(lastError);
-				socket.trueClose();
-				socket = null;
-			} finally {
-				if (socket != null) {
-					socket.close();
-					socket = null;
-				}
+		Broadcast broadcast = new Broadcast(manager, socketManager, groupId);
+		broadcast.setDeadline(nextDeadline());
+		List<HostResult> results = broadcast.flush(servers);
+		for (int i = 0; i < results.size(); i++) {
+			if (results.get(i).isSuccess()) {
+				localCache.flush(results.get(i).getHost(), groupId);
 			}
 		}
-
-		return count;
+		lastError = broadcast.getLastError();
+		return results;
 	}
 
 	protected boolean statsAddGroup(String[] servers, int groupId) {
@@ -815,92 +1792,57 @@ public class Protocol extends Defines {
 	}
 */
 	protected boolean stats(byte op_flag, String[] servers, int groupId, byte class_id, Map<String, Map<String, String>> result) {
-		lastError = null;
-
-		servers = (servers == null) ? manager.getServers() : servers;
-
-		if (servers == null || servers.length <= 0) {
-			lastError = "stats, no servers to flush";
-			log.error(lastError);
+		List<HostResult> results = statsByHost(op_flag, servers, groupId, class_id);
+		if (results.isEmpty()) {
 			return false;
 		}
-
 		boolean ret = true;
-
-		for (int i = 0; i < servers.length; i++) {
-			HashMap<String, String> hm = new HashMap<String, String>();
+		for (int i = 0; i < results.size(); i++) {
+			HostResult hostResult = results.get(i);
 			if (result != null) {
-				result.put(servers[i], hm);
+				result.put(hostResult.getHost(), hostResult.getStats());
 			}
-			XixiSocket socket = socketManager.getSocketByHost(servers[i]);
-			if (socket == null) {
-				lastError = "stats, can not to get socket by host:" + servers[i];
-				log.error(lastError);
+			if (!hostResult.isSuccess()) {
 				ret = false;
-				continue;
 			}
+		}
+		return ret;
+	}
 
-			ByteBuffer writeBuffer = socket.getWriteBuffer();
-			writeBuffer.clear();
-			writeBuffer.put(XIXI_CATEGORY_CACHE);
-			writeBuffer.put(XIXI_TYPE_STATS_REQ);
-			writeBuffer.put(op_flag);
-			writeBuffer.put(class_id);
-			writeBuffer.putInt(groupId);
-			try {
-				socket.flush();
+	protected List<HostResult> statsGetStatsByHost(String[] servers, byte class_id) {
+		return statsByHost(XIXI_STATS_SUB_OP_GET_STATS_SUM_ONLY, servers, 0, class_id);
+	}
 
-				byte category = socket.readByte();
-				byte type = socket.readByte(); // type
-				if (category == XIXI_CATEGORY_CACHE && type == XIXI_TYPE_STATS_RES) {
-					int size = socket.readInt();
-					byte[] buf = socket.read(size);
-					String str = new String(buf);
-					if (op_flag == XIXI_STATS_SUB_OP_GET_STATS_GROUP_ONLY
-						//	|| op_flag == XIXI_STATS_SUB_OP_GET_AND_CLEAR_STATS_GROUP_ONLY
-							|| op_flag == XIXI_STATS_SUB_OP_GET_STATS_SUM_ONLY
-						/*	|| op_flag == XIXI_STATS_SUB_OP_GET_AND_CLEAR_STATS_SUM_ONLY*/) {
-						String[] lines = str.split("\n");
-						for (int j = 0; j < lines.length; j++) {
-							String[] s = lines[j].split("=");
-							hm.put(s[0], s[1]);
-						}
-					} else {
-						if (!str.equals("success")) {
-							ret = false;
-						}
-					}
-				} else {
-					short reason = socket.readShort();
-					lastError = "stats, response error, reason=" + reason;
-					log.debug(lastError);
-					ret = false;
-					if (reason == XIXI_REASON_UNKNOWN_COMMAND) {
-						socket.trueClose();
-						socket = null;
-					}
-				}
-			} catch (IOException e) {
-				lastError = "exception, " + e;
-				log.error(lastError);
-				ret = false;
-				socket.trueClose();
-				socket = null;
-			} finally {
-				if (socket != null) {
-					socket.close();
-					socket = null;
-				}
-			}
+	protected List<HostResult> statsGetGroupStatsByHost(String[] servers, int groupId, byte class_id) {
+		return statsByHost(XIXI_STATS_SUB_OP_GET_STATS_GROUP_ONLY, servers, groupId, class_id);
+	}
+
+	/**
+	 * Send one stats request to all the servers at the same time.
+	 * @return the result of each server, empty if there are no servers
+	 */
+	protected List<HostResult> statsByHost(byte op_flag, String[] servers, int groupId, byte class_id) {
+		lastError = null;
+
+		servers = (servers == null) ? manager.getServers() : servers;
+
+		if (servers == null || servers.length <= 0) {
+			lastError = "stats, no servers to flush";
+			log.error(lastError);
+			return new ArrayList<HostResult>();
 		}
 
-		return ret;
+		Broadcast broadcast = new Broadcast(manager, socketManager, this.groupId);
+		broadcast.setDeadline(nextDeadline());
+		List<HostResult> results = broadcast.stats(op_flag, servers, groupId, class_id);
+		lastError = broadcast.getLastError();
+		return results;
 	}
 
 	protected int createWatch(String host, int maxNextCheckInterval) {
 		lastError = null;
 	
-		XixiSocket socket = socketManager.getSocketByHost(host);
+		XixiSocket socket = socketManager.getSocketByHost(host, trafficClass);
 		if (socket == null) {
 			lastError = "createWatch, failed on get socket by host";
 			log.error(lastError);
@@ -947,7 +1889,7 @@ public class Protocol extends Defines {
 	
 	protected WatchResult checkWatch(String host, int watchId, int checkTimeout, int maxNextCheckInterval, int ackSequence) {
 		lastError = null;
-		XixiSocket socket = socketManager.getSocketByHost(host);
+		XixiSocket socket = socketManager.getPollSocketByHost(host, trafficClass);
 		if (socket == null) {
 			lastError = "checkWatch, failed to get by host:" + host;
 			log.error(lastError);
@@ -0,0 +1,617 @@
+/*
+   Copyright [2015] [Yao Yuan(yeaya@163.com)]
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.yeaya.xixibase.xixiclient;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.yeaya.xixibase.xixiclient.util.WeightMap;
+
+/**
+ * Predicts how the keys move when the servers, their weights or the weight map
+ * change. A sample of keys is mapped by the old and by the new configuration, the
+ * report has the key share and the byte share of each server before and after, the
+ * share of the keys which move to another server and the miss spike they cause.
+ * <p>
+ * The sample has one key per line, optionally followed by the size of its value:
+ * <pre>
+ *     user:1001 512
+ *     user:1002 2048</pre>
+ * A line without a size counts as 1 byte. A key which repeats counts once per line,
+ * so a sample of requests weights the keys by their traffic. The sample is streamed
+ * in chunks to the worker threads, the memory does not grow with the sample.
+ * <p>
+ * The values of the maps are the indexes which <tt>SocketManager</tt> gives the servers:
+ * the old servers get their position, a new server gets the next free index and a
+ * removed server leaves its index unused, so the report models <tt>addServer</tt> and
+ * <tt>removeServer</tt> on a running manager. The order of the new servers does not matter.
+ * <pre>
+ *     RemapAnalyzer analyzer = new RemapAnalyzer(oldServers, oldWeights, new KetamaWeightMap&lt;Integer&gt;(),
+ *             newServers, newWeights, new KetamaWeightMap&lt;Integer&gt;());
+ *     RemapAnalyzer.Report report = analyzer.analyze(new File("keys.txt"));
+ *
+ *     java com.yeaya.xixibase.xixiclient.RemapAnalyzer -keys keys.txt -map ketama
+ *             -old host1:7788=70,host2:7788=50 -new host1:7788=70,host2:7788=50,host3:7788=50</pre>
+ *
+ * @author Yao Yuan
+ *
+ */
+public class RemapAnalyzer {
+	final static Logger log = LoggerFactory.getLogger(RemapAnalyzer.class);
+
+	private static final int CHUNK_SIZE = 4096;
+	private static final String[] END = new String[0];
+
+	private final WeightMap<Integer> oldMap;
+	private final WeightMap<Integer> newMap;
+	// all the servers, the old ones first, the values of the maps are the indexes in it
+	private final List<String> servers = new ArrayList<String>();
+	private int threads = Runtime.getRuntime().availableProcessors();
+	private double hitRatio = 1.0;
+
+	/**
+	 * The maps are set with the servers here, they must not be used by a manager.
+	 * @param oldServers the servers before the change
+	 * @param oldWeights their weights, or <tt>null</tt>
+	 * @param oldMap the weight map before the change
+	 * @param newServers the servers after the change
+	 * @param newWeights their weights, or <tt>null</tt>
+	 * @param newMap the weight map after the change
+	 */
+	public RemapAnalyzer(String[] oldServers, Integer[] oldWeights, WeightMap<Integer> oldMap,
+			String[] newServers, Integer[] newWeights, WeightMap<Integer> newMap) {
+		if (oldServers == null || oldServers.length == 0 || newServers == null || newServers.length == 0) {
+			throw new IllegalArgumentException("no servers");
+		}
+		if (oldMap == newMap) {
+			throw new IllegalArgumentException("the old and the new map must be different instances");
+		}
+		this.oldMap = oldMap;
+		this.newMap = newMap;
+		setServers(oldServers, oldWeights, oldMap);
+		setServers(newServers, newWeights, newMap);
+	}
+
+	/**
+	 * Set the indexes of the servers to the map in the order of the indexes, like
+	 * <tt>SocketManager</tt> does, a server which is not known yet gets the next index.
+	 */
+	private void setServers(String[] list, Integer[] weights, WeightMap<Integer> map) {
+		int count = servers.size() + list.length;
+		boolean[] live = new boolean[count];
+		Integer[] indexWeights = new Integer[count];
+		int n = 0;
+		for (int i = 0; i < list.length; i++) {
+			int index = servers.indexOf(list[i]);
+			if (index < 0) {
+				index = servers.size();
+				servers.add(list[i]);
+			}
+			if (!live[index]) {
+				live[index] = true;
+				n++;
+			}
+			indexWeights[index] = weights != null && i < weights.length ? weights[i] : null;
+		}
+		Integer[] values = new Integer[n];
+		Integer[] valueWeights = new Integer[n];
+		n = 0;
+		for (int i = 0; i < count; i++) {
+			if (live[i]) {
+				values[n] = Integer.valueOf(i);
+				valueWeights[n] = indexWeights[i];
+				n++;
+			}
+		}
+		map.clear();
+		map.set(values, weights != null ? valueWeights : null);
+	}
+
+	/**
+	 * Set the number of the worker threads, the number of processors by default.
+	 * @param threads
+	 */
+	public void setThreads(int threads) {
+		this.threads = Math.max(1, threads);
+	}
+
+	public int getThreads() {
+		return threads;
+	}
+
+	/**
+	 * Set the hit ratio before the change, for the miss spike, <tt>1.0</tt> by default.
+	 * @param hitRatio in 0..1
+	 */
+	public void setHitRatio(double hitRatio) {
+		this.hitRatio = Math.max(0, Math.min(1, hitRatio));
+	}
+
+	public double getHitRatio() {
+		return hitRatio;
+	}
+
+	/**
+	 * Analyze a sample file.
+	 * @param file the sample
+	 * @return the report
+	 * @throws IOException
+	 */
+	public Report analyze(File file) throws IOException {
+		BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), Charset.forName("UTF-8")));
+		try {
+			return analyze(in);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Analyze a sample, the reader is read to the end and not closed.
+	 * @param in the sample
+	 * @return the report
+	 * @throws IOException
+	 */
+	public Report analyze(BufferedReader in) throws IOException {
+		final BlockingQueue<String[]> queue = new ArrayBlockingQueue<String[]>(threads * 2);
+		final Counter[] counters = new Counter[threads];
+		Thread[] workers = new Thread[threads];
+		for (int i = 0; i < threads; i++) {
+			final Counter counter = new Counter(servers.size());
+			counters[i] = counter;
+			workers[i] = new Thread(new Runnable() {
+				public void run() {
+					work(queue, counter);
+				}
+			}, "XixiRemapAnalyzer-" + i);
+			workers[i].setDaemon(true);
+			workers[i].start();
+		}
+		try {
+			String[] chunk = new String[CHUNK_SIZE];
+			int size = 0;
+			String line;
+			while ((line = in.readLine()) != null) {
+				chunk[size++] = line;
+				if (size == CHUNK_SIZE) {
+					queue.put(chunk);
+					chunk = new String[CHUNK_SIZE];
+					size = 0;
+				}
+			}
+			if (size > 0) {
+				String[] last = new String[size];
+				System.arraycopy(chunk, 0, last, 0, size);
+				queue.put(last);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("analyze, interrupted");
+		} finally {
+			for (int i = 0; i < threads; i++) {
+				putQuietly(queue, END);
+			}
+		}
+		for (int i = 0; i < threads; i++) {
+			try {
+				workers[i].join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("analyze, interrupted");
+			}
+		}
+		Counter total = new Counter(servers.size());
+		for (int i = 0; i < threads; i++) {
+			total.add(counters[i]);
+		}
+		if (total.error != null) {
+			throw new IOException("analyze, " + total.error);
+		}
+		return new Report(servers.toArray(new String[servers.size()]), total, hitRatio);
+	}
+
+	private static void putQuietly(BlockingQueue<String[]> queue, String[] chunk) {
+		boolean interrupted = false;
+		while (true) {
+			try {
+				queue.put(chunk);
+				break;
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void work(BlockingQueue<String[]> queue, Counter counter) {
+		while (true) {
+			String[] chunk;
+			try {
+				chunk = queue.take();
+			} catch (InterruptedException e) {
+				continue;
+			}
+			if (chunk == END) {
+				return;
+			}
+			for (int i = 0; i < chunk.length; i++) {
+				try {
+					count(chunk[i], counter);
+				} catch (RuntimeException e) {
+					// keep on taking the chunks, the reader must not block
+					if (counter.error == null) {
+						counter.error = "line=" + chunk[i] + " e=" + e;
+						log.error("analyze, " + counter.error);
+					}
+				}
+			}
+		}
+	}
+
+	private void count(String line, Counter counter) {
+		line = line.trim();
+		if (line.length() == 0) {
+			return;
+		}
+		String key = line;
+		long bytes = 1;
+		int space = indexOfSpace(line);
+		if (space > 0) {
+			key = line.substring(0, space);
+			bytes = Long.parseLong(line.substring(space + 1).trim());
+		}
+		int oldNode = oldMap.get(key).intValue();
+		int newNode = newMap.get(key).intValue();
+		counter.keys++;
+		counter.bytes += bytes;
+		counter.oldKeys[oldNode]++;
+		counter.oldBytes[oldNode] += bytes;
+		counter.newKeys[newNode]++;
+		counter.newBytes[newNode] += bytes;
+		if (oldNode != newNode) {
+			counter.remappedKeys++;
+			counter.remappedBytes += bytes;
+		}
+	}
+
+	private static int indexOfSpace(String line) {
+		for (int i = 0; i < line.length(); i++) {
+			char c = line.charAt(i);
+			if (c == ' ' || c == '\t') {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * The counts of one worker.
+	 */
+	private static final class Counter {
+		long keys = 0;
+		long bytes = 0;
+		long remappedKeys = 0;
+		long remappedBytes = 0;
+		final long[] oldKeys;
+		final long[] oldBytes;
+		final long[] newKeys;
+		final long[] newBytes;
+		String error = null;
+
+		Counter(int nodes) {
+			oldKeys = new long[nodes];
+			oldBytes = new long[nodes];
+			newKeys = new long[nodes];
+			newBytes = new long[nodes];
+		}
+
+		void add(Counter c) {
+			keys += c.keys;
+			bytes += c.bytes;
+			remappedKeys += c.remappedKeys;
+			remappedBytes += c.remappedBytes;
+			for (int i = 0; i < oldKeys.length; i++) {
+				oldKeys[i] += c.oldKeys[i];
+				oldBytes[i] += c.oldBytes[i];
+				newKeys[i] += c.newKeys[i];
+				newBytes[i] += c.newBytes[i];
+			}
+			if (error == null) {
+				error = c.error;
+			}
+		}
+	}
+
+	/**
+	 * The result of an analysis. The servers are the old ones in their order, then
+	 * the new ones which were not in the old list.
+	 */
+	public static final class Report {
+		private final String[] servers;
+		private final Counter counter;
+		private final double hitRatio;
+
+		Report(String[] servers, Counter counter, double hitRatio) {
+			this.servers = servers;
+			this.counter = counter;
+			this.hitRatio = hitRatio;
+		}
+
+		public String[] getServers() {
+			return servers.clone();
+		}
+
+		public long getKeyCount() {
+			return counter.keys;
+		}
+
+		public long getByteCount() {
+			return counter.bytes;
+		}
+
+		public long getOldKeyCount(int server) {
+			return counter.oldKeys[server];
+		}
+
+		public long getOldByteCount(int server) {
+			return counter.oldBytes[server];
+		}
+
+		public long getNewKeyCount(int server) {
+			return counter.newKeys[server];
+		}
+
+		public long getNewByteCount(int server) {
+			return counter.newBytes[server];
+		}
+
+		/**
+		 * Get the share of the keys of a server before the change.
+		 * @param server the index in <tt>getServers</tt>
+		 * @return the share, in 0..1
+		 */
+		public double getOldKeyShare(int server) {
+			return share(counter.oldKeys[server], counter.keys);
+		}
+
+		public double getOldByteShare(int server) {
+			return share(counter.oldBytes[server], counter.bytes);
+		}
+
+		public double getNewKeyShare(int server) {
+			return share(counter.newKeys[server], counter.keys);
+		}
+
+		public double getNewByteShare(int server) {
+			return share(counter.newBytes[server], counter.bytes);
+		}
+
+		public long getRemappedKeyCount() {
+			return counter.remappedKeys;
+		}
+
+		public long getRemappedByteCount() {
+			return counter.remappedBytes;
+		}
+
+		/**
+		 * Get the share of the keys which move to another server.
+		 * @return the share, in 0..1
+		 */
+		public double getRemappedFraction() {
+			return share(counter.remappedKeys, counter.keys);
+		}
+
+		public double getRemappedByteFraction() {
+			return share(counter.remappedBytes, counter.bytes);
+		}
+
+		/**
+		 * Get the misses right after the change which were hits before, a moved key
+		 * misses on its new server until it is set again.
+		 * @return the extra misses, a share of the requests in 0..1
+		 */
+		public double getMissSpike() {
+			return hitRatio * getRemappedFraction();
+		}
+
+		/**
+		 * Get the miss ratio right after the change.
+		 * @return the miss ratio, in 0..1
+		 */
+		public double getMissRatioAfter() {
+			return 1 - hitRatio + getMissSpike();
+		}
+
+		private static double share(long count, long total) {
+			return total > 0 ? (double) count / total : 0;
+		}
+
+		public String toString() {
+			StringBuilder sb = new StringBuilder();
+			sb.append(String.format("%-24s %10s %10s %10s %10s%n", "server", "old keys", "old bytes", "new keys", "new bytes"));
+			for (int i = 0; i < servers.length; i++) {
+				sb.append(String.format("%-24s %9.2f%% %9.2f%% %9.2f%% %9.2f%%%n", servers[i],
+						getOldKeyShare(i) * 100, getOldByteShare(i) * 100,
+						getNewKeyShare(i) * 100, getNewByteShare(i) * 100));
+			}
+			sb.append(String.format("keys=%d bytes=%d%n", counter.keys, counter.bytes));
+			sb.append(String.format("remapped keys=%d (%.2f%%) bytes=%d (%.2f%%)%n",
+					counter.remappedKeys, getRemappedFraction() * 100,
+					counter.remappedBytes, getRemappedByteFraction() * 100));
+			sb.append(String.format("hit ratio=%.2f%% miss spike=%.2f%% miss ratio after=%.2f%%%n",
+					hitRatio * 100, getMissSpike() * 100, getMissRatioAfter() * 100));
+			return sb.toString();
+		}
+	}
+
+	/**
+	 * Create a weight map by its name.
+	 * @param name <tt>modulo</tt>, <tt>consistent</tt>, <tt>ketama</tt>, <tt>jump</tt> or <tt>rendezvous</tt>
+	 * @param hashingAlg the hash of the keys, see <tt>XixiWeightMap</tt>
+	 * @return the map
+	 */
+	public static WeightMap<Integer> createWeightMap(String name, int hashingAlg) {
+		if (name.equals("modulo")) {
+			return new XixiWeightMap<Integer>(false, hashingAlg);
+		} else if (name.equals("consistent")) {
+			return new XixiWeightMap<Integer>(true, hashingAlg);
+		} else if (name.equals("ketama")) {
+			return new KetamaWeightMap<Integer>(KetamaWeightMap.DEFAULT_VIRTUAL_NODES, hashingAlg);
+		} else if (name.equals("jump")) {
+			return new JumpWeightMap<Integer>(hashingAlg);
+		} else if (name.equals("rendezvous")) {
+			return new RendezvousWeightMap<Integer>(hashingAlg);
+		}
+		throw new IllegalArgumentException("unknown weight map:" + name);
+	}
+
+	/**
+	 * Get a hashing algorithm by its name.
+	 * @param name <tt>native</tt>, <tt>crc32</tt>, <tt>md5</tt>, <tt>murmur3</tt> or <tt>xxhash64</tt>
+	 * @return the algorithm, see <tt>XixiWeightMap</tt>
+	 */
+	public static int getHashingAlg(String name) {
+		if (name.equals("native")) {
+			return XixiWeightMap.NATIVE_HASH;
+		} else if (name.equals("crc32")) {
+			return XixiWeightMap.CRC32_HASH;
+		} else if (name.equals("md5")) {
+			return XixiWeightMap.MD5_HASH;
+		} else if (name.equals("murmur3")) {
+			return XixiWeightMap.MURMUR3_HASH;
+		} else if (name.equals("xxhash64")) {
+			return XixiWeightMap.XXHASH64_HASH;
+		}
+		throw new IllegalArgumentException("unknown hash:" + name);
+	}
+
+	private static int defaultHashingAlg(String map) {
+		return map.equals("modulo") || map.equals("consistent") ? XixiWeightMap.NATIVE_HASH : XixiWeightMap.MURMUR3_HASH;
+	}
+
+	/**
+	 * Parse a list of servers, <tt>host:port[=weight],...</tt>.
+	 * @param list
+	 * @param weights out, the weights, <tt>null</tt> for no weight
+	 * @return the servers
+	 */
+	static String[] parseServers(String list, Integer[][]/*out*/ weights) {
+		String[] items = list.split(",");
+		String[] result = new String[items.length];
+		weights[0] = new Integer[items.length];
+		for (int i = 0; i < items.length; i++) {
+			String item = items[i].trim();
+			int eq = item.indexOf('=');
+			if (eq > 0) {
+				result[i] = item.substring(0, eq);
+				weights[0][i] = Integer.valueOf(item.substring(eq + 1).trim());
+			} else {
+				result[i] = item;
+			}
+		}
+		return result;
+	}
+
+	private static void usage() {
+		System.err.println("usage: RemapAnalyzer -keys <file|-> -old <host:port[=weight],...> -new <host:port[=weight],...>");
+		System.err.println("        [-map modulo|consistent|ketama|jump|rendezvous] [-oldMap name] [-newMap name]");
+		System.err.println("        [-hash native|crc32|md5|murmur3|xxhash64] [-threads n] [-hitRatio 0..1]");
+	}
+
+	public static void main(String[] args) throws IOException {
+		String keys = null;
+		String oldList = null;
+		String newList = null;
+		String oldMapName = "modulo";
+		String newMapName = null;
+		String hash = null;
+		int threads = Runtime.getRuntime().availableProcessors();
+		double hitRatio = 1.0;
+		try {
+			for (int i = 0; i < args.length; i++) {
+				String arg = args[i];
+				if (i + 1 >= args.length) {
+					throw new IllegalArgumentException("no value of " + arg);
+				}
+				String value = args[++i];
+				if (arg.equals("-keys")) {
+					keys = value;
+				} else if (arg.equals("-old")) {
+					oldList = value;
+				} else if (arg.equals("-new")) {
+					newList = value;
+				} else if (arg.equals("-map") || arg.equals("-oldMap")) {
+					oldMapName = value;
+				} else if (arg.equals("-newMap")) {
+					newMapName = value;
+				} else if (arg.equals("-hash")) {
+					hash = value;
+				} else if (arg.equals("-threads")) {
+					threads = Integer.parseInt(value);
+				} else if (arg.equals("-hitRatio")) {
+					hitRatio = Double.parseDouble(value);
+				} else {
+					throw new IllegalArgumentException("unknown option " + arg);
+				}
+			}
+			if (keys == null || oldList == null || newList == null) {
+				throw new IllegalArgumentException("-keys, -old and -new are required");
+			}
+			if (newMapName == null) {
+				newMapName = oldMapName;
+			}
+			Integer[][] oldWeights = new Integer[1][];
+			Integer[][] newWeights = new Integer[1][];
+			String[] oldServers = parseServers(oldList, oldWeights);
+			String[] newServers = parseServers(newList, newWeights);
+			WeightMap<Integer> oldMap = createWeightMap(oldMapName,
+					hash != null ? getHashingAlg(hash) : defaultHashingAlg(oldMapName));
+			WeightMap<Integer> newMap = createWeightMap(newMapName,
+					hash != null ? getHashingAlg(hash) : defaultHashingAlg(newMapName));
+
+			RemapAnalyzer analyzer = new RemapAnalyzer(oldServers, oldWeights[0], oldMap,
+					newServers, newWeights[0], newMap);
+			analyzer.setThreads(threads);
+			analyzer.setHitRatio(hitRatio);
+			Report report;
+			if (keys.equals("-")) {
+				report = analyzer.analyze(new BufferedReader(new InputStreamReader(System.in, Charset.forName("UTF-8"))));
+			} else {
+				report = analyzer.analyze(new File(keys));
+			}
+			System.out.print(report);
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			usage();
+			System.exit(1);
+		}
+	}
+}
@@ -0,0 +1,218 @@
+/*
+   Copyright [2015] [Yao Yuan(yeaya@163.com)]
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.yeaya.xixibase.xixiclient;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import com.yeaya.xixibase.xixiclient.util.HashedWeightMap;
+import com.yeaya.xixibase.xixiclient.util.KeyHasher;
+import com.yeaya.xixibase.xixiclient.util.XxHash64Hasher;
+
+/**
+ * Weighted rendezvous hashing (highest random weight). Each value scores each key,
+ * the key goes to the value with the highest score. A removed value only gives away
+ * its own keys, whatever its place in the list, and the next values of a key, see
+ * <tt>get(k, count)</tt>, do not depend on the other values.
+ * <p>
+ * A lookup scores all the values, so it is meant for small clusters. With weights
+ * the score is <tt>weight / -ln(u)</tt>, <tt>u</tt> in (0, 1) from the hash of the
+ * key and the value, so the share of a value is its share of the weights. With equal
+ * weights the hashes are compared directly.
+ * <pre>
+ *     WeightMap&lt;Integer&gt; weightMap = new RendezvousWeightMap&lt;Integer&gt;();
+ *     mgr.initialize(servers, weights, weightMap, enableSSL);</pre>
+ * The scores depend on <tt>value.toString()</tt>, for <tt>SocketManager</tt> that is
+ * the index of the server, so the servers must be kept in the same order.
+ *
+ * @author Yao Yuan
+ *
+ */
+public class RendezvousWeightMap<V> implements HashedWeightMap<V> {
+	private static final Charset SEED_CHARSET = Charset.forName("UTF-8");
+	private static final double UNIT = 1.0 / (1L << 53);
+
+	private final int hashingAlg;
+	private final KeyHasher hasher;
+	// the nodes are replaced as a whole by set and clear
+	private volatile Nodes<V> nodes = null;
+
+	public RendezvousWeightMap() {
+		this(XixiWeightMap.MURMUR3_HASH);
+	}
+
+	/**
+	 * @param hashingAlg the hash of the keys, see <tt>XixiWeightMap</tt>
+	 */
+	public RendezvousWeightMap(int hashingAlg) {
+		this.hashingAlg = hashingAlg;
+		this.hasher = XixiWeightMap.getKeyHasher(hashingAlg);
+	}
+
+	/**
+	 * @param hasher the hasher of the encoded keys
+	 */
+	public RendezvousWeightMap(KeyHasher hasher) {
+		this.hashingAlg = XixiWeightMap.CUSTOM_HASH;
+		this.hasher = hasher;
+	}
+
+	public final int getHashingAlg() {
+		return hashingAlg;
+	}
+
+	public final boolean isConsistent() {
+		return true;
+	}
+
+	public final boolean isPlacedByValue() {
+		return true;
+	}
+
+	public void clear() {
+		nodes = null;
+	}
+
+	/**
+	 * Set the values and their weights, the weights are taken in 1..100 like
+	 * <tt>XixiWeightMap</tt>, a missing weight is 1.
+	 */
+	public void set(V[] values, Integer[] weights) {
+		if (values == null || values.length == 0) {
+			return;
+		}
+		XxHash64Hasher seedHasher = new XxHash64Hasher();
+		long[] seeds = new long[values.length];
+		double[] valueWeights = new double[values.length];
+		boolean weighted = false;
+		for (int i = 0; i < values.length; i++) {
+			byte[] name = String.valueOf(values[i]).getBytes(SEED_CHARSET);
+			seeds[i] = seedHasher.hash64(name, 0, name.length);
+			int weight = 1;
+			if (weights != null && i < weights.length && weights[i] != null) {
+				weight = Math.min(100, Math.max(1, weights[i].intValue()));
+			}
+			valueWeights[i] = weight;
+			if (i > 0 && valueWeights[i] != valueWeights[0]) {
+				weighted = true;
+			}
+		}
+		nodes = new Nodes<V>(values.clone(), seeds, valueWeights, weighted);
+	}
+
+	public V get(String k) {
+		return getByHash(hash(k, null));
+	}
+
+	public V get(String k, Set<V> excluded) {
+		return getByHash(hash(k, null), excluded);
+	}
+
+	public List<V> get(String k, int count) {
+		return getByHash(hash(k, null), count);
+	}
+
+	public int hash(String k, byte[] keyBuf) {
+		if (hasher == null) {
+			return k.hashCode();
+		}
+		if (keyBuf == null) {
+			keyBuf = k.getBytes();
+		}
+		return hasher.hash(keyBuf, 0, keyBuf.length);
+	}
+
+	public V getByHash(int hash) {
+		Nodes<V> n = nodes;
+		return n.values[n.best(JumpWeightMap.mix(hash), null, null)];
+	}
+
+	public V getByHash(int hash, Set<V> excluded) {
+		Nodes<V> n = nodes;
+		int best = n.best(JumpWeightMap.mix(hash), excluded, null);
+		return best >= 0 ? n.values[best] : null;
+	}
+
+	public List<V> getByHash(int hash, int count) {
+		Nodes<V> n = nodes;
+		int max = Math.min(count, n.values.length);
+		List<V> result = new ArrayList<V>(max);
+		long key = JumpWeightMap.mix(hash);
+		boolean[] taken = new boolean[n.values.length];
+		while (result.size() < max) {
+			int best = n.best(key, null, taken);
+			taken[best] = true;
+			result.add(n.values[best]);
+		}
+		return result;
+	}
+
+	private static final class Nodes<V> {
+		final V[] values;
+		final long[] seeds;
+		final double[] weights;
+		final boolean weighted;
+
+		Nodes(V[] values, long[] seeds, double[] weights, boolean weighted) {
+			this.values = values;
+			this.seeds = seeds;
+			this.weights = weights;
+			this.weighted = weighted;
+		}
+
+		/**
+		 * Get the index of the value with the highest score.
+		 * @param key the 64 bits hash of the key
+		 * @param excluded values which are skipped, or <tt>null</tt>
+		 * @param taken indexes which are skipped, or <tt>null</tt>
+		 * @return the index, <tt>-1</tt> if all the values are skipped
+		 */
+		int best(long key, Set<V> excluded, boolean[] taken) {
+			int best = -1;
+			long bestHash = 0;
+			double bestScore = 0;
+			for (int i = 0; i < values.length; i++) {
+				if ((taken != null && taken[i]) || (excluded != null && excluded.contains(values[i]))) {
+					continue;
+				}
+				long h = score(key, seeds[i]);
+				if (weighted) {
+					// u in (0, 1), -ln(u) > 0
+					double u = ((h >>> 11) + 0.5) * UNIT;
+					double s = weights[i] / -Math.log(u);
+					if (best < 0 || s > bestScore) {
+						best = i;
+						bestScore = s;
+					}
+				} else if (best < 0 || Long.compareUnsigned(h, bestHash) > 0) {
+					best = i;
+					bestHash = h;
+				}
+			}
+			return best;
+		}
+
+		private static long score(long key, long seed) {
+			long z = key ^ seed;
+			z = (z ^ (z >>> 33)) * 0xFF51AFD7ED558CCDL;
+			z = (z ^ (z >>> 33)) * 0xC4CEB9FE1A85EC53L;
+			return z ^ (z >>> 33);
+		}
+	}
+}
@@ -0,0 +1,352 @@
+/*
+   Copyright [2015] [Yao Yuan(yeaya@163.com)]
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.yeaya.xixibase.xixiclient;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.yeaya.xixibase.xixiclient.multi.MultiDelete;
+import com.yeaya.xixibase.xixiclient.multi.MultiDeleteItem;
+import com.yeaya.xixibase.xixiclient.multi.MultiUpdate;
+import com.yeaya.xixibase.xixiclient.multi.MultiUpdateItem;
+import com.yeaya.xixibase.xixiclient.network.SocketManager;
+
+/**
+ * Keeps the sets and deletes which could not be sent to a host, and replays them
+ * in order when the host is up again.
+ * <p>
+ * Each host has a <tt>HostJournal</tt> file in the journal directory. A set or delete
+ * which failed to reach the host is appended to it, and so is every later set or
+ * delete of a key which is still in the journal, otherwise the replay would overwrite
+ * it with an older value. The replayer sends the records with <tt>MultiUpdate</tt>
+ * and <tt>MultiDelete</tt>, at most <tt>replayRate</tt> records per second and host.
+ *
+ * @author Yao Yuan
+ *
+ */
+class WriteJournal extends Defines {
+	final static Logger log = LoggerFactory.getLogger(WriteJournal.class);
+
+	private static final long REPLAY_INTERVAL = 100;
+	private static final long RETRY_INTERVAL = TimeUnit.SECONDS.toNanos(1);
+	private static final TransCoder RAW = new RawTransCoder();
+
+	private final XixiClientManager manager;
+	private final SocketManager socketManager;
+	private final File dir;
+	private final int size;
+	private final int replayRate;
+	private final ConcurrentHashMap<String, HostJournal> journals = new ConcurrentHashMap<String, HostJournal>();
+	private final LongAdder replayedCount = new LongAdder();
+	private volatile boolean running = false;
+	private Thread replayer = null;
+
+	/**
+	 * @param dir the directory of the journal files
+	 * @param size the size of the file of one host
+	 * @param replayRate the max number of records replayed per second to one host
+	 */
+	WriteJournal(XixiClientManager manager, SocketManager socketManager, String dir, int size, int replayRate) {
+		this.manager = manager;
+		this.socketManager = socketManager;
+		this.dir = new File(dir);
+		this.size = size;
+		this.replayRate = replayRate;
+	}
+
+	/**
+	 * Open the journals left by the last run and start the replayer.
+	 */
+	synchronized void start() {
+		if (running) {
+			return;
+		}
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			log.error("start, can not create the journal directory:" + dir);
+		}
+		String[] servers = socketManager.getServers();
+		for (int i = 0; i < servers.length; i++) {
+			if (getFile(servers[i]).exists()) {
+				getJournal(servers[i], true);
+			}
+		}
+		running = true;
+		replayer = new Thread(new Runnable() {
+			public void run() {
+				replay();
+			}
+		}, "XixiWriteJournal");
+		replayer.setDaemon(true);
+		replayer.start();
+	}
+
+	/**
+	 * Stop the replayer and close the files, the records which are left are
+	 * replayed by the next run.
+	 */
+	synchronized void close() {
+		running = false;
+		if (replayer != null) {
+			replayer.interrupt();
+			try {
+				replayer.join(manager.getMaxBusyTime() + 1000);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			replayer = null;
+		}
+		Iterator<HostJournal> it = journals.values().iterator();
+		while (it.hasNext()) {
+			it.next().close();
+		}
+		journals.clear();
+	}
+
+	/**
+	 * Close the journal of a host which is removed from the cluster, the file is
+	 * kept and replayed when the host is added again.
+	 */
+	synchronized void removeHost(String host) {
+		HostJournal journal = journals.remove(host);
+		if (journal != null) {
+			journal.close();
+		}
+	}
+
+	/**
+	 * Open the journal left by the last run of a host which is added to the cluster.
+	 */
+	void addHost(String host) {
+		if (running && getFile(host).exists()) {
+			getJournal(host, true);
+		}
+	}
+
+	private File getFile(String host) {
+		return new File(dir, host.replace(':', '_') + ".journal");
+	}
+
+	private HostJournal getJournal(String host, boolean create) {
+		HostJournal journal = journals.get(host);
+		if (journal != null || !create) {
+			return journal;
+		}
+		synchronized (this) {
+			journal = journals.get(host);
+			if (journal == null) {
+				try {
+					journal = new HostJournal(host, getFile(host), size);
+					journals.put(host, journal);
+				} catch (IOException e) {
+					log.error("getJournal, failed to open the journal, host=" + host + " e=" + e);
+				}
+			}
+		}
+		return journal;
+	}
+
+	/**
+	 * Append a set or a delete of a host.
+	 * @param type <tt>HostJournal.SET</tt> or <tt>HostJournal.DELETE</tt>
+	 * @param data the encoded value of a set
+	 * @return <tt>true</tt> if the record was appended
+	 */
+	boolean append(String host, byte type, int groupId, byte[] keyBuf, long cacheId,
+			int expiration, int flags, byte[] data) {
+		HostJournal journal = getJournal(host, true);
+		if (journal == null) {
+			return false;
+		}
+		return journal.append(type, groupId, keyBuf, cacheId, expiration, flags, data);
+	}
+
+	/**
+	 * Is a set or delete of the key waiting for the replay to the host?
+	 */
+	boolean contains(String host, int groupId, byte[] keyBuf) {
+		HostJournal journal = getJournal(host, false);
+		return journal != null && journal.contains(groupId, keyBuf);
+	}
+
+	long getPendingCount() {
+		long count = 0;
+		Iterator<HostJournal> it = journals.values().iterator();
+		while (it.hasNext()) {
+			count += it.next().getPendingCount();
+		}
+		return count;
+	}
+
+	long getDroppedCount() {
+		long count = 0;
+		Iterator<HostJournal> it = journals.values().iterator();
+		while (it.hasNext()) {
+			count += it.next().getDroppedCount();
+		}
+		return count;
+	}
+
+	long getReplayedCount() {
+		return replayedCount.sum();
+	}
+
+	private void replay() {
+		int budget = Math.max(1, (int) (replayRate * REPLAY_INTERVAL / 1000));
+		while (running) {
+			Iterator<HostJournal> it = journals.values().iterator();
+			while (running && it.hasNext()) {
+				HostJournal journal = it.next();
+				if (journal.isEmpty() || socketManager.isHostDown(journal.getHost())
+						|| System.nanoTime() - journal.retryTime < 0) {
+					continue;
+				}
+				try {
+					if (!replay(journal, budget)) {
+						journal.retryTime = System.nanoTime() + RETRY_INTERVAL;
+					}
+				} catch (RuntimeException e) {
+					log.error("replay, host=" + journal.getHost() + " e=" + e);
+					journal.retryTime = System.nanoTime() + RETRY_INTERVAL;
+				}
+			}
+			try {
+				Thread.sleep(REPLAY_INTERVAL);
+			} catch (InterruptedException e) {
+				// close
+			}
+		}
+	}
+
+	/**
+	 * Replay the oldest records of one host.
+	 * @return <tt>false</tt> if a record did not reach the host
+	 */
+	private boolean replay(HostJournal journal, int max) {
+		List<HostJournal.Record> records = journal.peek(max);
+		List<HostJournal.Record> done = new ArrayList<HostJournal.Record>(records.size());
+		boolean success = true;
+		int start = 0;
+		while (success && start < records.size()) {
+			// the run of records with the same type and group
+			HostJournal.Record first = records.get(start);
+			int end = start + 1;
+			while (end < records.size() && records.get(end).type == first.type
+					&& records.get(end).groupId == first.groupId) {
+				end++;
+			}
+			List<HostJournal.Record> run = records.subList(start, end);
+			int count = first.type == HostJournal.SET ? replaySets(journal.getHost(), first.groupId, run)
+					: replayDeletes(journal.getHost(), first.groupId, run);
+			done.addAll(run.subList(0, count));
+			success = count == run.size();
+			start = end;
+		}
+		journal.commit(done);
+		replayedCount.add(done.size());
+		return success;
+	}
+
+	/**
+	 * @return the number of records from the first on which got a response
+	 */
+	private int replaySets(String host, int groupId, List<HostJournal.Record> records) {
+		List<MultiUpdateItem> items = new ArrayList<MultiUpdateItem>(records.size());
+		List<String> hosts = new ArrayList<String>(records.size());
+		for (int i = 0; i < records.size(); i++) {
+			HostJournal.Record record = records.get(i);
+			MultiUpdateItem item = new MultiUpdateItem();
+			item.key = record.key;
+			item.value = record;
+			item.cacheID = record.cacheId;
+			item.expiration = record.expiration;
+			items.add(item);
+			hosts.add(host);
+		}
+		MultiUpdate multi = new MultiUpdate(manager, socketManager, groupId, RAW);
+		multi.multiUpdate(items, XIXI_UPDATE_SUB_OP_SET, hosts);
+		int count = 0;
+		// a rejected set is done too, only a missing response is retried
+		while (count < items.size()
+				&& (items.get(count).getNewCacheID() != NO_CAS || items.get(count).getReason() != 0)) {
+			count++;
+		}
+		if (count < items.size()) {
+			log.warn("replaySets, host=" + host + " error=" + multi.getLastError());
+		}
+		return count;
+	}
+
+	/**
+	 * @return the number of records from the first on which got a response
+	 */
+	private int replayDeletes(String host, int groupId, List<HostJournal.Record> records) {
+		List<MultiDeleteItem> items = new ArrayList<MultiDeleteItem>(records.size());
+		List<String> hosts = new ArrayList<String>(records.size());
+		for (int i = 0; i < records.size(); i++) {
+			HostJournal.Record record = records.get(i);
+			MultiDeleteItem item = new MultiDeleteItem();
+			item.key = record.key;
+			item.cacheID = record.cacheId;
+			items.add(item);
+			hosts.add(host);
+		}
+		MultiDelete multi = new MultiDelete(manager, socketManager, groupId, RAW);
+		multi.multiDelete(items, hosts);
+		int count = 0;
+		// a delete of a missing key is done too
+		while (count < items.size() && items.get(count).getReason() != -1) {
+			count++;
+		}
+		if (count < items.size()) {
+			log.warn("replayDeletes, host=" + host + " error=" + multi.getLastError());
+		}
+		return count;
+	}
+
+	/**
+	 * The keys and values of the records are encoded already.
+	 */
+	private static final class RawTransCoder extends ObjectTransCoder {
+		public byte[] encodeKey(final String key) {
+			return HostJournal.toKeyBuf(key);
+		}
+
+		public byte[] encode(final Object obj, int[]/*out*/ outflags, int[]/*out*/ objectSize) throws IOException {
+			HostJournal.Record record = (HostJournal.Record) obj;
+			outflags[0] = record.flags;
+			return record.data;
+		}
+
+		public int encode(final Object obj, ByteBuffer buf, int[]/*out*/ outflags, int[]/*out*/ objectSize) throws IOException {
+			return -1;
+		}
+
+		public ByteBuffer wrap(final Object obj, int[]/*out*/ outflags, int[]/*out*/ objectSize) {
+			return null;
+		}
+	}
+}
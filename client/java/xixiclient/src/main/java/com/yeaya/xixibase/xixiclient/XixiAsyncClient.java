@@ -0,0 +1,225 @@
+/*
+   Copyright [2015] [Yao Yuan(yeaya@163.com)]
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.yeaya.xixibase.xixiclient;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Xixibase async cache client.
+ * <p>
+ * Requests are pipelined over a few connections per host, so one thread can keep
+ * many requests in flight. Operations on the same key are handled in the order
+ * they are called. Every operation returns at once, the returned future
+ * completes with the same value as the same operation of {@link XixiClient}:
+ * <tt>null</tt>, <tt>0</tt> or <tt>false</tt> if the server rejected the operation.
+ * The future completes exceptionally if the arguments are invalid or the connection failed.
+ * <p>
+ * The async client does not use the local cache, but its updates invalidate the local cache.
+ *
+ * @author Yao Yuan
+ *
+ */
+public interface XixiAsyncClient {
+
+	/**
+	 * Get groupId.
+	 * @return groupId
+	 */
+	public int getGroupId();
+
+	/**
+	 * Set transCoder.
+	 * @param transCoder
+	 */
+	public void setTransCoder(TransCoder transCoder);
+
+	/**
+	 * Get transCoder.
+	 * @return transCoder
+	 */
+	public TransCoder getTransCoder();
+
+	/**
+	 * Get one object from remote Xixibase server.
+	 * @param key
+	 * @return future of the object, completes with <tt>null</tt> if the object does not exist
+	 */
+	public CompletableFuture<CacheItem> get(String key);
+
+	/**
+	 * Get one object from remote Xixibase server and update its expiration.
+	 * @param key
+	 * @param expiration
+	 * @return future of the object, completes with <tt>null</tt> if the object does not exist
+	 */
+	public CompletableFuture<CacheItem> getAndTouch(String key, int expiration);
+
+	/**
+	 * Get the base information of one object from remote Xixibase server.
+	 * @param key
+	 * @return future of the base information, completes with <tt>null</tt> if the object does not exist
+	 */
+	public CompletableFuture<CacheBaseItem> getBase(String key);
+
+	/**
+	 * Set one object to remote Xixibase server and with no expiration.
+	 * @see XixiClient#set(String, Object)
+	 * @param key
+	 * @param value
+	 * @return future of the cacheId, completes with <tt>0</tt> if operation failed
+	 */
+	public CompletableFuture<Long> set(String key, Object value);
+
+	/**
+	 * Set one object to remote Xixibase server.
+	 * @see XixiClient#set(String, Object, int)
+	 * @param key
+	 * @param value
+	 * @param expiration
+	 * @return future of the cacheId, completes with <tt>0</tt> if operation failed
+	 */
+	public CompletableFuture<Long> set(String key, Object value, int expiration);
+
+	/**
+	 * Set one object to remote Xixibase server if the cacheId matches.
+	 * @see XixiClient#set(String, Object, int, long)
+	 * @param key
+	 * @param value
+	 * @param expiration
+	 * @param cacheId
+	 * @return future of the cacheId, completes with <tt>0</tt> if operation failed
+	 */
+	public CompletableFuture<Long> set(String key, Object value, int expiration, long cacheId);
+
+	/**
+	 * Add one object to remote Xixibase server if the object does not exist.
+	 * @see XixiClient#add(String, Object)
+	 * @param key
+	 * @param value
+	 * @return future of the cacheId, completes with <tt>0</tt> if operation failed
+	 */
+	public CompletableFuture<Long> add(String key, Object value);
+
+	/**
+	 * Add one object to remote Xixibase server if the object does not exist.
+	 * @see XixiClient#add(String, Object, int)
+	 * @param key
+	 * @param value
+	 * @param expiration
+	 * @return future of the cacheId, completes with <tt>0</tt> if operation failed
+	 */
+	public CompletableFuture<Long> add(String key, Object value, int expiration);
+
+	/**
+	 * Replace one object in remote Xixibase server.
+	 * @see XixiClient#replace(String, Object)
+	 * @param key
+	 * @param value
+	 * @return future of the cacheId, completes with <tt>0</tt> if operation failed
+	 */
+	public CompletableFuture<Long> replace(String key, Object value);
+
+	/**
+	 * Replace one object in remote Xixibase server.
+	 * @see XixiClient#replace(String, Object, int)
+	 * @param key
+	 * @param value
+	 * @param expiration
+	 * @return future of the cacheId, completes with <tt>0</tt> if operation failed
+	 */
+	public CompletableFuture<Long> replace(String key, Object value, int expiration);
+
+	/**
+	 * Replace one object in remote Xixibase server if the cacheId matches.
+	 * @see XixiClient#replace(String, Object, int, long)
+	 * @param key
+	 * @param value
+	 * @param expiration
+	 * @param cacheId
+	 * @return future of the cacheId, completes with <tt>0</tt> if operation failed
+	 */
+	public CompletableFuture<Long> replace(String key, Object value, int expiration, long cacheId);
+
+	/**
+	 * Append data to one object in remote Xixibase server.
+	 * @see XixiClient#append(String, Object)
+	 * @param key
+	 * @param value
+	 * @return future of the cacheId, completes with <tt>0</tt> if operation failed
+	 */
+	public CompletableFuture<Long> append(String key, Object value);
+
+	/**
+	 * Append data to one object in remote Xixibase server if the cacheId matches.
+	 * @see XixiClient#append(String, Object, long)
+	 * @param key
+	 * @param value
+	 * @param cacheId
+	 * @return future of the cacheId, completes with <tt>0</tt> if operation failed
+	 */
+	public CompletableFuture<Long> append(String key, Object value, long cacheId);
+
+	/**
+	 * Prepend data to one object in remote Xixibase server.
+	 * @see XixiClient#prepend(String, Object)
+	 * @param key
+	 * @param value
+	 * @return future of the cacheId, completes with <tt>0</tt> if operation failed
+	 */
+	public CompletableFuture<Long> prepend(String key, Object value);
+
+	/**
+	 * Prepend data to one object in remote Xixibase server if the cacheId matches.
+	 * @see XixiClient#prepend(String, Object, long)
+	 * @param key
+	 * @param value
+	 * @param cacheId
+	 * @return future of the cacheId, completes with <tt>0</tt> if operation failed
+	 */
+	public CompletableFuture<Long> prepend(String key, Object value, long cacheId);
+
+	/**
+	 * Delete one object from remote Xixibase server.
+	 * @param key
+	 * @return future of the result, completes with <tt>true</tt> if operation success
+	 */
+	public CompletableFuture<Boolean> delete(String key);
+
+	/**
+	 * Delete one object from remote Xixibase server if the cacheId matches.
+	 * @param key
+	 * @param cacheId
+	 * @return future of the result, completes with <tt>true</tt> if operation success
+	 */
+	public CompletableFuture<Boolean> delete(String key, long cacheId);
+
+	public CompletableFuture<DeltaItem> incr(String key);
+
+	public CompletableFuture<DeltaItem> incr(String key, long delta);
+
+	public CompletableFuture<DeltaItem> incr(String key, long delta, long cacheId);
+
+	public CompletableFuture<DeltaItem> decr(String key);
+
+	public CompletableFuture<DeltaItem> decr(String key, long delta);
+
+	public CompletableFuture<DeltaItem> decr(String key, long delta, long cacheId);
+
+	public CompletableFuture<Boolean> updateExpiration(String key, int expiration);
+
+	public CompletableFuture<Boolean> updateExpiration(String key, int expiration, long cacheId);
+}
@@ -0,0 +1,152 @@
+/*
+   Copyright [2015] [Yao Yuan(yeaya@163.com)]
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.yeaya.xixibase.xixiclient;
+
+import java.util.concurrent.CompletableFuture;
+
+import com.yeaya.xixibase.xixiclient.network.SocketManager;
+
+/**
+ * Xixibase async cache client.
+ *
+ * @author Yao Yuan
+ *
+ */
+public class XixiAsyncClientImpl implements XixiAsyncClient {
+	protected AsyncProtocol protocol;
+
+	/**
+	 * Create a <tt>XixiAsyncClient</tt>.
+	 * @param manager cache client manager
+	 * @param groupId
+	 */
+	protected XixiAsyncClientImpl(XixiClientManager manager, SocketManager socketManager, int groupId) {
+		protocol = new AsyncProtocol(manager, socketManager, groupId);
+	}
+
+	public int getGroupId() {
+		return protocol.getGroupId();
+	}
+
+	public void setTransCoder(TransCoder transCoder) {
+		protocol.setTransCoder(transCoder);
+	}
+
+	public TransCoder getTransCoder() {
+		return protocol.getTransCoder();
+	}
+
+	public CompletableFuture<CacheItem> get(String key) {
+		return protocol.get(key, false, Defines.NO_EXPIRATION);
+	}
+
+	public CompletableFuture<CacheItem> getAndTouch(String key, int expiration) {
+		return protocol.get(key, true, expiration);
+	}
+
+	public CompletableFuture<CacheBaseItem> getBase(String key) {
+		return protocol.getBase(key);
+	}
+
+	public CompletableFuture<Long> set(String key, Object value) {
+		return protocol.set(key, value, Defines.NO_EXPIRATION, Defines.NO_CAS);
+	}
+
+	public CompletableFuture<Long> set(String key, Object value, int expiration) {
+		return protocol.set(key, value, expiration, Defines.NO_CAS);
+	}
+
+	public CompletableFuture<Long> set(String key, Object value, int expiration, long cacheId) {
+		return protocol.set(key, value, expiration, cacheId);
+	}
+
+	public CompletableFuture<Long> add(String key, Object value) {
+		return protocol.add(key, value, Defines.NO_EXPIRATION);
+	}
+
+	public CompletableFuture<Long> add(String key, Object value, int expiration) {
+		return protocol.add(key, value, expiration);
+	}
+
+	public CompletableFuture<Long> replace(String key, Object value) {
+		return protocol.replace(key, value, Defines.NO_EXPIRATION, Defines.NO_CAS);
+	}
+
+	public CompletableFuture<Long> replace(String key, Object value, int expiration) {
+		return protocol.replace(key, value, expiration, Defines.NO_CAS);
+	}
+
+	public CompletableFuture<Long> replace(String key, Object value, int expiration, long cacheId) {
+		return protocol.replace(key, value, expiration, cacheId);
+	}
+
+	public CompletableFuture<Long> append(String key, Object value) {
+		return protocol.append(key, value, Defines.NO_CAS);
+	}
+
+	public CompletableFuture<Long> append(String key, Object value, long cacheId) {
+		return protocol.append(key, value, cacheId);
+	}
+
+	public CompletableFuture<Long> prepend(String key, Object value) {
+		return protocol.prepend(key, value, Defines.NO_CAS);
+	}
+
+	public CompletableFuture<Long> prepend(String key, Object value, long cacheId) {
+		return protocol.prepend(key, value, cacheId);
+	}
+
+	public CompletableFuture<Boolean> delete(String key) {
+		return protocol.delete(key, Defines.NO_CAS);
+	}
+
+	public CompletableFuture<Boolean> delete(String key, long cacheId) {
+		return protocol.delete(key, cacheId);
+	}
+
+	public CompletableFuture<DeltaItem> incr(String key) {
+		return protocol.incr(key, 1, Defines.NO_CAS);
+	}
+
+	public CompletableFuture<DeltaItem> incr(String key, long delta) {
+		return protocol.incr(key, delta, Defines.NO_CAS);
+	}
+
+	public CompletableFuture<DeltaItem> incr(String key, long delta, long cacheId) {
+		return protocol.incr(key, delta, cacheId);
+	}
+
+	public CompletableFuture<DeltaItem> decr(String key) {
+		return protocol.decr(key, 1, Defines.NO_CAS);
+	}
+
+	public CompletableFuture<DeltaItem> decr(String key, long delta) {
+		return protocol.decr(key, delta, Defines.NO_CAS);
+	}
+
+	public CompletableFuture<DeltaItem> decr(String key, long delta, long cacheId) {
+		return protocol.decr(key, delta, cacheId);
+	}
+
+	public CompletableFuture<Boolean> updateExpiration(String key, int expiration) {
+		return protocol.updateExpiration(key, expiration, Defines.NO_CAS);
+	}
+
+	public CompletableFuture<Boolean> updateExpiration(String key, int expiration, long cacheId) {
+		return protocol.updateExpiration(key, expiration, cacheId);
+	}
+}
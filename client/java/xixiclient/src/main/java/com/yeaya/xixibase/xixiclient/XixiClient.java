@@ -16,9 +16,13 @@
 
 package com.yeaya.xixibase.xixiclient;
 
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.List;
 
+import com.yeaya.xixibase.xixiclient.multi.HostResult;
 import com.yeaya.xixibase.xixiclient.multi.MultiDeleteItem;
+import com.yeaya.xixibase.xixiclient.multi.MultiUpdateExpirationItem;
 import com.yeaya.xixibase.xixiclient.multi.MultiUpdateItem;
 
 /**
@@ -53,6 +57,42 @@ public interface XixiClient {
 	 */
 	public TransCoder getTransCoder();
 
+	/**
+	 * Set the timeout of each request of this client, it covers the wait for a socket,
+	 * the connect, the write and the read. A request which retries another replica
+	 * starts a new timeout.
+	 * @param operationTimeout timeout(millisecond), <tt>0</tt> for none
+	 */
+	public void setOperationTimeout(long operationTimeout);
+
+	/**
+	 * Get the timeout of each request of this client.
+	 * @return timeout(millisecond), <tt>0</tt> for none
+	 */
+	public long getOperationTimeout();
+
+	/**
+	 * Set the time by which all the requests of this client must be done, for example
+	 * the deadline of the page which is being served. The requests after it fail at once.
+	 * If the operation timeout ends earlier, it applies.
+	 * @param deadline deadline(System.currentTimeMillis), <tt>0</tt> for none
+	 */
+	public void setDeadline(long deadline);
+
+	/**
+	 * Get the deadline of the requests of this client.
+	 * @return deadline(System.currentTimeMillis), <tt>0</tt> for none
+	 */
+	public long getDeadline();
+
+	/**
+	 * Get the keys of the last <tt>multiGet</tt> which were not read before it timed out.
+	 * <tt>multiGet</tt> returns the items it read by then, the timed out keys are
+	 * <tt>null</tt> in its result like the missed keys.
+	 * @return the timed out keys, empty if the last <tt>multiGet</tt> did not time out
+	 */
+	public List<String> getTimedOutKeys();
+
 	/**
 	 * Delete one object from remote Xixibase server.
 	 * 
@@ -260,6 +300,15 @@ public interface XixiClient {
 	
 	public CacheItem getAndTouch(String key, int expiration);
 
+	/**
+	 * Get one object to update it with its cacheId. With replicas the object is read
+	 * from the host which handles the writes of the key, a cacheId of <tt>get</tt> may
+	 * come from another replica and does not match there.
+	 * @param key
+	 * @return the item, or <tt>null</tt> if the key is not found
+	 */
+	public CacheItem getForUpdate(String key);
+
 	public List<CacheItem> multiGet(List<String> keys);
 	
 	public int multiSet(List<MultiUpdateItem> items);
@@ -273,11 +322,75 @@ public interface XixiClient {
 	public int multiPrepend(List<MultiUpdateItem> items);
 	
 	public int multiDelete(List<MultiDeleteItem> items);
+
+	/**
+	 * Set one object to remote Xixibase server and do not wait for the response.
+	 * The requests are streamed on a pooled socket, the response is read by the
+	 * next request which borrows the socket, a failed request is only counted by
+	 * <tt>XixiClientManager.getNoreplyErrorCount</tt>.
+	 * @param key
+	 * @param value
+	 * @return <tt>true</tt> if the request was sent
+	 */
+	public boolean setNoreply(String key, Object value);
+
+	/**
+	 * Set one object with specified expiration and do not wait for the response.
+	 * @param key
+	 * @param value
+	 * @param expiration expiration time(second)
+	 * @return <tt>true</tt> if the request was sent
+	 */
+	public boolean setNoreply(String key, Object value, int expiration);
+
+	/**
+	 * Delete one object and do not wait for the response.
+	 * @param key
+	 * @return <tt>true</tt> if the request was sent
+	 */
+	public boolean deleteNoreply(String key);
+
+	/**
+	 * Update the expiration of one object and do not wait for the response.
+	 * @param key
+	 * @param expiration expiration time(second)
+	 * @return <tt>true</tt> if the request was sent
+	 */
+	public boolean updateExpirationNoreply(String key, int expiration);
+
+	/**
+	 * Set the objects and do not wait for the responses, the results of the items are not set.
+	 * @param items
+	 * @return the number of items sent
+	 */
+	public int multiSetNoreply(List<MultiUpdateItem> items);
+
+	/**
+	 * Delete the objects and do not wait for the responses, the results of the items are not set.
+	 * @param items
+	 * @return the number of items sent
+	 */
+	public int multiDeleteNoreply(List<MultiDeleteItem> items);
+
+	/**
+	 * Update the expiration of the objects and do not wait for the responses, the results
+	 * of the items are not set.
+	 * @param items
+	 * @return the number of items sent
+	 */
+	public int multiUpdateExpirationNoreply(List<MultiUpdateExpirationItem> items);
 	
 	public int flush();
 
 	public int flush(String[] servers);
 
+	/**
+	 * Flush the group on the servers, all the servers are flushed at the same time.
+	 * @param servers <tt>null</tt> for all the servers of the manager
+	 * @return the flush count or the error of each server
+	 */
+	public List<HostResult> flushByHost(String[] servers);
+
 	/**
 	 * Append one object to remote Xixibase server.
 	 * <pre>
@@ -347,4 +460,57 @@ public interface XixiClient {
 	 * @return <tt>0</tt> if operation failed, else return the cacheId of the object
 	 */
 	public long prepend(String key, Object value, long cacheId);
+
+	/**
+	 * Set <tt>length</tt> bytes read from <tt>src</tt> as the value of one object,
+	 * the bytes are streamed to the server and never held on the heap.
+	 * A <tt>FileChannel</tt> is sent by <tt>FileChannel.transferTo</tt> and its position
+	 * is advanced by <tt>length</tt>. The value is stored as <tt>byte[]</tt>.
+	 * @param key
+	 * @param src blocking channel
+	 * @param length number of bytes to read from <tt>src</tt>
+	 * @return <tt>0</tt> if operation failed, else return the cacheId of the object
+	 */
+	public long setFromChannel(String key, ReadableByteChannel src, long length);
+
+	/**
+	 * Set <tt>length</tt> bytes read from <tt>src</tt> as the value of one object,
+	 * the bytes are streamed to the server and never held on the heap.
+	 * A <tt>FileChannel</tt> is sent by <tt>FileChannel.transferTo</tt> and its position
+	 * is advanced by <tt>length</tt>. The value is stored as <tt>byte[]</tt>.
+	 * @param key
+	 * @param src blocking channel
+	 * @param length number of bytes to read from <tt>src</tt>
+	 * @param expiration second
+	 * @return <tt>0</tt> if operation failed, else return the cacheId of the object
+	 */
+	public long setFromChannel(String key, ReadableByteChannel src, long length, int expiration);
+
+	/**
+	 * Set <tt>length</tt> bytes read from <tt>src</tt> as the value of one object,
+	 * the bytes are streamed to the server and never held on the heap.
+	 * A <tt>FileChannel</tt> is sent by <tt>FileChannel.transferTo</tt> and its position
+	 * is advanced by <tt>length</tt>. The value is stored as <tt>byte[]</tt>.
+	 * @param key
+	 * @param src blocking channel
+	 * @param length number of bytes to read from <tt>src</tt>
+	 * @param expiration second
+	 * @param cacheId
+	 * @return <tt>0</tt> if operation failed, else return the cacheId of the object
+	 */
+	public long setFromChannel(String key, ReadableByteChannel src, long length, int expiration, long cacheId);
+
+	/**
+	 * Get the value of one object into <tt>dst</tt>, the bytes are streamed from the
+	 * server and never held on the heap. A <tt>FileChannel</tt> is filled by
+	 * <tt>FileChannel.transferFrom</tt> and its position is advanced.
+	 * The value is written as it is stored, check <tt>getFlags</tt> of the result if
+	 * the object was not set by <tt>setFromChannel</tt>.
+	 * The local cache is not used.
+	 * @param key
+	 * @param dst blocking channel
+	 * @return <tt>null</tt> if the object is not found or operation failed,
+	 * 		else the base information of the object, <tt>getValueSize</tt> is the number of bytes written
+	 */
+	public CacheBaseItem getToChannel(String key, WritableByteChannel dst);
 }
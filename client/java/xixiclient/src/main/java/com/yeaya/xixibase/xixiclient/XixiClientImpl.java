@@ -16,13 +16,18 @@
 
 package com.yeaya.xixibase.xixiclient;
 
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
+import com.yeaya.xixibase.xixiclient.multi.HostResult;
 import com.yeaya.xixibase.xixiclient.multi.MultiDeleteItem;
+import com.yeaya.xixibase.xixiclient.multi.MultiUpdateExpirationItem;
 import com.yeaya.xixibase.xixiclient.multi.MultiUpdateItem;
 import com.yeaya.xixibase.xixiclient.network.SocketManager;
+import com.yeaya.xixibase.xixiclient.network.TrafficClass;
 
 /**
  * Xixibase cache client.
@@ -42,6 +47,17 @@ public class XixiClientImpl implements XixiClient {
 		protocol = new Protocol(manager, socketManager, groupId, enableLocalCache);
 	}
 
+	/**
+	 * Create a <tt>CacheClient</tt> which sends its requests over one traffic class.
+	 * @param manager cache client manager
+	 * @param groupId
+	 * @param trafficClass traffic class
+	 */
+	protected XixiClientImpl(XixiClientManager manager, SocketManager socketManager, int groupId, boolean enableLocalCache,
+			TrafficClass trafficClass) {
+		protocol = new Protocol(manager, socketManager, groupId, enableLocalCache, trafficClass);
+	}
+
 	/**
 	 * Get groupId.
 	 * @return groupId
@@ -74,6 +90,46 @@ public class XixiClientImpl implements XixiClient {
 		return protocol.getTransCoder();
 	}
 
+	/**
+	 * Set the timeout of each request of this client.
+	 * @param operationTimeout timeout(millisecond), <tt>0</tt> for none
+	 */
+	public void setOperationTimeout(long operationTimeout) {
+		protocol.setOperationTimeout(operationTimeout);
+	}
+
+	/**
+	 * Get the timeout of each request of this client.
+	 * @return timeout(millisecond), <tt>0</tt> for none
+	 */
+	public long getOperationTimeout() {
+		return protocol.getOperationTimeout();
+	}
+
+	/**
+	 * Set the time by which all the requests of this client must be done.
+	 * @param deadline deadline(System.currentTimeMillis), <tt>0</tt> for none
+	 */
+	public void setDeadline(long deadline) {
+		protocol.setDeadline(deadline);
+	}
+
+	/**
+	 * Get the deadline of the requests of this client.
+	 * @return deadline(System.currentTimeMillis), <tt>0</tt> for none
+	 */
+	public long getDeadline() {
+		return protocol.getDeadline();
+	}
+
+	/**
+	 * Get the keys of the last <tt>multiGet</tt> which were not read before it timed out.
+	 * @return the timed out keys
+	 */
+	public List<String> getTimedOutKeys() {
+		return protocol.getTimedOutKeys();
+	}
+
 	/**
 	 * Delete one object from remote Xixibase server.
 	 * 
@@ -315,7 +371,7 @@ public class XixiClientImpl implements XixiClient {
 	}
 	
 	public boolean exists(String key) {
-		return protocol.getBase(key) != null;
+		return protocol.exists(key);
 	}
 	public boolean updateExpiration(String key, int expiration) {
 		return protocol.updateExpiration(key, expiration, Defines.NO_CAS);
@@ -334,7 +390,7 @@ public class XixiClientImpl implements XixiClient {
 	}
 	
 	public boolean keyExists(String key) {
-		return protocol.getBase(key) != null;
+		return protocol.exists(key);
 	}
 
 	public CacheItem get(String key) {
@@ -345,6 +401,10 @@ public class XixiClientImpl implements XixiClient {
 		return protocol.get(key, true, expiration);
 	}
 
+	public CacheItem getForUpdate(String key) {
+		return protocol.getForUpdate(key);
+	}
+
 	public List<CacheItem> multiGet(List<String> keys) {
 		return protocol.multiGet(keys);
 	}
@@ -372,6 +432,34 @@ public class XixiClientImpl implements XixiClient {
 	public int multiDelete(List<MultiDeleteItem> items) {
 		return protocol.multiDelete(items);
 	}
+
+	public boolean setNoreply(String key, Object value) {
+		return protocol.setNoreply(key, value, Defines.NO_EXPIRATION);
+	}
+
+	public boolean setNoreply(String key, Object value, int expiration) {
+		return protocol.setNoreply(key, value, expiration);
+	}
+
+	public boolean deleteNoreply(String key) {
+		return protocol.deleteNoreply(key);
+	}
+
+	public boolean updateExpirationNoreply(String key, int expiration) {
+		return protocol.updateExpirationNoreply(key, expiration);
+	}
+
+	public int multiSetNoreply(List<MultiUpdateItem> items) {
+		return protocol.multiSetNoreply(items);
+	}
+
+	public int multiDeleteNoreply(List<MultiDeleteItem> items) {
+		return protocol.multiDeleteNoreply(items);
+	}
+
+	public int multiUpdateExpirationNoreply(List<MultiUpdateExpirationItem> items) {
+		return protocol.multiUpdateExpirationNoreply(items);
+	}
 	
 	public int flush() {
 		return protocol.flush();
@@ -381,6 +469,10 @@ public class XixiClientImpl implements XixiClient {
 		return protocol.flush(servers);
 	}
 
+	public List<HostResult> flushByHost(String[] servers) {
+		return protocol.flushByHost(servers);
+	}
+
 	/**
 	 * Append one object to remote Xixibase server.
 	 * <pre>
@@ -493,6 +585,27 @@ public class XixiClientImpl implements XixiClient {
 			return null;
 		}
 	}
+
+	/**
+	 * Get the statistics of the servers, all the servers are asked at the same time.
+	 * @param servers <tt>null</tt> for all the servers of the manager
+	 * @param class_id
+	 * @return the statistics or the error of each server
+	 */
+	public List<HostResult> statsGetStatsByHost(String[] servers, byte class_id) {
+		return protocol.statsGetStatsByHost(servers, class_id);
+	}
+
+	/**
+	 * Get the statistics of one group on the servers, all the servers are asked at the same time.
+	 * @param servers <tt>null</tt> for all the servers of the manager
+	 * @param groupId
+	 * @param class_id
+	 * @return the statistics or the error of each server
+	 */
+	public List<HostResult> statsGetGroupStatsByHost(String[] servers, int groupId, byte class_id) {
+		return protocol.statsGetGroupStatsByHost(servers, groupId, class_id);
+	}
 /*
 	public Map<String, Map<String, String>> statsGetAndClearGroupStats(String[] servers, int groupId, byte class_id) {
 		Map<String, Map<String, String>> result = new HashMap<String, Map<String, String>>();
@@ -504,4 +617,65 @@ public class XixiClientImpl implements XixiClient {
 	}
 */
 	
+
+	/**
+	 * Set <tt>length</tt> bytes read from <tt>src</tt> as the value of one object,
+	 * the bytes are streamed to the server and never held on the heap.
+	 * A <tt>FileChannel</tt> is sent by <tt>FileChannel.transferTo</tt> and its position
+	 * is advanced by <tt>length</tt>. The value is stored as <tt>byte[]</tt>.
+	 * @param key
+	 * @param src blocking channel
+	 * @param length number of bytes to read from <tt>src</tt>
+	 * @return <tt>0</tt> if operation failed, else return the cacheId of the object
+	 */
+	public long setFromChannel(String key, ReadableByteChannel src, long length) {
+		return protocol.setFromChannel(key, src, length, Defines.NO_EXPIRATION, Defines.NO_CAS);
+	}
+
+	/**
+	 * Set <tt>length</tt> bytes read from <tt>src</tt> as the value of one object,
+	 * the bytes are streamed to the server and never held on the heap.
+	 * A <tt>FileChannel</tt> is sent by <tt>FileChannel.transferTo</tt> and its position
+	 * is advanced by <tt>length</tt>. The value is stored as <tt>byte[]</tt>.
+	 * @param key
+	 * @param src blocking channel
+	 * @param length number of bytes to read from <tt>src</tt>
+	 * @param expiration second
+	 * @return <tt>0</tt> if operation failed, else return the cacheId of the object
+	 */
+	public long setFromChannel(String key, ReadableByteChannel src, long length, int expiration) {
+		return protocol.setFromChannel(key, src, length, expiration, Defines.NO_CAS);
+	}
+
+	/**
+	 * Set <tt>length</tt> bytes read from <tt>src</tt> as the value of one object,
+	 * the bytes are streamed to the server and never held on the heap.
+	 * A <tt>FileChannel</tt> is sent by <tt>FileChannel.transferTo</tt> and its position
+	 * is advanced by <tt>length</tt>. The value is stored as <tt>byte[]</tt>.
+	 * @param key
+	 * @param src blocking channel
+	 * @param length number of bytes to read from <tt>src</tt>
+	 * @param expiration second
+	 * @param cacheId
+	 * @return <tt>0</tt> if operation failed, else return the cacheId of the object
+	 */
+	public long setFromChannel(String key, ReadableByteChannel src, long length, int expiration, long cacheId) {
+		return protocol.setFromChannel(key, src, length, expiration, cacheId);
+	}
+
+	/**
+	 * Get the value of one object into <tt>dst</tt>, the bytes are streamed from the
+	 * server and never held on the heap. A <tt>FileChannel</tt> is filled by
+	 * <tt>FileChannel.transferFrom</tt> and its position is advanced.
+	 * The value is written as it is stored, check <tt>getFlags</tt> of the result if
+	 * the object was not set by <tt>setFromChannel</tt>.
+	 * The local cache is not used.
+	 * @param key
+	 * @param dst blocking channel
+	 * @return <tt>null</tt> if the object is not found or operation failed,
+	 * 		else the base information of the object, <tt>getValueSize</tt> is the number of bytes written
+	 */
+	public CacheBaseItem getToChannel(String key, WritableByteChannel dst) {
+		return protocol.getToChannel(key, dst);
+	}
 }
@@ -16,11 +16,14 @@
 
 package com.yeaya.xixibase.xixiclient;
 
+import java.util.Iterator;
 import java.util.concurrent.ConcurrentHashMap;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.yeaya.xixibase.xixiclient.network.SocketManager;
+import com.yeaya.xixibase.xixiclient.network.TrafficClass;
+import com.yeaya.xixibase.xixiclient.network.WaitStrategy;
 import com.yeaya.xixibase.xixiclient.util.WeightMap;
 
 /**
@@ -40,6 +43,18 @@ public class XixiClientManager {
 	private LocalCache localCache = null;
 	private String name;
 
+	private boolean autoBatching = false;
+	private long autoBatchWindow = 20;
+	private int autoBatchSize = 64;
+	private boolean autoBatchWrites = false;
+	// one batcher per group and traffic class
+	private final ConcurrentHashMap<String, AutoBatcher> autoBatchers = new ConcurrentHashMap<String, AutoBatcher>();
+
+	private String journalDir = null;
+	private int journalSize = 16 * 1024 * 1024;
+	private int journalReplayRate = 1000;
+	private volatile WriteJournal journal = null;
+
 	/**
 	 * Creates a <tt>CacheClientManager</tt>.
 	 * @param name the name of CacheClientManager.
@@ -230,7 +245,8 @@ public class XixiClientManager {
      *     
 	 * @param servers server list
 	 * @param weights server weight list
-	 * @param weightMap customizable weightMap
+	 * @param weightMap customizable weightMap, <tt>XixiWeightMap</tt>, <tt>KetamaWeightMap</tt>,
+	 *        <tt>JumpWeightMap</tt>, <tt>RendezvousWeightMap</tt> or <tt>BoundedLoadWeightMap</tt>
 	 * @param enableSSL
      * @return <tt>true</tt> if initialize success
 	 */
@@ -249,6 +265,10 @@ public class XixiClientManager {
 		}
 
 		socketManager.initialize(servers, weights, weightMap, enableSSL);
+		if (journalDir != null) {
+			journal = new WriteJournal(this, socketManager, journalDir, journalSize, journalReplayRate);
+			journal.start();
+		}
 		
 		this.initialized = true;
 		
@@ -263,9 +283,92 @@ public class XixiClientManager {
 		managers.remove(name);
 
 		closeLocalCache();
+		if (journal != null) {
+			journal.close();
+			journal = null;
+		}
 		socketManager.shutdown();
 	}
 
+	/**
+	 * Add one server to the cluster without initializing the manager again. The pools
+	 * of the server are built and filled before it gets any key, the local cache starts
+	 * to watch it and drops only the items whose keys moved. See
+	 * <tt>SocketManager.addServer</tt> for the keys which move.
+	 * 
+	 * @param host the server, <tt>host:port</tt>
+	 * @param weight the weight of the server, or <tt>null</tt>
+	 * @return <tt>true</tt> if the server is added
+	 */
+	public boolean addServer(String host, Integer weight) {
+		if (!initialized) {
+			log.error("addServer, the manager: " + name + " is not initialized");
+			return false;
+		}
+		// the pools are filled out of the lock
+		if (!socketManager.addServer(host, weight)) {
+			return false;
+		}
+		synchronized (this) {
+			if (socketManager.getSocketPool(host) == null) {
+				// removed meanwhile
+				return false;
+			}
+			WriteJournal journal = this.journal;
+			if (journal != null) {
+				journal.addHost(host);
+			}
+			localCache.addHost(host);
+			localCache.dropMoved();
+		}
+		return true;
+	}
+
+	/**
+	 * Remove one server from the cluster without initializing the manager again. Its
+	 * keys move to the other servers, its pools are drained and the local cache stops
+	 * to watch it.
+	 * 
+	 * @param host the server, <tt>host:port</tt>
+	 * @return <tt>true</tt> if the server is removed
+	 */
+	public synchronized boolean removeServer(String host) {
+		if (!initialized) {
+			log.error("removeServer, the manager: " + name + " is not initialized");
+			return false;
+		}
+		if (!socketManager.removeServer(host)) {
+			return false;
+		}
+		localCache.removeHost(host);
+		localCache.dropMoved();
+		WriteJournal journal = this.journal;
+		if (journal != null) {
+			journal.removeHost(host);
+		}
+		return true;
+	}
+
+	/**
+	 * Set the weight of one server, the local cache drops only the items whose keys
+	 * moved to another server.
+	 * 
+	 * @param host the server, <tt>host:port</tt>
+	 * @param weight the weight of the server
+	 * @return <tt>true</tt> if the weight is set
+	 */
+	public synchronized boolean setWeight(String host, int weight) {
+		if (!initialized) {
+			log.error("setWeight, the manager: " + name + " is not initialized");
+			return false;
+		}
+		if (!socketManager.setWeight(host, weight)) {
+			return false;
+		}
+		localCache.dropMoved();
+		return true;
+	}
+
 	/**
 	 * Enable local cache feature.
 	 */
@@ -329,6 +432,62 @@ public class XixiClientManager {
 		return socketManager.getInitConn();
 	}
 
+	/**
+	 * Set the max time(millisecond) initialize waits for the initial connections.
+	 * The hosts which are not connected by then go on in the background.
+	 * 
+	 * @param startupTimeout startup timeout(millisecond)
+	 */
+	public void setStartupTimeout(long startupTimeout) {
+		this.socketManager.setStartupTimeout(startupTimeout);
+	}
+
+	/**
+	 * Get the max time(millisecond) initialize waits for the initial connections.
+	 * 
+	 * @return startup timeout(millisecond)
+	 */
+	public long getStartupTimeout() {
+		return socketManager.getStartupTimeout();
+	}
+
+	/**
+	 * Set Enable/Disable lazy initialize. When enabled, initialize does not wait for
+	 * the initial connections, they are created in the background or on first use.
+	 * 
+	 * @param lazyInit <tt>true</tt> Enable lazy initialize
+	 */
+	public void setLazyInit(boolean lazyInit) {
+		this.socketManager.setLazyInit(lazyInit);
+	}
+
+	/**
+	 * Is enable lazy initialize?
+	 * 
+	 * @return <tt>true</tt> If enable lazy initialize
+	 */
+	public boolean isLazyInit() {
+		return socketManager.isLazyInit();
+	}
+
+	/**
+	 * Set the max number of threads which create the initial connections.
+	 * 
+	 * @param warmUpThreads the number of warm-up threads
+	 */
+	public void setWarmUpThreads(int warmUpThreads) {
+		this.socketManager.setWarmUpThreads(warmUpThreads);
+	}
+
+	/**
+	 * Get the max number of threads which create the initial connections.
+	 * 
+	 * @return the number of warm-up threads
+	 */
+	public int getWarmUpThreads() {
+		return socketManager.getWarmUpThreads();
+	}
+
 	/**
 	 * Set max busy time(millisecond).
 	 * 
@@ -401,6 +560,24 @@ public class XixiClientManager {
 		return socketManager.isNoDelay();
 	}
 
+	/**
+	 * Set how a socket waits for a response, it must be set before initialize.
+	 * 
+	 * @param waitStrategy wait strategy
+	 */
+	public void setWaitStrategy(WaitStrategy waitStrategy) {
+		this.socketManager.setWaitStrategy(waitStrategy);
+	}
+
+	/**
+	 * Get how a socket waits for a response.
+	 * 
+	 * @return wait strategy
+	 */
+	public WaitStrategy getWaitStrategy() {
+		return socketManager.getWaitStrategy();
+	}
+
 	/**
 	 * Get weight mapper.
 	 * 
@@ -428,6 +605,542 @@ public class XixiClientManager {
 		return socketManager.getMaxActiveConn();
 	}
 
+	/**
+	 * Set the max number of connections per host, borrowers wait
+	 * when all of them are in use.
+	 * 
+	 * @param maxConn the max number of connections per host
+	 */
+	public void setMaxConn(int maxConn) {
+		this.socketManager.setMaxConn(maxConn);
+	}
+
+	/**
+	 * Get the max number of connections per host.
+	 * 
+     * @return the max number of connections per host
+	 */
+	public int getMaxConn() {
+		return socketManager.getMaxConn();
+	}
+
+	/**
+	 * Set the min number of idle connections per host.
+	 * 
+	 * @param minIdleConn the min number of idle connections per host
+	 */
+	public void setMinIdleConn(int minIdleConn) {
+		this.socketManager.setMinIdleConn(minIdleConn);
+	}
+
+	/**
+	 * Get the min number of idle connections per host.
+	 * 
+     * @return the min number of idle connections per host
+	 */
+	public int getMinIdleConn() {
+		return socketManager.getMinIdleConn();
+	}
+
+	/**
+	 * Set max wait time(millisecond) for a connection.
+	 * 
+	 * @param maxWaitTime max wait time(millisecond)
+	 */
+	public void setMaxWaitTime(long maxWaitTime) {
+		this.socketManager.setMaxWaitTime(maxWaitTime);
+	}
+
+	/**
+	 * Get max wait time(millisecond) for a connection.
+	 * 
+     * @return max wait time(millisecond)
+	 */
+	public long getMaxWaitTime() {
+		return socketManager.getMaxWaitTime();
+	}
+
+	/**
+	 * Add one traffic class, a lane with its own connections per host, such as
+	 * <tt>TrafficClass.BULK</tt> for batch jobs. The default lane is
+	 * <tt>TrafficClass.INTERACTIVE</tt>. It must be called before initialize.
+	 * 
+	 * @param name name of the traffic class
+	 * @param maxConn the max number of connections per host
+	 * @param socketWriteBufferSize socket write buffer size
+	 * @param maxWaitTime max wait time(millisecond) for a connection
+	 * @return the traffic class, or <tt>null</tt> if failed
+	 */
+	public TrafficClass addTrafficClass(String name, int maxConn, int socketWriteBufferSize, long maxWaitTime) {
+		return socketManager.addTrafficClass(name, maxConn, socketWriteBufferSize, maxWaitTime);
+	}
+
+	/**
+	 * Get one traffic class, it has the counters of the lane.
+	 * 
+	 * @param name name of the traffic class
+	 * @return the traffic class, or <tt>null</tt> if it is unknown
+	 */
+	public TrafficClass getTrafficClass(String name) {
+		return socketManager.getTrafficClass(name);
+	}
+
+	/**
+	 * Set the number of failed connects in a row which mark a host down,
+	 * 0 never marks a host down.
+	 * 
+	 * @param failureThreshold the number of consecutive failures
+	 */
+	public void setFailureThreshold(int failureThreshold) {
+		this.socketManager.setFailureThreshold(failureThreshold);
+	}
+
+	/**
+	 * Get the number of failed connects in a row which mark a host down.
+	 * 
+	 * @return the number of consecutive failures
+	 */
+	public int getFailureThreshold() {
+		return socketManager.getFailureThreshold();
+	}
+
+	/**
+	 * Set the time(millisecond) before the first probe of a down host.
+	 * 
+	 * @param probeInterval probe interval(millisecond)
+	 */
+	public void setProbeInterval(long probeInterval) {
+		this.socketManager.setProbeInterval(probeInterval);
+	}
+
+	/**
+	 * Get the time(millisecond) before the first probe of a down host.
+	 * 
+	 * @return probe interval(millisecond)
+	 */
+	public long getProbeInterval() {
+		return socketManager.getProbeInterval();
+	}
+
+	/**
+	 * Set the max time(millisecond) between two probes of a down host.
+	 * 
+	 * @param maxProbeInterval max probe interval(millisecond)
+	 */
+	public void setMaxProbeInterval(long maxProbeInterval) {
+		this.socketManager.setMaxProbeInterval(maxProbeInterval);
+	}
+
+	/**
+	 * Get the max time(millisecond) between two probes of a down host.
+	 * 
+	 * @return max probe interval(millisecond)
+	 */
+	public long getMaxProbeInterval() {
+		return socketManager.getMaxProbeInterval();
+	}
+
+	/**
+	 * Set Enable/Disable failover of the keys of a down host to the next host.
+	 * 
+	 * @param failover <tt>true</tt> Enable failover
+	 */
+	public void setFailover(boolean failover) {
+		this.socketManager.setFailover(failover);
+	}
+
+	/**
+	 * Is enable failover?
+	 * 
+	 * @return <tt>true</tt> If enable failover
+	 */
+	public boolean isFailover() {
+		return socketManager.isFailover();
+	}
+
+	/**
+	 * Set the number of hosts which store each key: the host of the key and the
+	 * next distinct hosts on the ring of the weight map. Writes go to all of them,
+	 * reads go to the one with the lowest response time and try the others on a
+	 * miss or an error. 1 stores each key on one host.
+	 * <p>
+	 * A cacheId is the one of the host which handled the request, each host has its
+	 * own. A write with a cacheId checks it on the first host which is up, the leader,
+	 * so the cacheId must be read from the leader too: <tt>getForUpdate</tt> and
+	 * <tt>getBase</tt> read the leader, <tt>get</tt> and <tt>multiGet</tt> may read
+	 * another replica and their cacheIds are not for writes. A client with local cache
+	 * reads the first host only, the async client reads and writes the first host only.
+	 * 
+	 * @param replicas the number of hosts of each key
+	 */
+	public void setReplicas(int replicas) {
+		this.socketManager.setReplicas(replicas);
+	}
+
+	/**
+	 * Get the number of hosts which store each key.
+	 * 
+	 * @return the number of hosts of each key
+	 */
+	public int getReplicas() {
+		return socketManager.getReplicas();
+	}
+
+	/**
+	 * Limit the requests in flight per host. The limit adapts to the response time
+	 * of the host, when a host slows down the requests beyond the limit fail at once
+	 * instead of waiting for the socket timeout. It must be set before initialize.
+	 * 
+	 * @param concurrencyLimiting
+	 */
+	public void setConcurrencyLimiting(boolean concurrencyLimiting) {
+		socketManager.setConcurrencyLimiting(concurrencyLimiting);
+	}
+
+	/**
+	 * Are the requests in flight per host limited?
+	 * 
+	 * @return <tt>true</tt> if the concurrency is limited
+	 */
+	public boolean isConcurrencyLimiting() {
+		return socketManager.isConcurrencyLimiting();
+	}
+
+	/**
+	 * Set the initial concurrency limit per host.
+	 * 
+	 * @param initialConcurrencyLimit
+	 */
+	public void setInitialConcurrencyLimit(int initialConcurrencyLimit) {
+		socketManager.setInitialConcurrencyLimit(initialConcurrencyLimit);
+	}
+
+	/**
+	 * Get the initial concurrency limit per host.
+	 * 
+	 * @return initial concurrency limit
+	 */
+	public int getInitialConcurrencyLimit() {
+		return socketManager.getInitialConcurrencyLimit();
+	}
+
+	/**
+	 * Set the min concurrency limit per host.
+	 * 
+	 * @param minConcurrencyLimit
+	 */
+	public void setMinConcurrencyLimit(int minConcurrencyLimit) {
+		socketManager.setMinConcurrencyLimit(minConcurrencyLimit);
+	}
+
+	/**
+	 * Get the min concurrency limit per host.
+	 * 
+	 * @return min concurrency limit
+	 */
+	public int getMinConcurrencyLimit() {
+		return socketManager.getMinConcurrencyLimit();
+	}
+
+	/**
+	 * Set the max concurrency limit per host.
+	 * 
+	 * @param maxConcurrencyLimit
+	 */
+	public void setMaxConcurrencyLimit(int maxConcurrencyLimit) {
+		socketManager.setMaxConcurrencyLimit(maxConcurrencyLimit);
+	}
+
+	/**
+	 * Get the max concurrency limit per host.
+	 * 
+	 * @return max concurrency limit
+	 */
+	public int getMaxConcurrencyLimit() {
+		return socketManager.getMaxConcurrencyLimit();
+	}
+
+	/**
+	 * Get the current max number of requests in flight to the host.
+	 * 
+	 * @param host
+	 * @return concurrency limit, or -1 if the host is unknown or the concurrency is not limited
+	 */
+	public int getConcurrencyLimit(String host) {
+		return socketManager.getConcurrencyLimit(host);
+	}
+
+	/**
+	 * Get the number of noreply requests which failed. The failures are found when
+	 * the next request on the same socket reads the responses.
+	 * 
+	 * @return the number of failed noreply requests
+	 */
+	public long getNoreplyErrorCount() {
+		return socketManager.getNoreplyErrorCount();
+	}
+
+	/**
+	 * Set the number of pipelined connections per host, used by async clients.
+	 * 
+	 * @param pipelinedConn the number of pipelined connections per host
+	 */
+	public void setPipelinedConn(int pipelinedConn) {
+		this.socketManager.setPipelinedConn(pipelinedConn);
+	}
+
+	/**
+	 * Get the number of pipelined connections per host.
+	 * 
+     * @return the number of pipelined connections per host
+	 */
+	public int getPipelinedConn() {
+		return socketManager.getPipelinedConn();
+	}
+
+	/**
+	 * Set the number of event loop threads which run the multi-key operations.
+	 * 
+	 * @param eventLoopCount the number of event loop threads
+	 */
+	public void setEventLoopCount(int eventLoopCount) {
+		this.socketManager.setEventLoopCount(eventLoopCount);
+	}
+
+	/**
+	 * Get the number of event loop threads.
+	 * 
+     * @return the number of event loop threads
+	 */
+	public int getEventLoopCount() {
+		return socketManager.getEventLoopCount();
+	}
+
+	/**
+	 * Set whether the clients combine the single-key gets which many threads send at
+	 * the same time into multi-key requests, default is <tt>false</tt>. It applies to
+	 * the clients created after it, the clients with a local cache never batch.
+	 * 
+	 * @param autoBatching <tt>true</tt> to batch
+	 */
+	public void setAutoBatching(boolean autoBatching) {
+		this.autoBatching = autoBatching;
+	}
+
+	/**
+	 * Is auto batching enabled?
+	 * 
+     * @return <tt>true</tt> if the clients batch
+	 */
+	public boolean isAutoBatching() {
+		return autoBatching;
+	}
+
+	/**
+	 * Set the time the first request of a batch waits for other requests to join,
+	 * default is 20 microseconds.
+	 * 
+	 * @param autoBatchWindow wait time(microsecond)
+	 */
+	public void setAutoBatchWindow(long autoBatchWindow) {
+		this.autoBatchWindow = autoBatchWindow;
+	}
+
+	/**
+	 * Get the time the first request of a batch waits for other requests to join.
+	 * 
+     * @return wait time(microsecond)
+	 */
+	public long getAutoBatchWindow() {
+		return autoBatchWindow;
+	}
+
+	/**
+	 * Set the max number of requests of one batch, a full batch is sent at once,
+	 * default is 64.
+	 * 
+	 * @param autoBatchSize the max number of requests of one batch
+	 */
+	public void setAutoBatchSize(int autoBatchSize) {
+		this.autoBatchSize = autoBatchSize;
+	}
+
+	/**
+	 * Get the max number of requests of one batch.
+	 * 
+     * @return the max number of requests of one batch
+	 */
+	public int getAutoBatchSize() {
+		return autoBatchSize;
+	}
+
+	/**
+	 * Set whether the sets and deletes are batched too, default is <tt>false</tt>.
+	 * 
+	 * @param autoBatchWrites <tt>true</tt> to batch the sets and deletes
+	 */
+	public void setAutoBatchWrites(boolean autoBatchWrites) {
+		this.autoBatchWrites = autoBatchWrites;
+	}
+
+	/**
+	 * Are the sets and deletes batched too?
+	 * 
+     * @return <tt>true</tt> if the sets and deletes are batched
+	 */
+	public boolean isAutoBatchWrites() {
+		return autoBatchWrites;
+	}
+
+	/**
+	 * Get the number of batches the clients sent.
+	 * 
+     * @return the number of batches
+	 */
+	public long getAutoBatchCount() {
+		long count = 0;
+		Iterator<AutoBatcher> it = autoBatchers.values().iterator();
+		while (it.hasNext()) {
+			count += it.next().getBatchCount();
+		}
+		return count;
+	}
+
+	/**
+	 * Get the number of requests the clients sent in batches.
+	 * 
+     * @return the number of batched requests
+	 */
+	public long getAutoBatchedCount() {
+		long count = 0;
+		Iterator<AutoBatcher> it = autoBatchers.values().iterator();
+		while (it.hasNext()) {
+			count += it.next().getBatchedCount();
+		}
+		return count;
+	}
+
+	/**
+	 * Set the directory of the write journal, default is <tt>null</tt>.
+	 * When it is set, the sets and deletes which can not reach a host are kept in
+	 * a file of the host and sent again when the host is up. It takes effect on
+	 * <tt>initialize</tt>.
+	 * 
+	 * @param journalDir the directory, <tt>null</tt> to disable the journal
+	 */
+	public void setJournalDir(String journalDir) {
+		this.journalDir = journalDir;
+	}
+
+	/**
+	 * Get the directory of the write journal.
+	 * 
+     * @return the directory, or <tt>null</tt> if the journal is disabled
+	 */
+	public String getJournalDir() {
+		return journalDir;
+	}
+
+	/**
+	 * Set the size of the journal file of one host, default is 16MB.
+	 * When the file is full the sets are dropped before the deletes.
+	 * 
+	 * @param journalSize the size(byte)
+	 */
+	public void setJournalSize(int journalSize) {
+		this.journalSize = journalSize;
+	}
+
+	/**
+	 * Get the size of the journal file of one host.
+	 * 
+     * @return the size(byte)
+	 */
+	public int getJournalSize() {
+		return journalSize;
+	}
+
+	/**
+	 * Set the max number of journal records sent again to one host per second,
+	 * default is 1000.
+	 * 
+	 * @param journalReplayRate the max number of records per second
+	 */
+	public void setJournalReplayRate(int journalReplayRate) {
+		this.journalReplayRate = journalReplayRate;
+	}
+
+	/**
+	 * Get the max number of journal records sent again to one host per second.
+	 * 
+     * @return the max number of records per second
+	 */
+	public int getJournalReplayRate() {
+		return journalReplayRate;
+	}
+
+	/**
+	 * Get the number of keys which wait in the journal.
+	 * 
+     * @return the number of keys
+	 */
+	public long getJournalPendingCount() {
+		WriteJournal j = journal;
+		return j != null ? j.getPendingCount() : 0;
+	}
+
+	/**
+	 * Get the number of journal records which were replaced by a later record of
+	 * the key, or dropped because the journal was full.
+	 * 
+     * @return the number of records
+	 */
+	public long getJournalDroppedCount() {
+		WriteJournal j = journal;
+		return j != null ? j.getDroppedCount() : 0;
+	}
+
+	/**
+	 * Get the number of journal records which were sent again.
+	 * 
+     * @return the number of records
+	 */
+	public long getJournalReplayedCount() {
+		WriteJournal j = journal;
+		return j != null ? j.getReplayedCount() : 0;
+	}
+
+	/**
+	 * Get the write journal.
+	 * 
+     * @return the journal, or <tt>null</tt> if it is disabled
+	 */
+	WriteJournal getJournal() {
+		return journal;
+	}
+
+	/**
+	 * Get the batcher of a group and traffic class.
+	 * 
+     * @return batcher, or <tt>null</tt> if auto batching is disabled
+	 */
+	AutoBatcher getAutoBatcher(int groupId, TrafficClass trafficClass) {
+		if (!autoBatching) {
+			return null;
+		}
+		String key = groupId + "/" + (trafficClass != null ? trafficClass.getName() : TrafficClass.INTERACTIVE);
+		AutoBatcher batcher = autoBatchers.get(key);
+		if (batcher == null) {
+			batcher = new AutoBatcher(this, socketManager, groupId, trafficClass,
+					autoBatchWindow * 1000, autoBatchSize, autoBatchWrites);
+			AutoBatcher prev = autoBatchers.putIfAbsent(key, batcher);
+			if (prev != null) {
+				batcher = prev;
+			}
+		}
+		return batcher;
+	}
+
 	/**
 	 * Create one client with default groupId.
 	 * 
@@ -447,6 +1160,32 @@ public class XixiClientManager {
 		return new XixiClientImpl(this, socketManager, groupId, false);
 	}
 
+	/**
+	 * Create one client with default groupId which uses the connections of a traffic class.
+	 * 
+	 * @param trafficClass name of the traffic class
+     * @return created client, or <tt>null</tt> if the traffic class is unknown
+	 */
+	public XixiClient createClient(String trafficClass) {
+		return createClient(defaultGroupId, trafficClass);
+	}
+
+	/**
+	 * Create one client with specified groupId which uses the connections of a traffic class.
+	 * 
+	 * @param groupId specified groupId
+	 * @param trafficClass name of the traffic class
+     * @return created client, or <tt>null</tt> if the traffic class is unknown
+	 */
+	public XixiClient createClient(int groupId, String trafficClass) {
+		TrafficClass lane = socketManager.getTrafficClass(trafficClass);
+		if (lane == null) {
+			log.error("createClient, unknown traffic class: " + trafficClass);
+			return null;
+		}
+		return new XixiClientImpl(this, socketManager, groupId, false, lane);
+	}
+
 	/**
 	 * Create one client with default groupId.
 	 * 
@@ -465,4 +1204,23 @@ public class XixiClientManager {
 	public XixiClient createClientWithLocalCahce(int groupId) {
 		return new XixiClientImpl(this, socketManager, groupId, true);
 	}
+
+	/**
+	 * Create one async client with default groupId.
+	 * 
+     * @return created async client
+	 */
+	public XixiAsyncClient createAsyncClient() {
+		return new XixiAsyncClientImpl(this, socketManager, defaultGroupId);
+	}
+
+	/**
+	 * Create one async client with specified groupId.
+	 * 
+	 * @param groupId specified groupId
+     * @return created async client
+	 */
+	public XixiAsyncClient createAsyncClient(int groupId) {
+		return new XixiAsyncClientImpl(this, socketManager, groupId);
+	}
 }
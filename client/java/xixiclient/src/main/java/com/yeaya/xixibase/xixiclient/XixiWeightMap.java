@@ -16,30 +16,38 @@
 
 package com.yeaya.xixibase.xixiclient;
 
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Set;
 import java.util.SortedMap;
 import java.util.TreeMap;
-import java.util.zip.CRC32;
 
-import com.yeaya.xixibase.xixiclient.util.WeightMap;
+import com.yeaya.xixibase.xixiclient.util.Crc32Hasher;
+import com.yeaya.xixibase.xixiclient.util.HashedWeightMap;
+import com.yeaya.xixibase.xixiclient.util.KeyHasher;
+import com.yeaya.xixibase.xixiclient.util.Md5Hasher;
+import com.yeaya.xixibase.xixiclient.util.Murmur3Hasher;
+import com.yeaya.xixibase.xixiclient.util.XxHash64Hasher;
 
-public class XixiWeightMap<V> implements WeightMap<V> {
+public class XixiWeightMap<V> implements HashedWeightMap<V> {
+	public static final int CUSTOM_HASH = -1; // a KeyHasher of the user
 	public static final int NATIVE_HASH = 0; // native String.hashCode();
 	public static final int CRC32_HASH = 1;  // CRC32
 	public static final int MD5_HASH = 2;    // MD5
+	public static final int MURMUR3_HASH = 3; // Murmur3
+	public static final int XXHASH64_HASH = 4; // xxHash64
 	
-	MessageDigest md5 = null;
 	boolean consistentFlag;
 	private int hashingAlg;
+	// null for NATIVE_HASH
+	private KeyHasher hasher;
 
 	private List<V> values = new ArrayList<V>();
 	private List<Integer> weights = new ArrayList<Integer>();
 
-	private List<V> buckets;
-	private TreeMap<Integer, V> consistentBuckets;
+	// the buckets are replaced as a whole by set and clear
+	private volatile List<V> buckets;
+	private volatile TreeMap<Integer, V> consistentBuckets;
 
 	public XixiWeightMap() {
 		this(false, NATIVE_HASH); // default to using the native hash
@@ -48,13 +56,37 @@ public class XixiWeightMap<V> implements WeightMap<V> {
 	public XixiWeightMap(boolean consistentFlag, int hashingAlg) {
 		this.consistentFlag = consistentFlag;
 		this.hashingAlg = hashingAlg;
-		if (hashingAlg == MD5_HASH) {
-			try {
-				md5 = MessageDigest.getInstance("MD5");
-			} catch (NoSuchAlgorithmException e) {
-				e.printStackTrace();
-				throw new IllegalStateException("no md5 algorythm found");
-			}
+		this.hasher = getKeyHasher(hashingAlg);
+	}
+
+	/**
+	 * Creates a map which hashes the keys with the hasher.
+	 * @param consistentFlag
+	 * @param hasher the hasher of the encoded keys
+	 */
+	public XixiWeightMap(boolean consistentFlag, KeyHasher hasher) {
+		this.consistentFlag = consistentFlag;
+		this.hashingAlg = CUSTOM_HASH;
+		this.hasher = hasher;
+	}
+
+	/**
+	 * Get the hasher of a hashing algorithm.
+	 * @param hashingAlg
+	 * @return the hasher, <tt>null</tt> for <tt>NATIVE_HASH</tt>
+	 */
+	public static KeyHasher getKeyHasher(int hashingAlg) {
+		switch (hashingAlg) {
+		case CRC32_HASH:
+			return new Crc32Hasher();
+		case MD5_HASH:
+			return new Md5Hasher();
+		case MURMUR3_HASH:
+			return new Murmur3Hasher();
+		case XXHASH64_HASH:
+			return new XxHash64Hasher();
+		default:
+			return null;
 		}
 	}
 
@@ -66,105 +98,189 @@ public class XixiWeightMap<V> implements WeightMap<V> {
 		return consistentFlag;
 	}
 
+	public final boolean isPlacedByValue() {
+		return false;
+	}
+
 	public void clear() {
-		values.clear();
-		weights.clear();
+		values = new ArrayList<V>();
+		weights = new ArrayList<Integer>();
 		buckets = null;
 		consistentBuckets = null;
 	}
 
+	/**
+	 * Set the values and their weights, the values of the last call are replaced.
+	 * The buckets are built aside, a lookup meanwhile gets the old or the new ones.
+	 */
 	public void set(V[] values, Integer[] weights) {
 		if (values != null && values.length > 0) {
+			List<V> newValues = new ArrayList<V>(values.length);
+			List<Integer> newWeights = new ArrayList<Integer>(values.length);
 			for (int i = 0; i < values.length; i++) {
 				if (weights != null && i < weights.length && weights[i] != null) {
 					if (weights[i].intValue() <= 0) {
-						this.weights.add(1);
+						newWeights.add(1);
 					} else if (weights[i].intValue() <= 100) {
-						this.weights.add(weights[i]);
+						newWeights.add(weights[i]);
 					} else {
-						this.weights.add(100);
+						newWeights.add(100);
 					}
 				} else {
-					this.weights.add(1);
+					newWeights.add(1);
 				}
-				this.values.add(values[i]);
+				newValues.add(values[i]);
 			}
+			this.values = newValues;
+			this.weights = newWeights;
 			
 			if (consistentFlag) {
-				initConsistentBuckets();
+				consistentBuckets = initConsistentBuckets(newValues, newWeights);
 			} else {
-				initBuckets();
+				buckets = initBuckets(newValues, newWeights);
 			}
 		}
 	}
 
 	public V get(String k) {
-		int bucket = this.getBucket(k);
-		if (consistentFlag) {
-			return consistentBuckets.get(bucket);
-		} else {
-			return buckets.get(bucket);
-		}
+		return getByHash(hash(k, null));
 	}
 
-	private final int getHash(String key) {
-		switch (hashingAlg) {
-		case NATIVE_HASH:
-			return key.hashCode();
-		case CRC32_HASH:
-			return crc32Hash(key.getBytes());
-		case MD5_HASH:
-			return md5HashingAlg((key).getBytes());
-		default:
-			return key.hashCode();
+	public V get(String k, Set<V> excluded) {
+		return getByHash(hash(k, null), excluded);
+	}
+
+	public List<V> get(String k, int count) {
+		return getByHash(hash(k, null), count);
+	}
+
+	/**
+	 * Hash a key, the encoded key is hashed unless the hash is <tt>NATIVE_HASH</tt>.
+	 * The clients always pass the encoded key, <tt>get(k)</tt> takes <tt>k.getBytes()</tt>.
+	 */
+	public int hash(String k, byte[] keyBuf) {
+		if (hasher == null) {
+			return k.hashCode();
+		}
+		if (keyBuf == null) {
+			keyBuf = k.getBytes();
 		}
+		return hasher.hash(keyBuf, 0, keyBuf.length);
 	}
 
-	private int crc32Hash(byte[] key) {
-		CRC32 checksum = new CRC32();
-		checksum.update(key);
-		long crc = checksum.getValue();
-		return (int)crc;
+	public V getByHash(int hash) {
+		if (consistentFlag) {
+			TreeMap<Integer, V> ring = consistentBuckets;
+			return ring.get(getConsistentBucket(ring, hash));
+		} else {
+			List<V> list = buckets;
+			return list.get(getBucket(list, hash));
+		}
 	}
 
-	private int md5HashingAlg(byte[] key) {
-		md5.reset();
-		md5.update(key);
-		byte[] bKey = md5.digest();
-		int res = ((int) (bKey[3] & 0xFF) << 24) | ((int) (bKey[2] & 0xFF) << 16)
-				| ((int) (bKey[1] & 0xFF) << 8) | (int) (bKey[0] & 0xFF);
-		return res;
+	/**
+	 * Get the value of the hash, skip the excluded values and take the next one on the ring.
+	 * @param hash the hash of the key
+	 * @param excluded values which must not be returned
+	 * @return value, or <tt>null</tt> if all the values are excluded
+	 */
+	public V getByHash(int hash, Set<V> excluded) {
+		if (consistentFlag) {
+			TreeMap<Integer, V> ring = consistentBuckets;
+			int bucket = getConsistentBucket(ring, hash);
+			for (V v : ring.tailMap(bucket).values()) {
+				if (!excluded.contains(v)) {
+					return v;
+				}
+			}
+			for (V v : ring.headMap(bucket).values()) {
+				if (!excluded.contains(v)) {
+					return v;
+				}
+			}
+		} else {
+			List<V> list = buckets;
+			int bucket = getBucket(list, hash);
+			int size = list.size();
+			for (int i = 0; i < size; i++) {
+				V v = list.get((bucket + i) % size);
+				if (!excluded.contains(v)) {
+					return v;
+				}
+			}
+		}
+		return null;
 	}
-	
-	private final int getBucket(String key) {
-		int hashCode = getHash(key);
 
+	/**
+	 * Get the value of the hash and the next distinct values on the ring.
+	 * @param hash the hash of the key
+	 * @param count the max number of values
+	 * @return values, the value of the key first, fewer than <tt>count</tt> if the map has fewer values
+	 */
+	public List<V> getByHash(int hash, int count) {
+		List<V> result = new ArrayList<V>(count);
 		if (consistentFlag) {
-			SortedMap<Integer, V> tmap = this.consistentBuckets.tailMap(hashCode);
-			return (tmap.isEmpty()) ? this.consistentBuckets.firstKey() : tmap.firstKey();
+			TreeMap<Integer, V> ring = consistentBuckets;
+			int bucket = getConsistentBucket(ring, hash);
+			for (V v : ring.tailMap(bucket).values()) {
+				if (result.size() >= count) {
+					return result;
+				}
+				if (!result.contains(v)) {
+					result.add(v);
+				}
+			}
+			for (V v : ring.headMap(bucket).values()) {
+				if (result.size() >= count) {
+					return result;
+				}
+				if (!result.contains(v)) {
+					result.add(v);
+				}
+			}
 		} else {
-			int bucket = hashCode % buckets.size();
-			if (bucket < 0) {
-				return -bucket;
+			List<V> list = buckets;
+			int bucket = getBucket(list, hash);
+			int size = list.size();
+			for (int i = 0; i < size && result.size() < count; i++) {
+				V v = list.get((bucket + i) % size);
+				if (!result.contains(v)) {
+					result.add(v);
+				}
 			}
-			return bucket;
 		}
+		return result;
+	}
+
+	private static <V> int getConsistentBucket(TreeMap<Integer, V> ring, int hashCode) {
+		SortedMap<Integer, V> tmap = ring.tailMap(hashCode);
+		return (tmap.isEmpty()) ? ring.firstKey() : tmap.firstKey();
+	}
+
+	private static <V> int getBucket(List<V> list, int hashCode) {
+		int bucket = hashCode % list.size();
+		if (bucket < 0) {
+			return -bucket;
+		}
+		return bucket;
 	}
 
-	private void initBuckets() {
-		buckets = new ArrayList<V>();
+	private static <V> List<V> initBuckets(List<V> values, List<Integer> weights) {
+		List<V> buckets = new ArrayList<V>();
 		for (int i = 0; i < values.size(); i++) {
 			for (int j = 0; j < weights.get(i).intValue(); j++) {
 				buckets.add(values.get(i));
 			}
 		}
+		return buckets;
 	}
 
-	private void initConsistentBuckets() {
-		consistentBuckets = new TreeMap<Integer, V>();
+	private static <V> TreeMap<Integer, V> initConsistentBuckets(List<V> values, List<Integer> weights) {
+		TreeMap<Integer, V> consistentBuckets = new TreeMap<Integer, V>();
 		int totalWeight = 0;
-		for (int i = 0; i < this.weights.size(); i++) {
-			totalWeight += this.weights.get(i);
+		for (int i = 0; i < weights.size(); i++) {
+			totalWeight += weights.get(i);
 		}
 
 		int multi = 1;
@@ -183,5 +299,6 @@ public class XixiWeightMap<V> implements WeightMap<V> {
 				}
 			}
 		}
+		return consistentBuckets;
 	}
 }
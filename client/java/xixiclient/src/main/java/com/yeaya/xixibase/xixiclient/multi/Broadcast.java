@@ -0,0 +1,270 @@
+/*
+   Copyright [2015] [Yao Yuan(yeaya@163.com)]
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.yeaya.xixibase.xixiclient.multi;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.yeaya.xixibase.xixiclient.AsyncHandle;
+import com.yeaya.xixibase.xixiclient.Defines;
+import com.yeaya.xixibase.xixiclient.XixiClientManager;
+import com.yeaya.xixibase.xixiclient.network.AsyncBatch;
+import com.yeaya.xixibase.xixiclient.network.SocketManager;
+import com.yeaya.xixibase.xixiclient.network.XixiSocket;
+
+/**
+ * Sends one flush or stats request to each of the servers at the same time, on an
+ * event loop like the multi operations, and returns the result of each host. All
+ * the hosts share one deadline, a host which is not done by then gets an error.
+ *
+ * @author Yao Yuan
+ *
+ */
+public final class Broadcast extends Defines {
+	final static Logger log = LoggerFactory.getLogger(Broadcast.class);
+
+	private XixiClientManager manager;
+	private SocketManager socketManager;
+	private int groupId;
+
+	private String lastError = null;
+	// the deadline(System.nanoTime) of the request, 0 for none
+	private long deadline = 0;
+
+	public Broadcast(XixiClientManager manager, SocketManager socketManager, int groupId) {
+		this.manager = manager;
+		this.socketManager = socketManager;
+		this.groupId = groupId;
+	}
+
+	public String getLastError() {
+		return lastError;
+	}
+
+	/**
+	 * Set the deadline of the next request.
+	 * @param deadline deadline(System.nanoTime), <tt>0</tt> for none
+	 */
+	public void setDeadline(long deadline) {
+		this.deadline = deadline;
+	}
+
+	/**
+	 * Flush the group on the servers.
+	 * @param servers
+	 * @return the result of each server, in the order of <tt>servers</tt>
+	 */
+	public List<HostResult> flush(String[] servers) {
+		return execute("flush", servers, XIXI_TYPE_FLUSH_REQ, (byte) 0, groupId, (byte) 0);
+	}
+
+	/**
+	 * Send one stats request to the servers.
+	 * @param opFlag the sub operation of stats
+	 * @param servers
+	 * @param groupId the group of the sub operation
+	 * @param classId
+	 * @return the result of each server, in the order of <tt>servers</tt>
+	 */
+	public List<HostResult> stats(byte opFlag, String[] servers, int groupId, byte classId) {
+		return execute("stats", servers, XIXI_TYPE_STATS_REQ, opFlag, groupId, classId);
+	}
+
+	private List<HostResult> execute(String op, String[] servers, byte type, byte opFlag, int groupId, byte classId) {
+		lastError = null;
+		List<HostResult> results = new ArrayList<HostResult>(servers.length);
+		List<Connection> conns = new ArrayList<Connection>(servers.length);
+		AsyncBatch batch = null;
+		boolean finished = false;
+		try {
+			batch = socketManager.createBatch();
+			batch.setDeadline(deadline);
+			for (int i = 0; i < servers.length; i++) {
+				HostResult result = new HostResult(servers[i]);
+				results.add(result);
+				XixiSocket socket = batch.getSocket(servers[i]);
+				if (socket == null) {
+					result.error = op + ", can not to get socket by host:" + servers[i];
+					lastError = result.error;
+					log.error(lastError);
+					continue;
+				}
+				Connection conn = new Connection(op, batch, socket, result);
+				conns.add(conn);
+				conn.init(type, opFlag, groupId, classId);
+				batch.add(socket, conn);
+			}
+			finished = batch.execute(manager.getMaxBusyTime());
+			if (!finished) {
+				lastError = op + ", timed out waiting";
+				log.error(lastError);
+			}
+		} catch (IOException e) {
+			lastError = op + ", " + e;
+			log.error(lastError);
+		} finally {
+			if (batch != null) {
+				batch.close();
+			}
+		}
+		// the hosts which were not reached
+		for (int i = results.size(); i < servers.length; i++) {
+			HostResult result = new HostResult(servers[i]);
+			result.error = lastError;
+			results.add(result);
+		}
+		// the handles are not called after close
+		for (int i = 0; i < conns.size(); i++) {
+			Connection conn = conns.get(i);
+			if (!conn.isDone) {
+				conn.result.error = op + (finished ? ", failed, host=" : ", timed out, host=") + conn.result.host;
+				lastError = conn.result.error;
+			} else if (conn.result.error != null) {
+				lastError = conn.result.error;
+			}
+		}
+		return results;
+	}
+
+	private final class Connection implements AsyncHandle {
+		private static final int STATE_READ_HEAD = 0;
+		private static final int STATE_READ_FLUSH = 1;
+		private static final int STATE_READ_STATS_SIZE = 2;
+		private static final int STATE_READ_STATS = 3;
+		private static final int STATE_READ_ERROR = 4;
+
+		private final String op;
+		private final AsyncBatch batch;
+		private final XixiSocket socket;
+		private final HostResult result;
+		private ByteBuffer outBuffer;
+		private byte opFlag;
+		private int state = STATE_READ_HEAD;
+		private ByteBuffer readBuffer = ByteBuffer.allocate(2);
+		private volatile boolean isDone = false;
+
+		Connection(String op, AsyncBatch batch, XixiSocket socket, HostResult result) {
+			this.op = op;
+			this.batch = batch;
+			this.socket = socket;
+			this.result = result;
+		}
+
+		void init(byte type, byte opFlag, int groupId, byte classId) {
+			this.opFlag = opFlag;
+			outBuffer = socket.getWriteBuffer();
+			outBuffer.clear();
+			outBuffer.put(XIXI_CATEGORY_CACHE);
+			outBuffer.put(type);
+			if (type == XIXI_TYPE_STATS_REQ) {
+				outBuffer.put(opFlag);
+				outBuffer.put(classId);
+			}
+			outBuffer.putInt(groupId);
+			outBuffer.flip();
+		}
+
+		public boolean onWrite() throws IOException {
+			socket.write(outBuffer);
+			if (!outBuffer.hasRemaining()) {
+				batch.interestOps(socket, SelectionKey.OP_READ);
+			}
+			return isDone;
+		}
+
+		public boolean onRead() throws IOException {
+			while (!isDone) {
+				if (socket.read(readBuffer) <= 0 && readBuffer.hasRemaining()) {
+					break;
+				}
+				if (readBuffer.hasRemaining()) {
+					continue;
+				}
+				readBuffer.flip();
+				if (state == STATE_READ_HEAD) {
+					byte category = readBuffer.get();
+					byte type = readBuffer.get();
+					if (category == XIXI_CATEGORY_CACHE && type == XIXI_TYPE_FLUSH_RES) {
+						next(STATE_READ_FLUSH, 12);
+					} else if (category == XIXI_CATEGORY_CACHE && type == XIXI_TYPE_STATS_RES) {
+						next(STATE_READ_STATS_SIZE, 4);
+					} else {
+						next(STATE_READ_ERROR, 2);
+					}
+				} else if (state == STATE_READ_FLUSH) {
+					result.flushCount = readBuffer.getInt();
+					result.flushSize = readBuffer.getLong();
+					done(XIXI_REASON_SUCCESS);
+				} else if (state == STATE_READ_STATS_SIZE) {
+					int size = readBuffer.getInt();
+					if (size < 0) {
+						throw new IOException(op + ", bad stats size=" + size + " host=" + result.host);
+					}
+					next(STATE_READ_STATS, size);
+					if (size == 0) {
+						readStats();
+					}
+				} else if (state == STATE_READ_STATS) {
+					readStats();
+				} else {
+					short reason = readBuffer.getShort();
+					result.error = op + ", response error, reason=" + reason + " host=" + result.host;
+					log.debug(result.error);
+					done(reason);
+					if (reason == XIXI_REASON_UNKNOWN_COMMAND) {
+						// the socket is closed by the batch
+						throw new IOException(result.error);
+					}
+				}
+			}
+			return isDone;
+		}
+
+		private void readStats() {
+			String str = new String(readBuffer.array(), 0, readBuffer.limit());
+			if (opFlag == XIXI_STATS_SUB_OP_GET_STATS_GROUP_ONLY
+					|| opFlag == XIXI_STATS_SUB_OP_GET_STATS_SUM_ONLY) {
+				String[] lines = str.split("\n");
+				for (int j = 0; j < lines.length; j++) {
+					String[] s = lines[j].split("=");
+					if (s.length >= 2) {
+						result.stats.put(s[0], s[1]);
+					}
+				}
+			} else if (!str.equals("success")) {
+				result.error = op + ", response=" + str + " host=" + result.host;
+			}
+			done(XIXI_REASON_SUCCESS);
+		}
+
+		private void next(int state, int length) {
+			this.state = state;
+			readBuffer = ByteBuffer.allocate(length);
+		}
+
+		private void done(short reason) {
+			result.reason = reason;
+			isDone = true;
+		}
+	}
+}
@@ -0,0 +1,79 @@
+/*
+   Copyright [2015] [Yao Yuan(yeaya@163.com)]
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.yeaya.xixibase.xixiclient.multi;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The result of one host of a request sent to all the servers.
+ *
+ * @author Yao Yuan
+ *
+ */
+public class HostResult {
+	protected String host;
+	protected short reason = -1;
+	protected String error = null;
+	protected int flushCount = 0;
+	protected long flushSize = 0;
+	protected Map<String, String> stats = new HashMap<String, String>();
+
+	public HostResult(String host) {
+		this.host = host;
+	}
+
+	public String getHost() {
+		return host;
+	}
+
+	/**
+	 * Get the reason of the response.
+	 * @return the reason, <tt>-1</tt> if no response was read
+	 */
+	public short getReason() {
+		return reason;
+	}
+
+	/**
+	 * Get the error of this host.
+	 * @return the error, or <tt>null</tt> if the host succeeded
+	 */
+	public String getError() {
+		return error;
+	}
+
+	public boolean isSuccess() {
+		return error == null;
+	}
+
+	public int getFlushCount() {
+		return flushCount;
+	}
+
+	public long getFlushSize() {
+		return flushSize;
+	}
+
+	/**
+	 * Get the statistics of this host.
+	 * @return the statistics, empty for a flush or a failed host
+	 */
+	public Map<String, String> getStats() {
+		return stats;
+	}
+}
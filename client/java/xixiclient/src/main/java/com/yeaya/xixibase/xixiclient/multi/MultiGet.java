@@ -19,7 +19,6 @@ package com.yeaya.xixibase.xixiclient.multi;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
-import java.nio.channels.Selector;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
@@ -35,6 +34,7 @@ import com.yeaya.xixibase.xixiclient.XixiClientManager;
 import com.yeaya.xixibase.xixiclient.CacheItem;
 import com.yeaya.xixibase.xixiclient.Defines;
 import com.yeaya.xixibase.xixiclient.TransCoder;
+import com.yeaya.xixibase.xixiclient.network.AsyncBatch;
 import com.yeaya.xixibase.xixiclient.network.SocketManager;
 import com.yeaya.xixibase.xixiclient.network.XixiSocket;
 
@@ -46,9 +46,11 @@ public final class MultiGet extends Defines {
 	private int groupId;
 	private TransCoder transCoder;
 	
-	private Selector selector;
-	private int numConns = 0;
+	private AsyncBatch batch;
 	private String lastError = null;
+	// the deadline(System.nanoTime) of the request, 0 for none
+	private long deadline = 0;
+	private List<String> timedOutKeys = new ArrayList<String>();
 	
 	public MultiGet(XixiClientManager manager, SocketManager socketManager, int groupId, TransCoder transCoder) {
 		this.manager = manager;
@@ -61,8 +63,37 @@ public final class MultiGet extends Defines {
 		return lastError;
 	}
 
+	/**
+	 * Set the deadline of the next <tt>multiGet</tt>, the items read by then are returned.
+	 * @param deadline deadline(System.nanoTime), <tt>0</tt> for none
+	 */
+	public void setDeadline(long deadline) {
+		this.deadline = deadline;
+	}
+
+	/**
+	 * Get the keys of the last <tt>multiGet</tt> whose responses were not read
+	 * before it timed out, their items are <tt>null</tt>.
+	 * @return the timed out keys, empty if it did not time out
+	 */
+	public List<String> getTimedOutKeys() {
+		return timedOutKeys;
+	}
+
 	public List<CacheItem> multiGet(final List<String> keys) {
+		return multiGet(keys, null);
+	}
+
+	/**
+	 * Get the keys from the given hosts.
+	 * @param keys keys
+	 * @param hosts the host of each key, <tt>null</tt> takes the host of the key
+	 * @return the items, in the order of the keys, <tt>null</tt> for the missed keys
+	 *         and the timed out keys
+	 */
+	public List<CacheItem> multiGet(final List<String> keys, List<String> hosts) {
 		lastError = null;
+		timedOutKeys = new ArrayList<String>();
 		if (keys == null) {
 			lastError = "multiGet, keys == null";
 			log.error(lastError);
@@ -79,6 +110,7 @@ public final class MultiGet extends Defines {
 		}
 		
 		Map<String, Connection> conns = new HashMap<String, Connection>();
+		boolean timedOut = false;
 		try {
 			Iterator<String> it = keys.iterator();
 			int index = 0;
@@ -98,7 +130,7 @@ public final class MultiGet extends Defines {
 					continue;
 				}
 
-				String host = socketManager.getHost(key);
+				String host = hosts != null ? hosts.get(keyIndex.intValue()) : socketManager.getHost(key, keyBuf);
 				if (host == null) {
 					lastError = "multiGet, can not get host with the key";
 					log.error(lastError);
@@ -113,7 +145,8 @@ public final class MultiGet extends Defines {
 				conn.add(key, keyBuf, keyIndex);
 			}
 
-			selector = socketManager.selectorOpen();
+			batch = socketManager.createBatch();
+			batch.setDeadline(deadline);
 
 			Iterator<Entry<String, Connection>> itc = conns.entrySet().iterator();
 			while (itc.hasNext()) {
@@ -121,85 +154,68 @@ public final class MultiGet extends Defines {
 				String host = e.getKey();
 				Connection conn = e.getValue();
 				
-				XixiSocket socket = socketManager.getSocketByHost(host);
+				XixiSocket socket = batch.getSocket(host);
 				if (socket != null) {
 					conn.init(socket, result);
+					batch.add(socket, conn);
 				}
 			}
 
-			numConns = conns.size();
-
-			long startTime = System.currentTimeMillis();
-			long timeout = manager.getMaxBusyTime();
-			long timeRemaining = timeout;
-
-			while (numConns > 0 && timeRemaining > 0) {
-				int n = selector.select(timeRemaining);
-				if (n > 0) {
-					Iterator<SelectionKey> its = selector.selectedKeys().iterator();
-					while (its.hasNext()) {
-						SelectionKey key = its.next();
-						its.remove();
-						handleKey(key);
-					}
-				} else {
-					lastError = "multiGet, selector timed out waiting";
-					log.error(lastError);
-					break;
-				}
-				timeRemaining = timeout - (System.currentTimeMillis() - startTime);
+			if (!batch.execute(manager.getMaxBusyTime())
+					|| (deadline != 0 && System.nanoTime() - deadline > 0)) {
+				timedOut = true;
+				lastError = "multiGet, timed out waiting";
+				log.error(lastError);
 			}
 		} catch (IOException e) {
 			log.error("multiGet, " + e);
 			e.printStackTrace();
 		} finally {
-			try {
-				socketManager.selectorClose(selector);
-				selector = null;
-			} catch (IOException e) {
-				lastError = "multiGet, close selector exception :" + e;
-				log.error(lastError);
-				e.printStackTrace();
+			if (batch != null) {
+				batch.close();
+				batch = null;
 			}
 			Iterator<Connection> itc = conns.values().iterator();
 			while (itc.hasNext()) {
 				Connection conn = itc.next();
-				conn.close();
+				conn.release();
+				if (timedOut) {
+					conn.addPendingKeys(timedOutKeys);
+				}
 			}
 		}
 		return result;
 	}
 
-	private void handleKey(SelectionKey key) throws IOException {
-		if (key.isValid()) {
-			if (key.isReadable()) {
-				readResponse(key);
-			} else if (key.isWritable()) {
-				writeRequest(key);
+	private final class Connection implements AsyncHandle {
+		private ByteBuffer outBuffer;
+		private XixiSocket socket;
+		private boolean isDone = false;
+		// borrowed for a request which is larger than the write buffer of the socket
+		private ByteBuffer leased = null;
+
+		private ByteBuffer lease(int size) {
+			if (leased != null) {
+				socketManager.getBufferArena().release(leased);
 			}
+			leased = socketManager.getBufferArena().borrow(size);
+			return leased;
 		}
-	}
 
-	private void writeRequest(SelectionKey key) throws IOException {
-		XixiSocket socket = (XixiSocket) key.attachment();
-		if (socket.handleWrite()) {
-			key.cancel();
-			numConns--;
+		// called after the batch is closed, the handle is not called again
+		public void release() {
+			if (leased != null) {
+				socketManager.getBufferArena().release(leased);
+				leased = null;
+			}
 		}
-	}
 
-	private void readResponse(SelectionKey key) throws IOException {
-		XixiSocket socket = (XixiSocket) key.attachment();
-		if (socket.handleRead()) {
-			key.cancel();
-			numConns--;
+		// the keys whose responses were not read, called after the batch is closed
+		public void addPendingKeys(List<String> pending) {
+			for (int i = processedCount; i < keys.size(); i++) {
+				pending.add(keys.get(i));
+			}
 		}
-	}
-
-	private final class Connection implements AsyncHandle {
-		private ByteBuffer outBuffer;
-		private XixiSocket socket;
-		private boolean isDone = false;
 		private ArrayList<String> keys = new ArrayList<String>();
 		private ArrayList<byte[]> keyBuffers = new ArrayList<byte[]>();
 		private ArrayList<Integer> keyIndexs = new ArrayList<Integer>();
@@ -215,7 +231,7 @@ public final class MultiGet extends Defines {
 		private void encode() {
 			byte[] keyBuf = keyBuffers.get(currKeyIndex);
 			if (outBuffer.limit() < keyBuf.length + 12) {
-				outBuffer = ByteBuffer.allocateDirect(keyBuf.length + 12);
+				outBuffer = lease(keyBuf.length + 12);
 			}
 			outBuffer.put(XIXI_CATEGORY_CACHE);
 			outBuffer.put(XIXI_TYPE_GET_REQ);
@@ -248,9 +264,6 @@ public final class MultiGet extends Defines {
 			encode();
 			
 			outBuffer.flip();
-
-			socket.configureBlocking(false);
-			socket.register(selector, SelectionKey.OP_READ | SelectionKey.OP_WRITE, this);
 		}
 		
 		public int processRequest() throws IOException {
@@ -260,7 +273,7 @@ public final class MultiGet extends Defines {
 			}
 
 			if (currKeyIndex >= keyBuffers.size()) {
-				socket.register(selector, SelectionKey.OP_READ, this);
+				batch.interestOps(socket, SelectionKey.OP_READ);
 				return 0;
 			}
 			outBuffer.flip();
@@ -274,25 +287,6 @@ public final class MultiGet extends Defines {
 			return count;
 		}
 
-		public void close() {
-			if (socket != null) {
-				try {
-					if (isDone) {
-						socket.configureBlocking(true);
-						socket.close();
-						socket = null;
-						return;
-					}
-				} catch (IOException e) {
-					lastError = "close, " + e;
-					log.warn(lastError);
-				}
-	
-				socket.trueClose();
-				socket = null;
-			}
-		}
-
 		private static final int STATE_READ_HEAD = 0;
 		private static final int STATE_READ_FIXED_BODY = 1;
 		private static final int STATE_READ_ERROR = 2;
@@ -19,7 +19,6 @@ package com.yeaya.xixibase.xixiclient.multi;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
-import java.nio.channels.Selector;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
@@ -32,10 +31,12 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.yeaya.xixibase.xixiclient.AsyncHandle;
+import com.yeaya.xixibase.xixiclient.ByteBufferTransCoder;
 import com.yeaya.xixibase.xixiclient.XixiClientManager;
 import com.yeaya.xixibase.xixiclient.Defines;
 import com.yeaya.xixibase.xixiclient.LocalCache;
 import com.yeaya.xixibase.xixiclient.TransCoder;
+import com.yeaya.xixibase.xixiclient.network.AsyncBatch;
 import com.yeaya.xixibase.xixiclient.network.SocketManager;
 import com.yeaya.xixibase.xixiclient.network.XixiSocket;
 
@@ -47,11 +48,12 @@ public final class MultiUpdate extends Defines {
 	private int groupId;
 	private TransCoder transCoder;
 	
-	private Selector selector;
-	private int numConns = 0;
+	private AsyncBatch batch;
 	private byte opFlag = 0;
 	private AtomicInteger successCount = new AtomicInteger(0);
 	private String lastError = null;
+	// the deadline(System.nanoTime) of the request, 0 for none
+	private long deadline = 0;
 	private LocalCache localCache = null;
 	
 	public MultiUpdate(XixiClientManager manager, SocketManager socketManager, int groupId, TransCoder transCoder) {
@@ -66,7 +68,26 @@ public final class MultiUpdate extends Defines {
 		return lastError;
 	}
 
+	/**
+	 * Set the deadline of the next request.
+	 * @param deadline deadline(System.nanoTime), <tt>0</tt> for none
+	 */
+	public void setDeadline(long deadline) {
+		this.deadline = deadline;
+	}
+
 	public int multiUpdate(List<MultiUpdateItem> list, byte subOp) {
+		return multiUpdate(list, subOp, null);
+	}
+
+	/**
+	 * Update the items on the given hosts.
+	 * @param list items
+	 * @param subOp update sub operation
+	 * @param hosts the host of each item, <tt>null</tt> takes the host of the key
+	 * @return the number of updated items
+	 */
+	public int multiUpdate(List<MultiUpdateItem> list, byte subOp, List<String> hosts) {
 		lastError = null;
 		opFlag = (byte)(subOp | XIXI_UPDATE_REPLY);
 		if (list == null) {
@@ -92,6 +113,8 @@ public final class MultiUpdate extends Defines {
 					log.error(lastError);
 					continue;
 				}
+				item.reason = 0;
+				item.newCacheID = 0;
 
 				if (item.key == null) {
 					lastError = "multiUpdate, item.key == null";
@@ -112,7 +135,7 @@ public final class MultiUpdate extends Defines {
 					continue;
 				}
 
-				String host = socketManager.getHost(item.key);
+				String host = hosts != null ? hosts.get(keyIndex.intValue()) : socketManager.getHost(item.key, keyBuf);
 				if (host == null) {
 					lastError = "multiUpdate, can not get host with the key";
 					log.error(lastError);
@@ -127,95 +150,66 @@ public final class MultiUpdate extends Defines {
 				conn.add(item, keyBuf, keyIndex);
 			}
 			
-			selector = socketManager.selectorOpen();
+			batch = socketManager.createBatch();
+			batch.setDeadline(deadline);
 
 			Iterator<Entry<String, Connection>> itc = conns.entrySet().iterator();
 			while (itc.hasNext()) {
 				Entry<String, Connection> e = itc.next();
 				String host = e.getKey();
 				Connection conn = e.getValue();
-				XixiSocket socket = socketManager.getSocketByHost(host);
+				XixiSocket socket = batch.getSocket(host);
 
 				if (socket != null) {
 					conn.init(socket);
+					batch.add(socket, conn);
 				}
 			}
 
-			numConns = conns.size();
-
-			long startTime = System.currentTimeMillis();
-			long timeout = manager.getMaxBusyTime();
-			long timeRemaining = timeout;
-
-			while (numConns > 0 && timeRemaining > 0) {
-				int n = selector.select(timeRemaining);
-				if (n > 0) {
-					Iterator<SelectionKey> its = selector.selectedKeys().iterator();
-					while (its.hasNext()) {
-						SelectionKey key = its.next();
-						its.remove();
-						handleKey(key);
-					}
-				} else {
-					lastError = "multiUpdate, selector timed out";
-					log.error(lastError);
-					break;
-				}
-
-				timeRemaining = timeout - (System.currentTimeMillis() - startTime);
+			if (!batch.execute(manager.getMaxBusyTime())) {
+				lastError = "multiUpdate, timed out waiting";
+				log.error(lastError);
 			}
 		} catch (IOException e) {
 			lastError = "multiUpdate, exception" + e;
 			log.error(lastError);
 			e.printStackTrace();
 		} finally {
-			try {
-				socketManager.selectorClose(selector);
-			} catch (IOException e) {
-				lastError = "multiUpdate, close selector exception :" + e;
-				log.error(lastError);
-				e.printStackTrace();
+			if (batch != null) {
+				batch.close();
+				batch = null;
 			}
 			Iterator<Connection> itc = conns.values().iterator();
 			while (itc.hasNext()) {
-				Connection conn = itc.next();
-				conn.close();
+				itc.next().release();
 			}
 		}
 
 		return successCount.intValue();
 	}
 
-	private void handleKey(SelectionKey key) throws IOException {
-		if (key.isValid()) {
-			if (key.isReadable()) {
-				readResponse(key);
-			} else if (key.isWritable()) {
-				writeRequest(key);
-			}
-		}
-	}
-
-	private void writeRequest(SelectionKey key) throws IOException {
-		XixiSocket socket = (XixiSocket) key.attachment();
-		if (socket.handleWrite()) {
-			key.cancel();
-			numConns--;
-		}
-	}
-
-	private void readResponse(SelectionKey key) throws IOException {
-		XixiSocket socket = (XixiSocket) key.attachment();
-		if (socket.handleRead()) {
-			key.cancel();
-			numConns--;
-		}
-	}
-	
 	private final class Connection implements AsyncHandle {
 		private ByteBuffer outBuffer;
 		private XixiSocket socket;
 		private boolean isDone = false;
+		// borrowed for a request which is larger than the write buffer of the socket
+		private ByteBuffer leased = null;
+
+		private ByteBuffer lease(int size) {
+			if (leased != null) {
+				socketManager.getBufferArena().release(leased);
+			}
+			leased = socketManager.getBufferArena().borrow(size);
+			return leased;
+		}
+
+		// called after the batch is closed, the handle is not called again
+		public void release() {
+			if (leased != null) {
+				socketManager.getBufferArena().release(leased);
+				leased = null;
+			}
+		}
 		private ArrayList<MultiUpdateItem> items = new ArrayList<MultiUpdateItem>();
 		private ArrayList<byte[]> keyBuffers = new ArrayList<byte[]>();
 		private ArrayList<Integer> itemIndexs = new ArrayList<Integer>();
@@ -227,123 +221,116 @@ public final class MultiUpdate extends Defines {
 			itemIndexs.add(index);
 		}
 
-		MultiUpdateItem item = null;
-		byte[] keyBuf = null;
-		byte[] data = null;
-		int dataSize = 0;
-		int flags = 0;
-		private void encode() throws IOException {
-			if (dataSize == 0) {
-				item = items.get(currKeyIndex);
-				keyBuf = keyBuffers.get(currKeyIndex);
+		// the encoded value of the current item, kept until it fits into outBuffer
+		private byte[] data = null;
+		private int flags = 0;
+		// a byte[] or ByteBuffer value which is written after outBuffer without copy
+		private ByteBuffer payload = null;
+		private ByteBuffer[] outBuffers = new ByteBuffer[2];
 
-				int[] outflags = new int[1];
-				data = transCoder.encode(item.value, outflags, null);
-				flags = outflags[0];
-				dataSize = data.length;
-			}
-			int totalLen = 33 + keyBuf.length + dataSize;
-			if (outBuffer.limit() < totalLen) {
-				outBuffer = ByteBuffer.allocateDirect(totalLen);
+		private boolean encodeItem(MultiUpdateItem item, byte[] keyBuf) throws IOException {
+			if (outBuffer.remaining() < 33 + keyBuf.length) {
+				return false;
 			}
+			int start = outBuffer.position();
 			outBuffer.put(XIXI_CATEGORY_CACHE);
 			outBuffer.put(XIXI_TYPE_UPDATE_REQ);
 			outBuffer.put(opFlag);
 			outBuffer.putLong(item.cacheID);//uint64_t cacheID;
 			outBuffer.putInt(groupId);
-			outBuffer.putInt(flags); // flags
+			int flagsPosition = outBuffer.position();
+			outBuffer.putInt(0); // flags, set after the value is encoded
 			outBuffer.putInt(item.expiration);//			uint32_t expiration;
 			outBuffer.putInt(NO_WATCH); // watchID
 			outBuffer.putShort((short) keyBuf.length); // uint16_t key_length;
 
-			outBuffer.putInt(dataSize); // uint32_t data_length;
+			int dataSizePosition = outBuffer.position();
+			outBuffer.putInt(0); // uint32_t data_length, set after the value is encoded
 			outBuffer.put(keyBuf);
 
-			outBuffer.put(data);
-			currKeyIndex++;
-			
-			while (currKeyIndex < items.size()) {
-				item = items.get(currKeyIndex);
-				keyBuf = keyBuffers.get(currKeyIndex);
-
+			int dataSize = -1;
+			if (data == null) {
 				int[] outflags = new int[1];
-				data = transCoder.encode(item.value, outflags, null);
+				if (transCoder instanceof ByteBufferTransCoder) {
+					ByteBufferTransCoder bufferTransCoder = (ByteBufferTransCoder) transCoder;
+					dataSize = bufferTransCoder.encode(item.value, outBuffer, outflags, null);
+					if (dataSize < 0) {
+						payload = bufferTransCoder.wrap(item.value, outflags, null);
+					}
+				}
+				if (dataSize < 0 && payload == null) {
+					data = transCoder.encode(item.value, outflags, null);
+				}
 				flags = outflags[0];
+			}
+			if (data != null) {
+				if (data.length > outBuffer.remaining()) {
+					outBuffer.position(start);
+					return false;
+				}
+				outBuffer.put(data);
 				dataSize = data.length;
+				data = null;
+			}
+			if (payload != null) {
+				dataSize = payload.remaining();
+			}
+			outBuffer.putInt(flagsPosition, flags);
+			outBuffer.putInt(dataSizePosition, dataSize);
+			return true;
+		}
 
-				totalLen = 33 + keyBuf.length + dataSize;
-				if (outBuffer.limit() - outBuffer.position() < totalLen) {
-					break;
+		private void encode() throws IOException {
+			outBuffer.clear();
+			while (currKeyIndex < items.size() && payload == null) {
+				byte[] keyBuf = keyBuffers.get(currKeyIndex);
+				if (!encodeItem(items.get(currKeyIndex), keyBuf)) {
+					if (outBuffer.position() > 0) {
+						break;
+					}
+					// one item is larger than outBuffer
+					int totalLen = 33 + keyBuf.length + (data != null ? data.length : 0);
+					outBuffer = lease(totalLen);
+					continue;
 				}
-				outBuffer.put(XIXI_CATEGORY_CACHE);
-				outBuffer.put(XIXI_TYPE_UPDATE_REQ);
-				outBuffer.put(opFlag);
-				outBuffer.putLong(item.cacheID);//uint64_t cacheID;
-				outBuffer.putInt(groupId);
-				outBuffer.putInt(flags); // flags
-				outBuffer.putInt(item.expiration);//			uint32_t expiration;
-				outBuffer.putInt(NO_WATCH); // watchID
-				outBuffer.putShort((short) keyBuf.length); // uint16_t key_length;
-
-				outBuffer.putInt(dataSize); // uint32_t data_length;
-				outBuffer.put(keyBuf);
-
-				outBuffer.put(data);
 				currKeyIndex++;
 			}
+			outBuffer.flip();
 		}
-		
+
 		public void init(XixiSocket socket) throws IOException {
 			this.socket = socket;
-			outBuffer = ByteBuffer.allocateDirect(64 * 1024);
+			outBuffer = socket.getWriteBuffer();
 			
 			encode();
-			
-			outBuffer.flip();
-		//	byteChannel = socket.getByteChannel();
-		//	selectableChannel = socket.getSelectableChannel();
-	//		channel = socket.getChannel();
-			socket.configureBlocking(false);
-			socket.register(selector, SelectionKey.OP_READ | SelectionKey.OP_WRITE, this);
 		}
 
-		public int processRequest() throws IOException {
-			int count = socket.write(outBuffer);
-			if (count > 0) {
+		private long writeRequest() throws IOException {
+			if (payload == null) {
+				return socket.write(outBuffer);
+			}
+			outBuffers[0] = outBuffer;
+			outBuffers[1] = payload;
+			long count = socket.write(outBuffers);
+			if (!outBuffer.hasRemaining() && !payload.hasRemaining()) {
+				payload = null;
+			}
+			return count;
+		}
+
+		public long processRequest() throws IOException {
+			long count = writeRequest();
+			if (count > 0 || outBuffer.hasRemaining() || payload != null) {
 				return count;
 			}
 			if (currKeyIndex >= items.size()) {
-				socket.register(selector, SelectionKey.OP_READ, this);
+				batch.interestOps(socket, SelectionKey.OP_READ);
 				return 0;
 			}
-			outBuffer.flip();
-			
-			encode();
 
-			outBuffer.flip();
-			
-			count = socket.write(outBuffer);
-			
-			return count;
-		}
+			encode();
 
-		public void close() {
-			if (socket != null) {
-				try {
-					if (isDone) {
-						socket.configureBlocking(true);
-						socket.close();
-						socket = null;
-						return;
-					}
-				} catch (IOException e) {
-					lastError = "close, " + e;
-					log.warn(lastError);
-				}
-	
-				socket.trueClose();
-				socket = null;
-			}
+			return writeRequest();
 		}
 
 		private static final int STATE_READ_HEAD = 0;
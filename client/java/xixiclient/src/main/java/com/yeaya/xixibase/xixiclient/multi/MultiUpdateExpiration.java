@@ -19,7 +19,6 @@ package com.yeaya.xixibase.xixiclient.multi;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
-import java.nio.channels.Selector;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
@@ -36,6 +35,7 @@ import com.yeaya.xixibase.xixiclient.XixiClientManager;
 import com.yeaya.xixibase.xixiclient.Defines;
 import com.yeaya.xixibase.xixiclient.LocalCache;
 import com.yeaya.xixibase.xixiclient.TransCoder;
+import com.yeaya.xixibase.xixiclient.network.AsyncBatch;
 import com.yeaya.xixibase.xixiclient.network.SocketManager;
 import com.yeaya.xixibase.xixiclient.network.XixiSocket;
 
@@ -47,11 +47,12 @@ public final class MultiUpdateExpiration extends Defines {
 	private int groupId;
 	private TransCoder transCoder;
 	
-	private Selector selector;
-	private int numConns = 0;
+	private AsyncBatch batch;
 	private byte opFlag = 0;
 	private AtomicInteger successCount = new AtomicInteger(0);
 	private String lastError = null;
+	// the deadline(System.nanoTime) of the request, 0 for none
+	private long deadline = 0;
 	private LocalCache localCache = null;
 	
 	public MultiUpdateExpiration(XixiClientManager manager, SocketManager socketManager, int groupId, TransCoder transCoder) {
@@ -66,6 +67,14 @@ public final class MultiUpdateExpiration extends Defines {
 		return lastError;
 	}
 
+	/**
+	 * Set the deadline of the next request.
+	 * @param deadline deadline(System.nanoTime), <tt>0</tt> for none
+	 */
+	public void setDeadline(long deadline) {
+		this.deadline = deadline;
+	}
+
 	public int multiUpdateExpiration(List<MultiUpdateExpirationItem> list) {
 		lastError = null;
 		opFlag = (byte)(XIXI_UPDATE_EXPIRATION_REPLY);
@@ -106,7 +115,7 @@ public final class MultiUpdateExpiration extends Defines {
 					continue;
 				}
 
-				String host = socketManager.getHost(item.key);
+				String host = socketManager.getHost(item.key, keyBuf);
 				if (host == null) {
 					lastError = "multiUpdateExpiration, can not get host with the key";
 					log.error(lastError);
@@ -121,95 +130,66 @@ public final class MultiUpdateExpiration extends Defines {
 				conn.add(item, keyBuf, keyIndex);
 			}
 
-			selector = socketManager.selectorOpen();
+			batch = socketManager.createBatch();
+			batch.setDeadline(deadline);
 
 			Iterator<Entry<String, Connection>> itc = conns.entrySet().iterator();
 			while (itc.hasNext()) {
 				Entry<String, Connection> e = itc.next();
 				String host = e.getKey();
 				Connection conn = e.getValue();
-				XixiSocket socket = socketManager.getSocketByHost(host);
+				XixiSocket socket = batch.getSocket(host);
 
 				if (socket != null) {
 					conn.init(socket);
+					batch.add(socket, conn);
 				}
 			}
 
-			numConns = conns.size();
-
-			long startTime = System.currentTimeMillis();
-			long timeout = manager.getMaxBusyTime();
-			long timeRemaining = timeout;
-
-			while (numConns > 0 && timeRemaining > 0) {
-				int n = selector.select(timeRemaining);
-				if (n > 0) {
-					Iterator<SelectionKey> its = selector.selectedKeys().iterator();
-					while (its.hasNext()) {
-						SelectionKey key = its.next();
-						its.remove();
-						handleKey(key);
-					}
-				} else {
-					lastError = "multiUpdateExpiration, selector timed out";
-					log.error(lastError);
-					break;
-				}
-
-				timeRemaining = timeout - (System.currentTimeMillis() - startTime);
+			if (!batch.execute(manager.getMaxBusyTime())) {
+				lastError = "multiUpdateExpiration, timed out waiting";
+				log.error(lastError);
 			}
 		} catch (IOException e) {
 			lastError = "multiUpdateExpiration, exception on " + e;
 			log.error(lastError);
 			e.printStackTrace();
 		} finally {
-			try {
-				socketManager.selectorClose(selector);
-			} catch (IOException e) {
-				lastError = "multiUpdateExpiration, close selector exception :" + e;
-				log.error(lastError);
-				e.printStackTrace();
+			if (batch != null) {
+				batch.close();
+				batch = null;
 			}
 			Iterator<Connection> itc = conns.values().iterator();
 			while (itc.hasNext()) {
-				Connection conn = itc.next();
-				conn.close();
+				itc.next().release();
 			}
 		}
 
 		return successCount.intValue();
 	}
 
-	private void handleKey(SelectionKey key) throws IOException {
-		if (key.isValid()) {
-			if (key.isReadable()) {
-				readResponse(key);
-			} else if (key.isWritable()) {
-				writeRequest(key);
-			}
-		}
-	}
-
-	private void writeRequest(SelectionKey key) throws IOException {
-		XixiSocket socket = (XixiSocket) key.attachment();
-		if (socket.handleWrite()) {
-			key.cancel();
-			numConns--;
-		}
-	}
-
-	private void readResponse(SelectionKey key) throws IOException {
-		XixiSocket socket = (XixiSocket) key.attachment();
-		if (socket.handleRead()) {
-			key.cancel();
-			numConns--;
-		}
-	}
-	
 	private final class Connection implements AsyncHandle {
 		private ByteBuffer outBuffer;
 		private XixiSocket socket;
 		private boolean isDone = false;
+		// borrowed for a request which is larger than the write buffer of the socket
+		private ByteBuffer leased = null;
+
+		private ByteBuffer lease(int size) {
+			if (leased != null) {
+				socketManager.getBufferArena().release(leased);
+			}
+			leased = socketManager.getBufferArena().borrow(size);
+			return leased;
+		}
+
+		// called after the batch is closed, the handle is not called again
+		public void release() {
+			if (leased != null) {
+				socketManager.getBufferArena().release(leased);
+				leased = null;
+			}
+		}
 		private ArrayList<MultiUpdateExpirationItem> items = new ArrayList<MultiUpdateExpirationItem>();
 		private ArrayList<byte[]> keyBuffers = new ArrayList<byte[]>();
 		private ArrayList<Integer> itemIndexs = new ArrayList<Integer>();
@@ -229,7 +209,7 @@ public final class MultiUpdateExpiration extends Defines {
 
 			int totalLen = 21 + keyBuf.length;
 			if (outBuffer.limit() < totalLen) {
-				outBuffer = ByteBuffer.allocateDirect(totalLen);
+				outBuffer = lease(totalLen);
 			}
 			outBuffer.put(XIXI_CATEGORY_CACHE);
 			outBuffer.put(XIXI_TYPE_UPDATE_EXPIRATION_REQ);
@@ -271,8 +251,6 @@ public final class MultiUpdateExpiration extends Defines {
 			encode();
 
 			outBuffer.flip();
-			socket.configureBlocking(false);
-			socket.register(selector, SelectionKey.OP_READ | SelectionKey.OP_WRITE, this);
 		}
 		
 		public int processRequest() throws IOException {
@@ -281,7 +259,7 @@ public final class MultiUpdateExpiration extends Defines {
 				return count;
 			}
 			if (currKeyIndex >= items.size()) {
-				socket.register(selector, SelectionKey.OP_READ, this);
+				batch.interestOps(socket, SelectionKey.OP_READ);
 				return 0;
 			}
 			outBuffer.flip();
@@ -295,25 +273,6 @@ public final class MultiUpdateExpiration extends Defines {
 			return count;
 		}
 
-		public void close() {
-			if (socket != null) {
-				try {
-					if (isDone) {
-						socket.configureBlocking(true);
-						socket.close();
-						socket = null;
-						return;
-					}
-				} catch (IOException e) {
-					lastError = "close, " + e;
-					log.warn(lastError);
-				}
-	
-				socket.trueClose();
-				socket = null;
-			}
-		}
-
 		private static final int STATE_READ_HEAD = 0;
 		private static final int STATE_READ_FIXED_BODY = 1;
 		private static final int STATE_READ_ERROR = 2;
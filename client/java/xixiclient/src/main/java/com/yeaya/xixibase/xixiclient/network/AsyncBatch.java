@@ -0,0 +1,287 @@
+/*
+   Copyright [2015] [Yao Yuan(yeaya@163.com)]
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.yeaya.xixibase.xixiclient.network;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.yeaya.xixibase.xixiclient.AsyncHandle;
+
+/**
+ * One batch operation running on an event loop, one socket per host.
+ * <pre>
+ *     AsyncBatch batch = socketManager.createBatch();
+ *     XixiSocket socket = batch.getSocket(host);
+ *     // encode the requests into the write buffer of the socket
+ *     batch.add(socket, handle);
+ *     boolean done = batch.execute(timeout);
+ *     batch.close();</pre>
+ * The handle is called on the event loop thread, and it returns <tt>true</tt> when
+ * all the responses of its socket are read.
+ * <p>
+ * A batch with a deadline does not connect or wait beyond it, the sockets which are
+ * not done by then are closed by <tt>close</tt> and their handles keep what they read.
+ *
+ * @author Yao Yuan
+ *
+ */
+public class AsyncBatch {
+	final static Logger log = LoggerFactory.getLogger(AsyncBatch.class);
+
+	private static final int STATE_RUNNING = 0;
+	private static final int STATE_DONE = 1;
+	private static final int STATE_FAILED = 2;
+
+	private final EventLoop loop;
+	private final ArrayList<Entry> entries = new ArrayList<Entry>();
+	private final IdentityHashMap<XixiSocket, Entry> entryMap = new IdentityHashMap<XixiSocket, Entry>();
+	// the concurrency permit of each socket, one per host
+	private final IdentityHashMap<XixiSocket, ConcurrencyLimiter> limiters =
+			new IdentityHashMap<XixiSocket, ConcurrencyLimiter>();
+	private CountDownLatch latch;
+	private volatile boolean closed = false;
+	// the deadline(System.nanoTime) of the batch, 0 for none
+	private long deadline = 0;
+
+	AsyncBatch(EventLoop loop) {
+		this.loop = loop;
+	}
+
+	/**
+	 * Set the deadline of this batch, before the sockets are taken.
+	 * @param deadline deadline(System.nanoTime), <tt>0</tt> for none
+	 */
+	public void setDeadline(long deadline) {
+		this.deadline = deadline;
+	}
+
+	public long getDeadline() {
+		return deadline;
+	}
+
+	/**
+	 * Get one non-blocking socket of the host for this batch.
+	 * @param host
+	 * @return socket, or <tt>null</tt> if failed to connect the host, the
+	 *         concurrency limit of the host is reached or the deadline passed
+	 */
+	public XixiSocket getSocket(String host) {
+		int connectTimeout = loop.getManager().getSocketConnectTimeout();
+		if (deadline != 0) {
+			long remain = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+			if (remain <= 0) {
+				log.warn("getSocket, deadline exceeded, host=" + host);
+				return null;
+			}
+			if (connectTimeout <= 0 || remain < connectTimeout) {
+				connectTimeout = (int) remain;
+			}
+		}
+		ConcurrencyLimiter limiter = loop.getManager().getConcurrencyLimiter(host);
+		if (limiter != null && !limiter.tryAcquire()) {
+			log.warn("getSocket, concurrency limit reached, host=" + host + " limit=" + limiter.getLimit());
+			return null;
+		}
+		XixiSocket socket = loop.acquireSocket(host, connectTimeout);
+		if (limiter != null) {
+			if (socket == null) {
+				limiter.cancel();
+			} else {
+				limiters.put(socket, limiter);
+			}
+		}
+		return socket;
+	}
+
+	/**
+	 * Add one socket into this batch, the socket is released by <tt>close</tt>.
+	 * @param socket socket returned by <tt>getSocket</tt>
+	 * @param handle
+	 */
+	public void add(XixiSocket socket, AsyncHandle handle) {
+		Entry entry = new Entry(socket, handle);
+		entries.add(entry);
+		entryMap.put(socket, entry);
+	}
+
+	/**
+	 * Change the interest ops of one socket, it is called by the handle.
+	 * @param socket
+	 * @param ops
+	 * @throws IOException
+	 */
+	public void interestOps(XixiSocket socket, int ops) throws IOException {
+		Entry entry = entryMap.get(socket);
+		socket.register(loop.getSelector(), ops, entry);
+	}
+
+	/**
+	 * Run the batch and wait until all the sockets are done or failed, at most
+	 * <tt>timeout</tt> and not beyond the deadline of the batch.
+	 * @param timeout timeout(millisecond)
+	 * @return <tt>false</tt> if timed out
+	 */
+	public boolean execute(long timeout) {
+		latch = new CountDownLatch(entries.size());
+		if (entries.isEmpty()) {
+			return true;
+		}
+		long waitNanos = TimeUnit.MILLISECONDS.toNanos(timeout);
+		if (deadline != 0) {
+			waitNanos = Math.min(waitNanos, deadline - System.nanoTime());
+			if (waitNanos <= 0) {
+				return false;
+			}
+		}
+		loop.execute(new Runnable() {
+			public void run() {
+				for (int i = 0; i < entries.size(); i++) {
+					entries.get(i).start();
+				}
+			}
+		});
+		try {
+			return latch.await(waitNanos, TimeUnit.NANOSECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	/**
+	 * Release the sockets which finished, close the others. After <tt>close</tt>
+	 * the handles are never called again.
+	 */
+	public void close() {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		if (!entries.isEmpty()) {
+			closeSockets();
+		}
+		releaseLimiters();
+	}
+
+	private void closeSockets() {
+		boolean allDone = latch != null && latch.getCount() == 0;
+		final CountDownLatch closeLatch = new CountDownLatch(1);
+		loop.execute(new Runnable() {
+			public void run() {
+				for (int i = 0; i < entries.size(); i++) {
+					Entry entry = entries.get(i);
+					if (entry.state == STATE_DONE) {
+						loop.releaseSocket(entry.socket);
+					} else {
+						entry.state = STATE_FAILED;
+						entry.socket.trueClose();
+					}
+				}
+				closeLatch.countDown();
+			}
+		});
+		if (!allDone) {
+			// wait for the handles to stop, they may still write into the result
+			try {
+				closeLatch.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	// the states are final once the sockets are closed
+	private void releaseLimiters() {
+		for (Map.Entry<XixiSocket, ConcurrencyLimiter> e : limiters.entrySet()) {
+			Entry entry = entryMap.get(e.getKey());
+			if (entry == null) {
+				e.getValue().cancel();
+			} else if (entry.state == STATE_DONE) {
+				e.getValue().onSuccess(-1);
+			} else {
+				e.getValue().onDrop();
+			}
+		}
+		limiters.clear();
+	}
+
+	private final class Entry implements AsyncHandle {
+		private final XixiSocket socket;
+		private final AsyncHandle handle;
+		private volatile int state = STATE_RUNNING;
+
+		Entry(XixiSocket socket, AsyncHandle handle) {
+			this.socket = socket;
+			this.handle = handle;
+		}
+
+		void start() {
+			try {
+				socket.register(loop.getSelector(), SelectionKey.OP_READ | SelectionKey.OP_WRITE, this);
+			} catch (Exception e) {
+				finish(STATE_FAILED, e);
+			}
+		}
+
+		public boolean onRead() {
+			if (state == STATE_RUNNING) {
+				try {
+					if (handle.onRead()) {
+						finish(STATE_DONE, null);
+					}
+				} catch (Exception e) {
+					finish(STATE_FAILED, e);
+				}
+			}
+			return state != STATE_RUNNING;
+		}
+
+		public boolean onWrite() {
+			if (state == STATE_RUNNING) {
+				try {
+					if (handle.onWrite()) {
+						finish(STATE_DONE, null);
+					}
+				} catch (Exception e) {
+					finish(STATE_FAILED, e);
+				}
+			}
+			return state != STATE_RUNNING;
+		}
+
+		private void finish(int newState, Exception e) {
+			if (e != null) {
+				log.error("batch failed, host=" + socket.getHost() + " e=" + e);
+			}
+			state = newState;
+			try {
+				socket.register(loop.getSelector(), 0, this);
+			} catch (Exception e2) {
+				state = STATE_FAILED;
+			}
+			latch.countDown();
+		}
+	}
+}
@@ -0,0 +1,181 @@
+/*
+   Copyright [2015] [Yao Yuan(yeaya@163.com)]
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.yeaya.xixibase.xixiclient.network;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The direct buffers of the sockets.
+ * <p>
+ * A socket borrows its read and write buffers when a request starts and gives them
+ * back when the socket goes back to its pool, so an idle socket holds no buffer.
+ * The buffers are kept in size classes, the powers of two from <tt>MIN_SIZE</tt> to
+ * <tt>MAX_SIZE</tt>, a borrowed buffer has the capacity of its class. Larger buffers
+ * are allocated on each borrow and dropped on release. At most <tt>maxIdleBytes</tt>
+ * of idle buffers are kept.
+ *
+ * @author Yao Yuan
+ *
+ */
+public class BufferArena {
+	public static final int MIN_SIZE = 1024;
+	public static final int MAX_SIZE = 1024 * 1024;
+	private static final int MIN_SHIFT = 10;
+
+	private final long maxIdleBytes;
+	private final List<ConcurrentLinkedQueue<ByteBuffer>> classes;
+	private final AtomicLong idleBytes = new AtomicLong(0);
+	private final AtomicInteger idleCount = new AtomicInteger(0);
+	private final AtomicInteger borrowedCount = new AtomicInteger(0);
+
+	private final LongAdder borrowCount = new LongAdder();
+	private final LongAdder allocateCount = new LongAdder();
+	private final LongAdder dropCount = new LongAdder();
+
+	public BufferArena(long maxIdleBytes) {
+		this.maxIdleBytes = maxIdleBytes;
+		int count = getClassIndex(MAX_SIZE) + 1;
+		classes = new ArrayList<ConcurrentLinkedQueue<ByteBuffer>>(count);
+		for (int i = 0; i < count; i++) {
+			classes.add(new ConcurrentLinkedQueue<ByteBuffer>());
+		}
+	}
+
+	private static int getClassIndex(int size) {
+		if (size <= MIN_SIZE) {
+			return 0;
+		}
+		return 32 - Integer.numberOfLeadingZeros(size - 1) - MIN_SHIFT;
+	}
+
+	/**
+	 * Borrow one cleared direct buffer.
+	 * @param size the min capacity of the buffer
+	 * @return buffer
+	 */
+	public ByteBuffer borrow(int size) {
+		borrowCount.increment();
+		borrowedCount.incrementAndGet();
+		if (size > MAX_SIZE) {
+			allocateCount.increment();
+			return ByteBuffer.allocateDirect(size);
+		}
+		int index = getClassIndex(size);
+		ByteBuffer buf = classes.get(index).poll();
+		if (buf == null) {
+			allocateCount.increment();
+			return ByteBuffer.allocateDirect(MIN_SIZE << index);
+		}
+		idleCount.decrementAndGet();
+		idleBytes.addAndGet(-buf.capacity());
+		buf.clear();
+		return buf;
+	}
+
+	/**
+	 * Give back one buffer returned by <tt>borrow</tt>, its content is dropped.
+	 * @param buf
+	 */
+	public void release(ByteBuffer buf) {
+		borrowedCount.decrementAndGet();
+		int capacity = buf.capacity();
+		if (!buf.isDirect() || capacity > MAX_SIZE || capacity < MIN_SIZE
+				|| Integer.bitCount(capacity) != 1) {
+			dropCount.increment();
+			return;
+		}
+		if (idleBytes.addAndGet(capacity) > maxIdleBytes) {
+			idleBytes.addAndGet(-capacity);
+			dropCount.increment();
+			return;
+		}
+		idleCount.incrementAndGet();
+		classes.get(getClassIndex(capacity)).offer(buf);
+	}
+
+	/**
+	 * Give back one buffer returned by <tt>borrow</tt> without keeping it, for a buffer
+	 * which may still be used by another thread.
+	 * @param buf
+	 */
+	public void discard(ByteBuffer buf) {
+		borrowedCount.decrementAndGet();
+		dropCount.increment();
+	}
+
+	/**
+	 * Get the max number of bytes of the idle buffers.
+	 * @return max idle bytes
+	 */
+	public long getMaxIdleBytes() {
+		return maxIdleBytes;
+	}
+
+	/**
+	 * Get the number of idle buffers.
+	 * @return the number of idle buffers
+	 */
+	public int getIdleCount() {
+		return idleCount.get();
+	}
+
+	/**
+	 * Get the number of bytes of the idle buffers.
+	 * @return idle bytes
+	 */
+	public long getIdleBytes() {
+		return idleBytes.get();
+	}
+
+	/**
+	 * Get the number of buffers which are borrowed now.
+	 * @return the number of borrowed buffers
+	 */
+	public int getBorrowedCount() {
+		return borrowedCount.get();
+	}
+
+	/**
+	 * Get the number of borrows.
+	 * @return the number of borrows
+	 */
+	public long getBorrowCount() {
+		return borrowCount.sum();
+	}
+
+	/**
+	 * Get the number of borrows which allocated a new buffer.
+	 * @return the number of allocations
+	 */
+	public long getAllocateCount() {
+		return allocateCount.sum();
+	}
+
+	/**
+	 * Get the number of released buffers which were not kept.
+	 * @return the number of dropped buffers
+	 */
+	public long getDropCount() {
+		return dropCount.sum();
+	}
+}
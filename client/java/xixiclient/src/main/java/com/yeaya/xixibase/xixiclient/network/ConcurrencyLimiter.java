@@ -0,0 +1,177 @@
+/*
+   Copyright [2015] [Yao Yuan(yeaya@163.com)]
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.yeaya.xixibase.xixiclient.network;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The adaptive limit of the requests in flight to one host.
+ * <p>
+ * A request which would exceed the limit is rejected at once, so a slow host does
+ * not collect requests until they time out. The limit follows the response time:
+ * a short and a long moving average of the response time are kept, and while the
+ * short one stays within <tt>TOLERANCE</tt> times the long one the limit grows,
+ * when the host slows down the limit shrinks in proportion (the gradient algorithm).
+ * A failed request halves the limit. The limit only grows while the requests use
+ * at least half of it.
+ * <p>
+ * A blocking request takes a permit when it borrows a socket and gives it back when
+ * the socket is closed, a batch takes one permit per host. Only a single request and
+ * response gives a response time: a stream, a noreply or auto batch and a batch give
+ * none, their sizes make them not comparable. The long poll of a local cache watch
+ * takes no permit, it would hold it for the whole poll.
+ *
+ * @author Yao Yuan
+ *
+ */
+public class ConcurrencyLimiter {
+	private static final double TOLERANCE = 1.5;
+	private static final double SMOOTHING = 0.2;
+	private static final int SHORT_WINDOW = 10;
+	private static final int LONG_WINDOW = 500;
+
+	private final String host;
+	private final int minLimit;
+	private final int maxLimit;
+	private final AtomicInteger inFlight = new AtomicInteger(0);
+	private volatile double limit;
+	private double shortRtt = 0;
+	private double longRtt = 0;
+	private final ReentrantLock lock = new ReentrantLock();
+
+	private final LongAdder rejectedCount = new LongAdder();
+	private final LongAdder dropCount = new LongAdder();
+
+	public ConcurrencyLimiter(String host, int initialLimit, int minLimit, int maxLimit) {
+		this.host = host;
+		this.minLimit = Math.max(1, minLimit);
+		this.maxLimit = Math.max(this.minLimit, maxLimit);
+		this.limit = Math.max(this.minLimit, Math.min(this.maxLimit, initialLimit));
+	}
+
+	public String getHost() {
+		return host;
+	}
+
+	/**
+	 * Get the current limit.
+	 * @return the max number of requests in flight
+	 */
+	public int getLimit() {
+		return (int) limit;
+	}
+
+	/**
+	 * Get the number of requests in flight.
+	 * @return the number of requests in flight
+	 */
+	public int getInFlight() {
+		return inFlight.get();
+	}
+
+	/**
+	 * Get the number of rejected requests.
+	 * @return the number of rejected requests
+	 */
+	public long getRejectedCount() {
+		return rejectedCount.sum();
+	}
+
+	/**
+	 * Get the number of failed requests.
+	 * @return the number of failed requests
+	 */
+	public long getDropCount() {
+		return dropCount.sum();
+	}
+
+	/**
+	 * Take one permit.
+	 * @return <tt>false</tt> if the limit is reached, the request must not be sent
+	 */
+	public boolean tryAcquire() {
+		while (true) {
+			int n = inFlight.get();
+			if (n >= (int) limit) {
+				rejectedCount.increment();
+				return false;
+			}
+			if (inFlight.compareAndSet(n, n + 1)) {
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Give back one permit of a request which was not sent.
+	 */
+	public void cancel() {
+		inFlight.decrementAndGet();
+	}
+
+	/**
+	 * Give back one permit of a request which succeeded.
+	 * @param rtt response time(nanosecond), negative if not measured
+	 */
+	public void onSuccess(long rtt) {
+		int n = inFlight.getAndDecrement();
+		if (rtt < 0) {
+			return;
+		}
+		lock.lock();
+		try {
+			if (longRtt == 0) {
+				shortRtt = rtt;
+				longRtt = rtt;
+				return;
+			}
+			shortRtt += (rtt - shortRtt) / SHORT_WINDOW;
+			longRtt += (rtt - longRtt) / LONG_WINDOW;
+			// the host recovered from a slowdown, the long average comes down faster
+			// so that the limit grows back
+			if (longRtt > 2 * shortRtt) {
+				longRtt *= 0.95;
+			}
+			double gradient = Math.max(0.5, Math.min(1.0, TOLERANCE * longRtt / shortRtt));
+			if (gradient == 1.0 && n * 2 < limit) {
+				return;
+			}
+			double queueSize = Math.sqrt(limit);
+			double newLimit = limit * gradient + queueSize;
+			newLimit = limit * (1 - SMOOTHING) + newLimit * SMOOTHING;
+			limit = Math.max(minLimit, Math.min(maxLimit, newLimit));
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Give back one permit of a request which failed or timed out.
+	 */
+	public void onDrop() {
+		inFlight.decrementAndGet();
+		dropCount.increment();
+		lock.lock();
+		try {
+			limit = Math.max(minLimit, limit / 2);
+		} finally {
+			lock.unlock();
+		}
+	}
+}
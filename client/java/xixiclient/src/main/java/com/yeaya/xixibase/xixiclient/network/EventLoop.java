@@ -0,0 +1,255 @@
+/*
+   Copyright [2015] [Yao Yuan(yeaya@163.com)]
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.yeaya.xixibase.xixiclient.network;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.yeaya.xixibase.xixiclient.AsyncHandle;
+
+/**
+ * One long-lived selector thread which runs the batch operations.
+ * <p>
+ * The sockets of an event loop are non-blocking and stay registered with its selector
+ * for their whole life. Between batches a socket waits in the idle list of its host,
+ * only interested in read, which means the server closed it.
+ *
+ * @author Yao Yuan
+ *
+ */
+public class EventLoop extends Thread {
+	final static Logger log = LoggerFactory.getLogger(EventLoop.class);
+
+	private final SocketManager manager;
+	private final Selector selector;
+	private final ConcurrentLinkedQueue<Runnable> taskQueue = new ConcurrentLinkedQueue<Runnable>();
+	private final ConcurrentHashMap<String, ConcurrentLinkedQueue<XixiSocket>> idleSockets =
+			new ConcurrentHashMap<String, ConcurrentLinkedQueue<XixiSocket>>();
+	private volatile boolean running = true;
+
+	public EventLoop(SocketManager manager, String name) throws IOException {
+		super(name);
+		setDaemon(true);
+		this.manager = manager;
+		this.selector = Selector.open();
+	}
+
+	public final Selector getSelector() {
+		return selector;
+	}
+
+	final SocketManager getManager() {
+		return manager;
+	}
+
+	/**
+	 * Run the task on the event loop thread.
+	 * @param task
+	 */
+	public void execute(Runnable task) {
+		if (!running) {
+			task.run();
+			return;
+		}
+		taskQueue.add(task);
+		selector.wakeup();
+	}
+
+	/**
+	 * Get the number of idle sockets.
+	 * @return the number of idle sockets
+	 */
+	public int getIdleSocketCount() {
+		int count = 0;
+		for (ConcurrentLinkedQueue<XixiSocket> idle : idleSockets.values()) {
+			count += idle.size();
+		}
+		return count;
+	}
+
+	private ConcurrentLinkedQueue<XixiSocket> getIdleSockets(String host) {
+		ConcurrentLinkedQueue<XixiSocket> idle = idleSockets.get(host);
+		if (idle == null) {
+			idle = new ConcurrentLinkedQueue<XixiSocket>();
+			ConcurrentLinkedQueue<XixiSocket> old = idleSockets.putIfAbsent(host, idle);
+			if (old != null) {
+				idle = old;
+			}
+		}
+		return idle;
+	}
+
+	/**
+	 * Take one idle socket of the host, or connect a new one.
+	 * It may be called by any thread.
+	 *
+	 * @param host
+	 * @param connectTimeout connect timeout(millisecond)
+	 * @return non-blocking socket, or <tt>null</tt> if failed to connect the host
+	 */
+	XixiSocket acquireSocket(String host, int connectTimeout) {
+		XixiSocket socket = getIdleSockets(host).poll();
+		if (socket == null) {
+			socket = manager.createSocket(host, manager.getSocketWriteBufferSize(), connectTimeout);
+			if (socket != null) {
+				try {
+					socket.configureBlocking(false);
+				} catch (IOException e) {
+					log.error("acquireSocket, failed to configure socket, host=" + host + " e=" + e);
+					socket.trueClose();
+					socket = null;
+				}
+			}
+		}
+		return socket;
+	}
+
+	/**
+	 * Put one socket back to the idle list after its batch finished.
+	 * It must be called on the event loop thread.
+	 *
+	 * @param socket
+	 */
+	void releaseSocket(XixiSocket socket) {
+		socket.releaseBuffers();
+		ConcurrentLinkedQueue<XixiSocket> idle = getIdleSockets(socket.getHost());
+		if (running && idle.size() < manager.getMaxActiveConn()) {
+			try {
+				socket.setLastActiveTime(System.currentTimeMillis());
+				socket.register(selector, SelectionKey.OP_READ, new IdleHandle(socket));
+				idle.add(socket);
+				return;
+			} catch (Exception e) {
+				log.warn("releaseSocket, e=" + e);
+			}
+		}
+		socket.trueClose();
+	}
+
+	/**
+	 * Close the sockets which are idle for more than <tt>inactiveSocketTimeout</tt>.
+	 */
+	void maintain(final long currTime, final int inactiveSocketTimeout) {
+		execute(new Runnable() {
+			public void run() {
+				for (ConcurrentLinkedQueue<XixiSocket> idle : idleSockets.values()) {
+					Iterator<XixiSocket> it = idle.iterator();
+					while (it.hasNext()) {
+						XixiSocket socket = it.next();
+						if (socket.getLastActiveTime() + inactiveSocketTimeout < currTime
+								&& idle.remove(socket)) {
+							socket.trueClose();
+						}
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * Stop the event loop and close its idle sockets.
+	 */
+	public void shutdown() {
+		running = false;
+		selector.wakeup();
+	}
+
+	public void run() {
+		while (running) {
+			try {
+				selector.select(1000);
+				runTasks();
+				Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+				while (it.hasNext()) {
+					SelectionKey key = it.next();
+					it.remove();
+					handleKey(key);
+				}
+			} catch (Exception e) {
+				log.error("event loop, e=" + e);
+			}
+		}
+		runTasks();
+		for (ConcurrentLinkedQueue<XixiSocket> idle : idleSockets.values()) {
+			XixiSocket socket = idle.poll();
+			while (socket != null) {
+				socket.trueClose();
+				socket = idle.poll();
+			}
+		}
+		try {
+			selector.close();
+		} catch (IOException e) {
+			log.warn("event loop, close selector e=" + e);
+		}
+	}
+
+	private void runTasks() {
+		Runnable task = taskQueue.poll();
+		while (task != null) {
+			try {
+				task.run();
+			} catch (Exception e) {
+				log.error("event loop, task e=" + e);
+			}
+			task = taskQueue.poll();
+		}
+	}
+
+	private void handleKey(SelectionKey key) {
+		XixiSocket socket = (XixiSocket) key.attachment();
+		try {
+			if (key.isValid()) {
+				if (key.isReadable()) {
+					socket.handleRead();
+				} else if (key.isWritable()) {
+					socket.handleWrite();
+				}
+			}
+		} catch (Exception e) {
+			log.error("event loop, host=" + socket.getHost() + " e=" + e);
+			key.cancel();
+		}
+	}
+
+	private final class IdleHandle implements AsyncHandle {
+		private final XixiSocket socket;
+
+		IdleHandle(XixiSocket socket) {
+			this.socket = socket;
+		}
+
+		public boolean onRead() {
+			// the server closed an idle socket
+			if (getIdleSockets(socket.getHost()).remove(socket)) {
+				socket.trueClose();
+			}
+			return true;
+		}
+
+		public boolean onWrite() {
+			return false;
+		}
+	}
+}
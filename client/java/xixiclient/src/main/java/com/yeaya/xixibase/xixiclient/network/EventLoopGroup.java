@@ -0,0 +1,88 @@
+/*
+   Copyright [2015] [Yao Yuan(yeaya@163.com)]
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.yeaya.xixibase.xixiclient.network;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A fixed group of event loops, batches are spread over them in turn.
+ *
+ * @author Yao Yuan
+ *
+ */
+public class EventLoopGroup {
+	private final EventLoop[] loops;
+	private final AtomicInteger nextIndex = new AtomicInteger(0);
+
+	public EventLoopGroup(SocketManager manager, int count) throws IOException {
+		loops = new EventLoop[count > 0 ? count : 1];
+		try {
+			for (int i = 0; i < loops.length; i++) {
+				loops[i] = new EventLoop(manager, "xixi-event-loop-" + i);
+			}
+		} catch (IOException e) {
+			shutdown();
+			throw e;
+		}
+		for (int i = 0; i < loops.length; i++) {
+			loops[i].start();
+		}
+	}
+
+	/**
+	 * Get the next event loop.
+	 * @return event loop
+	 */
+	public EventLoop next() {
+		return loops[(nextIndex.getAndIncrement() & 0x7FFFFFFF) % loops.length];
+	}
+
+	/**
+	 * Create one batch on the next event loop.
+	 * @return batch
+	 */
+	public AsyncBatch createBatch() {
+		return new AsyncBatch(next());
+	}
+
+	/**
+	 * Get the number of idle sockets of all the event loops.
+	 * @return the number of idle sockets
+	 */
+	public int getIdleSocketCount() {
+		int count = 0;
+		for (int i = 0; i < loops.length; i++) {
+			count += loops[i].getIdleSocketCount();
+		}
+		return count;
+	}
+
+	void maintain(long currTime, int inactiveSocketTimeout) {
+		for (int i = 0; i < loops.length; i++) {
+			loops[i].maintain(currTime, inactiveSocketTimeout);
+		}
+	}
+
+	public void shutdown() {
+		for (int i = 0; i < loops.length; i++) {
+			if (loops[i] != null) {
+				loops[i].shutdown();
+			}
+		}
+	}
+}
@@ -0,0 +1,179 @@
+/*
+   Copyright [2015] [Yao Yuan(yeaya@163.com)]
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.yeaya.xixibase.xixiclient.network;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The health of one host.
+ * <p>
+ * A host is down after <tt>failureThreshold</tt> connects in a row failed. While it is
+ * down no socket is created for it, the callers fail at once instead of waiting for
+ * the connect timeout. The maintain thread probes a down host, the interval between
+ * two probes doubles after each failed probe, up to <tt>maxProbeInterval</tt>.
+ * <p>
+ * It also keeps a moving average of the response time of the host, which picks the
+ * replica a replicated key is read from.
+ *
+ * @author Yao Yuan
+ *
+ */
+public class HostHealth {
+	private final String host;
+	private final AtomicInteger failures = new AtomicInteger(0);
+	private volatile boolean down = false;
+	private volatile long nextProbeTime = 0;
+	private long probeInterval = 0;
+	private final ReentrantLock lock = new ReentrantLock();
+	private volatile long latency = 0;
+	private static final int LATENCY_WEIGHT = 8;
+
+	private final LongAdder downCount = new LongAdder();
+	private final LongAdder failFastCount = new LongAdder();
+	private final LongAdder probeCount = new LongAdder();
+
+	public HostHealth(String host) {
+		this.host = host;
+	}
+
+	public String getHost() {
+		return host;
+	}
+
+	/**
+	 * Is the host down?
+	 * @return <tt>true</tt> if the host is down
+	 */
+	public boolean isDown() {
+		return down;
+	}
+
+	/**
+	 * Get the number of failed connects since the last success.
+	 * @return the number of consecutive failures
+	 */
+	public int getConsecutiveFailures() {
+		return failures.get();
+	}
+
+	/**
+	 * Get the number of times the host went down.
+	 * @return the number of times the host went down
+	 */
+	public long getDownCount() {
+		return downCount.sum();
+	}
+
+	/**
+	 * Get the number of connects refused because the host is down.
+	 * @return the number of fast failures
+	 */
+	public long getFailFastCount() {
+		return failFastCount.sum();
+	}
+
+	/**
+	 * Get the number of probes.
+	 * @return the number of probes
+	 */
+	public long getProbeCount() {
+		return probeCount.sum();
+	}
+
+	/**
+	 * Get the moving average of the response time.
+	 * @return response time(nanosecond), 0 if no response was timed yet
+	 */
+	public long getLatency() {
+		return latency;
+	}
+
+	/**
+	 * Record the response time of one request. Concurrent updates may lose a
+	 * sample, which does not matter for an average.
+	 * @param nanos response time(nanosecond)
+	 */
+	public void recordLatency(long nanos) {
+		long old = latency;
+		latency = old == 0 ? Math.max(nanos, 1) : old + (nanos - old) / LATENCY_WEIGHT;
+	}
+
+	void failFast() {
+		failFastCount.increment();
+	}
+
+	/**
+	 * Record one failed connect.
+	 * @return <tt>true</tt> if the host goes down now
+	 */
+	boolean onFailure(int failureThreshold, long currTime, long initProbeInterval) {
+		lock.lock();
+		try {
+			int count = failures.incrementAndGet();
+			if (down || failureThreshold <= 0 || count < failureThreshold) {
+				return false;
+			}
+			down = true;
+			probeInterval = initProbeInterval;
+			nextProbeTime = currTime + probeInterval;
+			downCount.increment();
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Record one successful connect.
+	 * @return <tt>true</tt> if the host was down
+	 */
+	boolean onSuccess() {
+		if (failures.get() == 0 && !down) {
+			return false;
+		}
+		lock.lock();
+		try {
+			failures.set(0);
+			boolean wasDown = down;
+			down = false;
+			return wasDown;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	boolean isProbeTime(long currTime) {
+		return down && currTime >= nextProbeTime;
+	}
+
+	void onProbeFailed(long currTime, long maxProbeInterval) {
+		lock.lock();
+		try {
+			probeCount.increment();
+			probeInterval = Math.min(probeInterval * 2, maxProbeInterval);
+			nextProbeTime = currTime + probeInterval;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	void onProbeSucceeded() {
+		probeCount.increment();
+	}
+}
@@ -0,0 +1,86 @@
+/*
+   Copyright [2015] [Yao Yuan(yeaya@163.com)]
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.yeaya.xixibase.xixiclient.network;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * One request sent over a {@link PipelinedSocket}.
+ * <p>
+ * Everything that can fail for reasons other than I/O (key and value encoding)
+ * must be done before the request is sent, so that <tt>encode</tt> and
+ * <tt>decode</tt> always keep the stream in sync with the pending queue.
+ *
+ * @author Yao Yuan
+ *
+ */
+public abstract class PipelinedRequest<T> {
+	private final CompletableFuture<T> future = new CompletableFuture<T>();
+
+	/**
+	 * Get the future completed with the response of this request.
+	 * @return future of this request
+	 */
+	public CompletableFuture<T> getFuture() {
+		return future;
+	}
+
+	/**
+	 * Get the size of the fixed header which <tt>encode</tt> puts into the write buffer.
+	 * Variable length parts (key, data) must be written by <tt>XixiSocket.write</tt>.
+	 * @return header size
+	 */
+	protected abstract int getHeaderSize();
+
+	/**
+	 * Write this request into the socket, without flush.
+	 * @param socket
+	 * @throws IOException
+	 */
+	protected abstract void encode(XixiSocket socket) throws IOException;
+
+	/**
+	 * Read the body of the response which category and type were already read.
+	 * An error response (category and type are <tt>XIXI_CATEGORY_COMMON</tt>/<tt>XIXI_TYPE_ERROR</tt>)
+	 * must consume its reason too.
+	 * @param socket
+	 * @param category
+	 * @param type
+	 * @return the value to complete the future with
+	 * @throws IOException if the stream is broken
+	 */
+	protected abstract T decode(XixiSocket socket, byte category, byte type) throws IOException;
+
+	final void onResponse(XixiSocket socket, byte category, byte type) throws IOException {
+		T value;
+		try {
+			value = decode(socket, category, type);
+		} catch (IOException e) {
+			future.completeExceptionally(e);
+			throw e;
+		} catch (RuntimeException e) {
+			future.completeExceptionally(e);
+			return;
+		}
+		future.complete(value);
+	}
+
+	final void onFailure(Throwable cause) {
+		future.completeExceptionally(cause);
+	}
+}
@@ -0,0 +1,186 @@
+/*
+   Copyright [2015] [Yao Yuan(yeaya@163.com)]
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.yeaya.xixibase.xixiclient.network;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A connection which carries many requests at the same time.
+ * <p>
+ * Requests are written in the order they are sent, and the server answers them
+ * in the same order, so a response always belongs to the oldest pending request.
+ * Senders never block on the network for a response: whichever sender finds the
+ * connection idle writes all queued requests and flushes once, and a reader thread
+ * completes the pending requests as their responses arrive.
+ * <p>
+ * Futures are completed on the reader thread, dependent actions which may block
+ * should use the <tt>*Async</tt> methods of <tt>CompletableFuture</tt>.
+ *
+ * @author Yao Yuan
+ *
+ */
+public class PipelinedSocket implements Runnable {
+	final static Logger log = LoggerFactory.getLogger(PipelinedSocket.class);
+
+	private final XixiSocket socket;
+	private final ConcurrentLinkedQueue<PipelinedRequest<?>> sendQueue = new ConcurrentLinkedQueue<PipelinedRequest<?>>();
+	private final ConcurrentLinkedQueue<PipelinedRequest<?>> pendingQueue = new ConcurrentLinkedQueue<PipelinedRequest<?>>();
+	private final AtomicBoolean writing = new AtomicBoolean(false);
+	private final AtomicInteger pendingCount = new AtomicInteger(0);
+	private volatile boolean closed = false;
+	private volatile IOException closeCause;
+	private Thread reader;
+
+	/**
+	 * Create a <tt>PipelinedSocket</tt> over a connected socket, the socket is owned
+	 * by this object and is never returned to the socket pool.
+	 * @param socket connected socket
+	 */
+	public PipelinedSocket(XixiSocket socket) {
+		this.socket = socket;
+		reader = new Thread(this, "xixi-pipeline-" + socket.getHost());
+		reader.setDaemon(true);
+		reader.start();
+	}
+
+	public String getHost() {
+		return socket.getHost();
+	}
+
+	public boolean isClosed() {
+		return closed;
+	}
+
+	/**
+	 * Get the number of requests sent but not answered yet.
+	 * @return the number of pending requests
+	 */
+	public int getPendingCount() {
+		return pendingCount.get();
+	}
+
+	/**
+	 * Send one request.
+	 * @param request
+	 * @return the future of the request
+	 */
+	public <T> CompletableFuture<T> send(PipelinedRequest<T> request) {
+		pendingCount.incrementAndGet();
+		sendQueue.add(request);
+		if (closed) {
+			failAll();
+		} else {
+			drain();
+		}
+		return request.getFuture();
+	}
+
+	private void drain() {
+		while (!sendQueue.isEmpty() && writing.compareAndSet(false, true)) {
+			try {
+				ByteBuffer writeBuffer = socket.getWriteBuffer();
+				PipelinedRequest<?> request = sendQueue.poll();
+				while (request != null) {
+					if (writeBuffer.remaining() < request.getHeaderSize()) {
+						socket.flush();
+					}
+					pendingQueue.add(request);
+					request.encode(socket);
+					request = sendQueue.poll();
+				}
+				socket.flush();
+			} catch (IOException e) {
+				close(e);
+			} catch (RuntimeException e) {
+				// the socket was closed by the reader thread
+				close(new IOException("pipelined write failed, host=" + socket.getHost(), e));
+			} finally {
+				writing.set(false);
+			}
+			if (closed) {
+				failAll();
+				return;
+			}
+		}
+	}
+
+	public void run() {
+		try {
+			while (!closed) {
+				byte category = socket.readByte();
+				byte type = socket.readByte();
+				PipelinedRequest<?> request = pendingQueue.poll();
+				if (request == null) {
+					throw new IOException("unexpected response, category=" + category + " type=" + type);
+				}
+				pendingCount.decrementAndGet();
+				request.onResponse(socket, category, type);
+			}
+		} catch (IOException e) {
+			if (!closed) {
+				log.error("pipelined read failed, host=" + socket.getHost() + " e=" + e);
+			}
+			close(e);
+		} catch (RuntimeException e) {
+			// the socket was closed by a writer
+			close(new IOException("pipelined read failed, host=" + socket.getHost(), e));
+		}
+	}
+
+	/**
+	 * Close the connection and fail all the pending requests.
+	 */
+	public void close() {
+		close(new IOException("pipelined socket closed, host=" + socket.getHost()));
+	}
+
+	private void close(IOException cause) {
+		synchronized (this) {
+			if (closed) {
+				return;
+			}
+			closeCause = cause;
+			closed = true;
+		}
+		socket.trueClose();
+		failAll();
+	}
+
+	private void failAll() {
+		IOException cause = closeCause;
+		PipelinedRequest<?> request = pendingQueue.poll();
+		while (request != null) {
+			pendingCount.decrementAndGet();
+			request.onFailure(cause);
+			request = pendingQueue.poll();
+		}
+		request = sendQueue.poll();
+		while (request != null) {
+			pendingCount.decrementAndGet();
+			request.onFailure(cause);
+			request = sendQueue.poll();
+		}
+	}
+}
@@ -0,0 +1,100 @@
+/*
+   Copyright [2015] [Yao Yuan(yeaya@163.com)]
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.yeaya.xixibase.xixiclient.network;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The net buffers of the SSL sockets.
+ * <p>
+ * An SSL socket borrows its packet and application buffers only while it reads or
+ * writes and gives them back when they are empty, so an idle SSL socket holds no
+ * buffer. At most <tt>maxCount</tt> buffers of each size are kept.
+ *
+ * @author Yao Yuan
+ *
+ */
+class SSLBufferPool {
+	private final int maxCount;
+	private final ConcurrentHashMap<Integer, Queue> queues = new ConcurrentHashMap<Integer, Queue>();
+
+	SSLBufferPool(int maxCount) {
+		this.maxCount = maxCount;
+	}
+
+	private Queue getQueue(int size) {
+		Integer key = Integer.valueOf(size);
+		Queue queue = queues.get(key);
+		if (queue == null) {
+			queue = new Queue();
+			Queue old = queues.putIfAbsent(key, queue);
+			if (old != null) {
+				queue = old;
+			}
+		}
+		return queue;
+	}
+
+	/**
+	 * Borrow one cleared buffer.
+	 * @param size capacity of the buffer
+	 * @return buffer
+	 */
+	ByteBuffer borrow(int size) {
+		Queue queue = getQueue(size);
+		ByteBuffer buf = queue.buffers.poll();
+		if (buf == null) {
+			return ByteBuffer.allocate(size);
+		}
+		queue.count.decrementAndGet();
+		buf.clear();
+		return buf;
+	}
+
+	/**
+	 * Give back one buffer, its content is dropped.
+	 * @param buf
+	 */
+	void release(ByteBuffer buf) {
+		Queue queue = getQueue(buf.capacity());
+		if (queue.count.incrementAndGet() <= maxCount) {
+			queue.buffers.offer(buf);
+		} else {
+			queue.count.decrementAndGet();
+		}
+	}
+
+	/**
+	 * Get the number of kept buffers.
+	 * @return the number of kept buffers
+	 */
+	int getIdleCount() {
+		int count = 0;
+		for (Queue queue : queues.values()) {
+			count += queue.count.get();
+		}
+		return count;
+	}
+
+	private static final class Queue {
+		final ConcurrentLinkedQueue<ByteBuffer> buffers = new ConcurrentLinkedQueue<ByteBuffer>();
+		final AtomicInteger count = new AtomicInteger(0);
+	}
+}
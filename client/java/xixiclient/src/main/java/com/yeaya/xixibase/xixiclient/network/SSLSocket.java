@@ -16,37 +16,55 @@
 
 package com.yeaya.xixibase.xixiclient.network;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
 import java.security.KeyManagementException;
 import java.security.NoSuchAlgorithmException;
 import java.util.Iterator;
 
+import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLEngine;
 import javax.net.ssl.SSLEngineResult;
 import javax.net.ssl.SSLException;
 import javax.net.ssl.SSLSession;
 
 import com.yeaya.xixibase.xixiclient.AsyncHandle;
-import com.yeaya.xixibase.xixiclient.ObjectTransCoder;
 
 public class SSLSocket implements XixiSocket {
 	private SocketManager manager;
 	private String host;
 	private Socket socket;
 	private SocketChannel socketChannel;
-	private ByteBuffer readBuffer;
+	// borrowed from the buffer arena of the manager while a request runs
+	private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+	private static final int READ_BUFFER_SIZE = 8 * 1024;
+	private final BufferArena bufferArena;
+	private final int writeBufferSize;
+	private ByteBuffer readBuffer = EMPTY;
 	private ByteBuffer writeBuffer;
 	private long lastActiveTime;
-
-	// SSL
+	private long borrowTime;
+	private SocketPool pool;
+	private ConcurrencyLimiter limiter;
+	// the deadline(System.nanoTime) of the current request, 0 for none
+	private long deadline;
+	private int pendingReplies;
+
+	// SSL, the net buffers are borrowed from the buffer pool of the manager while they are in use
 	private SSLEngine engine;
+	private SSLBufferPool bufferPool;
+	private int packetBufferSize;
+	private int appBufferSize;
 	private ByteBuffer peerAppData;
 	private ByteBuffer peerNetData;
 	private ByteBuffer myNetData;
@@ -63,20 +81,13 @@ public class SSLSocket implements XixiSocket {
 
 		this.manager = manager;
 		this.host = host;
+		this.bufferArena = manager.getBufferArena();
+		this.writeBufferSize = writeBufferSize;
 
 		String[] ip = host.split(":");
-
-		if (ip.length >= 2) {
-			socket = createSocket(ip[0].trim(), Integer.parseInt(ip[1].trim()),
-					connectTimeout);
-		} else {
-			socket = createSocket(ip[0].trim(), manager.getDefaultPort(),
-					connectTimeout);
-		}
-
-		readBuffer = ByteBuffer.allocateDirect(8 * 1024);
-		readBuffer.flip();
-		writeBuffer = ByteBuffer.allocateDirect(writeBufferSize);
+		String peerHost = ip[0].trim();
+		int peerPort = ip.length >= 2 ? Integer.parseInt(ip[1].trim()) : manager.getDefaultPort();
+		socket = createSocket(peerHost, peerPort, connectTimeout);
 
 		if (timeout >= 0) {
 			socket.setSoTimeout(timeout);
@@ -93,7 +104,13 @@ public class SSLSocket implements XixiSocket {
 			socket = null;
 			throw new IOException("Can not getChannel for host:" + host);
 		}
-		initSSL(timeout);
+		try {
+			initSSL(peerHost, peerPort, timeout);
+		} catch (IOException e) {
+			releaseNetBuffers();
+			socket.close();
+			throw e;
+		}
 	}
 
 	static class myTM implements javax.net.ssl.TrustManager,
@@ -125,27 +142,33 @@ public class SSLSocket implements XixiSocket {
 		}
 	}
 
-	private void initSSL(int timeout) throws NoSuchAlgorithmException,
-			KeyManagementException, IOException {
+	/**
+	 * Create the SSL context of a manager, it trusts any server.
+	 */
+	static SSLContext createSSLContext() throws NoSuchAlgorithmException,
+			KeyManagementException {
 		javax.net.ssl.TrustManager[] trustManagers = new javax.net.ssl.TrustManager[1];
 		javax.net.ssl.TrustManager tm = new myTM();
 		trustManagers[0] = tm;
-		javax.net.ssl.SSLContext sslContext = javax.net.ssl.SSLContext
-				.getInstance("TLS");
+		SSLContext sslContext = SSLContext.getInstance("TLS");
 		sslContext.init(null, trustManagers, null);
+		return sslContext;
+	}
 
-		engine = sslContext.createSSLEngine();
+	private void initSSL(String peerHost, int peerPort, int timeout) throws NoSuchAlgorithmException,
+			KeyManagementException, IOException {
+		// the engine knows the peer, so the session cache of the shared context can resume the session
+		engine = manager.getSSLContext().createSSLEngine(peerHost, peerPort);
 		engine.setUseClientMode(true);
 		engine.setWantClientAuth(false);
 		engine.setNeedClientAuth(false);
 
 		SSLSession session = engine.getSession();
-		peerNetData = ByteBuffer.allocate(session.getPacketBufferSize());
-		peerAppData = ByteBuffer.allocate(session.getApplicationBufferSize());
-		myNetData = ByteBuffer.allocate(session.getPacketBufferSize());
-
-		peerAppData.position(peerAppData.limit());
-		myNetData.position(myNetData.limit());
+		bufferPool = manager.getSSLBufferPool();
+		packetBufferSize = session.getPacketBufferSize();
+		appBufferSize = session.getApplicationBufferSize();
+		borrowReadBuffers();
+		borrowWriteBuffer();
 
 		engine.beginHandshake();
 		hsStatus = engine.getHandshakeStatus();
@@ -153,6 +176,68 @@ public class SSLSocket implements XixiSocket {
 		socketChannel.configureBlocking(false);
 		startSSLHandshake(timeout);
 		socketChannel.configureBlocking(true);
+		releaseIdleReadBuffers();
+		releaseIdleWriteBuffer();
+	}
+
+	private void borrowReadBuffers() {
+		if (peerNetData == null) {
+			peerNetData = bufferPool.borrow(packetBufferSize);
+		}
+		if (peerAppData == null) {
+			peerAppData = bufferPool.borrow(appBufferSize);
+			peerAppData.position(peerAppData.limit());
+		}
+	}
+
+	private void borrowWriteBuffer() {
+		if (myNetData == null) {
+			myNetData = bufferPool.borrow(packetBufferSize);
+			myNetData.position(myNetData.limit());
+		}
+	}
+
+	// give back the buffers which hold nothing, a record which is not read or written yet stays.
+	// The read and write sides are released apart, a pipelined socket reads and writes in two threads
+	private void releaseIdleReadBuffers() {
+		if (SSLHandshaking) {
+			return;
+		}
+		if (peerAppData != null && !peerAppData.hasRemaining()
+				&& peerNetData.position() == 0) {
+			bufferPool.release(peerAppData);
+			bufferPool.release(peerNetData);
+			peerAppData = null;
+			peerNetData = null;
+		}
+	}
+
+	private void releaseIdleWriteBuffer() {
+		if (SSLHandshaking) {
+			return;
+		}
+		if (myNetData != null && !myNetData.hasRemaining()) {
+			bufferPool.release(myNetData);
+			myNetData = null;
+		}
+	}
+
+	private void releaseNetBuffers() {
+		if (bufferPool == null) {
+			return;
+		}
+		if (peerAppData != null) {
+			bufferPool.release(peerAppData);
+			peerAppData = null;
+		}
+		if (peerNetData != null) {
+			bufferPool.release(peerNetData);
+			peerNetData = null;
+		}
+		if (myNetData != null) {
+			bufferPool.release(myNetData);
+			myNetData = null;
+		}
 	}
 
 	private void startSSLHandshake(int timeout) throws IOException {
@@ -208,18 +293,24 @@ public class SSLSocket implements XixiSocket {
 	}
 
 	public int readSSL(ByteBuffer dst) throws IOException {
-		if (!peerAppData.hasRemaining()) {
-			int ret = readAndUnwrapSSL();
-			if (ret == -1 || ret == 0) {
-				return ret;
+		borrowReadBuffers();
+		try {
+			if (!peerAppData.hasRemaining()) {
+				int ret = readAndUnwrapSSL();
+				if (ret == -1 || ret == 0) {
+					return ret;
+				}
 			}
-		}
 
-		int count = Math.min(peerAppData.remaining(), dst.remaining());
-		for (int i = 0; i < count; i++) {
-			dst.put(peerAppData.get());
+			int count = Math.min(peerAppData.remaining(), dst.remaining());
+			int limit = peerAppData.limit();
+			peerAppData.limit(peerAppData.position() + count);
+			dst.put(peerAppData);
+			peerAppData.limit(limit);
+			return count;
+		} finally {
+			releaseIdleReadBuffers();
 		}
-		return count;
 	}
 
 	private int readAndUnwrapSSL() throws IOException {
@@ -309,30 +400,35 @@ public class SSLSocket implements XixiSocket {
 	}
 
 	public int writeSSL(ByteBuffer src) throws IOException {
-		if (myNetData.hasRemaining()) {
-			socketChannel.write(myNetData);
-
+		borrowWriteBuffer();
+		try {
 			if (myNetData.hasRemaining()) {
-				return 0;
+				socketChannel.write(myNetData);
+
+				if (myNetData.hasRemaining()) {
+					return 0;
+				}
 			}
-		}
 
-		myNetData.clear();
-		res = engine.wrap(src, myNetData);
-		myNetData.flip();
-		socketChannel.write(myNetData);
+			myNetData.clear();
+			res = engine.wrap(src, myNetData);
+			myNetData.flip();
+			socketChannel.write(myNetData);
 
-		return res.bytesConsumed();
+			return res.bytesConsumed();
+		} finally {
+			releaseIdleWriteBuffer();
+		}
 	}
 
 	private void closeSSL() throws IOException {
+		borrowWriteBuffer();
 		if (myNetData.hasRemaining()) {
 			engine.closeOutbound();
 		} else {
 			myNetData.clear();
 			try {
-				ByteBuffer dummy = ByteBuffer.allocate(0);
-				res = engine.wrap(dummy, myNetData);
+				res = engine.wrap(EMPTY, myNetData);
 			} catch (SSLException e1) {
 				e1.printStackTrace();
 				engine.closeOutbound();
@@ -352,12 +448,12 @@ public class SSLSocket implements XixiSocket {
 				return;
 
 			case NEED_WRAP:
+				borrowWriteBuffer();
 				if (myNetData.hasRemaining()) {
 					return;
 				}
 				myNetData.clear();
-				ByteBuffer dummy = ByteBuffer.allocate(0);
-				res = engine.wrap(dummy, myNetData);
+				res = engine.wrap(EMPTY, myNetData);
 				hsStatus = res.getHandshakeStatus();
 				myNetData.flip();
 				
@@ -393,6 +489,7 @@ public class SSLSocket implements XixiSocket {
 	}
 
 	private void handleWriteSSL() throws IOException {
+		borrowWriteBuffer();
 		socketChannel.write(myNetData);
 
 		if (!myNetData.hasRemaining()) {
@@ -403,16 +500,48 @@ public class SSLSocket implements XixiSocket {
 	}
 
 	public ByteBuffer getWriteBuffer() {
+		if (writeBuffer == null) {
+			writeBuffer = bufferArena.borrow(writeBufferSize);
+		}
 		return writeBuffer;
 	}
 
+	public void releaseBuffers() {
+		// the unread bytes of the replies in flight stay with the socket, the next
+		// borrower reads them
+		if (readBuffer != EMPTY && !readBuffer.hasRemaining()) {
+			bufferArena.release(readBuffer);
+			readBuffer = EMPTY;
+		}
+		if (writeBuffer != null) {
+			bufferArena.release(writeBuffer);
+			writeBuffer = null;
+		}
+	}
+
+	private final void discardBuffers() {
+		if (readBuffer != EMPTY) {
+			bufferArena.discard(readBuffer);
+			readBuffer = EMPTY;
+		}
+		if (writeBuffer != null) {
+			bufferArena.discard(writeBuffer);
+			writeBuffer = null;
+		}
+		// the net buffers are dropped, not pooled
+		peerAppData = null;
+		peerNetData = null;
+		myNetData = null;
+	}
+
 	public final String getHost() {
 		return this.host;
 	}
 
 	public final boolean trueClose() {
-		readBuffer.clear();
-		writeBuffer.clear();
+		if (pool != null) {
+			pool.discard(this);
+		}
 
 		boolean ret = true;
 		try {
@@ -425,6 +554,8 @@ public class SSLSocket implements XixiSocket {
 			}
 			ret = false;
 		}
+		// another thread may still use the buffers of a pipelined socket, do not reuse them
+		discardBuffers();
 		socketChannel = null;
 
 		try {
@@ -437,9 +568,8 @@ public class SSLSocket implements XixiSocket {
 	}
 
 	public final void close() {
-		readBuffer.clear();
-		readBuffer.flip();
-		writeBuffer.clear();
+		releaseBuffers();
+		deadline = 0;
 		if (!manager.addSocket(this)) {
 			trueClose();
 		}
@@ -453,7 +583,59 @@ public class SSLSocket implements XixiSocket {
 		return lastActiveTime;
 	}
 
+	public void setBorrowTime(long borrowTime) {
+		this.borrowTime = borrowTime;
+	}
+
+	public long getBorrowTime() {
+		return borrowTime;
+	}
+
+	/**
+	 * Set the deadline of the current request. The channel stays blocking, the
+	 * deadline is checked before each record is read or written, a read which
+	 * already waits for a record is only ended by the socket timeout.
+	 */
+	public void setDeadline(long deadline) {
+		this.deadline = deadline;
+	}
+
+	public long getDeadline() {
+		return deadline;
+	}
+
+	private final void checkDeadline(String op) throws SocketTimeoutException {
+		if (deadline != 0 && System.nanoTime() - deadline > 0) {
+			throw new SocketTimeoutException("SSLSocket." + op + " deadline exceeded, host=" + host);
+		}
+	}
+
+	public void setPendingReplies(int pendingReplies) {
+		this.pendingReplies = pendingReplies;
+	}
+
+	public int getPendingReplies() {
+		return pendingReplies;
+	}
+
+	public SocketPool getPool() {
+		return pool;
+	}
+
+	public void setPool(SocketPool pool) {
+		this.pool = pool;
+	}
+
+	public ConcurrencyLimiter getLimiter() {
+		return limiter;
+	}
+
+	public void setLimiter(ConcurrencyLimiter limiter) {
+		this.limiter = limiter;
+	}
+
 	public void write(byte[] b, int off, int len) throws IOException {
+		ByteBuffer writeBuffer = getWriteBuffer();
 		int remain = writeBuffer.remaining();
 		if (len <= remain) {
 			writeBuffer.put(b, off, len);
@@ -476,19 +658,38 @@ public class SSLSocket implements XixiSocket {
 		}
 	}
 
-	private final void readFromChannel() throws IOException {
-		readBuffer.clear();
-		for (int i = 0; i < 100; i++) {
-			if (readSSL(readBuffer) != 0) {
-				break;
+	/**
+	 * Make sure that at least <tt>min</tt> bytes are in the read buffer,
+	 * the unread bytes are kept and the buffer is refilled behind them.
+	 * <tt>readSSL</tt> returns 0 only when no whole record was unwrapped yet,
+	 * the next call blocks on the channel for the rest of it.
+	 */
+	private final void fill(int min) throws IOException {
+		if (readBuffer.remaining() >= min) {
+			return;
+		}
+		if (readBuffer == EMPTY) {
+			readBuffer = bufferArena.borrow(READ_BUFFER_SIZE);
+		} else {
+			readBuffer.compact();
+		}
+		try {
+			while (readBuffer.position() < min) {
+				checkDeadline("fill");
+				if (readSSL(readBuffer) < 0) {
+					throw new EOFException("SSLSocket.fill reached end of stream, host=" + host);
+				}
 			}
+		} finally {
+			readBuffer.flip();
 		}
-		readBuffer.flip();
 	}
 
 	private final void writeToChannel() throws IOException {
+		ByteBuffer writeBuffer = getWriteBuffer();
 		writeBuffer.flip();
 		while (writeBuffer.hasRemaining()) {
+			checkDeadline("write");
 			writeSSL(writeBuffer);
 		}
 		writeBuffer.clear();
@@ -498,28 +699,79 @@ public class SSLSocket implements XixiSocket {
 		writeToChannel();
 	}
 
+	public void flush(ByteBuffer payload) throws IOException {
+		// SSLEngine wraps the payload into records, there is nothing to gather
+		writeToChannel();
+		while (payload.hasRemaining()) {
+			checkDeadline("flush");
+			writeSSL(payload);
+		}
+	}
+
+	public long transferFrom(ReadableByteChannel src, long count) throws IOException {
+		// the data must be encrypted, so it always goes through the write buffer
+		writeToChannel();
+		ByteBuffer writeBuffer = getWriteBuffer();
+		long remain = count;
+		while (remain > 0) {
+			writeBuffer.clear();
+			if (remain < writeBuffer.capacity()) {
+				writeBuffer.limit((int) remain);
+			}
+			int n = src.read(writeBuffer);
+			if (n < 0) {
+				writeBuffer.clear();
+				throw new EOFException("SSLSocket.transferFrom, source ended, remain=" + remain);
+			}
+			remain -= n;
+			writeToChannel();
+		}
+		return count;
+	}
+
+	private final long drainReadBuffer(WritableByteChannel dst, long count) throws IOException {
+		int limit = readBuffer.limit();
+		if (readBuffer.remaining() > count) {
+			readBuffer.limit(readBuffer.position() + (int) count);
+		}
+		int n = readBuffer.remaining();
+		try {
+			while (readBuffer.hasRemaining()) {
+				dst.write(readBuffer);
+			}
+		} finally {
+			readBuffer.limit(limit);
+		}
+		return n;
+	}
+
+	public long transferTo(WritableByteChannel dst, long count) throws IOException {
+		long remain = count - drainReadBuffer(dst, count);
+		while (remain > 0) {
+			fill(1);
+			remain -= drainReadBuffer(dst, remain);
+		}
+		return count;
+	}
+
 	public byte readByte() throws IOException {
-		byte[] b = new byte[1];
-		read(b, 0, 1);
-		return b[0];
+		fill(1);
+		return readBuffer.get();
 	}
 
 	public short readShort() throws IOException {
-		byte[] b = new byte[2];
-		read(b, 0, 2);
-		return ObjectTransCoder.decodeShort(b);
+		fill(2);
+		return readBuffer.getShort();
 	}
 
 	public int readInt() throws IOException {
-		byte[] b = new byte[4];
-		read(b, 0, 4);
-		return ObjectTransCoder.decodeInt(b);
+		fill(4);
+		return readBuffer.getInt();
 	}
 
 	public long readLong() throws IOException {
-		byte[] b = new byte[8];
-		read(b, 0, 8);
-		return ObjectTransCoder.decodeLong(b);
+		fill(8);
+		return readBuffer.getLong();
 	}
 
 	public byte[] read(int len) throws IOException {
@@ -533,12 +785,8 @@ public class SSLSocket implements XixiSocket {
 		while (remain > 0) {
 			int r1 = readBuffer.remaining();
 			if (r1 == 0) {
-				readFromChannel();
+				fill(1);
 				r1 = readBuffer.remaining();
-				if (r1 == 0) {
-					throw new IOException("SSLSocket.read failed on read, len="
-							+ len);
-				}
 			}
 			r1 = r1 < remain ? r1 : remain;
 			readBuffer.get(b, off, r1);
@@ -567,13 +815,26 @@ public class SSLSocket implements XixiSocket {
 	}
 
 	public int read(ByteBuffer dst) throws IOException {
-		return readSSL(dst);
+		int n = readSSL(dst);
+		if (n < 0) {
+			throw new EOFException("SSLSocket.read reached end of stream, host=" + host);
+		}
+		return n;
 	}
 
 	public int write(ByteBuffer src) throws IOException {
 		return writeSSL(src);
 	}
 
+	public long write(ByteBuffer[] srcs) throws IOException {
+		for (int i = 0; i < srcs.length; i++) {
+			if (srcs[i].hasRemaining()) {
+				return writeSSL(srcs[i]);
+			}
+		}
+		return 0;
+	}
+
 	public boolean handleRead() throws IOException {
 		return handle.onRead();
 	}
@@ -17,19 +17,40 @@
 package com.yeaya.xixibase.xixiclient.network;
 
 import java.io.IOException;
-import java.nio.channels.Selector;
+import java.security.KeyManagementException;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
-import java.util.LinkedList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.net.ssl.SSLContext;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.yeaya.xixibase.xixiclient.Defines;
 import com.yeaya.xixibase.xixiclient.XixiWeightMap;
 import com.yeaya.xixibase.xixiclient.network.SSLSocket;
 import com.yeaya.xixibase.xixiclient.network.TCPSocket;
 import com.yeaya.xixibase.xixiclient.network.XixiSocket;
+import com.yeaya.xixibase.xixiclient.util.HashedWeightMap;
+import com.yeaya.xixibase.xixiclient.util.LoadAwareWeightMap;
+import com.yeaya.xixibase.xixiclient.util.LoadSource;
+import com.yeaya.xixibase.xixiclient.util.ReplicaWeightMap;
 import com.yeaya.xixibase.xixiclient.util.WeightMap;
 
 /**
@@ -45,34 +66,75 @@ public class SocketManager {
 	private int defaultGroupID = 0;
 	
 	private int initConn = 1;
+	private long startupTimeout = 1000;
+	private boolean lazyInit = false;
+	private int warmUpThreads = 16;
 	private int maxActiveConn = 16;
+	private int maxConn = 64;
+	private int minIdleConn = 0;
+	private long maxWaitTime = 1000 * 3;
 	private long maxBusyTime = 1000 * 30;
 	private int socketTimeout = 1000 * 30;
 	private int socketConnectTimeout = 1000 * 3;
 	private int maintainInterval = 1000 * 3;
 	private int inactiveSocketTimeout = 1000 * 30;
+	private int failureThreshold = 3;
+	private long probeInterval = 1000;
+	private long maxProbeInterval = 1000 * 30;
+	private boolean failover = false;
+	private int replicas = 1;
+	private boolean concurrencyLimiting = false;
+	private int initialConcurrencyLimit = 20;
+	private int minConcurrencyLimit = 4;
+	private int maxConcurrencyLimit = 256;
+	private static final int REPLICA_EXPLORE_RATE = 32;
+	// the max number of unread responses of one socket, they are small enough
+	// to stay in the socket buffers while the requests are written
+	public static final int MAX_PENDING_REPLIES = 256;
+	private final LongAdder noreplyErrorCount = new LongAdder();
 
 	private boolean noDelay = true;
+	private WaitStrategy waitStrategy = WaitStrategy.BLOCKING;
 	private boolean enableSSL = false;
+	private volatile SSLContext sslContext;
+	private final ReentrantLock sslContextLock = new ReentrantLock();
+	private SSLBufferPool sslBufferPool = new SSLBufferPool(64);
+	private final BufferArena bufferArena = new BufferArena(16 * 1024 * 1024);
 
-	private String[] servers;
 	private WeightMap<Integer> weightMap = new XixiWeightMap<Integer>();
 
-	private ArrayList<ConcurrentLinkedQueue<XixiSocket>> activeSocketPool = new ArrayList<ConcurrentLinkedQueue<XixiSocket>>();
-	private ArrayList<LinkedList<XixiSocket>> inactiveSocketPool = new ArrayList<LinkedList<XixiSocket>>();
-	private HashMap<String, Integer> hostIndexMap = new HashMap<String, Integer>();
+	// the routing table, indexed by the index of a host. A host keeps its index until the
+	// manager shuts down, a removed host leaves it unused and gets it back when it is added
+	// again, so a weight map which places the points by the value of a host keeps the points
+	// of the other hosts. The table is replaced as a whole by addServer, removeServer,
+	// setWeight and a host which goes down or up, a lookup reads it once.
+	private volatile Routing routing = new Routing(new String[0], new Integer[0],
+			new HashMap<String, Integer>(), new HostHealth[0], new ConcurrencyLimiter[0]);
+	private final Object routingLock = new Object();
+	private volatile ArrayList<SocketPool> socketPools = new ArrayList<SocketPool>();
 	
-	private ConcurrentLinkedQueue<Selector> selectorPool = new ConcurrentLinkedQueue<Selector>();
-	private long lastSelectorOpenTime = 0;
+	private int eventLoopCount = 2;
+	private EventLoopGroup eventLoopGroup;
+
+	private int pipelinedConn = 2;
+	private ConcurrentHashMap<String, AtomicReferenceArray<PipelinedSocket>> pipelinedSocketPool =
+			new ConcurrentHashMap<String, AtomicReferenceArray<PipelinedSocket>>();
+	private ConcurrentHashMap<String, ReentrantLock> pipelinedLocks = new ConcurrentHashMap<String, ReentrantLock>();
 
 	private int socketWriteBufferSize = 32768; // 32K, 65536; //64K
+	private final TrafficClass interactive = new TrafficClass(TrafficClass.INTERACTIVE,
+			maxConn, socketWriteBufferSize, maxWaitTime);
+	private final ConcurrentHashMap<String, TrafficClass> trafficClasses = new ConcurrentHashMap<String, TrafficClass>();
 	private MaintainThread maintainThread;
+	private ExecutorService warmUpExecutor;
+	private Set<String> pendingWarmUp = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
 
 	/**
 	 * Creates a <tt>CacheClientManager</tt>.
 	 * @param name the name of CacheClientManager.
 	 */
 	public SocketManager() {
+		trafficClasses.put(TrafficClass.INTERACTIVE, interactive);
 	}
 
 	/**
@@ -219,10 +281,12 @@ public class SocketManager {
      *     
 	 * @param servers server list
 	 * @param weights server weight list
-	 * @param weightMap customizable weightMap
+	 * @param weightMap customizable weightMap, <tt>XixiWeightMap</tt>, <tt>KetamaWeightMap</tt>,
+	 *        <tt>JumpWeightMap</tt>, <tt>RendezvousWeightMap</tt> or <tt>BoundedLoadWeightMap</tt>
 	 * @param enableSSL
      * @return <tt>true</tt> if initialize success
 	 */
+	@SuppressWarnings("unchecked")
 	public synchronized boolean initialize(String[] servers, Integer[] weights,
 			WeightMap<Integer> weightMap, boolean enableSSL) {
 		if (servers == null) {
@@ -238,56 +302,393 @@ public class SocketManager {
 		}
 
 		this.enableSSL = enableSSL;
-		this.servers = new String[servers.length];
-		System.arraycopy(servers, 0, this.servers, 0, servers.length);
+		String[] indexHosts = servers.clone();
+		Integer[] indexWeights = new Integer[servers.length];
+		if (weights != null) {
+			System.arraycopy(weights, 0, indexWeights, 0, Math.min(weights.length, servers.length));
+		}
 		
 		if (weightMap != null) {
 			this.weightMap = weightMap;
 		} else {
 			this.weightMap.clear();// = new XixiWeightMap<Integer>();
 		}
-		hostIndexMap.clear();// = new HashMap<String, Integer>();
+		HashMap<String, Integer> hostIndexMap = new HashMap<String, Integer>();
+		ArrayList<SocketPool> socketPools = new ArrayList<SocketPool>();
+		HostHealth[] hostHealths = new HostHealth[servers.length];
+		ConcurrencyLimiter[] limiters = new ConcurrencyLimiter[servers.length];
+		pendingWarmUp.clear();
+		this.initialized = true;
+		interactive.setSocketPools(socketPools);
+		for (TrafficClass lane : trafficClasses.values()) {
+			if (lane != interactive) {
+				lane.setSocketPools(new ArrayList<SocketPool>());
+			}
+		}
+		for (int i = 0; i < servers.length; i++) {
+			socketPools.add(new SocketPool(this, servers[i], maxConn));
+			for (TrafficClass lane : trafficClasses.values()) {
+				if (lane != interactive) {
+					lane.getSocketPools().add(new SocketPool(this, servers[i],
+							lane.getMaxConn(), lane.getSocketWriteBufferSize()));
+				}
+			}
+			hostHealths[i] = new HostHealth(servers[i]);
+			if (concurrencyLimiting) {
+				limiters[i] = new ConcurrencyLimiter(servers[i], initialConcurrencyLimit,
+						minConcurrencyLimit, maxConcurrencyLimit);
+				for (TrafficClass lane : trafficClasses.values()) {
+					lane.getSocketPools().get(i).setLimiter(limiters[i]);
+				}
+			}
+			hostIndexMap.put(servers[i], Integer.valueOf(i));
+			pipelinedSocketPool.put(servers[i], new AtomicReferenceArray<PipelinedSocket>(pipelinedConn));
+			pipelinedLocks.put(servers[i], new ReentrantLock());
+		}
+		this.socketPools = socketPools;
+		publishRouting(new Routing(indexHosts, indexWeights, hostIndexMap, hostHealths, limiters));
+		// the table first, then the weight map routes the keys to its indexes
 		Integer[] values = new Integer[servers.length];
 		for (int i = 0; i < servers.length; i++) {
 			values[i] = Integer.valueOf(i);
 		}
 		this.weightMap.set(values, weights);
-
-		this.initialized = true;
-		for (int i = 0; i < servers.length; i++) {
-			activeSocketPool.add(new ConcurrentLinkedQueue<XixiSocket>());
-			inactiveSocketPool.add(new LinkedList<XixiSocket>());
-			hostIndexMap.put(servers[i], Integer.valueOf(i));
-			for (int j = 0; j < initConn; j++) {
-				XixiSocket socket = createSocket(servers[i]);
-				if (socket == null) {
-					break;
+		if (this.weightMap instanceof LoadAwareWeightMap) {
+			((LoadAwareWeightMap<Integer>) this.weightMap).setLoadSource(new LoadSource<Integer>() {
+				public int getLoad(Integer hostIndex) {
+					return getInFlight(hostIndex.intValue());
 				}
-				addSocket(socket);
-			}
+			});
+		}
+		try {
+			eventLoopGroup = new EventLoopGroup(this, eventLoopCount);
+		} catch (IOException e) {
+			log.error("initialize, failed to create event loops, e=" + e);
 		}
 		maintainThread = new MaintainThread();
 		maintainThread.start();
+		warmUp();
 		return true;
 	}
+
+	/**
+	 * Create <tt>initConn</tt> sockets per host, the hosts in parallel. Wait until
+	 * all the hosts are done or <tt>startupTimeout</tt> passed, do not wait in lazy mode.
+	 * The hosts which did not get their sockets are retried by the maintain thread.
+	 */
+	private void warmUp() {
+		if (initConn <= 0) {
+			return;
+		}
+		int threads = Math.max(1, Math.min(warmUpThreads, socketPools.size()));
+		ExecutorService executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "xixi-warm-up");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		final CountDownLatch latch = new CountDownLatch(socketPools.size());
+		for (int i = 0; i < socketPools.size(); i++) {
+			final SocketPool pool = socketPools.get(i);
+			executor.execute(new Runnable() {
+				public void run() {
+					try {
+						if (pool.fill(initConn) < initConn) {
+							pendingWarmUp.add(pool.getHost());
+						}
+					} finally {
+						latch.countDown();
+					}
+				}
+			});
+		}
+		executor.shutdown();
+		warmUpExecutor = executor;
+		if (lazyInit) {
+			return;
+		}
+		try {
+			if (!latch.await(startupTimeout, TimeUnit.MILLISECONDS)) {
+				log.warn("initialize, " + latch.getCount() + " hosts are still warming up after "
+						+ startupTimeout + "ms");
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Is the warm-up done? It is done when every host got <tt>initConn</tt> sockets once.
+	 * 
+	 * @return <tt>true</tt> if the warm-up is done
+	 */
+	public boolean isWarmedUp() {
+		ExecutorService executor = warmUpExecutor;
+		return (executor == null || executor.isTerminated()) && pendingWarmUp.isEmpty();
+	}
 	
 	/**
 	 * Shutdown this instance.
 	 */
 	public void shutdown() {
 		initialized = false;
+		if (warmUpExecutor != null) {
+			warmUpExecutor.shutdownNow();
+			warmUpExecutor = null;
+		}
+		pendingWarmUp.clear();
 
 		closeSocketPool();
-		closeSelectorPool();
+		closePipelinedSocketPool();
+		if (eventLoopGroup != null) {
+			eventLoopGroup.shutdown();
+			eventLoopGroup = null;
+		}
 
-	//	activeSocketPool.clear();
-	//	inactiveSocketPool.clear();
+	//	socketPools.clear();
 	//	hostIndexMap.clear();
 	//	hostIndexMap = null;
 	//	weightMap.clear();
 		maintainThread = null;
 	}
 	
+	/**
+	 * Add one server to the cluster, the keys of the other servers which the weight
+	 * map gives to it move to it. Its pools are built and filled before it gets any key.
+	 * A server which was removed gets its index back, with a weight map which places
+	 * the points by the value of a host, like <tt>KetamaWeightMap</tt>, its keys come
+	 * back to it. A <tt>XixiWeightMap</tt> or a <tt>JumpWeightMap</tt> places the keys
+	 * by the position of the hosts, keys of the other servers move too.
+	 * 
+	 * @param host the server, <tt>host:port</tt>
+	 * @param weight the weight of the server, or <tt>null</tt>
+	 * @return <tt>true</tt> if the server is added
+	 */
+	public boolean addServer(String host, Integer weight) {
+		if (host == null) {
+			log.error("addServer, host == null");
+			return false;
+		}
+		if (!initialized) {
+			log.error("addServer, the manager is not initialized, host=" + host);
+			return false;
+		}
+		if (routing.hostIndexMap.containsKey(host)) {
+			log.error("addServer, the server is already in the cluster, host=" + host);
+			return false;
+		}
+
+		// build and fill the pools out of the lock, the connects may take a while
+		ConcurrencyLimiter limiter = null;
+		if (concurrencyLimiting) {
+			limiter = new ConcurrencyLimiter(host, initialConcurrencyLimit,
+					minConcurrencyLimit, maxConcurrencyLimit);
+		}
+		HashMap<TrafficClass, SocketPool> lanePools = new HashMap<TrafficClass, SocketPool>();
+		for (TrafficClass lane : trafficClasses.values()) {
+			SocketPool lanePool;
+			if (lane == interactive) {
+				lanePool = new SocketPool(this, host, maxConn);
+			} else {
+				lanePool = new SocketPool(this, host, lane.getMaxConn(), lane.getSocketWriteBufferSize());
+			}
+			if (limiter != null) {
+				lanePool.setLimiter(limiter);
+			}
+			lanePools.put(lane, lanePool);
+		}
+		boolean filled = initConn <= 0 || lanePools.get(interactive).fill(initConn) >= initConn;
+
+		synchronized (this) {
+			Routing routing = this.routing;
+			if (!initialized || routing.hostIndexMap.containsKey(host)) {
+				log.error("addServer, the server was added meanwhile or the manager is shut down, host=" + host);
+				for (SocketPool lanePool : lanePools.values()) {
+					lanePool.close();
+				}
+				return false;
+			}
+			warnRemap("addServer", host);
+			int index = -1;
+			for (int i = 0; i < routing.indexHosts.length; i++) {
+				if (routing.indexHosts[i].equals(host)) {
+					index = i;
+					break;
+				}
+			}
+			boolean append = index < 0;
+			int count = append ? routing.indexHosts.length + 1 : routing.indexHosts.length;
+			if (append) {
+				index = routing.indexHosts.length;
+			}
+
+			// publish the pools of the host before it gets any key
+			for (TrafficClass lane : trafficClasses.values()) {
+				lane.setSocketPools(withPool(lane.getSocketPools(), index, lanePools.get(lane)));
+			}
+			this.socketPools = interactive.getSocketPools();
+			HostHealth[] hostHealths = Arrays.copyOf(routing.hostHealths, count);
+			hostHealths[index] = new HostHealth(host);
+			ConcurrencyLimiter[] limiters = Arrays.copyOf(routing.limiters, count);
+			limiters[index] = limiter;
+			String[] indexHosts = Arrays.copyOf(routing.indexHosts, count);
+			indexHosts[index] = host;
+			Integer[] indexWeights = Arrays.copyOf(routing.indexWeights, count);
+			indexWeights[index] = weight;
+			pipelinedSocketPool.put(host, new AtomicReferenceArray<PipelinedSocket>(pipelinedConn));
+			pipelinedLocks.putIfAbsent(host, new ReentrantLock());
+
+			// then route the keys to it, the table has its index before the weight map
+			HashMap<String, Integer> hostIndexMap = new HashMap<String, Integer>(routing.hostIndexMap);
+			hostIndexMap.put(host, Integer.valueOf(index));
+			routing = new Routing(indexHosts, indexWeights, hostIndexMap, hostHealths, limiters);
+			publishRouting(routing);
+			updateWeightMap(routing);
+
+			if (!filled) {
+				pendingWarmUp.add(host);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Remove one server from the cluster, its keys move to the other servers, with a
+	 * <tt>XixiWeightMap</tt> most keys of the other servers move too. The
+	 * sockets which are borrowed are closed when they are released.
+	 * 
+	 * @param host the server, <tt>host:port</tt>
+	 * @return <tt>true</tt> if the server is removed
+	 */
+	public synchronized boolean removeServer(String host) {
+		Routing routing = this.routing;
+		Integer index = host != null ? routing.hostIndexMap.get(host) : null;
+		if (index == null) {
+			log.error("removeServer, unknown host: " + host);
+			return false;
+		}
+		if (routing.hostIndexMap.size() == 1) {
+			log.error("removeServer, the last server can not be removed, host=" + host);
+			return false;
+		}
+		warnRemap("removeServer", host);
+
+		// route the keys away first, then drain the pools. The weight map drops the
+		// index before the table, the index stays in the table as an unused one
+		HashMap<String, Integer> hostIndexMap = new HashMap<String, Integer>(routing.hostIndexMap);
+		hostIndexMap.remove(host);
+		routing = new Routing(routing.indexHosts, routing.indexWeights, hostIndexMap,
+				routing.hostHealths, routing.limiters);
+		updateWeightMap(routing);
+		publishRouting(routing);
+
+		pendingWarmUp.remove(host);
+		for (TrafficClass lane : trafficClasses.values()) {
+			lane.getSocketPools().get(index.intValue()).close();
+		}
+		AtomicReferenceArray<PipelinedSocket> sockets = pipelinedSocketPool.remove(host);
+		if (sockets != null) {
+			for (int i = 0; i < sockets.length(); i++) {
+				PipelinedSocket socket = sockets.getAndSet(i, null);
+				if (socket != null) {
+					socket.close();
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Set the weight of one server, the keys move between it and the other servers
+	 * as the weight map gives them, with a <tt>XixiWeightMap</tt> most keys move.
+	 * 
+	 * @param host the server, <tt>host:port</tt>
+	 * @param weight the weight of the server
+	 * @return <tt>true</tt> if the weight is set
+	 */
+	public synchronized boolean setWeight(String host, int weight) {
+		Routing routing = this.routing;
+		Integer index = host != null ? routing.hostIndexMap.get(host) : null;
+		if (index == null) {
+			log.error("setWeight, unknown host: " + host);
+			return false;
+		}
+		warnRemap("setWeight", host);
+		Integer[] indexWeights = routing.indexWeights.clone();
+		indexWeights[index.intValue()] = Integer.valueOf(weight);
+		routing = new Routing(routing.indexHosts, indexWeights, routing.hostIndexMap,
+				routing.hostHealths, routing.limiters);
+		publishRouting(routing);
+		updateWeightMap(routing);
+		return true;
+	}
+
+	/**
+	 * Get the weight of one server.
+	 * 
+	 * @param host the server, <tt>host:port</tt>
+	 * @return the weight, or <tt>null</tt> if the host is unknown or has no weight
+	 */
+	public Integer getWeight(String host) {
+		Routing routing = this.routing;
+		Integer index = host != null ? routing.hostIndexMap.get(host) : null;
+		return index != null ? routing.indexWeights[index.intValue()] : null;
+	}
+
+	/**
+	 * A weight map which places the keys by the position of the hosts, like
+	 * <tt>XixiWeightMap</tt> and <tt>JumpWeightMap</tt>, moves the keys of the other
+	 * hosts too when a host or a weight changes.
+	 */
+	private void warnRemap(String op, String host) {
+		if (!weightMap.isPlacedByValue()) {
+			log.warn(op + ", " + weightMap.getClass().getSimpleName() + " moves the keys of other hosts too,"
+					+ " a KetamaWeightMap moves only the keys of the changed host, host=" + host);
+		}
+	}
+
+	private static ArrayList<SocketPool> withPool(ArrayList<SocketPool> pools, int index, SocketPool pool) {
+		ArrayList<SocketPool> result = new ArrayList<SocketPool>(pools);
+		if (index < result.size()) {
+			result.set(index, pool);
+		} else {
+			result.add(pool);
+		}
+		return result;
+	}
+
+	/**
+	 * Set the live indexes of the routing table and their weights to the weight map,
+	 * the weight map replaces its points as a whole.
+	 */
+	private void updateWeightMap(Routing routing) {
+		int count = routing.hostIndexMap.size();
+		Integer[] values = new Integer[count];
+		Integer[] weights = new Integer[count];
+		int n = 0;
+		for (int i = 0; i < routing.indexHosts.length; i++) {
+			if (routing.isLive(i)) {
+				values[n] = Integer.valueOf(i);
+				weights[n] = routing.indexWeights[i];
+				n++;
+			}
+		}
+		weightMap.set(values, weights);
+	}
+
+	/**
+	 * Publish a routing table of addServer, removeServer or setWeight. Its down hosts
+	 * are taken from the healths under the lock of <tt>updateDownHosts</tt>, so a host
+	 * which goes down or up meanwhile is not lost.
+	 */
+	private void publishRouting(Routing routing) {
+		synchronized (routingLock) {
+			this.routing = new Routing(routing.indexHosts, routing.indexWeights, routing.hostIndexMap,
+					routing.hostHealths, routing.limiters);
+		}
+	}
+
 	/**
 	 * Get active socket count.
 	 * 
@@ -295,35 +696,208 @@ public class SocketManager {
 	 */
 	public int getActiveSocketCount() {
 		int count = 0;
-		for (int i = 0; i < activeSocketPool.size(); i++) {
-			ConcurrentLinkedQueue<XixiSocket> queue = activeSocketPool.get(i);
-			count += queue.size();
+		for (int i = 0; i < socketPools.size(); i++) {
+			count += Math.min(socketPools.get(i).getIdleCount(), maxActiveConn);
 		}
 			
 		return count;
 	}
 	
 	/**
-	 * Get inactive socket count.
+	 * Get inactive socket count, the idle sockets beyond max active connections
+	 * which are closed after inactive socket timeout.
 	 * 
      * @return inactive socket count
 	 */
 	public int getInactiveSocketCount() {
 		int count = 0;
-		synchronized (inactiveSocketPool) {
-			for (int i = 0; i < inactiveSocketPool.size(); i++) {
-				LinkedList<XixiSocket> list = inactiveSocketPool.get(i);
-				count += list.size();
-			}
+		for (int i = 0; i < socketPools.size(); i++) {
+			count += Math.max(socketPools.get(i).getIdleCount() - maxActiveConn, 0);
 		}
 			
 		return count;
 	}
+
+	/**
+	 * Get the socket pool of the host, it has the counters of the pool.
+	 * 
+	 * @param host
+     * @return socket pool, or <tt>null</tt> if the host is unknown
+	 */
+	public SocketPool getSocketPool(String host) {
+		Integer index = routing.hostIndexMap.get(host);
+		ArrayList<SocketPool> socketPools = this.socketPools;
+		if (index != null && index.intValue() < socketPools.size()) {
+			return socketPools.get(index.intValue());
+		}
+		return null;
+	}
 	
 	/**
-	 * Enable local cache feature.
+	 * Get the socket pool of the host in one traffic class.
+	 * 
+	 * @param host
+	 * @param trafficClass name of the traffic class
+     * @return socket pool, or <tt>null</tt> if the host or the traffic class is unknown
+	 */
+	public SocketPool getSocketPool(String host, String trafficClass) {
+		TrafficClass lane = trafficClasses.get(trafficClass);
+		Integer index = routing.hostIndexMap.get(host);
+		if (lane != null && index != null) {
+			ArrayList<SocketPool> pools = lane.getSocketPools();
+			return index.intValue() < pools.size() ? pools.get(index.intValue()) : null;
+		}
+		return null;
+	}
+
+	/**
+	 * Add one traffic class, a lane with its own socket pool per host. A client
+	 * created with the traffic class only borrows the sockets of the lane.
+	 * It must be called before initialize.
+	 * 
+	 * @param name name of the traffic class
+	 * @param maxConn the max number of connections per host
+	 * @param socketWriteBufferSize socket write buffer size
+	 * @param maxWaitTime max wait time(millisecond) for a connection
+	 * @return the traffic class, or <tt>null</tt> if failed
+	 */
+	public TrafficClass addTrafficClass(String name, int maxConn, int socketWriteBufferSize, long maxWaitTime) {
+		if (name == null) {
+			log.error("addTrafficClass, name == null");
+			return null;
+		}
+		if (initialized) {
+			log.error("addTrafficClass, the manager was already initialized, name=" + name);
+			return null;
+		}
+		TrafficClass lane = new TrafficClass(name, maxConn, socketWriteBufferSize, maxWaitTime);
+		if (trafficClasses.putIfAbsent(name, lane) != null) {
+			log.error("addTrafficClass, the traffic class already exists, name=" + name);
+			return null;
+		}
+		return lane;
+	}
+
+	/**
+	 * Get one traffic class, <tt>TrafficClass.INTERACTIVE</tt> always exists.
+	 * 
+	 * @param name name of the traffic class
+	 * @return the traffic class, or <tt>null</tt> if it is unknown
+	 */
+	public TrafficClass getTrafficClass(String name) {
+		if (name == null) {
+			return null;
+		}
+		return trafficClasses.get(name);
+	}
+
+	/**
+	 * Get the health of the host, it has the counters of the host.
+	 * 
+	 * @param host
+	 * @return host health, or <tt>null</tt> if the host is unknown
+	 */
+	public HostHealth getHostHealth(String host) {
+		Routing routing = this.routing;
+		Integer index = routing.hostIndexMap.get(host);
+		return index != null ? routing.hostHealths[index.intValue()] : null;
+	}
+
+	/**
+	 * Get the concurrency limiter of the host, it has the counters of the limiter.
+	 * 
+	 * @param host
+	 * @return concurrency limiter, or <tt>null</tt> if the host is unknown or the
+	 *         concurrency is not limited
 	 */
+	public ConcurrencyLimiter getConcurrencyLimiter(String host) {
+		Routing routing = this.routing;
+		Integer index = routing.hostIndexMap.get(host);
+		return index != null ? routing.limiters[index.intValue()] : null;
+	}
+
+	/**
+	 * Get the current max number of requests in flight to the host.
+	 * 
+	 * @param host
+	 * @return concurrency limit, or -1 if the host is unknown or the concurrency is not limited
+	 */
+	public int getConcurrencyLimit(String host) {
+		ConcurrencyLimiter limiter = getConcurrencyLimiter(host);
+		return limiter != null ? limiter.getLimit() : -1;
+	}
+
+	/**
+	 * Get the number of requests in flight to the host, the permits taken from its
+	 * concurrency limiter, or the sockets borrowed from its pools if the concurrency
+	 * is not limited.
+	 * 
+	 * @param hostIndex the index of the host
+	 * @return the number of requests in flight
+	 */
+	public int getInFlight(int hostIndex) {
+		ConcurrencyLimiter[] limiters = routing.limiters;
+		ConcurrencyLimiter limiter = hostIndex < limiters.length ? limiters[hostIndex] : null;
+		if (limiter != null) {
+			return limiter.getInFlight();
+		}
+		int count = 0;
+		for (TrafficClass lane : trafficClasses.values()) {
+			List<SocketPool> pools = lane.getSocketPools();
+			if (hostIndex < pools.size()) {
+				count += pools.get(hostIndex).getBorrowedCount();
+			}
+		}
+		return count;
+	}
 
+	/**
+	 * Is the host marked down?
+	 * 
+	 * @param host
+	 * @return <tt>true</tt> if the host is down
+	 */
+	public boolean isHostDown(String host) {
+		HostHealth health = getHostHealth(host);
+		return health != null && health.isDown();
+	}
+
+	/**
+	 * Get the number of requests sent without waiting for the response which failed.
+	 * 
+	 * @return the number of failed noreply requests
+	 */
+	public long getNoreplyErrorCount() {
+		return noreplyErrorCount.sum();
+	}
+
+	/**
+	 * Read the responses of the requests which were sent on the socket without waiting
+	 * for them, the requests must be flushed. A failed request is counted and logged,
+	 * its caller is gone.
+	 * 
+	 * @param socket
+	 * @throws IOException if the responses can not be read, the socket must be closed
+	 */
+	public void drainReplies(XixiSocket socket) throws IOException {
+		int count = socket.getPendingReplies();
+		socket.setPendingReplies(0);
+		for (int i = 0; i < count; i++) {
+			byte category = socket.readByte();
+			byte type = socket.readByte();
+			if (category == Defines.XIXI_CATEGORY_CACHE && (type == Defines.XIXI_TYPE_UPDATE_RES
+					|| type == Defines.XIXI_TYPE_UPDATE_EXPIRATION_RES)) {
+				socket.readLong(); // cacheId
+			} else if (category != Defines.XIXI_CATEGORY_CACHE || type != Defines.XIXI_TYPE_DELETE_RES) {
+				short reason = socket.readShort();
+				noreplyErrorCount.increment();
+				log.debug("drainReplies, noreply request failed, host=" + socket.getHost() + " reason=" + reason);
+				if (reason == Defines.XIXI_REASON_UNKNOWN_COMMAND) {
+					throw new IOException("drainReplies, unknown command, host=" + socket.getHost());
+				}
+			}
+		}
+	}
 
 	/**
 	 * Is this instance initialized?
@@ -340,7 +914,7 @@ public class SocketManager {
 	 * @return server list
 	 */
 	public final String[] getServers() {
-		return this.servers;
+		return routing.servers;
 	}
 
 	/**
@@ -361,6 +935,62 @@ public class SocketManager {
 		return this.initConn;
 	}
 
+	/**
+	 * Set the max time(millisecond) initialize waits for the initial connections.
+	 * The hosts which are not connected by then go on in the background.
+	 * 
+	 * @param startupTimeout startup timeout(millisecond)
+	 */
+	public void setStartupTimeout(long startupTimeout) {
+		this.startupTimeout = startupTimeout;
+	}
+
+	/**
+	 * Get the max time(millisecond) initialize waits for the initial connections.
+	 * 
+	 * @return startup timeout(millisecond)
+	 */
+	public long getStartupTimeout() {
+		return startupTimeout;
+	}
+
+	/**
+	 * Set Enable/Disable lazy initialize. When enabled, initialize does not wait for
+	 * the initial connections, they are created in the background or on first use.
+	 * 
+	 * @param lazyInit <tt>true</tt> Enable lazy initialize
+	 */
+	public void setLazyInit(boolean lazyInit) {
+		this.lazyInit = lazyInit;
+	}
+
+	/**
+	 * Is enable lazy initialize?
+	 * 
+	 * @return <tt>true</tt> If enable lazy initialize
+	 */
+	public boolean isLazyInit() {
+		return lazyInit;
+	}
+
+	/**
+	 * Set the max number of threads which create the initial connections.
+	 * 
+	 * @param warmUpThreads the number of warm-up threads
+	 */
+	public void setWarmUpThreads(int warmUpThreads) {
+		this.warmUpThreads = warmUpThreads > 0 ? warmUpThreads : 1;
+	}
+
+	/**
+	 * Get the max number of threads which create the initial connections.
+	 * 
+	 * @return the number of warm-up threads
+	 */
+	public int getWarmUpThreads() {
+		return warmUpThreads;
+	}
+
 	/**
 	 * Set max busy time(millisecond).
 	 * 
@@ -434,57 +1064,403 @@ public class SocketManager {
 	}
 
 	/**
-	 * Get weight mapper.
+	 * Set how a socket waits for a response, it applies to the sockets created after.
+	 * The strategies other than <tt>BLOCKING</tt> poll a non-blocking channel, they
+	 * trade CPU for latency.
 	 * 
-     * @return weight mapper
+	 * @param waitStrategy wait strategy
 	 */
-	public final WeightMap<Integer> getWeightMapper() {
-		return weightMap;
+	public void setWaitStrategy(WaitStrategy waitStrategy) {
+		this.waitStrategy = waitStrategy != null ? waitStrategy : WaitStrategy.BLOCKING;
 	}
 
 	/**
-	 * Set the number of max active connections.
+	 * Get how a socket waits for a response.
 	 * 
-	 * @param maxActiveConn the number of max active connections
+	 * @return wait strategy
 	 */
-	public void setMaxActiveConn(int maxActiveConn) {
-		this.maxActiveConn = maxActiveConn;
+	public WaitStrategy getWaitStrategy() {
+		return waitStrategy;
 	}
 
 	/**
-	 * Get the number of max active connections.
+	 * Set the SSL context of the SSL sockets. All the sockets share one context,
+	 * so a new socket resumes the session cached by the context instead of
+	 * doing a full handshake. By default a context which trusts any server is created.
 	 * 
-     * @return the number of max active connections
+	 * @param sslContext SSL context
 	 */
-	public int getMaxActiveConn() {
-		return maxActiveConn;
+	public void setSSLContext(SSLContext sslContext) {
+		this.sslContext = sslContext;
 	}
 
 	/**
-	 * Set socket write buffer size.
+	 * Get the SSL context of the SSL sockets.
 	 * 
-	 * @param bufferSize socket write buffer size
+	 * @return SSL context
+	 * @throws NoSuchAlgorithmException
+	 * @throws KeyManagementException
 	 */
-	public void setSocketWriteBufferSize(int bufferSize) {
-		this.socketWriteBufferSize = bufferSize;
+	public SSLContext getSSLContext() throws NoSuchAlgorithmException,
+			KeyManagementException {
+		SSLContext context = sslContext;
+		if (context == null) {
+			sslContextLock.lock();
+			try {
+				context = sslContext;
+				if (context == null) {
+					context = SSLSocket.createSSLContext();
+					sslContext = context;
+				}
+			} finally {
+				sslContextLock.unlock();
+			}
+		}
+		return context;
 	}
 
 	/**
-	 * Get socket write buffer size.
+	 * Get the arena which lends the read and write buffers of the sockets.
+	 * A socket holds its buffers only while a request runs.
 	 * 
-     * @return socket write buffer size
+	 * @return buffer arena
 	 */
-	public int getSocketWriteBufferSize() {
-		return socketWriteBufferSize;
+	public BufferArena getBufferArena() {
+		return bufferArena;
 	}
-	
+
+	final SSLBufferPool getSSLBufferPool() {
+		return sslBufferPool;
+	}
+
 	/**
-	 * Create one client with default groupId.
+	 * Get the number of SSL net buffers kept for reuse, an idle SSL socket holds none.
 	 * 
-     * @return created client
+	 * @return the number of kept SSL buffers
 	 */
-//	public CacheClient createClient() {
-//		return new CacheClient(this, defaultGroupID);
+	public int getSSLBufferIdleCount() {
+		return sslBufferPool.getIdleCount();
+	}
+
+	/**
+	 * Get weight mapper.
+	 * 
+     * @return weight mapper
+	 */
+	public final WeightMap<Integer> getWeightMapper() {
+		return weightMap;
+	}
+
+	/**
+	 * Set the number of max active connections.
+	 * 
+	 * @param maxActiveConn the number of max active connections
+	 */
+	public void setMaxActiveConn(int maxActiveConn) {
+		this.maxActiveConn = maxActiveConn;
+	}
+
+	/**
+	 * Get the number of max active connections.
+	 * 
+     * @return the number of max active connections
+	 */
+	public int getMaxActiveConn() {
+		return maxActiveConn;
+	}
+
+	/**
+	 * Set the max number of blocking connections per host, borrowers wait
+	 * when all of them are in use. It must be set before initialize.
+	 * 
+	 * @param maxConn the max number of connections per host
+	 */
+	public void setMaxConn(int maxConn) {
+		this.maxConn = maxConn;
+		interactive.setMaxConn(maxConn);
+	}
+
+	/**
+	 * Get the max number of blocking connections per host.
+	 * 
+     * @return the max number of connections per host
+	 */
+	public int getMaxConn() {
+		return maxConn;
+	}
+
+	/**
+	 * Set the min number of idle connections per host, the maintain thread
+	 * creates connections up to it.
+	 * 
+	 * @param minIdleConn the min number of idle connections per host
+	 */
+	public void setMinIdleConn(int minIdleConn) {
+		this.minIdleConn = minIdleConn;
+	}
+
+	/**
+	 * Get the min number of idle connections per host.
+	 * 
+     * @return the min number of idle connections per host
+	 */
+	public int getMinIdleConn() {
+		return minIdleConn;
+	}
+
+	/**
+	 * Set max wait time(millisecond) for a connection when all the connections
+	 * of the host are in use.
+	 * 
+	 * @param maxWaitTime max wait time(millisecond)
+	 */
+	public void setMaxWaitTime(long maxWaitTime) {
+		this.maxWaitTime = maxWaitTime;
+		interactive.setMaxWaitTime(maxWaitTime);
+	}
+
+	/**
+	 * Get max wait time(millisecond) for a connection.
+	 * 
+     * @return max wait time(millisecond)
+	 */
+	public long getMaxWaitTime() {
+		return maxWaitTime;
+	}
+
+	/**
+	 * Set the number of failed connects in a row which mark a host down,
+	 * 0 never marks a host down.
+	 * 
+	 * @param failureThreshold the number of consecutive failures
+	 */
+	public void setFailureThreshold(int failureThreshold) {
+		this.failureThreshold = failureThreshold;
+	}
+
+	/**
+	 * Get the number of failed connects in a row which mark a host down.
+	 * 
+	 * @return the number of consecutive failures
+	 */
+	public int getFailureThreshold() {
+		return failureThreshold;
+	}
+
+	/**
+	 * Set the time(millisecond) before the first probe of a down host,
+	 * it doubles after each failed probe.
+	 * 
+	 * @param probeInterval probe interval(millisecond)
+	 */
+	public void setProbeInterval(long probeInterval) {
+		this.probeInterval = probeInterval;
+	}
+
+	/**
+	 * Get the time(millisecond) before the first probe of a down host.
+	 * 
+	 * @return probe interval(millisecond)
+	 */
+	public long getProbeInterval() {
+		return probeInterval;
+	}
+
+	/**
+	 * Set the max time(millisecond) between two probes of a down host.
+	 * 
+	 * @param maxProbeInterval max probe interval(millisecond)
+	 */
+	public void setMaxProbeInterval(long maxProbeInterval) {
+		this.maxProbeInterval = maxProbeInterval;
+	}
+
+	/**
+	 * Get the max time(millisecond) between two probes of a down host.
+	 * 
+	 * @return max probe interval(millisecond)
+	 */
+	public long getMaxProbeInterval() {
+		return maxProbeInterval;
+	}
+
+	/**
+	 * Set Enable/Disable failover. When enabled, the keys of a down host go to
+	 * the next host of the weight map until the host is up again, else the
+	 * operations on them fail at once.
+	 * 
+	 * @param failover <tt>true</tt> Enable failover
+	 */
+	public void setFailover(boolean failover) {
+		this.failover = failover;
+	}
+
+	/**
+	 * Is enable failover?
+	 * 
+	 * @return <tt>true</tt> If enable failover
+	 */
+	public boolean isFailover() {
+		return failover;
+	}
+
+	/**
+	 * Set the number of hosts which store each key: the host of the key and the
+	 * next distinct hosts on the ring of the weight map. 1 stores each key on one
+	 * host. Replicas need a <tt>ReplicaWeightMap</tt>.
+	 * 
+	 * @param replicas the number of hosts of each key
+	 */
+	public void setReplicas(int replicas) {
+		this.replicas = replicas > 0 ? replicas : 1;
+	}
+
+	/**
+	 * Get the number of hosts which store each key.
+	 * 
+	 * @return the number of hosts of each key
+	 */
+	public int getReplicas() {
+		return replicas;
+	}
+
+	/**
+	 * Limit the requests in flight per host, the limit adapts to the response time
+	 * of the host and the requests beyond it fail at once. It must be set before initialize.
+	 * 
+	 * @param concurrencyLimiting
+	 */
+	public void setConcurrencyLimiting(boolean concurrencyLimiting) {
+		this.concurrencyLimiting = concurrencyLimiting;
+	}
+
+	/**
+	 * Are the requests in flight per host limited?
+	 * 
+	 * @return <tt>true</tt> if the concurrency is limited
+	 */
+	public boolean isConcurrencyLimiting() {
+		return concurrencyLimiting;
+	}
+
+	/**
+	 * Set the initial concurrency limit per host.
+	 * 
+	 * @param initialConcurrencyLimit
+	 */
+	public void setInitialConcurrencyLimit(int initialConcurrencyLimit) {
+		this.initialConcurrencyLimit = initialConcurrencyLimit;
+	}
+
+	/**
+	 * Get the initial concurrency limit per host.
+	 * 
+	 * @return initial concurrency limit
+	 */
+	public int getInitialConcurrencyLimit() {
+		return initialConcurrencyLimit;
+	}
+
+	/**
+	 * Set the min concurrency limit per host.
+	 * 
+	 * @param minConcurrencyLimit
+	 */
+	public void setMinConcurrencyLimit(int minConcurrencyLimit) {
+		this.minConcurrencyLimit = minConcurrencyLimit;
+	}
+
+	/**
+	 * Get the min concurrency limit per host.
+	 * 
+	 * @return min concurrency limit
+	 */
+	public int getMinConcurrencyLimit() {
+		return minConcurrencyLimit;
+	}
+
+	/**
+	 * Set the max concurrency limit per host.
+	 * 
+	 * @param maxConcurrencyLimit
+	 */
+	public void setMaxConcurrencyLimit(int maxConcurrencyLimit) {
+		this.maxConcurrencyLimit = maxConcurrencyLimit;
+	}
+
+	/**
+	 * Get the max concurrency limit per host.
+	 * 
+	 * @return max concurrency limit
+	 */
+	public int getMaxConcurrencyLimit() {
+		return maxConcurrencyLimit;
+	}
+
+	/**
+	 * Set the number of pipelined connections per host, used by async clients.
+	 * It must be set before initialize.
+	 * 
+	 * @param pipelinedConn the number of pipelined connections per host
+	 */
+	public void setPipelinedConn(int pipelinedConn) {
+		this.pipelinedConn = pipelinedConn > 0 ? pipelinedConn : 1;
+	}
+
+	/**
+	 * Get the number of pipelined connections per host.
+	 * 
+     * @return the number of pipelined connections per host
+	 */
+	public int getPipelinedConn() {
+		return pipelinedConn;
+	}
+
+	/**
+	 * Set the number of event loop threads which run the batch operations.
+	 * It must be set before initialize.
+	 * 
+	 * @param eventLoopCount the number of event loop threads
+	 */
+	public void setEventLoopCount(int eventLoopCount) {
+		this.eventLoopCount = eventLoopCount > 0 ? eventLoopCount : 1;
+	}
+
+	/**
+	 * Get the number of event loop threads.
+	 * 
+     * @return the number of event loop threads
+	 */
+	public int getEventLoopCount() {
+		return eventLoopCount;
+	}
+
+	/**
+	 * Set socket write buffer size.
+	 * 
+	 * @param bufferSize socket write buffer size
+	 */
+	public void setSocketWriteBufferSize(int bufferSize) {
+		this.socketWriteBufferSize = bufferSize;
+		interactive.setSocketWriteBufferSize(bufferSize);
+	}
+
+	/**
+	 * Get socket write buffer size.
+	 * 
+     * @return socket write buffer size
+	 */
+	public int getSocketWriteBufferSize() {
+		return socketWriteBufferSize;
+	}
+	
+	/**
+	 * Create one client with default groupId.
+	 * 
+     * @return created client
+	 */
+//	public CacheClient createClient() {
+//		return new CacheClient(this, defaultGroupID);
 //	}
 	
 	/**
@@ -504,14 +1480,56 @@ public class SocketManager {
      * @return created socket
 	 */
 	public XixiSocket createSocket(String host) {
+		return createSocket(host, socketWriteBufferSize);
+	}
+
+	/**
+	 * Create one socket with specified host and write buffer size.
+	 * 
+	 * @param host specified host
+	 * @param writeBufferSize socket write buffer size
+     * @return created socket
+	 */
+	public XixiSocket createSocket(String host, int writeBufferSize) {
+		return createSocket(host, writeBufferSize, socketConnectTimeout);
+	}
+
+	/**
+	 * Create one socket with specified host, write buffer size and connect timeout.
+	 * 
+	 * @param host specified host
+	 * @param writeBufferSize socket write buffer size
+	 * @param connectTimeout connect timeout(millisecond)
+     * @return created socket
+	 */
+	public XixiSocket createSocket(String host, int writeBufferSize, int connectTimeout) {
+		HostHealth health = getHostHealth(host);
+		if (health != null && health.isDown()) {
+			health.failFast();
+			return null;
+		}
+		XixiSocket socket = connect(host, writeBufferSize, connectTimeout);
+		if (health != null) {
+			if (socket != null) {
+				if (health.onSuccess()) {
+					updateDownHosts(health);
+				}
+			} else if (health.onFailure(failureThreshold, System.currentTimeMillis(), probeInterval)) {
+				updateDownHosts(health);
+			}
+		}
+		return socket;
+	}
+
+	private XixiSocket connect(String host, int writeBufferSize, int connectTimeout) {
 		if (initialized) {
 			try {
 				if (enableSSL) {
-					return new SSLSocket(this, host, socketWriteBufferSize,
-						socketTimeout, socketConnectTimeout, noDelay);
+					return new SSLSocket(this, host, writeBufferSize,
+						socketTimeout, connectTimeout, noDelay);
 				} else {
-					return new TCPSocket(this, host, socketWriteBufferSize,
-							socketTimeout, socketConnectTimeout, noDelay);
+					return new TCPSocket(this, host, writeBufferSize,
+							socketTimeout, connectTimeout, noDelay);
 				}
 			} catch (Exception e) {
 				log.error("manager.createSocket, failed to create Socket for host: " + host
@@ -523,7 +1541,10 @@ public class SocketManager {
 	}
 
 	/**
-	 * Get host with specified key.
+	 * Get host with specified key. The key is hashed as <tt>k.getBytes()</tt>, the
+	 * encoded key of an <tt>ObjectTransCoder</tt> which does not sanitize the keys.
+	 * The clients route with the encoded key of their <tt>TransCoder</tt>, see
+	 * <tt>getHost(String, byte[])</tt>.
 	 * 
 	 * @param key specified key
      * @return host
@@ -534,12 +1555,173 @@ public class SocketManager {
 //			return null;
 //		}
 		
-		Integer hostIndex = weightMap.get(key);
-// hostIndex must not be null
-//		if (hostIndex != null) {
-			return servers[hostIndex.intValue()];
-//		}
-//		return null;
+		int hostIndex = getHostIndex(key, null);
+		return routing.indexHosts[hostIndex];
+	}
+
+	/**
+	 * Get host with specified key, hash the encoded key.
+	 * 
+	 * @param key specified key
+	 * @param keyBuf the encoded key, see <tt>TransCoder.encodeKey</tt>
+     * @return host
+	 */
+	public String getHost(String key, byte[] keyBuf) {
+		int hostIndex = getHostIndex(key, keyBuf);
+		return routing.indexHosts[hostIndex];
+	}
+
+	/**
+	 * Get the host of an index, see <tt>getHostIndex</tt>.
+	 * 
+	 * @param hostIndex the index of the host
+     * @return host
+	 */
+	public String getHostByIndex(int hostIndex) {
+		return routing.indexHosts[hostIndex];
+	}
+
+	/**
+	 * Get the hosts which store the key, the host of the key first.
+	 * 
+	 * @param key specified key
+	 * @param keyBuf the encoded key, see <tt>TransCoder.encodeKey</tt>
+	 * @return hosts, or <tt>null</tt> if the keys are not replicated
+	 */
+	@SuppressWarnings("unchecked")
+	public String[] getReplicaHosts(String key, byte[] keyBuf) {
+		WeightMap<Integer> map = weightMap;
+		if (replicas <= 1 || !(map instanceof ReplicaWeightMap)) {
+			return null;
+		}
+		List<Integer> indexes;
+		if (map instanceof HashedWeightMap) {
+			HashedWeightMap<Integer> hashedMap = (HashedWeightMap<Integer>) map;
+			indexes = hashedMap.getByHash(hashedMap.hash(key, keyBuf), replicas);
+		} else {
+			indexes = ((ReplicaWeightMap<Integer>) map).get(key, replicas);
+		}
+		// the table is read after the weight map, it has every index of the map
+		Routing routing = this.routing;
+		if (routing.servers.length <= 1) {
+			return null;
+		}
+		String[] names = routing.indexHosts;
+		String[] hosts = new String[indexes.size()];
+		for (int i = 0; i < hosts.length; i++) {
+			hosts[i] = names[indexes.get(i).intValue()];
+		}
+		return hosts;
+	}
+
+	/**
+	 * Select the replica to read from: the host which is up and has the lowest
+	 * response time. Once in a while another host which is up is selected, so
+	 * that its response time is kept up to date.
+	 * 
+	 * @param hosts the hosts of one key
+	 * @return index of the selected host
+	 */
+	public int selectReplica(String[] hosts) {
+		int selected = -1;
+		long selectedLatency = Long.MAX_VALUE;
+		int upCount = 0;
+		for (int i = 0; i < hosts.length; i++) {
+			HostHealth health = getHostHealth(hosts[i]);
+			if (health == null || health.isDown()) {
+				continue;
+			}
+			upCount++;
+			long latency = health.getLatency();
+			if (latency < selectedLatency) {
+				selected = i;
+				selectedLatency = latency;
+			}
+		}
+		if (selected < 0) {
+			return 0;
+		}
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		if (upCount > 1 && random.nextInt(REPLICA_EXPLORE_RATE) == 0) {
+			int skip = random.nextInt(upCount - 1);
+			for (int i = 0; i < hosts.length; i++) {
+				if (i != selected && !isHostDown(hosts[i]) && skip-- == 0) {
+					return i;
+				}
+			}
+		}
+		return selected;
+	}
+
+	/**
+	 * Record the response time of one request to the host.
+	 * 
+	 * @param host specified host
+	 * @param nanos response time(nanosecond)
+	 */
+	public void recordLatency(String host, long nanos) {
+		HostHealth health = getHostHealth(host);
+		if (health != null) {
+			health.recordLatency(nanos);
+		}
+	}
+
+	/**
+	 * Get the index of the host of a key. The key is hashed once, the index is
+	 * taken by <tt>getHostByIndex</tt> and <tt>getSocketByIndex</tt>. A host keeps its
+	 * index, so the index is valid in any later routing table.
+	 * 
+	 * @param key specified key
+	 * @param keyBuf the encoded key, see <tt>TransCoder.encodeKey</tt>, or <tt>null</tt>
+     * @return the index of the host
+	 */
+	@SuppressWarnings("unchecked")
+	public int getHostIndex(String key, byte[] keyBuf) {
+		WeightMap<Integer> map = weightMap;
+		if (map instanceof HashedWeightMap) {
+			HashedWeightMap<Integer> hashedMap = (HashedWeightMap<Integer>) map;
+			int hash = hashedMap.hash(key, keyBuf);
+			Integer hostIndex = hashedMap.getByHash(hash);
+			// the table is read once, after the weight map: addServer publishes the table
+			// before the map gets the new index and removeServer after the map drops one
+			Set<Integer> down = routing.downHosts;
+			boolean skipDown = failover && !down.isEmpty();
+			if (skipDown && down.contains(hostIndex)) {
+				Integer next = hashedMap.getByHash(hash, down);
+				if (next != null) {
+					return next.intValue();
+				}
+			}
+			return hostIndex.intValue();
+		}
+		Integer hostIndex = map.get(key);
+		Set<Integer> down = routing.downHosts;
+		boolean skipDown = failover && !down.isEmpty();
+		if (skipDown && down.contains(hostIndex) && map instanceof ReplicaWeightMap) {
+			Integer next = ((ReplicaWeightMap<Integer>) map).get(key, down);
+			if (next != null) {
+				return next.intValue();
+			}
+		}
+		return hostIndex.intValue();
+	}
+
+	private void updateDownHosts(HostHealth health) {
+		if (health.isDown()) {
+			log.error("host down, host=" + health.getHost()
+					+ " failures=" + health.getConsecutiveFailures());
+		} else {
+			log.warn("host up, host=" + health.getHost());
+		}
+		updateDownHosts();
+	}
+
+	private void updateDownHosts() {
+		synchronized (routingLock) {
+			Routing routing = this.routing;
+			this.routing = new Routing(routing.indexHosts, routing.indexWeights, routing.hostIndexMap,
+					routing.hostHealths, routing.limiters);
+		}
 	}
 
 	/**
@@ -549,27 +1731,63 @@ public class SocketManager {
      * @return socket
 	 */
 	public XixiSocket getSocket(String key) {
+		return getSocket(key, interactive);
+	}
+
+	/**
+	 * Get socket with specified key from one traffic class.
+	 * 
+	 * @param key specified key
+	 * @param trafficClass traffic class, <tt>null</tt> is <tt>TrafficClass.INTERACTIVE</tt>
+     * @return socket
+	 */
+	public XixiSocket getSocket(String key, TrafficClass trafficClass) {
+		return getSocket(key, trafficClass, 0);
+	}
+
+	/**
+	 * Get socket with specified key from one traffic class for a request with a deadline.
+	 * The wait for the socket and the connect end at the deadline, the socket times out
+	 * its reads and writes after it.
+	 * 
+	 * @param key specified key
+	 * @param trafficClass traffic class, <tt>null</tt> is <tt>TrafficClass.INTERACTIVE</tt>
+	 * @param deadline deadline(System.nanoTime), <tt>0</tt> for none
+     * @return socket, or <tt>null</tt> if the deadline passed before the socket was ready
+	 */
+	public XixiSocket getSocket(String key, TrafficClass trafficClass, long deadline) {
 //		if (!this.initialized) {
 //			log.error("getSocket, manager is not initialized");
 //			return null;
 //		}
 
-		XixiSocket socket = null;
-		Integer hostIndex = weightMap.get(key);
-		if (hostIndex != null) {
-			ConcurrentLinkedQueue<XixiSocket> sockets = activeSocketPool.get(hostIndex.intValue());
-			socket = sockets.poll();
-			if (socket == null) {
-				synchronized (inactiveSocketPool) {
-					LinkedList<XixiSocket> list = inactiveSocketPool.get(hostIndex.intValue());
-					socket = list.pollFirst();
-				}
-				if (socket == null) {
-					socket = createSocket(servers[hostIndex.intValue()]);
-				}
-			}
-		}
-		return socket;
+		return getSocketByIndex(getHostIndex(key, null), trafficClass, deadline);
+	}
+
+	/**
+	 * Get socket with specified key from one traffic class for a request with a deadline,
+	 * hash the encoded key.
+	 * 
+	 * @param key specified key
+	 * @param keyBuf the encoded key, see <tt>TransCoder.encodeKey</tt>
+	 * @param trafficClass traffic class, <tt>null</tt> is <tt>TrafficClass.INTERACTIVE</tt>
+	 * @param deadline deadline(System.nanoTime), <tt>0</tt> for none
+     * @return socket, or <tt>null</tt> if the deadline passed before the socket was ready
+	 */
+	public XixiSocket getSocket(String key, byte[] keyBuf, TrafficClass trafficClass, long deadline) {
+		return getSocketByIndex(getHostIndex(key, keyBuf), trafficClass, deadline);
+	}
+
+	/**
+	 * Get socket of the host of an index, see <tt>getHostIndex</tt>.
+	 * 
+	 * @param hostIndex the index of the host
+	 * @param trafficClass traffic class, <tt>null</tt> is <tt>TrafficClass.INTERACTIVE</tt>
+	 * @param deadline deadline(System.nanoTime), <tt>0</tt> for none
+     * @return socket, or <tt>null</tt> if the deadline passed before the socket was ready
+	 */
+	public XixiSocket getSocketByIndex(int hostIndex, TrafficClass trafficClass, long deadline) {
+		return (trafficClass != null ? trafficClass : interactive).acquire(hostIndex, deadline);
 	}
 
 	/**
@@ -579,6 +1797,29 @@ public class SocketManager {
      * @return socket
 	 */
 	public XixiSocket getSocketByHost(String host) {
+		return getSocketByHost(host, interactive);
+	}
+
+	/**
+	 * Get socket with specified host from one traffic class.
+	 * 
+	 * @param host specified host
+	 * @param trafficClass traffic class, <tt>null</tt> is <tt>TrafficClass.INTERACTIVE</tt>
+     * @return socket
+	 */
+	public XixiSocket getSocketByHost(String host, TrafficClass trafficClass) {
+		return getSocketByHost(host, trafficClass, 0);
+	}
+
+	/**
+	 * Get socket with specified host from one traffic class for a request with a deadline.
+	 * 
+	 * @param host specified host
+	 * @param trafficClass traffic class, <tt>null</tt> is <tt>TrafficClass.INTERACTIVE</tt>
+	 * @param deadline deadline(System.nanoTime), <tt>0</tt> for none
+     * @return socket, or <tt>null</tt> if the deadline passed before the socket was ready
+	 */
+	public XixiSocket getSocketByHost(String host, TrafficClass trafficClass, long deadline) {
 //		if (!this.initialized) {
 //			log.error("getSocketByHost, manager is not initialized");
 //			return null;
@@ -589,18 +1830,76 @@ public class SocketManager {
 		}
 		
 		XixiSocket socket = null;
-		Integer index = hostIndexMap.get(host);
+		Integer index = routing.hostIndexMap.get(host);
 		if (index != null) {
-			ConcurrentLinkedQueue<XixiSocket> sockets = activeSocketPool.get(index.intValue());
-			socket = sockets.poll();
-			if (socket == null) {
-				synchronized (inactiveSocketPool) {
-					LinkedList<XixiSocket> list = inactiveSocketPool.get(index.intValue());
-					socket = list.pollFirst();
-				}
-				if (socket == null) {
-					socket = createSocket(host);
+			socket = (trafficClass != null ? trafficClass : interactive).acquire(index.intValue(), deadline);
+		}
+		return socket;
+	}
+
+	/**
+	 * Get socket with specified host for a long poll, like the check of a local cache
+	 * watch. The socket takes no permit of the concurrency limiter and gives it no
+	 * response time.
+	 * 
+	 * @param host specified host
+	 * @param trafficClass traffic class, <tt>null</tt> is <tt>TrafficClass.INTERACTIVE</tt>
+     * @return socket
+	 */
+	public XixiSocket getPollSocketByHost(String host, TrafficClass trafficClass) {
+		if (host == null) {
+			log.error("getPollSocketByHost, host == null");
+			return null;
+		}
+		Integer index = routing.hostIndexMap.get(host);
+		if (index == null) {
+			return null;
+		}
+		return (trafficClass != null ? trafficClass : interactive).acquire(index.intValue(), 0, false);
+	}
+
+	/**
+	 * Get one pipelined socket with specified host. Requests with the same hash
+	 * always use the same socket, so they are handled in the order they are sent.
+	 * 
+	 * @param host specified host
+	 * @param hash hash of the request, usually the hash of the key
+     * @return pipelined socket, or <tt>null</tt> if failed to connect the host
+	 */
+	public PipelinedSocket getPipelinedSocket(String host, int hash) {
+		AtomicReferenceArray<PipelinedSocket> sockets = pipelinedSocketPool.get(host);
+		if (sockets == null) {
+			log.error("getPipelinedSocket, unknown host: " + host);
+			return null;
+		}
+		int index = (hash & 0x7FFFFFFF) % sockets.length();
+		PipelinedSocket socket = sockets.get(index);
+		if (socket == null || socket.isClosed()) {
+			// the connect blocks, a lock lets a virtual thread unmount while it waits
+			ReentrantLock lock = pipelinedLocks.get(host);
+			lock.lock();
+			try {
+				socket = sockets.get(index);
+				if (socket == null || socket.isClosed()) {
+					XixiSocket s = createSocket(host);
+					if (s == null) {
+						return null;
+					}
+					if (!s.isBlocking()) {
+						// the reader thread waits for responses for ever, it must not poll
+						try {
+							s.configureBlocking(true);
+						} catch (IOException e) {
+							log.error("getPipelinedSocket, failed to configure socket, host=" + host + " e=" + e);
+							s.trueClose();
+							return null;
+						}
+					}
+					socket = new PipelinedSocket(s);
+					sockets.set(index, socket);
 				}
+			} finally {
+				lock.unlock();
 			}
 		}
 		return socket;
@@ -613,25 +1912,20 @@ public class SocketManager {
      * @return <tt>true</tt> if the socket added
 	 */
 	protected boolean addSocket(XixiSocket socket) {
-		if (initialized) {
-			ArrayList<ConcurrentLinkedQueue<XixiSocket>> activePool = activeSocketPool;
-			if (activePool != null) {
-				Integer index = hostIndexMap.get(socket.getHost());
-				if (index != null) {
-					ConcurrentLinkedQueue<XixiSocket> sockets = activePool.get(index.intValue());
-					if (sockets.size() < maxActiveConn) {
-						sockets.add(socket);
-						return true;
-					} else {
-						socket.setLastActiveTime(System.currentTimeMillis());
-						synchronized (inactiveSocketPool) {
-							inactiveSocketPool.get(index.intValue()).addFirst(socket);
-							return true;
-						}
-					}
-				}
+		// a borrowed socket goes back to the pool of its traffic class, the pool of
+		// a removed host closes it
+		SocketPool pool = socket.getPool();
+		if (pool == null) {
+			Integer index = routing.hostIndexMap.get(socket.getHost());
+			if (index == null) {
+				return false;
 			}
+			pool = socketPools.get(index.intValue());
 		}
+		if (initialized) {
+			return pool.release(socket);
+		}
+		pool.discard(socket);
 		return false;
 	}
 
@@ -639,123 +1933,157 @@ public class SocketManager {
 	 * Close socket pool.
 	 */
 	protected void closeSocketPool() {
-		for (int i = 0; i < activeSocketPool.size(); i++) {
-			ConcurrentLinkedQueue<XixiSocket> sockets = activeSocketPool.get(i);
-			XixiSocket socket = sockets.poll();
-			while (socket != null) {
-				socket.trueClose();
-				socket = sockets.poll();
+		for (TrafficClass lane : trafficClasses.values()) {
+			ArrayList<SocketPool> pools = lane.getSocketPools();
+			for (int i = 0; i < pools.size(); i++) {
+				pools.get(i).close();
 			}
 		}
-		
-		synchronized (inactiveSocketPool) {
-			for (int i = 0; i < inactiveSocketPool.size(); i++) {
-				LinkedList<XixiSocket> list = inactiveSocketPool.get(i);
-				XixiSocket socket = list.pollFirst();
-				while (socket != null) {
-					socket.trueClose();
-					socket = list.pollFirst();
+	}
+	
+	/**
+	 * Close pipelined socket pool.
+	 */
+	protected void closePipelinedSocketPool() {
+		for (AtomicReferenceArray<PipelinedSocket> sockets : pipelinedSocketPool.values()) {
+			for (int i = 0; i < sockets.length(); i++) {
+				PipelinedSocket socket = sockets.getAndSet(i, null);
+				if (socket != null) {
+					socket.close();
 				}
 			}
 		}
 	}
-	
+
 	/**
-	 * Open one selector, ...
+	 * Create one batch operation on the event loops.
 	 *
-     * @return Selector
-     * @throws IOException if Selector.open failed
+     * @return batch
+     * @throws IOException if the event loops are not available
 	 */
-	public Selector selectorOpen() throws IOException {
-		Selector selector = selectorPool.poll();
-		if (selector == null) {
-			lastSelectorOpenTime = System.currentTimeMillis();
-			return Selector.open();
+	public AsyncBatch createBatch() throws IOException {
+		EventLoopGroup group = eventLoopGroup;
+		if (group == null) {
+			throw new IOException("createBatch, event loops are not available");
 		}
-		return selector;
+		return group.createBatch();
 	}
-	
+
 	/**
-	 * Close one selector, ...
-	 *
-     * @param selector
-     * @throws IOException if Selector.open failed
-	 */
-	public void selectorClose(Selector selector) throws IOException {
-		if (selector != null) {
-			int size = selector.keys().size();
-			if (size > 0) {
-				selector.selectNow();
-				size = selector.keys().size();
-				if (size == 0 && selectorPool.size() < 16) {
-					selectorPool.add(selector);
-					return;
+	 * Maintain inactive socket
+	 */
+	protected void maintainInactiveSocket(long currTime) {
+		for (int i = 0; i < socketPools.size(); i++) {
+			socketPools.get(i).maintain(currTime, inactiveSocketTimeout, maxActiveConn, 5, minIdleConn);
+		}
+		// the other traffic classes are not warmed up, they keep no idle sockets
+		for (TrafficClass lane : trafficClasses.values()) {
+			if (lane != interactive) {
+				ArrayList<SocketPool> pools = lane.getSocketPools();
+				for (int i = 0; i < pools.size(); i++) {
+					pools.get(i).maintain(currTime, inactiveSocketTimeout, maxActiveConn, 5, 0);
 				}
 			}
-			selector.close();
 		}
 	}
 
 	/**
-	 * Close selector pool
+	 * Probe the down hosts
 	 */
-	protected void closeSelectorPool() {
-		Selector selector = selectorPool.poll();
-		while (selector != null) {
-			try {
-				selector.close();
-			} catch (IOException e) {
-				e.printStackTrace();
+	protected void maintainHostHealth(long currTime) {
+		Routing routing = this.routing;
+		ArrayList<SocketPool> socketPools = this.socketPools;
+		for (int i = 0; i < routing.hostHealths.length && initialized; i++) {
+			HostHealth health = routing.hostHealths[i];
+			if (routing.isLive(i) && health.isProbeTime(currTime)) {
+				XixiSocket socket = connect(health.getHost(), socketWriteBufferSize, socketConnectTimeout);
+				if (socket != null) {
+					health.onProbeSucceeded();
+					health.onSuccess();
+					updateDownHosts(health);
+					if (!socketPools.get(i).release(socket)) {
+						socket.trueClose();
+					}
+				} else {
+					health.onProbeFailed(System.currentTimeMillis(), maxProbeInterval);
+				}
 			}
-			selector = selectorPool.poll();
 		}
 	}
 
 	/**
-	 * Maintain inactive socket
+	 * Retry the initial connections of the hosts which did not get them
 	 */
-	protected void maintainInactiveSocket(long currTime) {
-		synchronized (inactiveSocketPool) {
-			for (int i = 0; i < inactiveSocketPool.size(); i++) {
-				LinkedList<XixiSocket> list = inactiveSocketPool.get(i);
-
-				int count = 0;
-				while (!list.isEmpty()) {
-					XixiSocket socket = list.getLast();
-					if (socket.getLastActiveTime() + inactiveSocketTimeout < currTime) {
-				//		System.out.println("maintainInactiveSocket, last=" + socket.getLastActiveTime()
-				//				+ " curr=" + currTime);
-						list.pollLast();
-						socket.trueClose();
-						count++;
-						if (count >= 5) {
-							break;
-						}
-					} else {
-						break;
-					}
-				}
+	protected void maintainWarmUp() {
+		for (String host : pendingWarmUp) {
+			if (!initialized) {
+				return;
+			}
+			if (isHostDown(host)) {
+				continue;
+			}
+			SocketPool pool = getSocketPool(host);
+			if (pool == null || pool.fill(initConn) >= initConn) {
+				pendingWarmUp.remove(host);
 			}
 		}
 	}
 
 	/**
-	 * Maintain selector pool
+	 * Maintain the idle sockets of the event loops
 	 */
-	protected void maintainSelectorPool(long currTime) {
-		if (currTime > lastSelectorOpenTime + 5000) {
-			lastSelectorOpenTime = currTime;
-			Selector selector = selectorPool.poll();
-			if (selector != null) {
-				try {
-					selector.close();
-				} catch (IOException e) {
-					e.printStackTrace();
+	protected void maintainEventLoop(long currTime) {
+		EventLoopGroup group = eventLoopGroup;
+		if (group != null) {
+			group.maintain(currTime, inactiveSocketTimeout);
+		}
+	}
+	
+	/**
+	 * The routing table, indexed by the index of a host. It is not changed once it
+	 * is published, its down hosts are taken from the healths when it is built.
+	 */
+	private static final class Routing {
+		// the hosts which are in the cluster now, in the order of their indexes
+		final String[] servers;
+		final String[] indexHosts;
+		final Integer[] indexWeights;
+		final HashMap<String, Integer> hostIndexMap;
+		final HostHealth[] hostHealths;
+		final ConcurrencyLimiter[] limiters;
+		final Set<Integer> downHosts;
+
+		Routing(String[] indexHosts, Integer[] indexWeights, HashMap<String, Integer> hostIndexMap,
+				HostHealth[] hostHealths, ConcurrencyLimiter[] limiters) {
+			this.indexHosts = indexHosts;
+			this.indexWeights = indexWeights;
+			this.hostIndexMap = hostIndexMap;
+			this.hostHealths = hostHealths;
+			this.limiters = limiters;
+			String[] servers = new String[hostIndexMap.size()];
+			HashSet<Integer> down = new HashSet<Integer>();
+			int n = 0;
+			for (int i = 0; i < indexHosts.length; i++) {
+				if (isLive(i)) {
+					servers[n++] = indexHosts[i];
+					if (hostHealths[i].isDown()) {
+						down.add(Integer.valueOf(i));
+					}
 				}
 			}
+			this.servers = servers;
+			this.downHosts = down.isEmpty() ? Collections.<Integer>emptySet() : down;
+		}
+
+		/**
+		 * Is the host of the index in the cluster, and not removed?
+		 */
+		boolean isLive(int hostIndex) {
+			Integer index = hostIndexMap.get(indexHosts[hostIndex]);
+			return index != null && index.intValue() == hostIndex;
 		}
 	}
-	
+
 	/**
 	 * Maintain thread
 	 */
@@ -763,8 +2091,10 @@ public class SocketManager {
 		public void run() {
 			while (initialized) {
 				long currTime = System.currentTimeMillis();
+				maintainHostHealth(currTime);
+				maintainWarmUp();
 				maintainInactiveSocket(currTime);
-				maintainSelectorPool(currTime);
+				maintainEventLoop(currTime);
 		//		long activeSize = localCache.getActiveCacheSize();
 		//		long size = localCache.getCacheSize();
 		//		System.out.println("CacheSize=" + size + " activeSize=" + activeSize);
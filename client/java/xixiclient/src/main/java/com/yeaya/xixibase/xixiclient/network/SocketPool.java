@@ -0,0 +1,445 @@
+/*
+   Copyright [2015] [Yao Yuan(yeaya@163.com)]
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.yeaya.xixibase.xixiclient.network;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The blocking sockets of one host.
+ * <p>
+ * At most <tt>maxConn</tt> sockets are borrowed at the same time, a borrower waits up
+ * to <tt>maxWaitTime</tt> for one to come back. A socket is only created with a permit,
+ * by a borrower when no idle socket is left or by <tt>fill</tt>, so the host never has
+ * more than <tt>maxConn</tt> sockets.
+ * <p>
+ * Idle sockets are kept in a few stripes picked by the thread, a thread gets back the
+ * socket it used last and only scans the other stripes when its own is empty.
+ * <p>
+ * A socket may come back with the responses of noreply requests still unread, the
+ * next borrower reads them first.
+ *
+ * @author Yao Yuan
+ *
+ */
+public class SocketPool {
+	final static Logger log = LoggerFactory.getLogger(SocketPool.class);
+
+	private final SocketManager manager;
+	private final String host;
+	private final int maxConn;
+	private final int writeBufferSize;
+	private final Semaphore permits;
+	private final List<ConcurrentLinkedDeque<XixiSocket>> stripes;
+	private final AtomicInteger idleCount = new AtomicInteger(0);
+	private volatile boolean closed = false;
+	// shared by the pools of the host, or null
+	private volatile ConcurrencyLimiter limiter;
+
+	private final LongAdder acquireCount = new LongAdder();
+	private final LongAdder waitCount = new LongAdder();
+	private final LongAdder waitTime = new LongAdder();
+	private final LongAdder exhaustedCount = new LongAdder();
+	private final LongAdder createCount = new LongAdder();
+	private final LongAdder createFailedCount = new LongAdder();
+
+	public SocketPool(SocketManager manager, String host, int maxConn) {
+		this(manager, host, maxConn, manager.getSocketWriteBufferSize());
+	}
+
+	public SocketPool(SocketManager manager, String host, int maxConn, int writeBufferSize) {
+		this.manager = manager;
+		this.host = host;
+		this.maxConn = maxConn > 0 ? maxConn : 1;
+		this.writeBufferSize = writeBufferSize;
+		this.permits = new Semaphore(this.maxConn);
+		int count = 1;
+		while (count < Runtime.getRuntime().availableProcessors() && count < 16) {
+			count <<= 1;
+		}
+		stripes = new ArrayList<ConcurrentLinkedDeque<XixiSocket>>(count);
+		for (int i = 0; i < count; i++) {
+			stripes.add(new ConcurrentLinkedDeque<XixiSocket>());
+		}
+	}
+
+	public String getHost() {
+		return host;
+	}
+
+	void setLimiter(ConcurrencyLimiter limiter) {
+		this.limiter = limiter;
+	}
+
+	public int getMaxConn() {
+		return maxConn;
+	}
+
+	/**
+	 * Get the number of idle sockets.
+	 * @return the number of idle sockets
+	 */
+	public int getIdleCount() {
+		return idleCount.get();
+	}
+
+	/**
+	 * Get the number of borrowed sockets.
+	 * @return the number of borrowed sockets
+	 */
+	public int getBorrowedCount() {
+		return maxConn - permits.availablePermits();
+	}
+
+	/**
+	 * Get the number of <tt>acquire</tt> calls.
+	 * @return the number of acquire calls
+	 */
+	public long getAcquireCount() {
+		return acquireCount.sum();
+	}
+
+	/**
+	 * Get the number of <tt>acquire</tt> calls which had to wait for a socket.
+	 * @return the number of waits
+	 */
+	public long getWaitCount() {
+		return waitCount.sum();
+	}
+
+	/**
+	 * Get the total time spent waiting for a socket.
+	 * @return wait time(millisecond)
+	 */
+	public long getWaitTime() {
+		return TimeUnit.NANOSECONDS.toMillis(waitTime.sum());
+	}
+
+	/**
+	 * Get the number of <tt>acquire</tt> calls which timed out because all the sockets were borrowed.
+	 * @return the number of exhausted acquires
+	 */
+	public long getExhaustedCount() {
+		return exhaustedCount.sum();
+	}
+
+	/**
+	 * Get the number of sockets created by this pool.
+	 * @return the number of created sockets
+	 */
+	public long getCreateCount() {
+		return createCount.sum();
+	}
+
+	/**
+	 * Get the number of failed connects.
+	 * @return the number of failed connects
+	 */
+	public long getCreateFailedCount() {
+		return createFailedCount.sum();
+	}
+
+	private ConcurrentLinkedDeque<XixiSocket> stripe() {
+		return stripes.get((int) Thread.currentThread().getId() & (stripes.size() - 1));
+	}
+
+	private XixiSocket pollIdle() {
+		ConcurrentLinkedDeque<XixiSocket> own = stripe();
+		XixiSocket socket = own.pollFirst();
+		if (socket == null) {
+			for (int i = 0; i < stripes.size() && socket == null; i++) {
+				if (stripes.get(i) != own) {
+					socket = stripes.get(i).pollFirst();
+				}
+			}
+		}
+		if (socket != null) {
+			idleCount.decrementAndGet();
+		}
+		return socket;
+	}
+
+	private void offerIdle(XixiSocket socket) {
+		socket.setLastActiveTime(System.currentTimeMillis());
+		idleCount.incrementAndGet();
+		stripe().offerFirst(socket);
+	}
+
+	/**
+	 * Borrow one socket, wait up to <tt>maxWaitTime</tt> if all the sockets are borrowed.
+	 * The socket goes back by <tt>close</tt>, or is dropped by <tt>trueClose</tt>.
+	 *
+	 * @param maxWaitTime max wait time(millisecond)
+	 * @return socket, or <tt>null</tt> if timed out or failed to connect the host
+	 */
+	public XixiSocket acquire(long maxWaitTime) {
+		return acquire(maxWaitTime, 0);
+	}
+
+	/**
+	 * Borrow one socket for a request with a deadline. The wait for a socket and the
+	 * connect of a new one end at the deadline, and the socket gets the deadline for
+	 * its reads and writes.
+	 *
+	 * @param maxWaitTime max wait time(millisecond)
+	 * @param deadline deadline(System.nanoTime), <tt>0</tt> for none
+	 * @return socket, or <tt>null</tt> if timed out or failed to connect the host
+	 */
+	public XixiSocket acquire(long maxWaitTime, long deadline) {
+		return acquire(maxWaitTime, deadline, true);
+	}
+
+	/**
+	 * Borrow one socket, with or without a permit of the concurrency limiter. A socket
+	 * without a permit is for a long poll, it would hold the permit for the whole poll.
+	 *
+	 * @param maxWaitTime max wait time(millisecond)
+	 * @param deadline deadline(System.nanoTime), <tt>0</tt> for none
+	 * @param limited take a permit of the concurrency limiter
+	 * @return socket, or <tt>null</tt> if timed out or failed to connect the host
+	 */
+	public XixiSocket acquire(long maxWaitTime, long deadline, boolean limited) {
+		acquireCount.increment();
+		long waitNanos = TimeUnit.MILLISECONDS.toNanos(maxWaitTime);
+		if (deadline != 0) {
+			long remain = deadline - System.nanoTime();
+			if (remain <= 0) {
+				log.warn("acquire, deadline exceeded, host=" + host);
+				return null;
+			}
+			waitNanos = Math.min(waitNanos, remain);
+		}
+		ConcurrencyLimiter limiter = limited ? this.limiter : null;
+		if (limiter != null && !limiter.tryAcquire()) {
+			log.warn("acquire, concurrency limit reached, host=" + host + " limit=" + limiter.getLimit());
+			return null;
+		}
+		XixiSocket socket = acquireSocket(waitNanos, deadline);
+		if (socket == null) {
+			if (limiter != null) {
+				limiter.cancel();
+			}
+			return null;
+		}
+		socket.setLimiter(limiter);
+		socket.setBorrowTime(limiter != null ? System.nanoTime() : XixiSocket.NO_RTT);
+		socket.setDeadline(deadline);
+		return socket;
+	}
+
+	private XixiSocket acquireSocket(long waitNanos, long deadline) {
+		if (!permits.tryAcquire()) {
+			waitCount.increment();
+			long start = System.nanoTime();
+			boolean acquired = false;
+			try {
+				acquired = permits.tryAcquire(waitNanos, TimeUnit.NANOSECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			waitTime.add(System.nanoTime() - start);
+			if (!acquired) {
+				exhaustedCount.increment();
+				log.warn("acquire, pool exhausted, host=" + host + " maxConn=" + maxConn);
+				return null;
+			}
+		}
+		if (closed) {
+			permits.release();
+			return null;
+		}
+		XixiSocket socket = pollIdle();
+		if (socket != null && socket.getPendingReplies() > 0) {
+			// the responses of the noreply requests come before the one of the next request
+			try {
+				manager.drainReplies(socket);
+			} catch (IOException e) {
+				log.error("acquire, failed to read the pending replies, host=" + host + " e=" + e);
+				socket.trueClose();
+				socket = null;
+			}
+		}
+		if (socket == null) {
+			int connectTimeout = manager.getSocketConnectTimeout();
+			if (deadline != 0) {
+				// the connect timeout is whole milliseconds and 0 waits forever
+				long remain = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+				if (remain <= 0) {
+					permits.release();
+					log.warn("acquire, deadline exceeded, host=" + host);
+					return null;
+				}
+				if (connectTimeout <= 0 || remain < connectTimeout) {
+					connectTimeout = (int) remain;
+				}
+			}
+			socket = create(connectTimeout);
+			if (socket == null) {
+				permits.release();
+				return null;
+			}
+		}
+		socket.setPool(this);
+		return socket;
+	}
+
+	private XixiSocket create() {
+		return create(manager.getSocketConnectTimeout());
+	}
+
+	private XixiSocket create(int connectTimeout) {
+		XixiSocket socket = manager.createSocket(host, writeBufferSize, connectTimeout);
+		if (socket != null) {
+			createCount.increment();
+		} else {
+			createFailedCount.increment();
+		}
+		return socket;
+	}
+
+	/**
+	 * Take back one socket.
+	 *
+	 * @param socket
+	 * @return <tt>false</tt> if the socket is not kept, the caller must close it
+	 */
+	boolean release(XixiSocket socket) {
+		if (socket.getPool() == this) {
+			socket.setPool(null);
+			ConcurrencyLimiter limiter = socket.getLimiter();
+			if (limiter != null) {
+				socket.setLimiter(null);
+				long borrowTime = socket.getBorrowTime();
+				limiter.onSuccess(borrowTime != XixiSocket.NO_RTT ? System.nanoTime() - borrowTime : -1);
+			}
+			if (closed) {
+				permits.release();
+				return false;
+			}
+			offerIdle(socket);
+			permits.release();
+			return true;
+		}
+		// a socket which was not borrowed from this pool
+		if (closed || idleCount.get() + getBorrowedCount() >= maxConn) {
+			return false;
+		}
+		offerIdle(socket);
+		return true;
+	}
+
+	/**
+	 * Forget one borrowed socket which is closed.
+	 * @param socket
+	 */
+	void discard(XixiSocket socket) {
+		if (socket.getPool() == this) {
+			socket.setPool(null);
+			ConcurrencyLimiter limiter = socket.getLimiter();
+			if (limiter != null) {
+				socket.setLimiter(null);
+				limiter.onDrop();
+			}
+			permits.release();
+		}
+	}
+
+	/**
+	 * Create the idle sockets until there are <tt>count</tt> idle sockets. Each socket
+	 * is created with a permit like a borrowed one, so the borrowers which create their
+	 * own sockets at the same time do not take the host past <tt>maxConn</tt>.
+	 * @param count
+	 * @return the number of idle sockets
+	 */
+	int fill(int count) {
+		while (!closed && idleCount.get() < count) {
+			if (!permits.tryAcquire()) {
+				break;
+			}
+			try {
+				// the borrowed count has the permit of this socket
+				if (idleCount.get() + getBorrowedCount() > maxConn) {
+					break;
+				}
+				XixiSocket socket = create();
+				if (socket == null) {
+					break;
+				}
+				if (closed) {
+					socket.trueClose();
+					break;
+				}
+				offerIdle(socket);
+			} finally {
+				permits.release();
+			}
+		}
+		return idleCount.get();
+	}
+
+	/**
+	 * Close the idle sockets beyond <tt>keepConn</tt> which were idle for more than
+	 * <tt>inactiveSocketTimeout</tt>, at most <tt>maxCount</tt> of them, then create
+	 * idle sockets up to <tt>minIdleConn</tt>.
+	 */
+	void maintain(long currTime, int inactiveSocketTimeout, int keepConn, int maxCount, int minIdleConn) {
+		int count = 0;
+		for (int i = 0; i < stripes.size() && count < maxCount; i++) {
+			ConcurrentLinkedDeque<XixiSocket> stripe = stripes.get(i);
+			while (count < maxCount && idleCount.get() > keepConn) {
+				XixiSocket socket = stripe.pollLast();
+				if (socket == null) {
+					break;
+				}
+				if (socket.getLastActiveTime() + inactiveSocketTimeout >= currTime) {
+					stripe.offerLast(socket);
+					break;
+				}
+				idleCount.decrementAndGet();
+				socket.trueClose();
+				count++;
+			}
+		}
+		if (minIdleConn > 0) {
+			fill(minIdleConn);
+		}
+	}
+
+	/**
+	 * Close the idle sockets, the borrowed sockets are closed when they come back.
+	 */
+	void close() {
+		closed = true;
+		for (int i = 0; i < stripes.size(); i++) {
+			XixiSocket socket = stripes.get(i).pollFirst();
+			while (socket != null) {
+				idleCount.decrementAndGet();
+				socket.trueClose();
+				socket = stripes.get(i).pollFirst();
+			}
+		}
+	}
+}
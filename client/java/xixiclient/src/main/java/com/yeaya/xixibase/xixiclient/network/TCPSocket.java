@@ -16,33 +16,57 @@
 
 package com.yeaya.xixibase.xixiclient.network;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
 import java.nio.channels.ByteChannel;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.SelectableChannel;
 import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
 
 import com.yeaya.xixibase.xixiclient.AsyncHandle;
-import com.yeaya.xixibase.xixiclient.ObjectTransCoder;
 
 public class TCPSocket implements XixiSocket {
 	private SocketManager manager;
 	private String host;
 	private Socket socket;
 	private java.nio.channels.SocketChannel socketChannel;
-	private ByteBuffer readBuffer;
+	// borrowed from the buffer arena of the manager while a request runs
+	private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+	private static final int READ_BUFFER_SIZE = 8 * 1024;
+	private final BufferArena bufferArena;
+	private final int writeBufferSize;
+	private ByteBuffer readBuffer = EMPTY;
 	private ByteBuffer writeBuffer;
+	private final ByteBuffer[] gatherBuffers = new ByteBuffer[2];
 	private long lastActiveTime;
+	private long borrowTime;
+	private SocketPool pool;
+	private ConcurrencyLimiter limiter;
+	private final WaitStrategy waitStrategy;
+	private final int timeout;
+	// the deadline(System.nanoTime) of the current request, 0 for none
+	private long deadline;
+	private int pendingReplies;
+	// a blocking channel is polled while a request has a deadline
+	private boolean polling;
 
 	public TCPSocket(SocketManager manager, String host, int writeBufferSize, int timeout,
 			int connectTimeout, boolean noDelay) throws IOException, UnknownHostException {
 
 		this.manager = manager;
 		this.host = host;
+		this.waitStrategy = manager.getWaitStrategy();
+		this.timeout = timeout;
+		this.bufferArena = manager.getBufferArena();
+		this.writeBufferSize = writeBufferSize;
 
 		String[] ip = host.split(":");
 
@@ -52,10 +76,6 @@ public class TCPSocket implements XixiSocket {
 			socket = createSocket(ip[0].trim(), manager.getDefaultPort(), connectTimeout);
 		}
 
-		readBuffer = ByteBuffer.allocateDirect(8 * 1024);
-		readBuffer.flip();
-		writeBuffer = ByteBuffer.allocateDirect(writeBufferSize);
-
 		if (timeout >= 0) {
 			socket.setSoTimeout(timeout);
 		}
@@ -71,6 +91,9 @@ public class TCPSocket implements XixiSocket {
 			socket = null;
 			throw new IOException("Can not getChannel for host:" + host);
 		}
+		if (waitStrategy != WaitStrategy.BLOCKING) {
+			socketChannel.configureBlocking(false);
+		}
 	}
 
 //	public ByteBuffer getReadBuffer() {
@@ -78,9 +101,36 @@ public class TCPSocket implements XixiSocket {
 //	}
 
 	public ByteBuffer getWriteBuffer() {
+		if (writeBuffer == null) {
+			writeBuffer = bufferArena.borrow(writeBufferSize);
+		}
 		return writeBuffer;
 	}
 
+	public void releaseBuffers() {
+		// the unread bytes of the replies in flight stay with the socket, the next
+		// borrower reads them
+		if (readBuffer != EMPTY && !readBuffer.hasRemaining()) {
+			bufferArena.release(readBuffer);
+			readBuffer = EMPTY;
+		}
+		if (writeBuffer != null) {
+			bufferArena.release(writeBuffer);
+			writeBuffer = null;
+		}
+	}
+
+	private final void discardBuffers() {
+		if (readBuffer != EMPTY) {
+			bufferArena.discard(readBuffer);
+			readBuffer = EMPTY;
+		}
+		if (writeBuffer != null) {
+			bufferArena.discard(writeBuffer);
+			writeBuffer = null;
+		}
+	}
+
 	public final SocketChannel getChannel() {
 		return socketChannel;
 	}
@@ -90,8 +140,11 @@ public class TCPSocket implements XixiSocket {
 	}
 
 	public final boolean trueClose() {
-		readBuffer.clear();
-		writeBuffer.clear();
+		if (pool != null) {
+			pool.discard(this);
+		}
+		// another thread may still use the buffers of a pipelined socket, do not reuse them
+		discardBuffers();
 
 		boolean ret = true;
 		try {
@@ -115,9 +168,17 @@ public class TCPSocket implements XixiSocket {
 	}
 
 	public final void close() {
-		readBuffer.clear();
-		readBuffer.flip();
-		writeBuffer.clear();
+		releaseBuffers();
+		deadline = 0;
+		if (polling) {
+			polling = false;
+			try {
+				socketChannel.configureBlocking(true);
+			} catch (IOException e) {
+				trueClose();
+				return;
+			}
+		}
 		if (!manager.addSocket(this)) {
 			trueClose();
 		}
@@ -131,7 +192,73 @@ public class TCPSocket implements XixiSocket {
 		return lastActiveTime;
 	}
 
+	public void setBorrowTime(long borrowTime) {
+		this.borrowTime = borrowTime;
+	}
+
+	public long getBorrowTime() {
+		return borrowTime;
+	}
+
+	/**
+	 * Set the deadline of the current request. A blocking channel can not time out
+	 * a read, so it is made non-blocking and polled until <tt>close</tt>.
+	 */
+	public void setDeadline(long deadline) {
+		this.deadline = deadline;
+	}
+
+	public long getDeadline() {
+		return deadline;
+	}
+
+	/**
+	 * Make a blocking channel non-blocking if the request has a deadline.
+	 */
+	private final void checkPolling() throws IOException {
+		if (deadline != 0 && !polling && waitStrategy == WaitStrategy.BLOCKING) {
+			socketChannel.configureBlocking(false);
+			polling = true;
+		}
+	}
+
+	/**
+	 * Wait after a read or write which moved nothing.
+	 * @throws SocketTimeoutException if the deadline of the request passed
+	 */
+	private final void idle(int idleCount, String op) throws SocketTimeoutException {
+		if (deadline != 0 && System.nanoTime() - deadline > 0) {
+			throw new SocketTimeoutException("TCPSocket." + op + " deadline exceeded, host=" + host);
+		}
+		(polling ? WaitStrategy.SPIN_PARK : waitStrategy).idle(idleCount);
+	}
+
+	public void setPendingReplies(int pendingReplies) {
+		this.pendingReplies = pendingReplies;
+	}
+
+	public int getPendingReplies() {
+		return pendingReplies;
+	}
+
+	public SocketPool getPool() {
+		return pool;
+	}
+
+	public void setPool(SocketPool pool) {
+		this.pool = pool;
+	}
+
+	public ConcurrencyLimiter getLimiter() {
+		return limiter;
+	}
+
+	public void setLimiter(ConcurrencyLimiter limiter) {
+		this.limiter = limiter;
+	}
+
 	public void write(byte[] b, int off, int len) throws IOException {
+		ByteBuffer writeBuffer = getWriteBuffer();
 		int remain = writeBuffer.remaining();
 		if (len <= remain) {
 			writeBuffer.put(b, off, len);
@@ -153,21 +280,60 @@ public class TCPSocket implements XixiSocket {
 		}
 	}
 	
-	private final void readFromChannel() throws IOException {
-		readBuffer.clear();
-	//	socketChannel.read(readBuffer);
-		for (int i = 0; i < 100; i++) {
-			if (socketChannel.read(readBuffer) != 0) {
-				break;
+	/**
+	 * Make sure that at least <tt>min</tt> bytes are in the read buffer,
+	 * the unread bytes are kept and the buffer is refilled behind them.
+	 * A blocking channel only returns when data arrived, a non-blocking one
+	 * is polled with the wait strategy of the manager until the socket timeout
+	 * or the deadline of the request.
+	 */
+	private final void fill(int min) throws IOException {
+		if (readBuffer.remaining() >= min) {
+			return;
+		}
+		if (readBuffer == EMPTY) {
+			readBuffer = bufferArena.borrow(READ_BUFFER_SIZE);
+		} else {
+			readBuffer.compact();
+		}
+		try {
+			checkPolling();
+			int idleCount = 0;
+			long timeoutAt = 0;
+			while (readBuffer.position() < min) {
+				int n = socketChannel.read(readBuffer);
+				if (n > 0) {
+					idleCount = 0;
+				} else if (n < 0) {
+					throw new EOFException("TCPSocket.fill reached end of stream, host=" + host);
+				} else {
+					if ((idleCount & 0x3FF) == 0 && timeout > 0) {
+						long now = System.nanoTime();
+						if (timeoutAt == 0) {
+							timeoutAt = now + timeout * 1000000L;
+						} else if (now - timeoutAt > 0) {
+							throw new SocketTimeoutException("TCPSocket.fill timeout, host=" + host);
+						}
+					}
+					idle(idleCount++, "fill");
+				}
 			}
+		} finally {
+			readBuffer.flip();
 		}
-		readBuffer.flip();
 	}
 
 	private final void writeToChannel() throws IOException {
+		ByteBuffer writeBuffer = getWriteBuffer();
 		writeBuffer.flip();
+		checkPolling();
+		int idleCount = 0;
 		while (writeBuffer.hasRemaining()) {
-			socketChannel.write(writeBuffer);
+			if (socketChannel.write(writeBuffer) == 0) {
+				idle(idleCount++, "write");
+			} else {
+				idleCount = 0;
+			}
 		}
 		writeBuffer.clear();
 	}
@@ -178,28 +344,132 @@ public class TCPSocket implements XixiSocket {
 	//	socketChannel.write(writeBuffer);
 	}
 
+	public void flush(ByteBuffer payload) throws IOException {
+		ByteBuffer writeBuffer = getWriteBuffer();
+		writeBuffer.flip();
+		gatherBuffers[0] = writeBuffer;
+		gatherBuffers[1] = payload;
+		try {
+			checkPolling();
+			int idleCount = 0;
+			while (writeBuffer.hasRemaining() || payload.hasRemaining()) {
+				if (socketChannel.write(gatherBuffers) == 0) {
+					idle(idleCount++, "flush");
+				} else {
+					idleCount = 0;
+				}
+			}
+		} finally {
+			gatherBuffers[1] = null;
+			writeBuffer.clear();
+		}
+	}
+
+	public long transferFrom(ReadableByteChannel src, long count) throws IOException {
+		writeToChannel();
+		long remain = count;
+		if (src instanceof FileChannel) {
+			FileChannel fc = (FileChannel) src;
+			long position = fc.position();
+			try {
+				checkPolling();
+				int idleCount = 0;
+				while (remain > 0) {
+					long n = fc.transferTo(position, remain, socketChannel);
+					if (n <= 0 && position >= fc.size()) {
+						throw new EOFException("TCPSocket.transferFrom, source ended, remain=" + remain);
+					}
+					if (n == 0) {
+						idle(idleCount++, "transferFrom");
+					} else {
+						idleCount = 0;
+					}
+					position += n;
+					remain -= n;
+				}
+			} finally {
+				fc.position(position);
+			}
+			return count;
+		}
+		ByteBuffer writeBuffer = getWriteBuffer();
+		while (remain > 0) {
+			writeBuffer.clear();
+			if (remain < writeBuffer.capacity()) {
+				writeBuffer.limit((int) remain);
+			}
+			int n = src.read(writeBuffer);
+			if (n < 0) {
+				writeBuffer.clear();
+				throw new EOFException("TCPSocket.transferFrom, source ended, remain=" + remain);
+			}
+			remain -= n;
+			writeToChannel();
+		}
+		return count;
+	}
+
+	private final long drainReadBuffer(WritableByteChannel dst, long count) throws IOException {
+		int limit = readBuffer.limit();
+		if (readBuffer.remaining() > count) {
+			readBuffer.limit(readBuffer.position() + (int) count);
+		}
+		int n = readBuffer.remaining();
+		try {
+			while (readBuffer.hasRemaining()) {
+				dst.write(readBuffer);
+			}
+		} finally {
+			readBuffer.limit(limit);
+		}
+		return n;
+	}
+
+	public long transferTo(WritableByteChannel dst, long count) throws IOException {
+		long remain = count - drainReadBuffer(dst, count);
+		checkPolling();
+		if (remain > 0 && dst instanceof FileChannel && socketChannel.isBlocking()) {
+			FileChannel fc = (FileChannel) dst;
+			long position = fc.position();
+			try {
+				while (remain > 0) {
+					long n = fc.transferFrom(socketChannel, position, remain);
+					if (n <= 0) {
+						throw new EOFException("TCPSocket.transferTo reached end of stream, host=" + host);
+					}
+					position += n;
+					remain -= n;
+				}
+			} finally {
+				fc.position(position);
+			}
+			return count;
+		}
+		while (remain > 0) {
+			fill(1);
+			remain -= drainReadBuffer(dst, remain);
+		}
+		return count;
+	}
+
 	public byte readByte() throws IOException {
-		byte[] b = new byte[1];
-		read(b, 0, 1);
-		return b[0];
+		fill(1);
+		return readBuffer.get();
 	}
 
 	public short readShort() throws IOException {
-		byte[] b = new byte[2];
-		read(b, 0, 2);
-		return ObjectTransCoder.decodeShort(b);
+		fill(2);
+		return readBuffer.getShort();
 	}
 
 	public int readInt() throws IOException {
-		byte[] b = new byte[4];
-		read(b, 0, 4);
-		return ObjectTransCoder.decodeInt(b);
+		fill(4);
+		return readBuffer.getInt();
 	}
 
 	public long readLong() throws IOException {
-		byte[] b = new byte[8];
-		read(b, 0, 8);
-		return ObjectTransCoder.decodeLong(b);
+		fill(8);
+		return readBuffer.getLong();
 	}
 
 	public byte[] read(int len) throws IOException {
@@ -213,11 +483,8 @@ public class TCPSocket implements XixiSocket {
 		while (remain > 0) {
 			int r1 = readBuffer.remaining();
 			if (r1 == 0) {
-				readFromChannel();
+				fill(1);
 				r1 = readBuffer.remaining();
-				if (r1 == 0) {
-					throw new IOException("TCPSocket.read failed on read, len=" + len);
-				}
 			}
 			r1 = r1 < remain ? r1 : remain;
 			readBuffer.get(b, off, r1);
@@ -253,11 +520,18 @@ public class TCPSocket implements XixiSocket {
 		}
 	}
 	public int read(ByteBuffer dst) throws IOException {
-		return socketChannel.read(dst);
+		int n = socketChannel.read(dst);
+		if (n < 0) {
+			throw new EOFException("TCPSocket.read reached end of stream, host=" + host);
+		}
+		return n;
 	}
 	public int write(ByteBuffer src) throws IOException {
 		return socketChannel.write(src);
 	}
+	public long write(ByteBuffer[] srcs) throws IOException {
+		return socketChannel.write(srcs);
+	}
 	public boolean handleRead() throws IOException  {
 		return handle.onRead();
 	}
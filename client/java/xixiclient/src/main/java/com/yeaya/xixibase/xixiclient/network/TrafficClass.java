@@ -0,0 +1,196 @@
+/*
+   Copyright [2015] [Yao Yuan(yeaya@163.com)]
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.yeaya.xixibase.xixiclient.network;
+
+import java.util.ArrayList;
+
+/**
+ * A lane of blocking sockets, every host has one socket pool per lane.
+ * <p>
+ * A client sends its requests over the lane it was created with, so a bulk job
+ * which borrows all the sockets of its lane does not make the interactive clients
+ * wait. The <tt>INTERACTIVE</tt> lane always exists, it takes <tt>maxConn</tt>,
+ * <tt>socketWriteBufferSize</tt> and <tt>maxWaitTime</tt> of the manager. The other
+ * lanes are added by <tt>SocketManager.addTrafficClass</tt> before <tt>initialize</tt>.
+ * <p>
+ * The counters are the sums over the socket pools of the lane, the wait time is the
+ * queueing delay of the requests before they got a socket.
+ *
+ * @author Yao Yuan
+ *
+ */
+public class TrafficClass {
+	public static final String INTERACTIVE = "interactive";
+	public static final String BULK = "bulk";
+
+	private final String name;
+	private volatile int maxConn;
+	private volatile int socketWriteBufferSize;
+	private volatile long maxWaitTime;
+	private volatile ArrayList<SocketPool> socketPools = new ArrayList<SocketPool>();
+
+	TrafficClass(String name, int maxConn, int socketWriteBufferSize, long maxWaitTime) {
+		this.name = name;
+		this.maxConn = maxConn;
+		this.socketWriteBufferSize = socketWriteBufferSize;
+		this.maxWaitTime = maxWaitTime;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Get the max number of sockets per host of this lane.
+	 * @return max connections
+	 */
+	public int getMaxConn() {
+		return maxConn;
+	}
+
+	void setMaxConn(int maxConn) {
+		this.maxConn = maxConn;
+	}
+
+	/**
+	 * Get the size of the write buffer of the sockets of this lane.
+	 * @return buffer size
+	 */
+	public int getSocketWriteBufferSize() {
+		return socketWriteBufferSize;
+	}
+
+	void setSocketWriteBufferSize(int socketWriteBufferSize) {
+		this.socketWriteBufferSize = socketWriteBufferSize;
+	}
+
+	/**
+	 * Get the max wait time(millisecond) for a socket of this lane.
+	 * @return max wait time(millisecond)
+	 */
+	public long getMaxWaitTime() {
+		return maxWaitTime;
+	}
+
+	void setMaxWaitTime(long maxWaitTime) {
+		this.maxWaitTime = maxWaitTime;
+	}
+
+	ArrayList<SocketPool> getSocketPools() {
+		return socketPools;
+	}
+
+	void setSocketPools(ArrayList<SocketPool> socketPools) {
+		this.socketPools = socketPools;
+	}
+
+	XixiSocket acquire(int hostIndex, long deadline) {
+		return socketPools.get(hostIndex).acquire(maxWaitTime, deadline);
+	}
+
+	XixiSocket acquire(int hostIndex, long deadline, boolean limited) {
+		return socketPools.get(hostIndex).acquire(maxWaitTime, deadline, limited);
+	}
+
+	/**
+	 * Get the number of <tt>acquire</tt> calls.
+	 * @return the number of acquire calls
+	 */
+	public long getAcquireCount() {
+		ArrayList<SocketPool> pools = socketPools;
+		long count = 0;
+		for (int i = 0; i < pools.size(); i++) {
+			count += pools.get(i).getAcquireCount();
+		}
+		return count;
+	}
+
+	/**
+	 * Get the number of <tt>acquire</tt> calls which had to wait for a socket.
+	 * @return the number of waits
+	 */
+	public long getWaitCount() {
+		ArrayList<SocketPool> pools = socketPools;
+		long count = 0;
+		for (int i = 0; i < pools.size(); i++) {
+			count += pools.get(i).getWaitCount();
+		}
+		return count;
+	}
+
+	/**
+	 * Get the total time spent waiting for a socket.
+	 * @return wait time(millisecond)
+	 */
+	public long getWaitTime() {
+		ArrayList<SocketPool> pools = socketPools;
+		long time = 0;
+		for (int i = 0; i < pools.size(); i++) {
+			time += pools.get(i).getWaitTime();
+		}
+		return time;
+	}
+
+	/**
+	 * Get the mean time an <tt>acquire</tt> call waited for a socket, the calls which
+	 * did not wait count as 0.
+	 * @return mean wait time(millisecond)
+	 */
+	public double getMeanWaitTime() {
+		long count = getAcquireCount();
+		return count == 0 ? 0 : (double) getWaitTime() / count;
+	}
+
+	/**
+	 * Get the number of <tt>acquire</tt> calls which timed out because all the sockets were borrowed.
+	 * @return the number of exhausted acquires
+	 */
+	public long getExhaustedCount() {
+		ArrayList<SocketPool> pools = socketPools;
+		long count = 0;
+		for (int i = 0; i < pools.size(); i++) {
+			count += pools.get(i).getExhaustedCount();
+		}
+		return count;
+	}
+
+	/**
+	 * Get the number of borrowed sockets.
+	 * @return the number of borrowed sockets
+	 */
+	public int getBorrowedCount() {
+		ArrayList<SocketPool> pools = socketPools;
+		int count = 0;
+		for (int i = 0; i < pools.size(); i++) {
+			count += pools.get(i).getBorrowedCount();
+		}
+		return count;
+	}
+
+	/**
+	 * Get the number of idle sockets.
+	 * @return the number of idle sockets
+	 */
+	public int getIdleCount() {
+		ArrayList<SocketPool> pools = socketPools;
+		int count = 0;
+		for (int i = 0; i < pools.size(); i++) {
+			count += pools.get(i).getIdleCount();
+		}
+		return count;
+	}
+}
@@ -0,0 +1,69 @@
+/*
+   Copyright [2015] [Yao Yuan(yeaya@163.com)]
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.yeaya.xixibase.xixiclient.network;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * How a blocking socket waits for a response.
+ * <p>
+ * With <tt>BLOCKING</tt> the channel is blocking and the thread sleeps in the kernel
+ * until data arrives. With the other strategies the channel is non-blocking and the
+ * reading thread polls it, which costs CPU but saves the wakeup latency:
+ * <ul>
+ * <li><tt>BUSY_SPIN</tt> polls without pause, it keeps one core busy per waiting thread.</li>
+ * <li><tt>SPIN_YIELD</tt> polls, then yields to other threads between polls.</li>
+ * <li><tt>SPIN_PARK</tt> polls, yields, then parks for a short time between polls.</li>
+ * </ul>
+ * Only <tt>TCPSocket</tt> polls, SSL sockets always block.
+ *
+ * @author Yao Yuan
+ *
+ */
+public enum WaitStrategy {
+	BLOCKING,
+	BUSY_SPIN,
+	SPIN_YIELD,
+	SPIN_PARK;
+
+	static final int SPIN_TRIES = 200;
+	static final int YIELD_TRIES = 100;
+	static final long PARK_NANOS = 10000;
+
+	/**
+	 * Wait after a poll which read nothing.
+	 * @param idleCount the number of polls which read nothing so far
+	 */
+	final void idle(int idleCount) {
+		switch (this) {
+		case SPIN_YIELD:
+			if (idleCount >= SPIN_TRIES) {
+				Thread.yield();
+			}
+			break;
+		case SPIN_PARK:
+			if (idleCount >= SPIN_TRIES + YIELD_TRIES) {
+				LockSupport.parkNanos(PARK_NANOS);
+			} else if (idleCount >= SPIN_TRIES) {
+				Thread.yield();
+			}
+			break;
+		default:
+			break;
+		}
+	}
+}
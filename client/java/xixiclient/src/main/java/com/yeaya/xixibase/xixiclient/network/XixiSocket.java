@@ -18,13 +18,27 @@ package com.yeaya.xixibase.xixiclient.network;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.Selector;
+import java.nio.channels.WritableByteChannel;
 
 import com.yeaya.xixibase.xixiclient.AsyncHandle;
 
 public interface XixiSocket {
+	/**
+	 * Get the write buffer, it is borrowed from the buffer arena of the manager
+	 * on the first call after the socket was acquired.
+	 * @return write buffer
+	 */
 	public ByteBuffer getWriteBuffer();
 
+	/**
+	 * Give the read and write buffers back to the buffer arena, a read buffer with
+	 * unread data stays with the socket. <tt>close</tt> does it before the socket
+	 * is pooled.
+	 */
+	public void releaseBuffers();
+
 	public String getHost();
 
 	public boolean trueClose();
@@ -43,15 +57,79 @@ public interface XixiSocket {
 	public void write(byte[] b, int off, int len) throws IOException ;
 	
 	public void flush() throws IOException ;
+
+	/**
+	 * Flush the buffered data and then <tt>payload</tt>, in one gathering write where
+	 * the socket allows it. The position of <tt>payload</tt> is advanced.
+	 * @param payload
+	 * @throws IOException
+	 */
+	public void flush(ByteBuffer payload) throws IOException ;
+
+	/**
+	 * Write <tt>count</tt> bytes of <tt>src</tt> after the buffered data, the buffered
+	 * data is flushed first. A <tt>FileChannel</tt> is sent without copying it
+	 * through the heap where the socket allows it, and its position is advanced.
+	 * @param src blocking channel
+	 * @param count
+	 * @return count
+	 * @throws IOException EOFException if <tt>src</tt> ends before <tt>count</tt> bytes
+	 */
+	public long transferFrom(ReadableByteChannel src, long count) throws IOException ;
+
+	/**
+	 * Read <tt>count</tt> bytes into <tt>dst</tt>. A <tt>FileChannel</tt> is filled
+	 * straight from the socket where the socket allows it, and its position is advanced.
+	 * @param dst blocking channel
+	 * @param count
+	 * @return count
+	 * @throws IOException
+	 */
+	public long transferTo(WritableByteChannel dst, long count) throws IOException ;
 	
 	public void setLastActiveTime(long lastActiveTime);
 	public long getLastActiveTime();
+
+	// a borrow time of a use which is not one request and one response: a stream,
+	// a batch or a long poll, it gives no response time to the concurrency limiter
+	public static final long NO_RTT = Long.MIN_VALUE;
+
+	// the time(System.nanoTime) the socket was borrowed from its pool, or NO_RTT
+	public void setBorrowTime(long borrowTime);
+	public long getBorrowTime();
+
+	/**
+	 * Set the time(System.nanoTime) by which the current request must be done, the
+	 * reads and writes after it throw <tt>SocketTimeoutException</tt>. <tt>close</tt>
+	 * resets it.
+	 * @param deadline deadline(System.nanoTime), <tt>0</tt> for none
+	 */
+	public void setDeadline(long deadline);
+	public long getDeadline();
+
+	/**
+	 * Set the number of requests sent on this socket whose responses were not read,
+	 * the next borrower reads them before its own request.
+	 * @param pendingReplies the number of unread responses
+	 */
+	public void setPendingReplies(int pendingReplies);
+	public int getPendingReplies();
+
+	// the pool which lent this socket, or null
+	public SocketPool getPool();
+	public void setPool(SocketPool pool);
+
+	// the concurrency limiter whose permit the borrowed socket holds, or null
+	public ConcurrencyLimiter getLimiter();
+	public void setLimiter(ConcurrencyLimiter limiter);
 	
 	// async op
 	public boolean isBlocking();
 	public void configureBlocking(boolean block) throws IOException ;
+	// throws EOFException when the host closed the connection
 	public int read(ByteBuffer dst) throws IOException ;
 	public int write(ByteBuffer src) throws IOException ;
+	public long write(ByteBuffer[] srcs) throws IOException ;
 	public boolean handleRead() throws IOException ;
 	public boolean handleWrite() throws IOException ;
 	public void register(Selector sel, int ops, AsyncHandle handle) throws IOException ;
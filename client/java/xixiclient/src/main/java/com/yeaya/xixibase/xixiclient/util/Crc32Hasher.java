@@ -0,0 +1,42 @@
+/*
+   Copyright [2015] [Yao Yuan(yeaya@163.com)]
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+
+package com.yeaya.xixibase.xixiclient.util;
+
+import java.util.zip.CRC32;
+
+/**
+ * CRC32, the hash of <tt>XixiWeightMap.CRC32_HASH</tt>. Each thread has its own
+ * <tt>CRC32</tt>.
+ *
+ * @author Yao Yuan
+ *
+ */
+public final class Crc32Hasher implements KeyHasher {
+	private final ThreadLocal<CRC32> checksum = new ThreadLocal<CRC32>() {
+		protected CRC32 initialValue() {
+			return new CRC32();
+		}
+	};
+
+	public int hash(byte[] key, int offset, int length) {
+		CRC32 crc = checksum.get();
+		crc.reset();
+		crc.update(key, offset, length);
+		return (int) crc.getValue();
+	}
+}
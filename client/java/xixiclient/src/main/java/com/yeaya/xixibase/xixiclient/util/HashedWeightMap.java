@@ -0,0 +1,47 @@
+/*
+   Copyright [2015] [Yao Yuan(yeaya@163.com)]
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+
+package com.yeaya.xixibase.xixiclient.util;
+
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A <tt>ReplicaWeightMap</tt> which finds the values by the hash of the key, so
+ * the key is hashed once and the hash is used for each lookup of one request.
+ * <p>
+ * <tt>get(k)</tt> must be <tt>getByHash(hash(k, null))</tt>, and the same for the
+ * other lookups.
+ *
+ * @author Yao Yuan
+ *
+ */
+public interface HashedWeightMap<V> extends ReplicaWeightMap<V> {
+	/**
+	 * Hash a key.
+	 * @param k key
+	 * @param keyBuf the encoded key, <tt>null</tt> to take <tt>k.getBytes()</tt>
+	 * @return hash
+	 */
+	public int hash(String k, byte[] keyBuf);
+
+	public V getByHash(int hash);
+
+	public V getByHash(int hash, Set<V> excluded);
+
+	public List<V> getByHash(int hash, int count);
+}
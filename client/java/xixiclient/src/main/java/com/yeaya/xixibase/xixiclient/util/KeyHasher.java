@@ -0,0 +1,36 @@
+/*
+   Copyright [2015] [Yao Yuan(yeaya@163.com)]
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+
+package com.yeaya.xixibase.xixiclient.util;
+
+/**
+ * Hashes an encoded key for the weight maps. An implementation must be thread safe,
+ * one instance is shared by all the clients of a manager.
+ *
+ * @author Yao Yuan
+ *
+ */
+public interface KeyHasher {
+	/**
+	 * Hash the bytes of a key.
+	 * @param key the encoded key, see <tt>TransCoder.encodeKey</tt>
+	 * @param offset the first byte of the key
+	 * @param length the length of the key
+	 * @return hash
+	 */
+	public int hash(byte[] key, int offset, int length);
+}
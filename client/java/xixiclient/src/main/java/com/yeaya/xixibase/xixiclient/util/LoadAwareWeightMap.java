@@ -0,0 +1,32 @@
+/*
+   Copyright [2015] [Yao Yuan(yeaya@163.com)]
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.yeaya.xixibase.xixiclient.util;
+
+/**
+ * A weight map which takes the load of the values into account,
+ * <tt>SocketManager</tt> gives it the requests in flight of each server.
+ *
+ * @author Yao Yuan
+ *
+ */
+public interface LoadAwareWeightMap<V> extends HashedWeightMap<V> {
+	/**
+	 * Set the source of the loads.
+	 * @param loadSource the source, <tt>null</tt> to ignore the loads
+	 */
+	public void setLoadSource(LoadSource<V> loadSource);
+}
@@ -0,0 +1,34 @@
+/*
+   Copyright [2015] [Yao Yuan(yeaya@163.com)]
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.yeaya.xixibase.xixiclient.util;
+
+/**
+ * Gives the current load of the values of a weight map, for
+ * <tt>SocketManager</tt> the number of requests in flight to a server.
+ * An implementation must be thread safe and cheap, it is called on each lookup.
+ *
+ * @author Yao Yuan
+ *
+ */
+public interface LoadSource<V> {
+	/**
+	 * Get the load of a value.
+	 * @param value
+	 * @return load, <tt>0</tt> if the value is idle
+	 */
+	public int getLoad(V value);
+}
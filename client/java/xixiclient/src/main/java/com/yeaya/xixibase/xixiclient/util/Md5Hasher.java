@@ -0,0 +1,67 @@
+/*
+   Copyright [2015] [Yao Yuan(yeaya@163.com)]
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+
+package com.yeaya.xixibase.xixiclient.util;
+
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * MD5, the hash of <tt>XixiWeightMap.MD5_HASH</tt>: the first 4 bytes of the digest,
+ * little endian. Each thread has its own <tt>MessageDigest</tt>.
+ *
+ * @author Yao Yuan
+ *
+ */
+public final class Md5Hasher implements KeyHasher {
+	private final ThreadLocal<Digest> digest = new ThreadLocal<Digest>() {
+		protected Digest initialValue() {
+			return new Digest();
+		}
+	};
+
+	public Md5Hasher() {
+		// fail at once if there is no md5
+		digest.get();
+	}
+
+	public int hash(byte[] key, int offset, int length) {
+		Digest d = digest.get();
+		d.md5.update(key, offset, length);
+		try {
+			d.md5.digest(d.out, 0, d.out.length);
+		} catch (DigestException e) {
+			throw new IllegalStateException(e);
+		}
+		byte[] b = d.out;
+		return ((b[3] & 0xFF) << 24) | ((b[2] & 0xFF) << 16) | ((b[1] & 0xFF) << 8) | (b[0] & 0xFF);
+	}
+
+	private static final class Digest {
+		final MessageDigest md5;
+		final byte[] out = new byte[16];
+
+		Digest() {
+			try {
+				md5 = MessageDigest.getInstance("MD5");
+			} catch (NoSuchAlgorithmException e) {
+				throw new IllegalStateException("no md5 algorythm found");
+			}
+		}
+	}
+}
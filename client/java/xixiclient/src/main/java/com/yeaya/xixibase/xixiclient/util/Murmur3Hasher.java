@@ -0,0 +1,66 @@
+/*
+   Copyright [2015] [Yao Yuan(yeaya@163.com)]
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+
+package com.yeaya.xixibase.xixiclient.util;
+
+/**
+ * MurmurHash3, the x86 32 bits variant, seed 0.
+ *
+ * @author Yao Yuan
+ *
+ */
+public final class Murmur3Hasher implements KeyHasher {
+	private static final int C1 = 0xcc9e2d51;
+	private static final int C2 = 0x1b873593;
+
+	public int hash(byte[] key, int offset, int length) {
+		int h = 0;
+		int end = offset + (length & ~3);
+		for (int i = offset; i < end; i += 4) {
+			int k = (key[i] & 0xFF) | ((key[i + 1] & 0xFF) << 8)
+					| ((key[i + 2] & 0xFF) << 16) | (key[i + 3] << 24);
+			k *= C1;
+			k = Integer.rotateLeft(k, 15);
+			k *= C2;
+			h ^= k;
+			h = Integer.rotateLeft(h, 13);
+			h = h * 5 + 0xe6546b64;
+		}
+		int rem = length & 3;
+		if (rem > 0) {
+			int k = 0;
+			if (rem >= 3) {
+				k ^= (key[end + 2] & 0xFF) << 16;
+			}
+			if (rem >= 2) {
+				k ^= (key[end + 1] & 0xFF) << 8;
+			}
+			k ^= key[end] & 0xFF;
+			k *= C1;
+			k = Integer.rotateLeft(k, 15);
+			k *= C2;
+			h ^= k;
+		}
+		h ^= length;
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		h *= 0xc2b2ae35;
+		h ^= h >>> 16;
+		return h;
+	}
+}
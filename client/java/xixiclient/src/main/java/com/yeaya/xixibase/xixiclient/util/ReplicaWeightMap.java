@@ -0,0 +1,47 @@
+/*
+   Copyright [2015] [Yao Yuan(yeaya@163.com)]
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+
+package com.yeaya.xixibase.xixiclient.util;
+
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A <tt>WeightMap</tt> which can give the values which follow the value of a key,
+ * the same values in the same order for each call. The replicas and the failover
+ * of <tt>SocketManager</tt> need it.
+ *
+ * @author Yao Yuan
+ *
+ */
+public interface ReplicaWeightMap<V> extends WeightMap<V> {
+	/**
+	 * Get the value of the key, skip the excluded values and take the next one.
+	 * @param k key
+	 * @param excluded values which must not be returned
+	 * @return value, or <tt>null</tt> if all the values are excluded
+	 */
+	public V get(String k, Set<V> excluded);
+
+	/**
+	 * Get the value of the key and the next distinct values.
+	 * @param k key
+	 * @param count the max number of values
+	 * @return values, the value of the key first, fewer than <tt>count</tt> if the map has fewer values
+	 */
+	public List<V> get(String k, int count);
+}
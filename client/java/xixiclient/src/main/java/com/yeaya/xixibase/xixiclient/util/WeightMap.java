@@ -24,4 +24,11 @@ public interface WeightMap<V> {
 	public void clear();
 	public int getHashingAlg();
 	public boolean isConsistent();
+
+	/**
+	 * Are the keys placed by the values, not by their position? Then a change of one
+	 * value moves only the keys of that value.
+	 * @return <tt>false</tt> if the keys of the other values move too
+	 */
+	public boolean isPlacedByValue();
 }
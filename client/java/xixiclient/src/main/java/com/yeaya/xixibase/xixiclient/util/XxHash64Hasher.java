@@ -0,0 +1,107 @@
+/*
+   Copyright [2015] [Yao Yuan(yeaya@163.com)]
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+
+package com.yeaya.xixibase.xixiclient.util;
+
+/**
+ * xxHash64, seed 0, the 64 bits hash is folded into 32 bits.
+ *
+ * @author Yao Yuan
+ *
+ */
+public final class XxHash64Hasher implements KeyHasher {
+	private static final long P1 = 0x9E3779B185EBCA87L;
+	private static final long P2 = 0xC2B2AE3D27D4EB4FL;
+	private static final long P3 = 0x165667B19E3779F9L;
+	private static final long P4 = 0x85EBCA77C2B2AE63L;
+	private static final long P5 = 0x27D4EB2F165667C5L;
+
+	public int hash(byte[] key, int offset, int length) {
+		long h = hash64(key, offset, length);
+		return (int) (h ^ (h >>> 32));
+	}
+
+	/**
+	 * Get the 64 bits hash.
+	 */
+	public long hash64(byte[] key, int offset, int length) {
+		int i = offset;
+		int end = offset + length;
+		long h;
+		if (length >= 32) {
+			long v1 = P1 + P2;
+			long v2 = P2;
+			long v3 = 0;
+			long v4 = -P1;
+			int limit = end - 32;
+			do {
+				v1 = round(v1, getLong(key, i));
+				v2 = round(v2, getLong(key, i + 8));
+				v3 = round(v3, getLong(key, i + 16));
+				v4 = round(v4, getLong(key, i + 24));
+				i += 32;
+			} while (i <= limit);
+			h = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7)
+					+ Long.rotateLeft(v3, 12) + Long.rotateLeft(v4, 18);
+			h = merge(h, v1);
+			h = merge(h, v2);
+			h = merge(h, v3);
+			h = merge(h, v4);
+		} else {
+			h = P5;
+		}
+		h += length;
+		for (; i + 8 <= end; i += 8) {
+			h ^= round(0, getLong(key, i));
+			h = Long.rotateLeft(h, 27) * P1 + P4;
+		}
+		if (i + 4 <= end) {
+			h ^= (getInt(key, i) & 0xFFFFFFFFL) * P1;
+			h = Long.rotateLeft(h, 23) * P2 + P3;
+			i += 4;
+		}
+		for (; i < end; i++) {
+			h ^= (key[i] & 0xFF) * P5;
+			h = Long.rotateLeft(h, 11) * P1;
+		}
+		h ^= h >>> 33;
+		h *= P2;
+		h ^= h >>> 29;
+		h *= P3;
+		h ^= h >>> 32;
+		return h;
+	}
+
+	private static long round(long acc, long input) {
+		acc += input * P2;
+		acc = Long.rotateLeft(acc, 31);
+		return acc * P1;
+	}
+
+	private static long merge(long acc, long v) {
+		acc ^= round(0, v);
+		return acc * P1 + P4;
+	}
+
+	private static long getLong(byte[] b, int i) {
+		return (getInt(b, i) & 0xFFFFFFFFL) | ((long) getInt(b, i + 4) << 32);
+	}
+
+	private static int getInt(byte[] b, int i) {
+		return (b[i] & 0xFF) | ((b[i + 1] & 0xFF) << 8) | ((b[i + 2] & 0xFF) << 16) | (b[i + 3] << 24);
+	}
+}
@@ -15,6 +15,7 @@ public class AllTests extends TestCase {
         suite.addTest(new JUnit4TestAdapter(CacheClientTest.class));
         suite.addTest(new JUnit4TestAdapter(LocalCacheTest.class));
         suite.addTest(new JUnit4TestAdapter(MultiOperationTest.class));
+        suite.addTest(new JUnit4TestAdapter(AsyncClientTest.class));
 		
 		//$JUnit-END$
 		return suite;
@@ -0,0 +1,164 @@
+package com.yeaya.xixibase.xixiclient;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import static org.junit.Assert.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class AsyncClientTest {
+	private static final String managerName = "asyncManager";
+	private static XixiClientManager mgr = null;
+	private static XixiClient cc = null;
+	private static XixiAsyncClient ac = null;
+
+	static String servers;
+	static String[] serverlist;
+	static boolean enableSSL = false;
+	static {
+		servers = System.getProperty("hosts");
+		enableSSL = System.getProperty("enableSSL") != null && System.getProperty("enableSSL").equals("true");
+		if (servers == null) {
+			try {
+				InputStream in = AsyncClientTest.class.getResourceAsStream("/test.properties");
+				Properties p = new Properties();
+				p.load(in);
+				in.close();
+				servers = p.getProperty("hosts");
+				enableSSL = p.getProperty("enableSSL") != null && p.getProperty("enableSSL").equals("true");
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+		serverlist = servers.split(",");
+
+		mgr = XixiClientManager.getInstance(managerName);
+		mgr.setPipelinedConn(2);
+		mgr.initialize(serverlist, enableSSL);
+	}
+
+	@Before
+	public void setUp() throws Exception {
+		cc = mgr.createClient();
+		ac = mgr.createAsyncClient();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		cc.flush();
+	}
+
+	@Test
+	public void testSetGet() throws InterruptedException, ExecutionException {
+		long cacheId = ac.set("xixi", "value").get().longValue();
+		assertTrue(cacheId != 0);
+		CacheItem item = ac.get("xixi").get();
+		assertNotNull(item);
+		assertEquals("value", item.getValue());
+		assertEquals(cacheId, item.getCacheId());
+		assertEquals("value", cc.getValue("xixi"));
+		assertNull(ac.get("xixi_none").get());
+	}
+
+	@Test
+	public void testAddReplace() throws InterruptedException, ExecutionException {
+		assertEquals(0, ac.replace("xixi", "value").get().longValue());
+		long cacheId = ac.add("xixi", "value").get().longValue();
+		assertTrue(cacheId != 0);
+		assertEquals(0, ac.add("xixi", "value2").get().longValue());
+		assertEquals(0, ac.replace("xixi", "value2", 0, cacheId + 1).get().longValue());
+		assertTrue(ac.replace("xixi", "value2", 0, cacheId).get().longValue() != 0);
+		assertEquals("value2", ac.get("xixi").get().getValue());
+	}
+
+	@Test
+	public void testAppendPrepend() throws InterruptedException, ExecutionException {
+		ac.set("xixi", "b");
+		ac.append("xixi", "c");
+		ac.prepend("xixi", "a");
+		assertEquals("abc", ac.get("xixi").get().getValue());
+	}
+
+	@Test
+	public void testDelete() throws InterruptedException, ExecutionException {
+		assertFalse(ac.delete("xixi").get().booleanValue());
+		ac.set("xixi", "value");
+		assertTrue(ac.delete("xixi").get().booleanValue());
+		assertNull(cc.get("xixi"));
+	}
+
+	@Test
+	public void testDelta() throws InterruptedException, ExecutionException {
+		ac.set("xixi", "10");
+		DeltaItem item = ac.incr("xixi", 5).get();
+		assertNotNull(item);
+		assertEquals(15, item.value);
+		item = ac.decr("xixi").get();
+		assertEquals(14, item.value);
+		assertNull(ac.incr("xixi_none").get());
+	}
+
+	@Test
+	public void testGetBase() throws InterruptedException, ExecutionException {
+		long cacheId = ac.set("xixi", "value", 100).get().longValue();
+		CacheBaseItem item = ac.getBase("xixi").get();
+		assertEquals(cacheId, item.getCacheId());
+		assertTrue(item.getExpiration() > 0);
+		assertTrue(ac.updateExpiration("xixi", 0).get().booleanValue());
+		item = ac.getBase("xixi").get();
+		assertEquals(0, item.getExpiration());
+		assertNotNull(ac.getAndTouch("xixi", 200).get());
+		assertTrue(ac.getBase("xixi").get().getExpiration() > 0);
+	}
+
+	@Test
+	public void testInvalidKey() {
+		CompletableFuture<CacheItem> future = ac.get(null);
+		assertTrue(future.isCompletedExceptionally());
+		CompletableFuture<Long> f2 = ac.set("xixi", null);
+		assertTrue(f2.isCompletedExceptionally());
+	}
+
+	@Test
+	public void testPipelined() throws InterruptedException, ExecutionException {
+		int count = 10000;
+		List<CompletableFuture<Long>> sets = new ArrayList<CompletableFuture<Long>>();
+		for (int i = 0; i < count; i++) {
+			sets.add(ac.set("xixi" + i, "value" + i));
+		}
+		for (int i = 0; i < count; i++) {
+			assertTrue(sets.get(i).get().longValue() != 0);
+		}
+		List<CompletableFuture<CacheItem>> gets = new ArrayList<CompletableFuture<CacheItem>>();
+		for (int i = 0; i < count; i++) {
+			gets.add(ac.get("xixi" + i));
+		}
+		for (int i = 0; i < count; i++) {
+			CacheItem item = gets.get(i).get();
+			assertEquals("xixi" + i, item.getKey());
+			assertEquals("value" + i, item.getValue());
+		}
+	}
+
+	@Test
+	public void testLargeValue() throws InterruptedException, ExecutionException {
+		byte[] value = new byte[200 * 1024];
+		for (int i = 0; i < value.length; i++) {
+			value[i] = (byte)i;
+		}
+		CompletableFuture<Long> f1 = ac.set("xixi1", value);
+		CompletableFuture<Long> f2 = ac.set("xixi2", "value2");
+		assertTrue(f1.get().longValue() != 0);
+		assertTrue(f2.get().longValue() != 0);
+		assertTrue(Arrays.equals(value, (byte[])ac.get("xixi1").get().getValue()));
+		assertEquals("value2", ac.get("xixi2").get().getValue());
+	}
+}
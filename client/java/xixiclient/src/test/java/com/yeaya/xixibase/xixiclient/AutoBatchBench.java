@@ -0,0 +1,119 @@
+/*
+   Copyright [2015] [Yao Yuan(yeaya@163.com)]
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.yeaya.xixibase.xixiclient;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Measures concurrent single-key gets with and without auto batching.
+ * <p>
+ * Every caller reads its own key in a loop. The hosts default to two
+ * {@link MockServer}s on loopback.
+ * <pre>
+ *     java AutoBatchBench [callers] [window(us)] [seconds] [host,host...]</pre>
+ *
+ * @author Yao Yuan
+ *
+ */
+public class AutoBatchBench {
+	static void bench(String name, String[] hosts, int callers, long window, long seconds, boolean batching)
+			throws InterruptedException {
+		final XixiClientManager manager = XixiClientManager.getInstance("AutoBatchBench" + name);
+		manager.setMaxConn(callers);
+		manager.setAutoBatching(batching);
+		manager.setAutoBatchWindow(window);
+		manager.initialize(hosts, false);
+		final AtomicBoolean running = new AtomicBoolean(true);
+		final LongAdder count = new LongAdder();
+		final LongAdder time = new LongAdder();
+		final LongAdder failCount = new LongAdder();
+		Thread[] threads = new Thread[callers];
+		try {
+			XixiClient cc = manager.createClient();
+			for (int i = 0; i < callers; i++) {
+				cc.set("AutoBatchBench" + i, "value" + i);
+			}
+			for (int i = 0; i < callers; i++) {
+				final String key = "AutoBatchBench" + i;
+				final String value = "value" + i;
+				threads[i] = new Thread() {
+					public void run() {
+						XixiClient c = manager.createClient();
+						while (running.get()) {
+							long start = System.nanoTime();
+							boolean ok = value.equals(c.getValue(key));
+							time.add(System.nanoTime() - start);
+							count.increment();
+							if (!ok) {
+								failCount.increment();
+							}
+						}
+					}
+				};
+				threads[i].start();
+			}
+			Thread.sleep(seconds * 1000);
+			running.set(false);
+			for (int i = 0; i < threads.length; i++) {
+				threads[i].join();
+			}
+			long n = count.sum();
+			long batches = manager.getAutoBatchCount();
+			System.out.println(name + " callers=" + callers + " window=" + window + "us"
+					+ " ops/s=" + n / seconds
+					+ " mean=" + (n == 0 ? 0 : time.sum() / n / 1000) + "us"
+					+ " failed=" + failCount.sum()
+					+ " batches=" + batches
+					+ " meanBatch=" + (batches == 0 ? 0 : (double) manager.getAutoBatchedCount() / batches));
+		} finally {
+			running.set(false);
+			manager.shutdown();
+		}
+	}
+
+	public static void main(String[] args) throws IOException, InterruptedException {
+		int callers = args.length > 0 ? Integer.parseInt(args[0]) : 128;
+		long window = args.length > 1 ? Long.parseLong(args[1]) : 20;
+		long seconds = args.length > 2 ? Long.parseLong(args[2]) : 5;
+		MockServer server1 = null;
+		MockServer server2 = null;
+		String[] hosts;
+		if (args.length > 3) {
+			hosts = args[3].split(",");
+		} else {
+			server1 = new MockServer(0);
+			server2 = new MockServer(0);
+			server1.start();
+			server2.start();
+			hosts = new String[] {server1.getHost(), server2.getHost()};
+		}
+		try {
+			// the first round warms up the JIT
+			for (int round = 0; round < 2; round++) {
+				bench("single" + round, hosts, callers, window, seconds, false);
+				bench("batched" + round, hosts, callers, window, seconds, true);
+			}
+		} finally {
+			if (server1 != null) {
+				server1.stop();
+				server2.stop();
+			}
+		}
+	}
+}
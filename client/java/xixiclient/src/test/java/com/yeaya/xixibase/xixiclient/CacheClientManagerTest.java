@@ -18,15 +18,38 @@ package com.yeaya.xixibase.xixiclient;
 
 import static org.junit.Assert.*;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.Properties;
 
+import javax.net.ssl.SSLContext;
+
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
+import com.yeaya.xixibase.xixiclient.multi.HostResult;
+import com.yeaya.xixibase.xixiclient.multi.MultiDeleteItem;
+import com.yeaya.xixibase.xixiclient.multi.MultiUpdateExpirationItem;
+import com.yeaya.xixibase.xixiclient.multi.MultiUpdateItem;
+import com.yeaya.xixibase.xixiclient.network.BufferArena;
+import com.yeaya.xixibase.xixiclient.network.ConcurrencyLimiter;
+import com.yeaya.xixibase.xixiclient.network.HostHealth;
 import com.yeaya.xixibase.xixiclient.network.SocketManager;
+import com.yeaya.xixibase.xixiclient.network.SocketPool;
+import com.yeaya.xixibase.xixiclient.network.TrafficClass;
+import com.yeaya.xixibase.xixiclient.network.WaitStrategy;
 import com.yeaya.xixibase.xixiclient.network.XixiSocket;
 
 public class CacheClientManagerTest {
@@ -167,6 +190,1324 @@ public class CacheClientManagerTest {
 		mgr.shutdown();
 	}
 	
+	@Test
+	public void testSocketPool() throws InterruptedException {
+		SocketManager mgr = new SocketManager();
+		mgr.setInitConn(0);
+		mgr.setMaxConn(2);
+		mgr.setMaxWaitTime(200);
+		mgr.initialize(serverlist, enableSSL);
+		SocketPool pool = mgr.getSocketPool(serverlist[0]);
+		assertNotNull(pool);
+		assertNull(mgr.getSocketPool("unknownhost"));
+
+		XixiSocket s1 = mgr.getSocketByHost(serverlist[0]);
+		final XixiSocket s2 = mgr.getSocketByHost(serverlist[0]);
+		assertNotNull(s1);
+		assertNotNull(s2);
+		assertEquals(2, pool.getBorrowedCount());
+		long start = System.currentTimeMillis();
+		assertNull(mgr.getSocketByHost(serverlist[0]));
+		assertTrue(System.currentTimeMillis() - start >= 150);
+		assertEquals(1, pool.getExhaustedCount());
+		assertEquals(1, pool.getWaitCount());
+
+		// a waiter gets the socket which comes back
+		mgr.setMaxWaitTime(5000);
+		Thread t = new Thread() {
+			public void run() {
+				try {
+					Thread.sleep(100);
+				} catch (InterruptedException e) {
+				}
+				s2.close();
+			}
+		};
+		t.start();
+		XixiSocket s3 = mgr.getSocketByHost(serverlist[0]);
+		assertTrue(s3 == s2);
+		assertEquals(2, pool.getWaitCount());
+		assertEquals(1, pool.getExhaustedCount());
+		t.join();
+
+		// a broken socket gives its place back
+		s1.trueClose();
+		assertEquals(1, pool.getBorrowedCount());
+		s3.close();
+		assertEquals(0, pool.getBorrowedCount());
+		assertEquals(1, pool.getIdleCount());
+		assertEquals(2, pool.getCreateCount());
+		assertEquals(4, pool.getAcquireCount());
+		mgr.shutdown();
+		assertEquals(0, pool.getIdleCount());
+	}
+
+	@Test
+	public void testMinIdleConn() throws InterruptedException {
+		SocketManager mgr = new SocketManager();
+		mgr.setInitConn(0);
+		mgr.setMinIdleConn(3);
+		mgr.setMaintainInterval(100);
+		mgr.initialize(serverlist, enableSSL);
+		SocketPool pool = mgr.getSocketPool(serverlist[0]);
+		for (int i = 0; i < 50 && pool.getIdleCount() < 3; i++) {
+			Thread.sleep(20);
+		}
+		assertEquals(3, pool.getIdleCount());
+		mgr.shutdown();
+
+		// the sockets of the maintain thread and of the borrowers stay within maxConn
+		mgr = new SocketManager();
+		mgr.setInitConn(0);
+		mgr.setMaxConn(4);
+		mgr.setMinIdleConn(4);
+		mgr.setMaintainInterval(1);
+		mgr.initialize(serverlist, enableSSL);
+		final SocketManager mgr2 = mgr;
+		Thread[] threads = new Thread[4];
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new Thread() {
+				public void run() {
+					for (int j = 0; j < 200; j++) {
+						XixiSocket socket = mgr2.getSocketByHost(serverlist[0]);
+						if (socket != null) {
+							socket.close();
+						}
+					}
+				}
+			};
+			threads[i].start();
+		}
+		for (int i = 0; i < threads.length; i++) {
+			threads[i].join();
+		}
+		pool = mgr.getSocketPool(serverlist[0]);
+		assertTrue(pool.getCreateCount() <= 4);
+		assertTrue(pool.getIdleCount() <= 4);
+		mgr.shutdown();
+	}
+
+	@Test
+	public void testHostHealth() throws IOException, InterruptedException {
+		MockServer server1 = new MockServer(0);
+		MockServer server2 = new MockServer(0);
+		server1.start();
+		int port2 = server2.getPort();
+		String host2 = server2.getHost();
+		server2.stop();
+
+		SocketManager mgr = new SocketManager();
+		mgr.setInitConn(0);
+		mgr.setFailureThreshold(2);
+		mgr.setMaintainInterval(50);
+		mgr.setProbeInterval(100);
+		mgr.setMaxProbeInterval(400);
+		mgr.initialize(new String[] {server1.getHost(), host2}, false);
+		HostHealth health = mgr.getHostHealth(host2);
+		assertNotNull(health);
+		assertNull(mgr.getHostHealth("unknownhost"));
+
+		assertNull(mgr.getSocketByHost(host2));
+		assertFalse(health.isDown());
+		assertEquals(1, health.getConsecutiveFailures());
+		assertNull(mgr.getSocketByHost(host2));
+		assertTrue(health.isDown());
+		assertTrue(mgr.isHostDown(host2));
+		assertFalse(mgr.isHostDown(server1.getHost()));
+		assertEquals(1, health.getDownCount());
+
+		// a down host fails at once
+		long failFast = health.getFailFastCount();
+		assertNull(mgr.getSocketByHost(host2));
+		assertEquals(failFast + 1, health.getFailFastCount());
+
+		String key2 = null;
+		for (int i = 0; key2 == null; i++) {
+			if (mgr.getHost("xixi" + i).equals(host2)) {
+				key2 = "xixi" + i;
+			}
+		}
+		assertNull(mgr.getSocket(key2));
+
+		// the keys of the down host go to the next host
+		mgr.setFailover(true);
+		assertEquals(server1.getHost(), mgr.getHost(key2));
+		XixiSocket socket = mgr.getSocket(key2);
+		assertNotNull(socket);
+		assertEquals(server1.getHost(), socket.getHost());
+		socket.close();
+
+		// the maintain thread probes the host until it is back
+		server2 = new MockServer(port2);
+		server2.start();
+		for (int i = 0; i < 100 && health.isDown(); i++) {
+			Thread.sleep(20);
+		}
+		assertFalse(health.isDown());
+		assertTrue(health.getProbeCount() >= 1);
+		assertEquals(0, health.getConsecutiveFailures());
+		assertEquals(host2, mgr.getHost(key2));
+		socket = mgr.getSocket(key2);
+		assertNotNull(socket);
+		assertEquals(host2, socket.getHost());
+		socket.close();
+
+		mgr.shutdown();
+		server1.stop();
+		server2.stop();
+	}
+
+	@Test
+	public void testStartup() throws IOException, InterruptedException {
+		MockServer server = new MockServer(0);
+		server.start();
+		// a server whose backlog is full never completes a connect
+		InetAddress localhost = InetAddress.getByName("127.0.0.1");
+		ServerSocket silent = new ServerSocket(0, 1, localhost);
+		ArrayList<Socket> fillers = new ArrayList<Socket>();
+		for (int i = 0; i < 4; i++) {
+			Socket s = new Socket();
+			try {
+				s.connect(new InetSocketAddress(localhost, silent.getLocalPort()), 200);
+				fillers.add(s);
+			} catch (IOException e) {
+				s.close();
+				break;
+			}
+		}
+		String[] hosts = new String[] {server.getHost(), "127.0.0.1:" + silent.getLocalPort()};
+
+		SocketManager mgr = new SocketManager();
+		mgr.setInitConn(2);
+		mgr.setSocketConnectTimeout(2000);
+		mgr.setStartupTimeout(300);
+		assertEquals(300, mgr.getStartupTimeout());
+		long start = System.currentTimeMillis();
+		mgr.initialize(hosts, false);
+		assertTrue(System.currentTimeMillis() - start < 1500);
+		assertEquals(2, mgr.getSocketPool(server.getHost()).getIdleCount());
+		assertFalse(mgr.isWarmedUp());
+		mgr.shutdown();
+
+		mgr = new SocketManager();
+		mgr.setInitConn(2);
+		mgr.setSocketConnectTimeout(2000);
+		mgr.setLazyInit(true);
+		assertTrue(mgr.isLazyInit());
+		start = System.currentTimeMillis();
+		mgr.initialize(hosts, false);
+		assertTrue(System.currentTimeMillis() - start < 300);
+		for (int i = 0; i < 100 && mgr.getSocketPool(server.getHost()).getIdleCount() < 2; i++) {
+			Thread.sleep(10);
+		}
+		assertEquals(2, mgr.getSocketPool(server.getHost()).getIdleCount());
+		mgr.shutdown();
+
+		for (int i = 0; i < fillers.size(); i++) {
+			fillers.get(i).close();
+		}
+		silent.close();
+		server.stop();
+	}
+
+	@Test
+	public void testReplicas() throws IOException {
+		MockServer server1 = new MockServer(0);
+		MockServer server2 = new MockServer(0);
+		server1.start();
+		server2.start();
+		XixiClientManager mgr = XixiClientManager.getInstance("testReplicas");
+		mgr.setReplicas(2);
+		assertEquals(2, mgr.getReplicas());
+		mgr.initialize(new String[] {server1.getHost(), server2.getHost()}, false);
+		XixiClientManager mgr1 = XixiClientManager.getInstance("testReplicas1");
+		mgr1.initialize(new String[] {server1.getHost()}, false);
+		XixiClientManager mgr2 = XixiClientManager.getInstance("testReplicas2");
+		mgr2.initialize(new String[] {server2.getHost()}, false);
+		XixiClient cc = mgr.createClient();
+		XixiClient cc1 = mgr1.createClient();
+		XixiClient cc2 = mgr2.createClient();
+
+		// the writes go to both hosts
+		assertTrue(cc.set("xixi", "0315") != 0);
+		assertEquals("0315", cc1.getValue("xixi"));
+		assertEquals("0315", cc2.getValue("xixi"));
+		assertEquals("0315", cc.getValue("xixi"));
+		assertTrue(cc.delete("xixi"));
+		assertNull(cc1.getValue("xixi"));
+		assertNull(cc2.getValue("xixi"));
+		// a miss is not asked again on the other replica
+		long requests = server1.getRequestCount() + server2.getRequestCount();
+		assertNull(cc.getValue("xixi"));
+		assertFalse(cc.exists("xixi"));
+		assertEquals(requests + 2, server1.getRequestCount() + server2.getRequestCount());
+
+		ArrayList<MultiUpdateItem> items = new ArrayList<MultiUpdateItem>();
+		ArrayList<String> keys = new ArrayList<String>();
+		for (int i = 0; i < 20; i++) {
+			MultiUpdateItem item = new MultiUpdateItem();
+			item.key = "xixi" + i;
+			item.value = "value" + i;
+			items.add(item);
+			keys.add(item.key);
+		}
+		assertEquals(20, cc.multiSet(items));
+		for (int i = 0; i < 20; i++) {
+			assertEquals("value" + i, cc1.getValue("xixi" + i));
+			assertEquals("value" + i, cc2.getValue("xixi" + i));
+		}
+		long requests1 = server1.getRequestCount();
+		long requests2 = server2.getRequestCount();
+		List<CacheItem> list = cc.multiGet(keys);
+		for (int i = 0; i < 20; i++) {
+			assertEquals("value" + i, list.get(i).getValue());
+		}
+		// the keys are spread over the replicas
+		assertTrue(server1.getRequestCount() > requests1);
+		assertTrue(server2.getRequestCount() > requests2);
+		assertTrue(mgr.socketManager.getHostHealth(server1.getHost()).getLatency() > 0
+				|| mgr.socketManager.getHostHealth(server2.getHost()).getLatency() > 0);
+
+		// the cacheIds of the hosts differ, a write with cacheId reads it from the leader
+		for (int i = 0; i < 5; i++) {
+			assertTrue(cc1.set("xixi-only1-" + i, "value") != 0);
+		}
+		for (int i = 0; i < 20; i++) {
+			assertTrue(cc.set("xixi", "v" + i) != 0);
+			CacheItem item = cc.getForUpdate("xixi");
+			assertEquals("v" + i, item.getValue());
+			assertTrue(cc.set("xixi", "w" + i, 0, item.getCacheId()) != 0);
+			CacheBaseItem base = cc.getBase("xixi");
+			assertTrue(cc.set("xixi", "x" + i, 0, base.getCacheId()) != 0);
+		}
+		assertTrue(cc.exists("xixi"));
+		assertTrue(cc.delete("xixi"));
+
+		// a host which lost the keys misses them, a miss is not read again from the other
+		for (int i = 0; i < 10; i++) {
+			assertTrue(cc1.delete("xixi" + i));
+		}
+		for (int i = 0; i < 20; i++) {
+			Object value = cc.getValue("xixi" + i);
+			assertTrue(value == null ? i < 10 : value.equals("value" + i));
+		}
+		for (int i = 0; i < 10; i++) {
+			assertTrue(cc1.set("xixi" + i, "value" + i) != 0);
+		}
+
+		// a host which is gone is covered by the other
+		list = cc.multiGet(keys);
+		for (int i = 0; i < 20; i++) {
+			assertEquals("value" + i, list.get(i).getValue());
+		}
+		server1.stop();
+		for (int i = 0; i < 20; i++) {
+			assertEquals("value" + i, cc.getValue("xixi" + i));
+		}
+		list = cc.multiGet(keys);
+		for (int i = 0; i < 20; i++) {
+			assertEquals("value" + i, list.get(i).getValue());
+		}
+
+		mgr.shutdown();
+		mgr1.shutdown();
+		mgr2.shutdown();
+		server2.stop();
+	}
+
+	@Test
+	public void testBufferArena() throws IOException, InterruptedException {
+		BufferArena arena = new BufferArena(64 * 1024);
+		ByteBuffer b1 = arena.borrow(100);
+		ByteBuffer b2 = arena.borrow(1025);
+		assertTrue(b1.isDirect());
+		assertEquals(1024, b1.capacity());
+		assertEquals(2048, b2.capacity());
+		assertEquals(2, arena.getBorrowedCount());
+		b2.put((byte) 1);
+		arena.release(b1);
+		arena.release(b2);
+		assertEquals(0, arena.getBorrowedCount());
+		assertEquals(2, arena.getIdleCount());
+		assertEquals(3072, arena.getIdleBytes());
+		ByteBuffer b3 = arena.borrow(2000);
+		assertSame(b2, b3);
+		assertEquals(0, b3.position());
+		assertEquals(2, arena.getAllocateCount());
+		arena.release(b3);
+		// larger than the max class or than maxIdleBytes, not kept
+		ByteBuffer large = arena.borrow(BufferArena.MAX_SIZE + 1);
+		assertEquals(BufferArena.MAX_SIZE + 1, large.capacity());
+		arena.release(large);
+		arena.release(arena.borrow(128 * 1024));
+		assertEquals(2, arena.getDropCount());
+		assertEquals(3072, arena.getIdleBytes());
+		// a discarded buffer is not kept either
+		arena.discard(arena.borrow(1024));
+		assertEquals(3, arena.getDropCount());
+		assertEquals(2048, arena.getIdleBytes());
+		assertEquals(0, arena.getBorrowedCount());
+
+		// an idle socket holds no buffer
+		MockServer server = new MockServer(0);
+		server.start();
+		XixiClientManager mgr = XixiClientManager.getInstance("testBufferArena");
+		mgr.initialize(new String[] {server.getHost()}, false);
+		BufferArena socketArena = mgr.socketManager.getBufferArena();
+		XixiClient cc = mgr.createClient();
+		assertTrue(cc.set("xixi", "0315") != 0);
+		assertEquals("0315", cc.getValue("xixi"));
+		ArrayList<MultiUpdateItem> items = new ArrayList<MultiUpdateItem>();
+		ArrayList<String> keys = new ArrayList<String>();
+		StringBuilder large1 = new StringBuilder();
+		for (int i = 0; i < 10000; i++) {
+			large1.append("0315");
+		}
+		for (int i = 0; i < 20; i++) {
+			MultiUpdateItem item = new MultiUpdateItem();
+			item.key = "xixi" + i;
+			item.value = i == 10 ? large1.toString() : "value" + i;
+			items.add(item);
+			keys.add(item.key);
+		}
+		assertEquals(20, cc.multiSet(items));
+		List<CacheItem> list = cc.multiGet(keys);
+		assertEquals(large1.toString(), list.get(10).getValue());
+		assertEquals(large1.toString(), cc.getValue("xixi10"));
+		ArrayList<MultiDeleteItem> deleteItems = new ArrayList<MultiDeleteItem>();
+		for (int i = 0; i < 20; i++) {
+			MultiDeleteItem item = new MultiDeleteItem();
+			item.key = "xixi" + i;
+			deleteItems.add(item);
+		}
+		assertEquals(20, cc.multiDelete(deleteItems));
+		// the event loop parks the sockets of a finished batch
+		for (int i = 0; i < 100 && socketArena.getBorrowedCount() > 0; i++) {
+			Thread.sleep(10);
+		}
+		assertEquals(0, socketArena.getBorrowedCount());
+		assertTrue(socketArena.getIdleCount() > 0);
+		assertTrue(socketArena.getBorrowCount() > socketArena.getAllocateCount());
+		assertTrue(mgr.socketManager.getSocketPool(server.getHost()).getIdleCount() > 0);
+		mgr.shutdown();
+		server.stop();
+	}
+
+	@Test
+	public void testUnreadBytesKept() throws IOException {
+		final ServerSocket serverSocket = new ServerSocket(0, 10, InetAddress.getByName("127.0.0.1"));
+		Thread t = new Thread() {
+			public void run() {
+				try {
+					Socket s = serverSocket.accept();
+					ByteBuffer reply = ByteBuffer.allocate(16);
+					reply.putLong(1).putLong(2);
+					s.getOutputStream().write(reply.array());
+					s.getOutputStream().flush();
+					Thread.sleep(1000);
+					s.close();
+				} catch (IOException e) {
+				} catch (InterruptedException e) {
+				}
+			}
+		};
+		t.setDaemon(true);
+		t.start();
+		SocketManager mgr = new SocketManager();
+		mgr.setInitConn(0);
+		mgr.setMaxConn(1);
+		mgr.setSocketTimeout(1000);
+		String host = "127.0.0.1:" + serverSocket.getLocalPort();
+		mgr.initialize(new String[] {host}, false);
+
+		// the bytes which came with the first reply are read by the next borrower
+		XixiSocket socket = mgr.getSocketByHost(host);
+		assertEquals(1, socket.readLong());
+		socket.close();
+		XixiSocket socket2 = mgr.getSocketByHost(host);
+		assertSame(socket, socket2);
+		assertEquals(2, socket2.readLong());
+		socket2.close();
+		mgr.shutdown();
+		serverSocket.close();
+	}
+
+	@Test
+	public void testTrafficClass() throws IOException {
+		MockServer server = new MockServer(0);
+		server.start();
+		XixiClientManager mgr = XixiClientManager.getInstance("testTrafficClass");
+		mgr.setMaxConn(2);
+		TrafficClass bulk = mgr.addTrafficClass(TrafficClass.BULK, 1, 64 * 1024, 100);
+		assertNotNull(bulk);
+		assertNull(mgr.addTrafficClass(TrafficClass.BULK, 1, 64 * 1024, 100));
+		mgr.initialize(new String[] {server.getHost()}, false);
+		assertNull(mgr.addTrafficClass("late", 1, 64 * 1024, 100));
+		assertNull(mgr.createClient("unknown"));
+		TrafficClass interactive = mgr.getTrafficClass(TrafficClass.INTERACTIVE);
+		assertEquals(2, interactive.getMaxConn());
+		assertEquals(64 * 1024, bulk.getSocketWriteBufferSize());
+
+		XixiClient cc = mgr.createClient();
+		XixiClient bulkClient = mgr.createClient(TrafficClass.BULK);
+		assertTrue(bulkClient.set("xixi", "0315") != 0);
+		assertEquals("0315", cc.getValue("xixi"));
+		assertEquals(1, bulk.getIdleCount());
+		assertEquals(1, mgr.socketManager.getSocketPool(server.getHost(), TrafficClass.BULK).getIdleCount());
+
+		// a bulk job which holds all the sockets of its lane does not block the interactive clients
+		XixiSocket socket = mgr.socketManager.getSocketByHost(server.getHost(), bulk);
+		assertNotNull(socket);
+		assertEquals(1, bulk.getBorrowedCount());
+		assertNull(bulkClient.getValue("xixi"));
+		assertEquals(1, bulk.getExhaustedCount());
+		assertEquals(1, bulk.getWaitCount());
+		assertTrue(bulk.getWaitTime() >= 90);
+		assertTrue(bulk.getMeanWaitTime() > 0);
+		assertEquals("0315", cc.getValue("xixi"));
+		assertEquals(0, interactive.getExhaustedCount());
+		assertEquals(0, interactive.getWaitCount());
+		socket.close();
+		assertEquals(0, bulk.getBorrowedCount());
+		assertEquals("0315", bulkClient.getValue("xixi"));
+
+		mgr.shutdown();
+		server.stop();
+	}
+
+	@Test
+	public void testConcurrencyLimiter() throws IOException {
+		ConcurrencyLimiter limiter = new ConcurrencyLimiter("host", 10, 2, 100);
+		for (int i = 0; i < 8; i++) {
+			assertTrue(limiter.tryAcquire());
+		}
+		// a busy and fast host gets a higher limit, until the requests use less than half of it
+		for (int i = 0; i < 200; i++) {
+			assertTrue(limiter.tryAcquire());
+			limiter.onSuccess(1000000);
+		}
+		int limit = limiter.getLimit();
+		assertTrue(limit > 10);
+		assertTrue(limit <= 20);
+		// a slow host gets a lower limit
+		for (int i = 0; i < 8; i++) {
+			limiter.onSuccess(20000000);
+		}
+		assertEquals(0, limiter.getInFlight());
+		assertTrue(limiter.getLimit() < limit);
+		assertTrue(limiter.getLimit() >= 2);
+		limit = limiter.getLimit();
+		for (int i = limiter.getInFlight(); i < limit; i++) {
+			assertTrue(limiter.tryAcquire());
+		}
+		assertFalse(limiter.tryAcquire());
+		assertEquals(1, limiter.getRejectedCount());
+		limiter.onDrop();
+		assertEquals(Math.max(2, limit / 2), limiter.getLimit());
+		assertEquals(1, limiter.getDropCount());
+		assertEquals(limit - 1, limiter.getInFlight());
+		// a use without a response time gives back its permit only
+		limiter = new ConcurrencyLimiter("host", 10, 2, 100);
+		for (int i = 0; i < 8; i++) {
+			assertTrue(limiter.tryAcquire());
+		}
+		for (int i = 0; i < 50; i++) {
+			assertTrue(limiter.tryAcquire());
+			limiter.onSuccess(-1);
+		}
+		assertEquals(10, limiter.getLimit());
+		assertEquals(8, limiter.getInFlight());
+
+		MockServer server = new MockServer(0);
+		server.start();
+		XixiClientManager mgr = XixiClientManager.getInstance("testConcurrencyLimiter");
+		assertEquals(-1, mgr.getConcurrencyLimit(server.getHost()));
+		mgr.setConcurrencyLimiting(true);
+		mgr.setInitialConcurrencyLimit(4);
+		mgr.setMinConcurrencyLimit(2);
+		assertTrue(mgr.isConcurrencyLimiting());
+		assertEquals(2, mgr.getMinConcurrencyLimit());
+		mgr.initialize(new String[] {server.getHost()}, false);
+		assertEquals(4, mgr.getConcurrencyLimit(server.getHost()));
+		limiter = mgr.socketManager.getConcurrencyLimiter(server.getHost());
+		XixiClient cc = mgr.createClient();
+		assertTrue(cc.set("xixi", "0315") != 0);
+
+		// the requests beyond the limit fail at once, the blocking and the batch ones
+		XixiSocket[] sockets = new XixiSocket[4];
+		for (int i = 0; i < sockets.length; i++) {
+			sockets[i] = mgr.socketManager.getSocketByHost(server.getHost());
+			assertNotNull(sockets[i]);
+		}
+		assertEquals(4, limiter.getInFlight());
+		long start = System.currentTimeMillis();
+		assertNull(cc.getValue("xixi"));
+		ArrayList<String> keys = new ArrayList<String>();
+		keys.add("xixi");
+		List<CacheItem> list = cc.multiGet(keys);
+		assertNull(list.get(0));
+		assertTrue(System.currentTimeMillis() - start < 1000);
+		assertEquals(2, limiter.getRejectedCount());
+		for (int i = 0; i < sockets.length; i++) {
+			sockets[i].close();
+		}
+		assertEquals(0, limiter.getInFlight());
+
+		// a long poll takes no permit, a stream gives no response time
+		XixiSocket poll = mgr.socketManager.getPollSocketByHost(server.getHost(), null);
+		assertNotNull(poll);
+		assertNull(poll.getLimiter());
+		assertEquals(0, limiter.getInFlight());
+		poll.close();
+		assertEquals(0, limiter.getInFlight());
+		XixiSocket stream = mgr.socketManager.getSocketByHost(server.getHost());
+		assertSame(limiter, stream.getLimiter());
+		stream.setBorrowTime(XixiSocket.NO_RTT);
+		stream.close();
+		assertNull(stream.getLimiter());
+		assertEquals(0, limiter.getInFlight());
+
+		assertEquals("0315", cc.getValue("xixi"));
+		list = cc.multiGet(keys);
+		assertEquals("0315", list.get(0).getValue());
+		assertEquals(0, limiter.getInFlight());
+
+		mgr.shutdown();
+		server.stop();
+	}
+
+	@Test
+	public void testWaitStrategy() {
+		StringBuilder sb = new StringBuilder();
+		while (sb.length() < 100 * 1024) {
+			sb.append("0123456789");
+		}
+		String large = sb.toString();
+		WaitStrategy[] strategies = WaitStrategy.values();
+		for (int i = 0; i < strategies.length; i++) {
+			XixiClientManager mgr = XixiClientManager.getInstance("testWaitStrategy" + strategies[i]);
+			mgr.setWaitStrategy(strategies[i]);
+			assertEquals(strategies[i], mgr.getWaitStrategy());
+			mgr.initialize(serverlist, enableSSL);
+			XixiClient cc = mgr.createClient();
+			String key = "testWaitStrategy" + i;
+			assertTrue(cc.set(key, large) != 0);
+			assertEquals(large, cc.getValue(key));
+			assertTrue(cc.delete(key));
+			assertNull(cc.getValue(key));
+			mgr.shutdown();
+		}
+	}
+
+	@Test
+	public void testWaitStrategyTimeout() throws IOException {
+		MockServer server = new MockServer(0);
+		server.start();
+		XixiClientManager mgr = XixiClientManager.getInstance("testWaitStrategyTimeout");
+		mgr.setWaitStrategy(WaitStrategy.SPIN_PARK);
+		mgr.setSocketTimeout(200);
+		mgr.initialize(new String[] {server.getHost()}, false);
+		XixiClient cc = mgr.createClient();
+		assertTrue(cc.set("xixi", "0315") != 0);
+		server.setResponseDelay(2000);
+		long start = System.currentTimeMillis();
+		assertNull(cc.getValue("xixi"));
+		assertTrue(System.currentTimeMillis() - start < 1500);
+		assertTrue(cc.getLastError().indexOf("timeout") >= 0);
+		mgr.shutdown();
+		server.stop();
+	}
+
+	@Test
+	public void testDeadline() throws IOException {
+		MockServer fast = new MockServer(0);
+		MockServer slow = new MockServer(0);
+		fast.start();
+		slow.start();
+		XixiClientManager mgr = XixiClientManager.getInstance("testDeadline");
+		mgr.setMaxConn(1);
+		mgr.setMaxWaitTime(5000);
+		mgr.initialize(new String[] {fast.getHost(), slow.getHost()}, false);
+		XixiClient cc = mgr.createClient();
+		assertEquals(0, cc.getOperationTimeout());
+		assertEquals(0, cc.getDeadline());
+		ArrayList<String> keys = new ArrayList<String>();
+		ArrayList<String> slowKeys = new ArrayList<String>();
+		String fastKey = null;
+		String slowKey = null;
+		for (int i = 0; i < 20; i++) {
+			String key = "xixi" + i;
+			assertTrue(cc.set(key, "value" + i) != 0);
+			keys.add(key);
+			if (slow.getHost().equals(mgr.socketManager.getHost(key))) {
+				slowKeys.add(key);
+				slowKey = key;
+			} else {
+				fastKey = key;
+			}
+		}
+		assertNotNull(fastKey);
+		assertNotNull(slowKey);
+
+		// the read of a blocking socket ends at the deadline
+		cc.setOperationTimeout(100);
+		assertEquals(100, cc.getOperationTimeout());
+		slow.setResponseDelay(2000);
+		long start = System.currentTimeMillis();
+		assertNull(cc.getValue(slowKey));
+		assertTrue(System.currentTimeMillis() - start < 1000);
+		assertTrue(cc.getLastError().indexOf("deadline") >= 0);
+		assertNotNull(cc.getValue(fastKey));
+
+		// a multiGet returns the items which arrived in time
+		start = System.currentTimeMillis();
+		List<CacheItem> list = cc.multiGet(keys);
+		assertTrue(System.currentTimeMillis() - start < 1000);
+		for (int i = 0; i < keys.size(); i++) {
+			if (slowKeys.contains(keys.get(i))) {
+				assertNull(list.get(i));
+			} else {
+				assertEquals("value" + i, list.get(i).getValue());
+			}
+		}
+		assertEquals(slowKeys.size(), cc.getTimedOutKeys().size());
+		assertTrue(cc.getTimedOutKeys().containsAll(slowKeys));
+
+		// the wait for a socket ends at the deadline
+		slow.setResponseDelay(0);
+		XixiSocket socket = mgr.socketManager.getSocketByHost(fast.getHost());
+		assertNotNull(socket);
+		start = System.currentTimeMillis();
+		assertNull(cc.getValue(fastKey));
+		assertTrue(System.currentTimeMillis() - start < 1000);
+		socket.close();
+
+		// a deadline which passed fails at once, the earlier one of the two applies
+		cc.setDeadline(System.currentTimeMillis() - 1);
+		start = System.currentTimeMillis();
+		assertNull(cc.getValue(fastKey));
+		list = cc.multiGet(keys);
+		assertEquals(keys.size(), cc.getTimedOutKeys().size());
+		assertTrue(System.currentTimeMillis() - start < 1000);
+		cc.setDeadline(System.currentTimeMillis() + 60 * 1000);
+		assertNotNull(cc.getValue(fastKey));
+
+		cc.setDeadline(0);
+		cc.setOperationTimeout(0);
+		list = cc.multiGet(keys);
+		for (int i = 0; i < keys.size(); i++) {
+			assertEquals("value" + i, list.get(i).getValue());
+		}
+		assertTrue(cc.getTimedOutKeys().isEmpty());
+
+		mgr.shutdown();
+		fast.stop();
+		slow.stop();
+	}
+
+	@Test
+	public void testAutoBatching() throws IOException, InterruptedException {
+		MockServer server1 = new MockServer(0);
+		MockServer server2 = new MockServer(0);
+		server1.start();
+		server2.start();
+		final XixiClientManager mgr = XixiClientManager.getInstance("testAutoBatching");
+		assertFalse(mgr.isAutoBatching());
+		mgr.setAutoBatching(true);
+		mgr.setAutoBatchWindow(200);
+		mgr.setAutoBatchSize(8);
+		mgr.setAutoBatchWrites(true);
+		assertTrue(mgr.isAutoBatching());
+		assertEquals(200, mgr.getAutoBatchWindow());
+		assertEquals(8, mgr.getAutoBatchSize());
+		assertTrue(mgr.isAutoBatchWrites());
+		mgr.initialize(new String[] {server1.getHost(), server2.getHost()}, false);
+
+		// a request which nobody joins is sent alone
+		XixiClient cc = mgr.createClient();
+		assertTrue(cc.set("xixi", "0315") != 0);
+		assertEquals("0315", cc.getValue("xixi"));
+		assertEquals(0, mgr.getAutoBatchCount());
+
+		// each caller gets its own result
+		final AtomicInteger errors = new AtomicInteger(0);
+		Thread[] threads = new Thread[16];
+		for (int i = 0; i < threads.length; i++) {
+			final int id = i;
+			threads[i] = new Thread() {
+				public void run() {
+					XixiClient c = mgr.createClient();
+					for (int j = 0; j < 100; j++) {
+						String key = "xixi" + id + "_" + j;
+						String value = "value" + id + "_" + j;
+						long cacheId = c.set(key, value);
+						CacheItem item = c.get(key);
+						if (cacheId == 0 || item == null || !value.equals(item.getValue())
+								|| item.getCacheId() != cacheId
+								|| c.getValue(key + "miss") != null
+								|| !c.delete(key) || c.get(key) != null) {
+							errors.incrementAndGet();
+						}
+					}
+				}
+			};
+			threads[i].start();
+		}
+		for (int i = 0; i < threads.length; i++) {
+			threads[i].join();
+		}
+		assertEquals(0, errors.get());
+		assertTrue(mgr.getAutoBatchCount() > 0);
+		assertTrue(mgr.getAutoBatchedCount() > mgr.getAutoBatchCount());
+
+		mgr.shutdown();
+		server1.stop();
+		server2.stop();
+	}
+
+	@Test
+	public void testAutoBatchingFullBuffer() throws IOException, InterruptedException {
+		MockServer server = new MockServer(0);
+		server.start();
+		final XixiClientManager mgr = XixiClientManager.getInstance("testAutoBatchingFullBuffer");
+		mgr.setAutoBatching(true);
+		mgr.setAutoBatchWindow(200000);
+		mgr.setAutoBatchSize(2);
+		mgr.setAutoBatchWrites(true);
+		mgr.initialize(new String[] {server.getHost()}, false);
+
+		// after the first set, the write buffer has one byte less than the header and
+		// the key of the second one
+		int keyLength = 10;
+		int dataSize = mgr.socketManager.getSocketWriteBufferSize() - 33 - keyLength - (33 - 1 + keyLength);
+		XixiClient cc = mgr.createClient();
+		StringBuilder sb = new StringBuilder();
+		while (cc.getTransCoder().encode(sb.toString(), new int[1], null).length < dataSize) {
+			sb.append('x');
+		}
+		final String value = sb.toString();
+		assertEquals(dataSize, cc.getTransCoder().encode(value, new int[1], null).length);
+
+		final AtomicInteger errors = new AtomicInteger(0);
+		for (int round = 0; round < 3; round++) {
+			Thread[] threads = new Thread[2];
+			for (int i = 0; i < threads.length; i++) {
+				final String key = "xixi" + round + "_" + i + "xxxxxx".substring(0, keyLength - 7);
+				threads[i] = new Thread() {
+					public void run() {
+						XixiClient c = mgr.createClient();
+						if (c.set(key, value) == 0) {
+							errors.incrementAndGet();
+						}
+					}
+				};
+				threads[i].start();
+			}
+			for (int i = 0; i < threads.length; i++) {
+				threads[i].join();
+			}
+		}
+		assertEquals(0, errors.get());
+		assertTrue(mgr.getAutoBatchCount() > 0);
+		assertEquals(0, mgr.socketManager.getSocketPool(server.getHost()).getBorrowedCount());
+
+		mgr.shutdown();
+		server.stop();
+	}
+
+	@Test
+	public void testNoreply() throws IOException {
+		MockServer server = new MockServer(0);
+		server.start();
+		XixiClientManager mgr = XixiClientManager.getInstance("testNoreply");
+		// one socket, so the next request reads the pending responses
+		mgr.setMaxConn(1);
+		mgr.initialize(new String[] {server.getHost()}, false);
+		XixiClient cc = mgr.createClient();
+
+		assertFalse(cc.setNoreply(null, "0315"));
+		assertNotNull(cc.getLastError());
+		assertTrue(cc.setNoreply("xixi", "0315"));
+		assertTrue(cc.updateExpirationNoreply("xixi", 100));
+		assertEquals("0315", cc.getValue("xixi"));
+		assertTrue(cc.deleteNoreply("xixi"));
+		assertNull(cc.getValue("xixi"));
+		assertEquals(0, mgr.getNoreplyErrorCount());
+
+		// the failure shows up with the next request on the socket
+		assertTrue(cc.deleteNoreply("xixi"));
+		assertNull(cc.getValue("xixi"));
+		assertEquals(1, mgr.getNoreplyErrorCount());
+
+		// more requests than a socket keeps unread
+		int count = SocketManager.MAX_PENDING_REPLIES * 4;
+		List<MultiUpdateItem> items = new ArrayList<MultiUpdateItem>();
+		List<MultiUpdateExpirationItem> expirationItems = new ArrayList<MultiUpdateExpirationItem>();
+		List<MultiDeleteItem> deleteItems = new ArrayList<MultiDeleteItem>();
+		List<String> keys = new ArrayList<String>();
+		for (int i = 0; i < count; i++) {
+			MultiUpdateItem item = new MultiUpdateItem();
+			item.key = "xixi" + i;
+			item.value = "value" + i;
+			items.add(item);
+			MultiUpdateExpirationItem expirationItem = new MultiUpdateExpirationItem();
+			expirationItem.key = item.key;
+			expirationItem.expiration = 100;
+			expirationItems.add(expirationItem);
+			MultiDeleteItem deleteItem = new MultiDeleteItem();
+			deleteItem.key = item.key;
+			deleteItems.add(deleteItem);
+			keys.add(item.key);
+		}
+		assertEquals(count, cc.multiSetNoreply(items));
+		assertEquals(count, cc.multiUpdateExpirationNoreply(expirationItems));
+		List<CacheItem> result = cc.multiGet(keys);
+		for (int i = 0; i < count; i++) {
+			assertEquals("value" + i, result.get(i).getValue());
+		}
+		assertEquals(count, cc.multiDeleteNoreply(deleteItems));
+		assertNull(cc.get("xixi0"));
+		assertNull(cc.get("xixi" + (count - 1)));
+		assertEquals(1, mgr.getNoreplyErrorCount());
+
+		mgr.shutdown();
+		server.stop();
+	}
+
+	@Test
+	public void testWriteJournal() throws IOException, InterruptedException {
+		MockServer server = new MockServer(0);
+		server.start();
+		int port = server.getPort();
+		File dir = Files.createTempDirectory("xixijournal").toFile();
+		XixiClientManager mgr = XixiClientManager.getInstance("testWriteJournal");
+		mgr.setInitConn(0);
+		mgr.setFailureThreshold(1);
+		mgr.setMaintainInterval(50);
+		mgr.setProbeInterval(100);
+		mgr.setMaxProbeInterval(200);
+		mgr.setJournalDir(dir.getPath());
+		mgr.initialize(new String[] {server.getHost()}, false);
+		XixiClient cc = mgr.createClient();
+
+		assertTrue(cc.set("xixi1", "value1") != 0);
+		assertTrue(cc.set("xixi2", "value2") != 0);
+		assertEquals(0, mgr.getJournalPendingCount());
+
+		// the server may have applied a write which timed out after it was sent
+		server.setResponseDelay(1000);
+		cc.setOperationTimeout(100);
+		assertEquals(0, cc.set("xixi2", "value2"));
+		assertFalse(cc.getLastError().endsWith(", journaled"));
+		assertFalse(cc.delete("xixi2"));
+		assertFalse(cc.getLastError().endsWith(", journaled"));
+		assertEquals(0, mgr.getJournalPendingCount());
+		server.setResponseDelay(0);
+		cc.setOperationTimeout(0);
+		server.stop();
+		// a write sent on an idle socket which the server closed is not journaled,
+		// the reads use up such sockets until a connect marks the host down
+		for (int i = 0; i < 100 && !mgr.socketManager.isHostDown(server.getHost()); i++) {
+			assertNull(cc.get("xixi1"));
+		}
+		assertTrue(mgr.socketManager.isHostDown(server.getHost()));
+
+		// the writes wait in the journal while the host is down
+		assertEquals(0, cc.set("xixi1", "value1a"));
+		assertTrue(cc.getLastError().endsWith(", journaled"));
+		assertEquals(0, cc.set("xixi1", "value1b"));
+		assertFalse(cc.delete("xixi2"));
+		assertTrue(cc.getLastError().endsWith(", journaled"));
+		assertEquals(0, cc.set("xixi3", "value3"));
+		assertEquals(3, mgr.getJournalPendingCount());
+		assertEquals(1, mgr.getJournalDroppedCount());
+		assertTrue(new File(dir, server.getHost().replace(':', '_') + ".journal").exists());
+
+		// the host comes back empty, the latest write of each key is replayed
+		server = new MockServer(port);
+		server.start();
+		for (int i = 0; i < 100 && mgr.getJournalPendingCount() > 0; i++) {
+			Thread.sleep(20);
+		}
+		assertEquals(0, mgr.getJournalPendingCount());
+		assertEquals(3, mgr.getJournalReplayedCount());
+		assertEquals("value1b", cc.get("xixi1").getValue());
+		assertNull(cc.get("xixi2"));
+		assertEquals("value3", cc.get("xixi3").getValue());
+
+		mgr.shutdown();
+		server.stop();
+		File[] files = dir.listFiles();
+		for (int i = 0; i < files.length; i++) {
+			files[i].delete();
+		}
+		dir.delete();
+	}
+
+	@Test
+	public void testBroadcast() throws IOException {
+		MockServer fast1 = new MockServer(0);
+		MockServer fast2 = new MockServer(0);
+		MockServer slow = new MockServer(0);
+		fast1.start();
+		fast2.start();
+		slow.start();
+		XixiClientManager mgr = XixiClientManager.getInstance("testBroadcast");
+		mgr.initialize(new String[] {fast1.getHost(), fast2.getHost(), slow.getHost()}, false);
+		XixiClientImpl cc = (XixiClientImpl) mgr.createClient();
+		for (int i = 0; i < 30; i++) {
+			assertTrue(cc.set("xixi" + i, "0315") != 0);
+		}
+
+		List<HostResult> results = cc.statsGetStatsByHost(null, (byte) 0);
+		assertEquals(3, results.size());
+		for (int i = 0; i < results.size(); i++) {
+			assertTrue(results.get(i).isSuccess());
+			assertEquals(mgr.getServers()[i], results.get(i).getHost());
+			assertNotNull(results.get(i).getStats().get("curr_items"));
+		}
+		assertEquals(3, cc.statsGetStats(null, (byte) 0).size());
+
+		// the hosts are asked at the same time and share the deadline
+		slow.setResponseDelay(1000);
+		cc.setOperationTimeout(300);
+		long start = System.currentTimeMillis();
+		results = cc.flushByHost(null);
+		long time = System.currentTimeMillis() - start;
+		assertTrue("time=" + time, time < 900);
+		assertEquals(3, results.size());
+		int count = 0;
+		for (int i = 0; i < 2; i++) {
+			assertTrue(results.get(i).isSuccess());
+			count += results.get(i).getFlushCount();
+		}
+		assertFalse(results.get(2).isSuccess());
+		assertNotNull(results.get(2).getError());
+		assertNotNull(cc.getLastError());
+		assertNull(cc.getValue("xixi0"));
+		assertTrue(count > 0);
+		slow.setResponseDelay(0);
+		cc.setOperationTimeout(0);
+		results = cc.flushByHost(null);
+		for (int i = 0; i < results.size(); i++) {
+			assertTrue(results.get(i).isSuccess());
+		}
+
+		mgr.shutdown();
+		fast1.stop();
+		fast2.stop();
+		slow.stop();
+	}
+
+	@Test
+	public void testAddServer() throws IOException, InterruptedException {
+		MockServer server1 = new MockServer(0);
+		MockServer server2 = new MockServer(0);
+		MockServer server3 = new MockServer(0);
+		server1.start();
+		server2.start();
+		server3.start();
+		String host3 = server3.getHost();
+		XixiClientManager mgr = XixiClientManager.getInstance("testAddServer");
+		mgr.initialize(new String[] {server1.getHost(), server2.getHost()}, null,
+				new KetamaWeightMap<Integer>(), false);
+		XixiClient cc = mgr.createClient();
+		String[] owners = new String[200];
+		for (int i = 0; i < owners.length; i++) {
+			owners[i] = mgr.socketManager.getHost("xixi" + i);
+			assertTrue(cc.set("xixi" + i, "value" + i) != 0);
+		}
+		assertFalse(mgr.addServer(server1.getHost(), null));
+		assertFalse(mgr.removeServer("unknown:7788"));
+
+		// only the keys of the new server move
+		assertTrue(mgr.addServer(host3, null));
+		assertEquals(3, mgr.getServers().length);
+		assertTrue(mgr.socketManager.getSocketPool(host3).getIdleCount() > 0);
+		String[] added = new String[owners.length];
+		int moved = 0;
+		for (int i = 0; i < owners.length; i++) {
+			added[i] = mgr.socketManager.getHost("xixi" + i);
+			if (!added[i].equals(owners[i])) {
+				assertEquals(host3, added[i]);
+				assertNull(cc.getValue("xixi" + i));
+				moved++;
+			} else {
+				assertEquals("value" + i, cc.getValue("xixi" + i));
+			}
+			assertTrue(cc.set("xixi" + i, "value" + i) != 0);
+		}
+		assertTrue(moved > 20 && moved < 120);
+
+		// the keys of the removed server go back, its pool is drained
+		SocketPool pool = mgr.socketManager.getSocketPool(host3);
+		assertTrue(mgr.removeServer(host3));
+		assertEquals(2, mgr.getServers().length);
+		assertNull(mgr.socketManager.getSocketPool(host3));
+		assertEquals(0, pool.getIdleCount());
+		for (int i = 0; i < owners.length; i++) {
+			assertEquals(owners[i], mgr.socketManager.getHost("xixi" + i));
+			assertEquals("value" + i, cc.getValue("xixi" + i));
+		}
+
+		// a server added again gets its index and its keys back, one of two
+		// concurrent adds wins
+		final XixiClientManager m = mgr;
+		final String h3 = host3;
+		final AtomicInteger wins = new AtomicInteger(0);
+		Thread[] threads = new Thread[2];
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new Thread() {
+				public void run() {
+					if (m.addServer(h3, null)) {
+						wins.incrementAndGet();
+					}
+				}
+			};
+			threads[i].start();
+		}
+		for (int i = 0; i < threads.length; i++) {
+			threads[i].join();
+		}
+		assertEquals(1, wins.get());
+		assertEquals(3, mgr.getServers().length);
+		assertTrue(mgr.socketManager.getSocketPool(host3).getIdleCount() > 0);
+		for (int i = 0; i < owners.length; i++) {
+			assertEquals(added[i], mgr.socketManager.getHost("xixi" + i));
+		}
+
+		// a lookup which races the changes reads one routing table, its host is known
+		final String h1 = server1.getHost();
+		final String h2 = server2.getHost();
+		final AtomicInteger stop = new AtomicInteger(0);
+		final AtomicInteger failures = new AtomicInteger(0);
+		Thread reader = new Thread() {
+			public void run() {
+				for (int i = 0; stop.get() == 0; i++) {
+					try {
+						String host = m.socketManager.getHost("xixi" + (i % 200));
+						if (!host.equals(h1) && !host.equals(h2) && !host.equals(h3)) {
+							failures.incrementAndGet();
+						}
+					} catch (RuntimeException e) {
+						failures.incrementAndGet();
+					}
+				}
+			}
+		};
+		reader.start();
+		for (int i = 0; i < 20; i++) {
+			assertTrue(mgr.removeServer(host3));
+			assertTrue(mgr.addServer(host3, null));
+		}
+		stop.set(1);
+		reader.join();
+		assertEquals(0, failures.get());
+
+		// a heavier server takes keys from the others only
+		assertTrue(mgr.setWeight(server1.getHost(), 3));
+		assertEquals(Integer.valueOf(3), mgr.socketManager.getWeight(server1.getHost()));
+		int count1 = 0;
+		for (int i = 0; i < owners.length; i++) {
+			String host = mgr.socketManager.getHost("xixi" + i);
+			if (added[i].equals(server1.getHost())) {
+				assertEquals(server1.getHost(), host);
+			}
+			if (host.equals(server1.getHost())) {
+				count1++;
+			}
+		}
+		assertTrue(count1 > owners.length / 2);
+		assertFalse(mgr.setWeight("unknown:7788", 3));
+
+		assertTrue(mgr.removeServer(host3));
+		assertTrue(mgr.removeServer(server2.getHost()));
+		assertFalse(mgr.removeServer(server1.getHost()));
+		assertEquals(1, mgr.getServers().length);
+
+		mgr.shutdown();
+		server1.stop();
+		server2.stop();
+		server3.stop();
+	}
+
+	@Test
+	public void testLocalCacheDropMoved() {
+		XixiClientManager mgr = XixiClientManager.getInstance("testLocalCacheDropMoved");
+		mgr.initialize(new String[] {"localhost:17788", "localhost:18877"}, null,
+				new KetamaWeightMap<Integer>(), false);
+		LocalCacheWatch watch = new LocalCacheWatch("localhost:17788", mgr,
+				new AtomicLong(), new AtomicInteger());
+		int count = 0;
+		for (int i = 0; i < 100; i++) {
+			String key = "xixi" + i;
+			if (mgr.socketManager.getHost(key).equals("localhost:17788")) {
+				watch.put(key, new CacheItem(key, i + 1, 0, 0, 0, "value" + i, 8, 8));
+				count++;
+			}
+		}
+		assertEquals(0, watch.dropMoved());
+		assertTrue(mgr.addServer("localhost:19988", null));
+		int moved = watch.dropMoved();
+		assertTrue(moved > 0 && moved < count);
+		for (int i = 0; i < 100; i++) {
+			String key = "xixi" + i;
+			CacheItem item = watch.get(0, key);
+			if (mgr.socketManager.getHost(key).equals("localhost:17788")) {
+				assertEquals("value" + i, item.getValue());
+			} else {
+				assertNull(item);
+			}
+		}
+		mgr.shutdown();
+	}
+
+	@Test
+	public void testSanitizedKeyRouting() throws IOException, InterruptedException {
+		MockServer server1 = new MockServer(0);
+		MockServer server2 = new MockServer(0);
+		MockServer server3 = new MockServer(0);
+		server1.start();
+		server2.start();
+		server3.start();
+		XixiClientManager mgr = XixiClientManager.getInstance("testSanitizedKeyRouting");
+		mgr.initialize(new String[] {server1.getHost(), server2.getHost()}, null,
+				new XixiWeightMap<Integer>(true, XixiWeightMap.MURMUR3_HASH), false);
+		ObjectTransCoder transCoder = new ObjectTransCoder();
+		transCoder.setSanitizeKeys(true);
+		XixiClient xc = mgr.createClientWithLocalCache();
+		xc.setTransCoder(transCoder);
+		LocalCache lc = mgr.getLocalCache();
+		for (int i = 0; i < 100 && (lc.getWatchId(server1.getHost()) == 0
+				|| lc.getWatchId(server2.getHost()) == 0); i++) {
+			Thread.sleep(10);
+		}
+
+		// the keys whose encoded key goes to another host than the key
+		List<String> keys = new ArrayList<String>();
+		List<String> owners = new ArrayList<String>();
+		for (int i = 0; keys.size() < 40 && i < 1000; i++) {
+			String key = "xixi key/" + i;
+			String host = mgr.socketManager.getHost(key, transCoder.encodeKey(key));
+			if (!host.equals(mgr.socketManager.getHost(key))) {
+				assertTrue(xc.set(key, "value" + i) != 0);
+				assertEquals("value" + i, lc.get(xc.getGroupId(), key).getValue());
+				keys.add(key);
+				owners.add(host);
+			}
+		}
+		assertEquals(40, keys.size());
+
+		// only the items whose encoded key moved are dropped
+		assertTrue(mgr.addServer(server3.getHost(), null));
+		int kept = 0;
+		for (int i = 0; i < keys.size(); i++) {
+			String key = keys.get(i);
+			String host = mgr.socketManager.getHost(key, transCoder.encodeKey(key));
+			if (host.equals(owners.get(i))) {
+				assertNotNull(lc.get(xc.getGroupId(), key));
+				kept++;
+			} else {
+				assertNull(lc.get(xc.getGroupId(), key));
+			}
+		}
+		assertTrue(kept > 0);
+
+		mgr.shutdown();
+		server1.stop();
+		server2.stop();
+		server3.stop();
+	}
+
+	@Test
+	public void testRemapAnalyzer() throws IOException {
+		File file = File.createTempFile("xixi", ".keys");
+		file.deleteOnExit();
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 20000; i++) {
+			sb.append("xixi:user:").append(i);
+			if (i % 2 == 0) {
+				sb.append(' ').append(100);
+			}
+			sb.append('\n');
+		}
+		Files.write(file.toPath(), sb.toString().getBytes("UTF-8"));
+
+		String[] oldServers = new String[] {"h0:7788", "h1:7788", "h2:7788", "h3:7788"};
+		String[] newServers = new String[] {"h0:7788", "h1:7788", "h2:7788", "h3:7788", "h4:7788"};
+		RemapAnalyzer analyzer = new RemapAnalyzer(oldServers, null, new KetamaWeightMap<Integer>(),
+				newServers, null, new KetamaWeightMap<Integer>());
+		analyzer.setThreads(3);
+		analyzer.setHitRatio(0.9);
+		RemapAnalyzer.Report report = analyzer.analyze(file);
+		assertEquals(20000, report.getKeyCount());
+		assertEquals(10000 * 100 + 10000, report.getByteCount());
+		assertEquals(5, report.getServers().length);
+		assertEquals(0, report.getOldKeyCount(4));
+		double oldShare = 0;
+		double newShare = 0;
+		long moved = 0;
+		for (int i = 0; i < 5; i++) {
+			oldShare += report.getOldKeyShare(i);
+			newShare += report.getNewByteShare(i);
+			moved += Math.max(0, report.getOldKeyCount(i) - report.getNewKeyCount(i));
+		}
+		assertEquals(1.0, oldShare, 0.0001);
+		assertEquals(1.0, newShare, 0.0001);
+		// ketama only moves the keys to the new server
+		assertEquals(report.getNewKeyCount(4), report.getRemappedKeyCount());
+		assertEquals(moved, report.getRemappedKeyCount());
+		assertTrue(report.getRemappedFraction() > 0.12 && report.getRemappedFraction() < 0.3);
+		assertEquals(0.9 * report.getRemappedFraction(), report.getMissSpike(), 0.0001);
+		assertEquals(0.1 + report.getMissSpike(), report.getMissRatioAfter(), 0.0001);
+		assertTrue(report.toString().contains("h4:7788"));
+
+		// the servers keep their indexes, only the keys of a removed server move
+		String[] fewerServers = new String[] {"h3:7788", "h0:7788", "h2:7788"};
+		analyzer = new RemapAnalyzer(oldServers, null, new KetamaWeightMap<Integer>(),
+				fewerServers, null, new KetamaWeightMap<Integer>());
+		report = analyzer.analyze(file);
+		assertEquals(4, report.getServers().length);
+		assertEquals(0, report.getNewKeyCount(1));
+		assertEquals(report.getOldKeyCount(1), report.getRemappedKeyCount());
+
+		// the modulo map moves most of the keys, one thread gives the same counts
+		analyzer = new RemapAnalyzer(oldServers, null, new XixiWeightMap<Integer>(),
+				newServers, null, new XixiWeightMap<Integer>());
+		analyzer.setThreads(1);
+		RemapAnalyzer.Report modulo = analyzer.analyze(file);
+		assertTrue(modulo.getRemappedFraction() > 0.6);
+		analyzer.setThreads(4);
+		assertEquals(modulo.getRemappedKeyCount(), analyzer.analyze(file).getRemappedKeyCount());
+
+		// the same servers and weights move nothing
+		analyzer = new RemapAnalyzer(oldServers, new Integer[] {1, 2, 1, 1}, new JumpWeightMap<Integer>(),
+				oldServers, new Integer[] {1, 2, 1, 1}, new JumpWeightMap<Integer>());
+		report = analyzer.analyze(file);
+		assertEquals(0, report.getRemappedKeyCount());
+		assertTrue(report.getOldKeyShare(1) > report.getOldKeyShare(0) * 3 / 2);
+
+		Integer[][] weights = new Integer[1][];
+		String[] servers = RemapAnalyzer.parseServers("h0:7788=70, h1:7788", weights);
+		assertEquals("h1:7788", servers[1]);
+		assertEquals(Integer.valueOf(70), weights[0][0]);
+		assertNull(weights[0][1]);
+	}
+
+	@Test
+	public void testSSLContext() throws Exception {
+		SocketManager mgr = new SocketManager();
+		// all the SSL sockets share one context, so they share its session cache
+		SSLContext context = mgr.getSSLContext();
+		assertNotNull(context);
+		assertSame(context, mgr.getSSLContext());
+		SSLContext context2 = SSLContext.getInstance("TLS");
+		context2.init(null, null, null);
+		mgr.setSSLContext(context2);
+		assertSame(context2, mgr.getSSLContext());
+		assertEquals(0, mgr.getSSLBufferIdleCount());
+	}
+
 	@Test
 	public void testError() {
 		SocketManager mgr = new SocketManager();
@@ -1,16 +1,32 @@
 package com.yeaya.xixibase.xixiclient;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.RandomAccessFile;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Random;
 import java.util.Map.Entry;
+import java.util.zip.CRC32;
 import java.lang.Integer;
 
 import static org.junit.Assert.*;
@@ -21,7 +37,13 @@ import org.junit.Test;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.yeaya.xixibase.xixiclient.util.Crc32Hasher;
 import com.yeaya.xixibase.xixiclient.util.CurrentTick;
+import com.yeaya.xixibase.xixiclient.util.KeyHasher;
+import com.yeaya.xixibase.xixiclient.util.LoadSource;
+import com.yeaya.xixibase.xixiclient.util.Md5Hasher;
+import com.yeaya.xixibase.xixiclient.util.Murmur3Hasher;
+import com.yeaya.xixibase.xixiclient.util.XxHash64Hasher;
 
 public class CacheClientTest {
 	final static Logger log = LoggerFactory.getLogger(CacheClientTest.class);
@@ -378,6 +400,7 @@ public class CacheClientTest {
 				enableSSL);
 		XixiClient cc = mgr.createClient();
 		assertFalse(mgr.getWeightMapper().isConsistent());
+		assertFalse(mgr.getWeightMapper().isPlacedByValue());
 		assertEquals(XixiWeightMap.CRC32_HASH, mgr.getWeightMapper().getHashingAlg());
 		
 		cc.set("xixi", input);
@@ -429,6 +452,244 @@ public class CacheClientTest {
 		mgr.shutdown();
 	}
 
+	@Test
+	public void testKetamaWeightMap() {
+		KetamaWeightMap<Integer> map = new KetamaWeightMap<Integer>(100);
+		assertTrue(map.isConsistent());
+		assertTrue(map.isPlacedByValue());
+		map.set(new Integer[] {0, 1, 2, 3}, new Integer[] {1, 1, 1, 2});
+		assertEquals(500, map.getPointCount(), 5);
+		int[] counts = new int[5];
+		Integer[] owners = new Integer[10000];
+		for (int i = 0; i < owners.length; i++) {
+			owners[i] = map.get("xixi" + i);
+			counts[owners[i].intValue()]++;
+			assertEquals(owners[i], map.get("xixi" + i));
+			List<Integer> replicas = map.get("xixi" + i, 3);
+			assertEquals(3, replicas.size());
+			assertEquals(owners[i], replicas.get(0));
+			assertEquals(3, new HashSet<Integer>(replicas).size());
+			assertEquals(replicas.get(1), map.get("xixi" + i, Collections.singleton(owners[i])));
+		}
+		// the weight 2 gets about twice the keys
+		assertTrue(counts[3] > counts[0] * 3 / 2);
+		assertEquals(4, map.get("xixi", 10).size());
+
+		// a new value only takes keys, about its share
+		map.set(new Integer[] {0, 1, 2, 3, 4}, new Integer[] {1, 1, 1, 2, 1});
+		int moved = 0;
+		for (int i = 0; i < owners.length; i++) {
+			Integer owner = map.get("xixi" + i);
+			if (!owner.equals(owners[i])) {
+				assertEquals(Integer.valueOf(4), owner);
+				moved++;
+			}
+		}
+		assertTrue(moved > owners.length / 12 && moved < owners.length / 4);
+
+		String input = "test of string encoding";
+		XixiClientManager mgr = XixiClientManager.getInstance("testKetamaWeightMap");
+		mgr.initialize(serverlist, null, new KetamaWeightMap<Integer>(), enableSSL);
+		XixiClient cc = mgr.createClient();
+		assertTrue(mgr.getWeightMapper().isConsistent());
+		assertEquals(XixiWeightMap.MURMUR3_HASH, mgr.getWeightMapper().getHashingAlg());
+		cc.set("xixi", input);
+		assertEquals(input, cc.getValue("xixi"));
+		cc.flush();
+		mgr.shutdown();
+	}
+
+	@Test
+	public void testJumpWeightMap() {
+		JumpWeightMap<Integer> map = new JumpWeightMap<Integer>();
+		// the buckets are laid out by the position of the values
+		assertFalse(map.isPlacedByValue());
+		map.set(new Integer[] {0, 1, 2, 3}, new Integer[] {1, 1, 1, 2});
+		assertEquals(5, map.getBucketCount());
+		int[] counts = new int[5];
+		Integer[] owners = new Integer[10000];
+		for (int i = 0; i < owners.length; i++) {
+			owners[i] = map.get("xixi" + i);
+			counts[owners[i].intValue()]++;
+			List<Integer> replicas = map.get("xixi" + i, 3);
+			assertEquals(3, replicas.size());
+			assertEquals(owners[i], replicas.get(0));
+			assertEquals(3, new HashSet<Integer>(replicas).size());
+			assertFalse(owners[i].equals(map.get("xixi" + i, Collections.singleton(owners[i]))));
+		}
+		assertTrue(counts[3] > counts[0] * 3 / 2);
+		assertEquals(4, map.get("xixi", 10).size());
+
+		// a value added at the end only takes keys
+		map.set(new Integer[] {0, 1, 2, 3, 4}, new Integer[] {1, 1, 1, 2, 1});
+		int moved = 0;
+		for (int i = 0; i < owners.length; i++) {
+			Integer owner = map.get("xixi" + i);
+			if (!owner.equals(owners[i])) {
+				assertEquals(Integer.valueOf(4), owner);
+				moved++;
+			}
+		}
+		assertTrue(moved > owners.length / 8 && moved < owners.length / 4);
+	}
+
+	@Test
+	public void testRendezvousWeightMap() {
+		RendezvousWeightMap<Integer> map = new RendezvousWeightMap<Integer>();
+		map.set(new Integer[] {0, 1, 2, 3, 4}, null);
+		Integer[] owners = new Integer[10000];
+		for (int i = 0; i < owners.length; i++) {
+			owners[i] = map.get("xixi" + i);
+			List<Integer> replicas = map.get("xixi" + i, 3);
+			assertEquals(owners[i], replicas.get(0));
+			assertEquals(3, new HashSet<Integer>(replicas).size());
+			assertEquals(replicas.get(1), map.get("xixi" + i, Collections.singleton(owners[i])));
+		}
+
+		// a value removed from the middle only gives away its own keys
+		map.set(new Integer[] {0, 1, 3, 4}, null);
+		int moved = 0;
+		for (int i = 0; i < owners.length; i++) {
+			Integer owner = map.get("xixi" + i);
+			if (owners[i].intValue() == 2) {
+				moved++;
+			} else {
+				assertEquals(owners[i], owner);
+			}
+		}
+		assertTrue(moved > owners.length / 8 && moved < owners.length / 4);
+
+		// the weight 3 gets about three times the keys
+		map.set(new Integer[] {0, 1}, new Integer[] {1, 3});
+		int[] counts = new int[2];
+		for (int i = 0; i < owners.length; i++) {
+			counts[map.get("xixi" + i).intValue()]++;
+		}
+		assertEquals(3.0, (double) counts[1] / counts[0], 0.4);
+	}
+
+	@Test
+	public void testBoundedLoadWeightMap() {
+		KetamaWeightMap<Integer> ketama = new KetamaWeightMap<Integer>();
+		BoundedLoadWeightMap<Integer> map = new BoundedLoadWeightMap<Integer>();
+		Integer[] values = new Integer[] {0, 1, 2, 3};
+		ketama.set(values, null);
+		map.set(values, null);
+		// no load, no difference
+		for (int i = 0; i < 1000; i++) {
+			assertEquals(ketama.get("xixi" + i), map.get("xixi" + i));
+		}
+		final int[] loads = new int[] {100, 10, 10, 10};
+		map.setLoadSource(new LoadSource<Integer>() {
+			public int getLoad(Integer value) {
+				return loads[value.intValue()];
+			}
+		});
+		for (int i = 0; i < 1000; i++) {
+			Integer owner = map.get("xixi" + i);
+			assertFalse(owner.intValue() == 0);
+			if (ketama.get("xixi" + i).intValue() != 0) {
+				assertEquals(ketama.get("xixi" + i), owner);
+			}
+			// the replicas do not move
+			assertEquals(ketama.get("xixi" + i, 2), map.get("xixi" + i, 2));
+		}
+		// a lookup does not read the load of every value
+		final int[] reads = new int[1];
+		map.setLoadSource(new LoadSource<Integer>() {
+			public int getLoad(Integer value) {
+				reads[0]++;
+				return 0;
+			}
+		});
+		for (int i = 0; i < 1000; i++) {
+			assertEquals(ketama.get("xixi" + i), map.get("xixi" + i));
+		}
+		assertTrue(reads[0] < 3000);
+
+		String input = "test of string encoding";
+		XixiClientManager mgr = XixiClientManager.getInstance("testBoundedLoadWeightMap");
+		BoundedLoadWeightMap<Integer> weightMap = new BoundedLoadWeightMap<Integer>();
+		mgr.initialize(serverlist, null, weightMap, enableSSL);
+		assertNotNull(weightMap.getLoadSource());
+		XixiClient cc = mgr.createClient();
+		cc.set("xixi", input);
+		assertEquals(input, cc.getValue("xixi"));
+		assertEquals(0, weightMap.getLoadSource().getLoad(Integer.valueOf(0)));
+		cc.flush();
+		mgr.shutdown();
+	}
+
+	@Test
+	public void testKeyHasher() throws Exception {
+		byte[] hello = "hello".getBytes("UTF-8");
+		byte[] abc = "abc".getBytes("UTF-8");
+		assertEquals(0x248bfa47, new Murmur3Hasher().hash(hello, 0, hello.length));
+		assertEquals(0, new Murmur3Hasher().hash(new byte[0], 0, 0));
+		// the tails of 3 and 2 bytes
+		assertEquals(0xb3dd93fa, new Murmur3Hasher().hash(abc, 0, abc.length));
+		assertEquals(0x9bbfd75f, new Murmur3Hasher().hash(abc, 0, 2));
+		assertEquals(0xEF46DB3751D8E999L, new XxHash64Hasher().hash64(new byte[0], 0, 0));
+		assertEquals(0x44BC2CF5AD770999L, new XxHash64Hasher().hash64(abc, 0, abc.length));
+		// only the range is hashed
+		byte[] padded = "xxhelloxx".getBytes("UTF-8");
+		assertEquals(0x248bfa47, new Murmur3Hasher().hash(padded, 2, 5));
+
+		// the old algorithms keep their rings
+		CRC32 crc = new CRC32();
+		crc.update(hello);
+		assertEquals((int) crc.getValue(), new Crc32Hasher().hash(hello, 0, hello.length));
+		byte[] md5 = MessageDigest.getInstance("MD5").digest(hello);
+		int expected = (md5[3] & 0xFF) << 24 | (md5[2] & 0xFF) << 16 | (md5[1] & 0xFF) << 8 | (md5[0] & 0xFF);
+		final KeyHasher md5Hasher = new Md5Hasher();
+		assertEquals(expected, md5Hasher.hash(hello, 0, hello.length));
+
+		// one hasher is shared by the threads
+		final int[] hashes = new int[1000];
+		for (int i = 0; i < hashes.length; i++) {
+			byte[] key = ("xixi" + i).getBytes("UTF-8");
+			hashes[i] = md5Hasher.hash(key, 0, key.length);
+		}
+		final boolean[] failed = new boolean[1];
+		Thread[] threads = new Thread[4];
+		for (int t = 0; t < threads.length; t++) {
+			threads[t] = new Thread(new Runnable() {
+				public void run() {
+					for (int n = 0; n < 20; n++) {
+						for (int i = 0; i < hashes.length; i++) {
+							byte[] key = ("xixi" + i).getBytes();
+							if (md5Hasher.hash(key, 0, key.length) != hashes[i]) {
+								failed[0] = true;
+							}
+						}
+					}
+				}
+			});
+			threads[t].start();
+		}
+		for (int t = 0; t < threads.length; t++) {
+			threads[t].join();
+		}
+		assertFalse(failed[0]);
+
+		// the encoded key routes like the key
+		int[] algs = {XixiWeightMap.NATIVE_HASH, XixiWeightMap.CRC32_HASH,
+				XixiWeightMap.MD5_HASH, XixiWeightMap.MURMUR3_HASH, XixiWeightMap.XXHASH64_HASH};
+		for (int a = 0; a < algs.length; a++) {
+			XixiClientManager mgr = XixiClientManager.getInstance("testKeyHasher" + a);
+			mgr.initialize(serverlist, null, new XixiWeightMap<Integer>(true, algs[a]), enableSSL);
+			TransCoder transCoder = new ObjectTransCoder();
+			for (int i = 0; i < 100; i++) {
+				String key = "xixi" + i;
+				byte[] keyBuf = transCoder.encodeKey(key);
+				String host = mgr.socketManager.getHost(key, keyBuf);
+				assertEquals(host, mgr.socketManager.getHost(key));
+				assertEquals(host, mgr.socketManager.getHostByIndex(mgr.socketManager.getHostIndex(key, keyBuf)));
+			}
+			mgr.shutdown();
+		}
+	}
+
 	@Test
 	public void testSetChar() {
 		cc1.set("xixi", Character.valueOf('Y'));
@@ -1287,6 +1548,142 @@ public class CacheClientTest {
 		assertEquals(0, cc2.createWatch(mgr.getServers()[0], 100));
 		assertNull(cc2.checkWatch(mgr.getServers()[0], 1, 1, 100, 0));
 	}*/
+
+	@Test
+	public void testSetByteBuffer() {
+		byte[] value = new byte[200 * 1024];
+		new Random(315).nextBytes(value);
+
+		ByteBuffer heap = ByteBuffer.wrap(value, 100, 1000);
+		assertTrue(cc1.set("xixi", heap) != 0);
+		assertEquals(100, heap.position());
+		assertTrue(Arrays.equals(Arrays.copyOfRange(value, 100, 1100), (byte[]) cc1.getValue("xixi")));
+
+		ByteBuffer direct = ByteBuffer.allocateDirect(value.length);
+		direct.put(value);
+		direct.flip();
+		for (int threshold = 32 * 1024; threshold >= 0; threshold -= 32 * 1024) {
+			cc1.getTransCoder().setCompressionThreshold(threshold);
+			assertTrue(cc1.set("xixi", direct) != 0);
+			assertEquals(value.length, direct.remaining());
+			assertTrue(Arrays.equals(value, (byte[]) cc1.getValue("xixi")));
+
+			assertTrue(cc1.set("xixi", value) != 0);
+			assertTrue(Arrays.equals(value, (byte[]) cc1.getValue("xixi")));
+		}
+	}
+
+	@Test
+	public void testSetEncodedInPlace() {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 20000; i++) {
+			sb.append("\u4f60\u597d");
+		}
+		String large = sb.toString();
+		Object[] values = { "", "xixi", "\u4f60\u597d", large, sb, new StringBuffer("0315"), Boolean.TRUE,
+				Byte.valueOf((byte) 3), Short.valueOf((short) 315), Character.valueOf('x'),
+				Integer.valueOf(315), Float.valueOf(3.15f), Long.valueOf(20080315L),
+				Double.valueOf(3.15), new Date(20080315L), new byte[0] };
+		for (int threshold = 32 * 1024; threshold >= 0; threshold -= 32 * 1024) {
+			cc1.getTransCoder().setCompressionThreshold(threshold);
+			for (int i = 0; i < values.length; i++) {
+				assertTrue(cc1.set("xixi", values[i]) != 0);
+				Object value = cc1.getValue("xixi");
+				assertEquals(values[i].getClass(), value.getClass());
+				if (values[i] instanceof byte[]) {
+					assertEquals(0, ((byte[]) value).length);
+				} else {
+					assertEquals(values[i].toString(), value.toString());
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testSetFromChannel() throws IOException {
+		byte[] value = new byte[300 * 1024];
+		for (int i = 0; i < value.length; i++) {
+			value[i] = (byte) i;
+		}
+		long cacheId = cc1.setFromChannel("xixi", Channels.newChannel(new ByteArrayInputStream(value)), value.length);
+		assertTrue(cacheId != 0);
+		assertTrue(Arrays.equals(value, (byte[]) cc1.getValue("xixi")));
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		CacheBaseItem item = cc1.getToChannel("xixi", Channels.newChannel(out));
+		assertNotNull(item);
+		assertEquals(cacheId, item.getCacheId());
+		assertEquals(value.length, item.getValueSize());
+		assertTrue(Arrays.equals(value, out.toByteArray()));
+
+		cacheId = cc1.setFromChannel("xixi", Channels.newChannel(new ByteArrayInputStream(value)), 10, 100, cacheId);
+		assertTrue(cacheId != 0);
+		assertEquals(100, cc1.getBase("xixi").getExpiration());
+		assertTrue(Arrays.equals(Arrays.copyOf(value, 10), (byte[]) cc1.getValue("xixi")));
+		assertEquals(0, cc1.setFromChannel("xixi", Channels.newChannel(new ByteArrayInputStream(value)), 10, 100, cacheId + 1));
+
+		assertNull(cc1.getToChannel("notexist", Channels.newChannel(out)));
+		assertEquals(0, cc1.setFromChannel(null, Channels.newChannel(new ByteArrayInputStream(value)), 10));
+		assertEquals(0, cc1.setFromChannel("xixi", null, 10));
+		assertEquals(0, cc1.setFromChannel("xixi", Channels.newChannel(new ByteArrayInputStream(value)), -1));
+		assertNull(cc1.getToChannel("xixi", null));
+	}
+
+	@Test
+	public void testSetFromChannelShortSource() throws IOException {
+		byte[] value = new byte[1000];
+		assertEquals(0, cc1.setFromChannel("xixi", Channels.newChannel(new ByteArrayInputStream(value)), value.length + 1));
+		assertNotNull(cc1.getLastError());
+		assertNull(cc1.getValue("xixi"));
+		assertTrue(cc1.set("xixi", "0315") != 0);
+		assertEquals("0315", cc1.getValue("xixi"));
+	}
+
+	@Test
+	public void testFileChannel() throws IOException {
+		File in = File.createTempFile("xixi", ".in");
+		File out = File.createTempFile("xixi", ".out");
+		try {
+			byte[] value = new byte[1024 * 1024 + 123];
+			for (int i = 0; i < value.length; i++) {
+				value[i] = (byte) (i * 31);
+			}
+			FileOutputStream fos = new FileOutputStream(in);
+			fos.write(value);
+			fos.close();
+
+			FileInputStream fis = new FileInputStream(in);
+			FileChannel src = fis.getChannel();
+			src.position(100);
+			long cacheId = cc1.setFromChannel("xixi", src, value.length - 100);
+			assertEquals(value.length, src.position());
+			fis.close();
+			assertTrue(cacheId != 0);
+
+			RandomAccessFile raf = new RandomAccessFile(out, "rw");
+			FileChannel dst = raf.getChannel();
+			dst.write(ByteBuffer.wrap(value, 0, 100));
+			CacheBaseItem item = cc1.getToChannel("xixi", dst);
+			assertNotNull(item);
+			assertEquals(cacheId, item.getCacheId());
+			assertEquals(value.length, dst.position());
+			raf.close();
+
+			byte[] result = new byte[value.length];
+			DataInputStream dis = new DataInputStream(new FileInputStream(out));
+			dis.readFully(result);
+			assertEquals(-1, dis.read());
+			dis.close();
+			assertTrue(Arrays.equals(value, result));
+
+			// the socket is still in sync
+			assertTrue(cc1.set("xixi2", "0315") != 0);
+			assertEquals("0315", cc1.getValue("xixi2"));
+		} finally {
+			in.delete();
+			out.delete();
+		}
+	}
 	
 	public static final class SerialItem implements Serializable {
 		private static final long serialVersionUId = -1331512331067654578L;
@@ -0,0 +1,112 @@
+/*
+   Copyright [2015] [Yao Yuan(yeaya@163.com)]
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.yeaya.xixibase.xixiclient;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Measures what the callers see when a host slows down, with and without the
+ * concurrency limit.
+ * <p>
+ * The callers read one key from a {@link MockServer}. After a warm-up every
+ * response of the server is delayed, the callers keep calling during the slowdown.
+ * Without the limit every call waits for the slow host, with the limit the calls
+ * beyond it fail at once.
+ * <pre>
+ *     java ConcurrencyLimitBench [callers] [delay(ms)] [seconds]</pre>
+ *
+ * @author Yao Yuan
+ *
+ */
+public class ConcurrencyLimitBench {
+	static void bench(String name, int callers, long delay, long seconds, boolean limiting)
+			throws IOException, InterruptedException {
+		MockServer server = new MockServer(0);
+		server.start();
+		final XixiClientManager manager = XixiClientManager.getInstance("ConcurrencyLimitBench" + name);
+		manager.setMaxConn(callers);
+		manager.setMaxWaitTime(60 * 1000);
+		manager.setConcurrencyLimiting(limiting);
+		manager.initialize(new String[] {server.getHost()}, false);
+		final AtomicBoolean running = new AtomicBoolean(true);
+		final LongAdder okCount = new LongAdder();
+		final LongAdder okTime = new LongAdder();
+		final LongAdder failCount = new LongAdder();
+		final LongAdder failTime = new LongAdder();
+		Thread[] threads = new Thread[callers];
+		try {
+			manager.createClient().set("ConcurrencyLimitBench", "value");
+			for (int i = 0; i < callers; i++) {
+				threads[i] = new Thread() {
+					public void run() {
+						XixiClient cc = manager.createClient();
+						while (running.get()) {
+							long start = System.nanoTime();
+							boolean ok = "value".equals(cc.getValue("ConcurrencyLimitBench"));
+							long time = System.nanoTime() - start;
+							if (ok) {
+								okCount.increment();
+								okTime.add(time);
+							} else {
+								failCount.increment();
+								failTime.add(time);
+								// a caller which failed backs off a little
+								try {
+									Thread.sleep(1);
+								} catch (InterruptedException e) {
+									return;
+								}
+							}
+						}
+					}
+				};
+				threads[i].start();
+			}
+			Thread.sleep(1000);
+			int fastLimit = manager.getConcurrencyLimit(server.getHost());
+			okCount.reset();
+			okTime.reset();
+			server.setResponseDelay(delay);
+			Thread.sleep(seconds * 1000);
+			int slowLimit = manager.getConcurrencyLimit(server.getHost());
+			running.set(false);
+			server.setResponseDelay(0);
+			for (int i = 0; i < threads.length; i++) {
+				threads[i].join();
+			}
+			long ok = okCount.sum();
+			long fail = failCount.sum();
+			System.out.println(name + " callers=" + callers + " delay=" + delay + "ms"
+					+ " limit=" + fastLimit + "->" + slowLimit
+					+ " ok=" + ok + " okMean=" + (ok == 0 ? 0 : okTime.sum() / ok / 1000000) + "ms"
+					+ " failed=" + fail + " failMean=" + (fail == 0 ? 0 : failTime.sum() / fail / 1000) + "us");
+		} finally {
+			manager.shutdown();
+			server.stop();
+		}
+	}
+
+	public static void main(String[] args) throws IOException, InterruptedException {
+		int callers = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+		long delay = args.length > 1 ? Long.parseLong(args[1]) : 200;
+		long seconds = args.length > 2 ? Long.parseLong(args[2]) : 5;
+		bench("unlimited", callers, delay, seconds, false);
+		bench("limited", callers, delay, seconds, true);
+	}
+}
@@ -0,0 +1,195 @@
+/*
+   Copyright [2015] [Yao Yuan(yeaya@163.com)]
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.yeaya.xixibase.xixiclient;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.security.KeyStore;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+
+import com.yeaya.xixibase.xixiclient.network.SocketManager;
+import com.yeaya.xixibase.xixiclient.network.XixiSocket;
+
+/**
+ * Measures the cost of a new connection: plain TCP, SSL with a full handshake and
+ * SSL which resumes the session cached by the shared SSL context of the manager.
+ * <p>
+ * Each connection does one one-byte round trip against an echo server before it is
+ * closed, so the SSL client also reads the session ticket the server sends after
+ * the handshake. The full handshake is measured by dropping the SSL context of the
+ * manager before each connection, which is what every socket did before the context
+ * was shared. The server key is created by <tt>keytool</tt> in a temporary directory.
+ * <pre>
+ *     java HandshakeBench [connections]</pre>
+ *
+ * @author Yao Yuan
+ *
+ */
+public class HandshakeBench {
+	static final char[] PASSWORD = "xixibase".toCharArray();
+
+	static SSLContext createServerContext() throws Exception {
+		File dir = File.createTempFile("HandshakeBench", "");
+		dir.delete();
+		dir.mkdir();
+		File keyStoreFile = new File(dir, "server.p12");
+		String keytool = System.getProperty("java.home") + File.separator + "bin" + File.separator + "keytool";
+		Process p = new ProcessBuilder(keytool, "-genkeypair", "-alias", "server",
+				"-keyalg", "EC", "-groupname", "secp256r1", "-dname", "CN=localhost",
+				"-validity", "1", "-storetype", "PKCS12", "-keystore", keyStoreFile.getPath(),
+				"-storepass", new String(PASSWORD), "-keypass", new String(PASSWORD))
+				.start();
+		if (p.waitFor() != 0) {
+			throw new IOException("keytool failed, exit=" + p.exitValue());
+		}
+		KeyStore ks = KeyStore.getInstance("PKCS12");
+		InputStream in = new FileInputStream(keyStoreFile);
+		try {
+			ks.load(in, PASSWORD);
+		} finally {
+			in.close();
+			keyStoreFile.delete();
+			dir.delete();
+		}
+		KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+		kmf.init(ks, PASSWORD);
+		SSLContext context = SSLContext.getInstance("TLS");
+		context.init(kmf.getKeyManagers(), null, null);
+		return context;
+	}
+
+	static ServerSocket startEchoServer(final ServerSocket server) {
+		Thread t = new Thread("echo-server") {
+			public void run() {
+				while (!server.isClosed()) {
+					try {
+						final Socket s = server.accept();
+						s.setTcpNoDelay(true);
+						Thread c = new Thread("echo-connection") {
+							public void run() {
+								try {
+									InputStream in = s.getInputStream();
+									OutputStream out = s.getOutputStream();
+									int b = in.read();
+									while (b >= 0) {
+										out.write(b);
+										out.flush();
+										b = in.read();
+									}
+								} catch (IOException e) {
+									// the client closed
+								} finally {
+									try {
+										s.close();
+									} catch (IOException e) {
+									}
+								}
+							}
+						};
+						c.setDaemon(true);
+						c.start();
+					} catch (IOException e) {
+						// the server closed
+					}
+				}
+			}
+		};
+		t.setDaemon(true);
+		t.start();
+		return server;
+	}
+
+	static void roundTrip(SocketManager manager, String host) throws IOException {
+		XixiSocket socket = manager.createSocket(host);
+		if (socket == null) {
+			throw new IOException("failed to connect " + host);
+		}
+		try {
+			ByteBuffer writeBuffer = socket.getWriteBuffer();
+			writeBuffer.clear();
+			writeBuffer.put((byte) 1);
+			socket.flush();
+			if (socket.readByte() != 1) {
+				throw new IOException("bad echo");
+			}
+		} finally {
+			socket.trueClose();
+		}
+	}
+
+	static void bench(String name, SocketManager manager, String host, int count, boolean resume)
+			throws IOException {
+		for (int i = 0; i < count / 10 + 1; i++) {
+			if (!resume) {
+				manager.setSSLContext(null);
+			}
+			roundTrip(manager, host);
+		}
+		long start = System.nanoTime();
+		for (int i = 0; i < count; i++) {
+			if (!resume) {
+				manager.setSSLContext(null);
+			}
+			roundTrip(manager, host);
+		}
+		long time = System.nanoTime() - start;
+		System.out.println(name + " connections=" + count + " time=" + time / 1000000 + "ms"
+				+ " us/connection=" + time / count / 1000
+				+ " idleSSLBuffers=" + manager.getSSLBufferIdleCount());
+	}
+
+	static SocketManager createManager(String host, boolean enableSSL) {
+		SocketManager manager = new SocketManager();
+		manager.setInitConn(0);
+		manager.setFailureThreshold(0);
+		manager.initialize(new String[] {host}, enableSSL);
+		return manager;
+	}
+
+	public static void main(String[] args) throws Exception {
+		int count = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+		InetAddress localhost = InetAddress.getByName("127.0.0.1");
+
+		ServerSocket tcpServer = startEchoServer(new ServerSocket(0, 128, localhost));
+		ServerSocket sslServer = startEchoServer(createServerContext()
+				.getServerSocketFactory().createServerSocket(0, 128, localhost));
+		String tcpHost = "127.0.0.1:" + tcpServer.getLocalPort();
+		String sslHost = "127.0.0.1:" + sslServer.getLocalPort();
+
+		SocketManager tcp = createManager(tcpHost, false);
+		SocketManager ssl = createManager(sslHost, true);
+		try {
+			bench("tcp", tcp, tcpHost, count, true);
+			bench("ssl-full", ssl, sslHost, count, false);
+			bench("ssl-resumed", ssl, sslHost, count, true);
+		} finally {
+			tcp.shutdown();
+			ssl.shutdown();
+			tcpServer.close();
+			sslServer.close();
+		}
+	}
+}
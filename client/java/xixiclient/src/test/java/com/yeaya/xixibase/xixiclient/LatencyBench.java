@@ -0,0 +1,92 @@
+/*
+   Copyright [2015] [Yao Yuan(yeaya@163.com)]
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.yeaya.xixibase.xixiclient;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import com.yeaya.xixibase.xixiclient.network.WaitStrategy;
+
+/**
+ * Measures the latency of a cache hit with each {@link WaitStrategy}.
+ * <p>
+ * One thread does <tt>getBase</tt> round trips, every round trip is timed and
+ * the percentiles are printed per strategy. The hosts default to a {@link MockServer}
+ * on loopback, which serves each connection with one thread.
+ * <pre>
+ *     java LatencyBench [gets] [host,host...]</pre>
+ *
+ * @author Yao Yuan
+ *
+ */
+public class LatencyBench {
+	static long percentile(long[] sorted, double p) {
+		int index = (int) Math.ceil(p / 100.0 * sorted.length) - 1;
+		return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+	}
+
+	static void bench(WaitStrategy strategy, String[] hosts, int count) {
+		XixiClientManager manager = XixiClientManager.getInstance("LatencyBench" + strategy);
+		manager.setWaitStrategy(strategy);
+		manager.initialize(hosts, false);
+		try {
+			XixiClient cc = manager.createClient();
+			cc.set("LatencyBench", "value");
+			for (int i = 0; i < count; i++) {
+				cc.getBase("LatencyBench");
+			}
+
+			long[] times = new long[count];
+			for (int i = 0; i < count; i++) {
+				long start = System.nanoTime();
+				cc.getBase("LatencyBench");
+				times[i] = System.nanoTime() - start;
+			}
+			Arrays.sort(times);
+			System.out.println(strategy + " gets=" + count
+					+ " p50=" + percentile(times, 50) / 1000.0 + "us"
+					+ " p99=" + percentile(times, 99) / 1000.0 + "us"
+					+ " p99.9=" + percentile(times, 99.9) / 1000.0 + "us"
+					+ " max=" + times[count - 1] / 1000.0 + "us");
+		} finally {
+			manager.shutdown();
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
+		int count = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+		MockServer server = null;
+		String[] hosts;
+		if (args.length > 1) {
+			hosts = args[1].split(",");
+		} else {
+			server = new MockServer(0);
+			server.start();
+			hosts = new String[] {server.getHost()};
+		}
+		try {
+			WaitStrategy[] strategies = WaitStrategy.values();
+			for (int i = 0; i < strategies.length; i++) {
+				bench(strategies[i], hosts, count);
+			}
+		} finally {
+			if (server != null) {
+				server.stop();
+			}
+		}
+	}
+}
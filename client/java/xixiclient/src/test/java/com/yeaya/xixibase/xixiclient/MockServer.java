@@ -0,0 +1,493 @@
+/*
+   Copyright [2015] [Yao Yuan(yeaya@163.com)]
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.yeaya.xixibase.xixiclient;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-process stand-in for a Xixibase server.
+ *
+ * It speaks the binary cache protocol used by the client (get, getBase, update,
+ * updateFlags, updateExpiration, delete, delta, flush, stats and watch) and keeps
+ * every item in memory. It is meant for benchmarks and for running the client
+ * without a real server, not for functional coverage of the server.
+ * <pre>
+ *     MockServer server = new MockServer(0);
+ *     server.start();
+ *     String host = "localhost:" + server.getPort();</pre>
+ *
+ * @author Yao Yuan
+ *
+ */
+public class MockServer extends Defines {
+	static final class Item {
+		long cacheId;
+		int flags;
+		long expireTime;
+		byte[] data;
+
+		void setExpiration(int expiration) {
+			expireTime = expiration == NO_EXPIRATION ? 0 : System.currentTimeMillis() + (expiration & 0xFFFFFFFFL) * 1000;
+		}
+
+		int getExpiration() {
+			if (expireTime == 0) {
+				return NO_EXPIRATION;
+			}
+			return (int)Math.max(1, (expireTime - System.currentTimeMillis() + 999) / 1000);
+		}
+	}
+
+	private ServerSocket serverSocket;
+	private volatile boolean running = false;
+	private volatile long responseDelay = 0;
+	private ConcurrentHashMap<String, Item> items = new ConcurrentHashMap<String, Item>();
+	private ConcurrentHashMap<Integer, LinkedBlockingQueue<long[]>> watches = new ConcurrentHashMap<Integer, LinkedBlockingQueue<long[]>>();
+	private AtomicLong nextCacheId = new AtomicLong(1);
+	private AtomicInteger nextWatchId = new AtomicInteger(1);
+	private AtomicInteger connectionCount = new AtomicInteger(0);
+	private AtomicLong requestCount = new AtomicLong(0);
+	private ConcurrentHashMap<Socket, Boolean> sockets = new ConcurrentHashMap<Socket, Boolean>();
+
+	public MockServer(int port) throws IOException {
+		serverSocket = new ServerSocket();
+		serverSocket.setReuseAddress(true);
+		serverSocket.bind(new InetSocketAddress("127.0.0.1", port));
+	}
+
+	public int getPort() {
+		return serverSocket.getLocalPort();
+	}
+
+	public String getHost() {
+		return "127.0.0.1:" + getPort();
+	}
+
+	public int getConnectionCount() {
+		return connectionCount.get();
+	}
+
+	public long getRequestCount() {
+		return requestCount.get();
+	}
+
+	/**
+	 * Delay every response by the specified time, to emulate a slow server.
+	 * @param responseDelay delay(millisecond)
+	 */
+	public void setResponseDelay(long responseDelay) {
+		this.responseDelay = responseDelay;
+	}
+
+	public void start() {
+		running = true;
+		Thread acceptor = new Thread("MockServer-" + getPort()) {
+			public void run() {
+				while (running) {
+					try {
+						final Socket s = serverSocket.accept();
+						s.setTcpNoDelay(true);
+						Thread t = new Thread("MockServer-conn") {
+							public void run() {
+								serve(s);
+							}
+						};
+						t.setDaemon(true);
+						t.start();
+					} catch (IOException e) {
+						running = false;
+					}
+				}
+			}
+		};
+		acceptor.setDaemon(true);
+		acceptor.start();
+	}
+
+	/**
+	 * Stop accepting and close the open connections, like a server which goes down.
+	 */
+	public void stop() {
+		running = false;
+		try {
+			serverSocket.close();
+		} catch (IOException e) {
+		}
+		Iterator<Socket> it = sockets.keySet().iterator();
+		while (it.hasNext()) {
+			try {
+				it.next().close();
+			} catch (IOException e) {
+			}
+		}
+	}
+
+	private void serve(Socket s) {
+		connectionCount.incrementAndGet();
+		sockets.put(s, Boolean.TRUE);
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream(), 64 * 1024));
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream(), 64 * 1024));
+			while (running) {
+				byte category = in.readByte();
+				byte type = in.readByte();
+				requestCount.incrementAndGet();
+				if (category != XIXI_CATEGORY_CACHE) {
+					writeError(out, XIXI_REASON_UNKNOWN_COMMAND);
+				} else {
+					process(type, in, out);
+				}
+				if (in.available() == 0) {
+					if (responseDelay > 0) {
+						Thread.sleep(responseDelay);
+					}
+					out.flush();
+				}
+			}
+		} catch (EOFException e) {
+		} catch (IOException e) {
+		} catch (InterruptedException e) {
+		} finally {
+			connectionCount.decrementAndGet();
+			sockets.remove(s);
+			try {
+				s.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+
+	private Item lookup(String k) {
+		Item item = items.get(k);
+		if (item != null && item.expireTime != 0 && item.expireTime <= System.currentTimeMillis()) {
+			if (items.remove(k, item)) {
+				notifyWatches(item.cacheId, WATCH_NOTIFY_TYPE_EXPIRED);
+			}
+			return null;
+		}
+		return item;
+	}
+
+	private void expireAll() {
+		Iterator<String> it = items.keySet().iterator();
+		while (it.hasNext()) {
+			lookup(it.next());
+		}
+	}
+
+	private static String readKey(DataInputStream in) throws IOException {
+		int keyLength = in.readShort() & 0xFFFF;
+		byte[] key = new byte[keyLength];
+		in.readFully(key);
+		return new String(key, "ISO-8859-1");
+	}
+
+	private static void writeError(DataOutputStream out, int reason) throws IOException {
+		out.writeByte(XIXI_CATEGORY_COMMON);
+		out.writeByte(XIXI_TYPE_ERROR);
+		out.writeShort(reason);
+	}
+
+	private void notifyWatches(long cacheId, byte type) {
+		Iterator<LinkedBlockingQueue<long[]>> it = watches.values().iterator();
+		while (it.hasNext()) {
+			it.next().add(new long[] {cacheId, type});
+		}
+	}
+
+	private void process(byte type, DataInputStream in, DataOutputStream out) throws IOException, InterruptedException {
+		switch (type) {
+		case XIXI_TYPE_GET_REQ:
+		case XIXI_TYPE_GET_TOUCH_REQ: {
+			int groupId = in.readInt();
+			in.readInt(); // watchId
+			int expiration = 0;
+			if (type == XIXI_TYPE_GET_TOUCH_REQ) {
+				expiration = in.readInt();
+			}
+			String key = readKey(in);
+			Item item = lookup(groupId + ":" + key);
+			if (item == null) {
+				writeError(out, 1);
+			} else {
+				if (type == XIXI_TYPE_GET_TOUCH_REQ) {
+					item.setExpiration(expiration);
+				}
+				out.writeByte(XIXI_CATEGORY_CACHE);
+				out.writeByte(XIXI_TYPE_GET_RES);
+				out.writeLong(item.cacheId);
+				out.writeInt(item.flags);
+				out.writeInt(item.getExpiration());
+				out.writeInt(item.data.length);
+				out.write(item.data);
+			}
+			break;
+		}
+		case XIXI_TYPE_GET_BASE_REQ: {
+			int groupId = in.readInt();
+			String key = readKey(in);
+			Item item = lookup(groupId + ":" + key);
+			if (item == null) {
+				writeError(out, 1);
+			} else {
+				out.writeByte(XIXI_CATEGORY_CACHE);
+				out.writeByte(XIXI_TYPE_GET_BASE_RES);
+				out.writeLong(item.cacheId);
+				out.writeInt(item.flags);
+				out.writeInt(item.getExpiration());
+				out.writeInt(item.data.length);
+			}
+			break;
+		}
+		case XIXI_TYPE_UPDATE_REQ: {
+			byte op = in.readByte();
+			long cacheId = in.readLong();
+			int groupId = in.readInt();
+			int flags = in.readInt();
+			int expiration = in.readInt();
+			in.readInt(); // watchId
+			int keyLength = in.readShort() & 0xFFFF;
+			int dataLength = in.readInt();
+			byte[] key = new byte[keyLength];
+			in.readFully(key);
+			byte[] data = new byte[dataLength];
+			in.readFully(data);
+			String k = groupId + ":" + new String(key, "ISO-8859-1");
+			byte subOp = (byte)(op & 0x7F);
+			synchronized (items) {
+				Item old = lookup(k);
+				if ((subOp == XIXI_UPDATE_SUB_OP_ADD && old != null)
+						|| (subOp != XIXI_UPDATE_SUB_OP_SET && subOp != XIXI_UPDATE_SUB_OP_ADD && old == null)
+						|| (cacheId != NO_CAS && (old == null || old.cacheId != cacheId))) {
+					writeError(out, 2);
+					break;
+				}
+				Item item = new Item();
+				item.cacheId = nextCacheId.getAndIncrement();
+				item.flags = flags;
+				item.setExpiration(expiration);
+				if (subOp == XIXI_UPDATE_SUB_OP_APPEND || subOp == XIXI_UPDATE_SUB_OP_PREPEND) {
+					byte[] first = subOp == XIXI_UPDATE_SUB_OP_APPEND ? old.data : data;
+					byte[] second = subOp == XIXI_UPDATE_SUB_OP_APPEND ? data : old.data;
+					item.data = new byte[first.length + second.length];
+					System.arraycopy(first, 0, item.data, 0, first.length);
+					System.arraycopy(second, 0, item.data, first.length, second.length);
+					item.flags = old.flags;
+					item.expireTime = old.expireTime;
+				} else {
+					item.data = data;
+				}
+				items.put(k, item);
+				if (old != null) {
+					notifyWatches(old.cacheId, WATCH_NOTIFY_TYPE_DATA_UPDATED);
+				}
+				out.writeByte(XIXI_CATEGORY_CACHE);
+				out.writeByte(XIXI_TYPE_UPDATE_RES);
+				out.writeLong(item.cacheId);
+			}
+			break;
+		}
+		case XIXI_TYPE_UPDATE_FLAGS_REQ:
+		case XIXI_TYPE_UPDATE_EXPIRATION_REQ: {
+			in.readByte(); // op
+			long cacheId = in.readLong();
+			int groupId = in.readInt();
+			int value = in.readInt();
+			String key = readKey(in);
+			Item item = lookup(groupId + ":" + key);
+			if (item == null || (cacheId != NO_CAS && item.cacheId != cacheId)) {
+				writeError(out, 1);
+			} else {
+				if (type == XIXI_TYPE_UPDATE_FLAGS_REQ) {
+					item.flags = value;
+				} else {
+					item.setExpiration(value);
+				}
+				notifyWatches(item.cacheId, WATCH_NOTIFY_TYPE_BASE_INFO_UPDATED);
+				out.writeByte(XIXI_CATEGORY_CACHE);
+				out.writeByte(type == XIXI_TYPE_UPDATE_FLAGS_REQ ? XIXI_TYPE_UPDATE_FLAGS_RES : XIXI_TYPE_UPDATE_EXPIRATION_RES);
+				out.writeLong(item.cacheId);
+			}
+			break;
+		}
+		case XIXI_TYPE_DELETE_REQ: {
+			in.readByte(); // op
+			long cacheId = in.readLong();
+			int groupId = in.readInt();
+			String key = readKey(in);
+			String k = groupId + ":" + key;
+			synchronized (items) {
+				Item item = lookup(k);
+				if (item == null || (cacheId != NO_CAS && item.cacheId != cacheId)) {
+					writeError(out, 1);
+				} else {
+					items.remove(k);
+					notifyWatches(item.cacheId, WATCH_NOTIFY_TYPE_DELETED);
+					out.writeByte(XIXI_CATEGORY_CACHE);
+					out.writeByte(XIXI_TYPE_DELETE_RES);
+				}
+			}
+			break;
+		}
+		case XIXI_TYPE_DETLA_REQ: {
+			byte op = in.readByte();
+			long cacheId = in.readLong();
+			int groupId = in.readInt();
+			long delta = in.readLong();
+			String k = groupId + ":" + readKey(in);
+			synchronized (items) {
+				Item old = lookup(k);
+				if (old == null || (cacheId != NO_CAS && old.cacheId != cacheId)) {
+					writeError(out, 1);
+					break;
+				}
+				long value;
+				try {
+					value = Long.parseLong(new String(old.data, "UTF-8").trim());
+				} catch (NumberFormatException e) {
+					writeError(out, 3);
+					break;
+				}
+				value = (op & 0x7F) == XIXI_DELTA_SUB_OP_INCR ? value + delta : value - delta;
+				Item item = new Item();
+				item.cacheId = nextCacheId.getAndIncrement();
+				item.flags = old.flags;
+				item.expireTime = old.expireTime;
+				item.data = Long.toString(value).getBytes("UTF-8");
+				items.put(k, item);
+				notifyWatches(old.cacheId, WATCH_NOTIFY_TYPE_DATA_UPDATED);
+				out.writeByte(XIXI_CATEGORY_CACHE);
+				out.writeByte(XIXI_TYPE_DETLA_RES);
+				out.writeLong(item.cacheId);
+				out.writeLong(value);
+			}
+			break;
+		}
+		case XIXI_TYPE_FLUSH_REQ: {
+			int groupId = in.readInt();
+			String prefix = groupId + ":";
+			int count = 0;
+			long size = 0;
+			synchronized (items) {
+				Iterator<String> it = items.keySet().iterator();
+				while (it.hasNext()) {
+					String k = it.next();
+					if (k.startsWith(prefix)) {
+						Item item = items.remove(k);
+						if (item != null) {
+							notifyWatches(item.cacheId, WATCH_NOTIFY_TYPE_FLUSHED);
+							count++;
+							size += item.data.length;
+						}
+					}
+				}
+			}
+			out.writeByte(XIXI_CATEGORY_CACHE);
+			out.writeByte(XIXI_TYPE_FLUSH_RES);
+			out.writeInt(count);
+			out.writeLong(size);
+			break;
+		}
+		case XIXI_TYPE_STATS_REQ: {
+			byte op = in.readByte();
+			in.readByte(); // class_id
+			in.readInt(); // groupId
+			String str;
+			if (op == XIXI_STATS_SUB_OP_GET_STATS_GROUP_ONLY || op == XIXI_STATS_SUB_OP_GET_STATS_SUM_ONLY) {
+				str = "curr_items=" + items.size() + "\nconnections=" + connectionCount.get();
+			} else {
+				str = "success";
+			}
+			byte[] b = str.getBytes("UTF-8");
+			out.writeByte(XIXI_CATEGORY_CACHE);
+			out.writeByte(XIXI_TYPE_STATS_RES);
+			out.writeInt(b.length);
+			out.write(b);
+			break;
+		}
+		case XIXI_CREATE_WATCH_REQ: {
+			in.readInt(); // groupId
+			in.readInt(); // maxNextCheckInterval
+			int watchId = nextWatchId.getAndIncrement();
+			watches.put(Integer.valueOf(watchId), new LinkedBlockingQueue<long[]>());
+			out.writeByte(XIXI_CATEGORY_CACHE);
+			out.writeByte(XIXI_CREATE_WATCH_RES);
+			out.writeInt(watchId);
+			break;
+		}
+		case XIXI_CHECK_WATCH_REQ: {
+			in.readInt(); // groupId
+			int watchId = in.readInt();
+			int checkTimeout = in.readInt();
+			in.readInt(); // maxNextCheckInterval
+			int ackSequence = in.readInt();
+			LinkedBlockingQueue<long[]> queue = watches.get(Integer.valueOf(watchId));
+			if (queue == null) {
+				writeError(out, 1);
+				break;
+			}
+			List<long[]> updated = new ArrayList<long[]>();
+			long endTime = System.currentTimeMillis() + Math.min(checkTimeout * 1000L, 200L);
+			do {
+				expireAll();
+				long[] first = queue.poll(20, TimeUnit.MILLISECONDS);
+				if (first != null) {
+					updated.add(first);
+					queue.drainTo(updated);
+				}
+			} while (updated.isEmpty() && System.currentTimeMillis() < endTime);
+			out.writeByte(XIXI_CATEGORY_CACHE);
+			out.writeByte(XIXI_CHECK_WATCH_RES);
+			out.writeInt(ackSequence + updated.size());
+			out.writeInt(updated.size());
+			for (int i = 0; i < updated.size(); i++) {
+				out.writeLong(updated.get(i)[0]);
+				out.writeByte((byte)updated.get(i)[1]);
+			}
+			out.flush();
+			break;
+		}
+		default:
+			writeError(out, XIXI_REASON_UNKNOWN_COMMAND);
+			break;
+		}
+	}
+
+	public static void main(String[] args) throws IOException, InterruptedException {
+		int port = args.length > 0 ? Integer.parseInt(args[0]) : 7788;
+		MockServer server = new MockServer(port);
+		server.start();
+		System.out.println("MockServer listening on " + server.getHost());
+		Thread.sleep(Long.MAX_VALUE);
+	}
+}
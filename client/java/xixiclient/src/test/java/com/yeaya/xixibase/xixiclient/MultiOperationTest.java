@@ -20,10 +20,13 @@ import static org.junit.Assert.*;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Properties;
+import java.util.Random;
 
 import org.junit.After;
 import org.junit.Before;
@@ -443,4 +446,56 @@ public class MultiOperationTest {
 			assertNull(item);
 		}
 	}
+
+	@Test
+	public void testMultiSetMixedValues() {
+		Random random = new Random(315);
+		byte[] large = new byte[200 * 1024];
+		random.nextBytes(large);
+		byte[] small = new byte[100];
+		random.nextBytes(small);
+		ByteBuffer direct = ByteBuffer.allocateDirect(100 * 1024);
+		while (direct.hasRemaining()) {
+			direct.put((byte) random.nextInt());
+		}
+		direct.flip();
+		ByteBuffer heap = ByteBuffer.wrap(large, 1000, 5000);
+		ArrayList<Integer> list = new ArrayList<Integer>();
+		list.add(Integer.valueOf(315));
+
+		Object[] values = { "xixi", Integer.valueOf(315), "\u4f60\u597d xixi", large, small,
+				direct, heap, list, Long.valueOf(20080315L), new StringBuilder("0315") };
+
+		for (int threshold = 32 * 1024; threshold >= 0; threshold -= 32 * 1024) {
+			cc1.getTransCoder().setCompressionThreshold(threshold);
+			ArrayList<MultiUpdateItem> items = new ArrayList<MultiUpdateItem>();
+			ArrayList<String> keys = new ArrayList<String>();
+			for (int i = 0; i < 50; i++) {
+				MultiUpdateItem item = new MultiUpdateItem();
+				item.key = "xixi" + i;
+				item.value = values[i % values.length];
+				items.add(item);
+				keys.add(item.key);
+			}
+			assertEquals(items.size(), cc1.multiSet(items));
+			assertEquals(100 * 1024, direct.remaining());
+			assertEquals(5000, heap.remaining());
+
+			List<CacheItem> results = cc1.multiGet(keys);
+			for (int i = 0; i < items.size(); i++) {
+				Object expected = values[i % values.length];
+				Object value = results.get(i).getValue();
+				if (expected instanceof ByteBuffer) {
+					byte[] b = new byte[((ByteBuffer) expected).remaining()];
+					((ByteBuffer) expected).duplicate().get(b);
+					assertTrue(Arrays.equals(b, (byte[]) value));
+				} else if (expected instanceof byte[]) {
+					assertTrue(Arrays.equals((byte[]) expected, (byte[]) value));
+				} else {
+					assertEquals(expected.toString(), value.toString());
+					assertEquals(expected.getClass(), value.getClass());
+				}
+			}
+		}
+	}
 }
@@ -0,0 +1,155 @@
+/*
+   Copyright [2015] [Yao Yuan(yeaya@163.com)]
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.yeaya.xixibase.xixiclient;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+
+import com.yeaya.xixibase.xixiclient.network.SocketManager;
+import com.yeaya.xixibase.xixiclient.network.TCPSocket;
+
+/**
+ * Measures the heap allocated by the read path of <tt>TCPSocket</tt>.
+ * <p>
+ * The first run decodes get response headers (category, type, cacheId, flags,
+ * expiration, data length) from a stream which repeats them forever, so nothing
+ * but <tt>readByte/readInt/readLong</tt> is measured, it should print 0 bytes per header.
+ * The second run does <tt>getBase</tt> round trips against a {@link MockServer},
+ * which includes encoding the request and creating the result.
+ * <pre>
+ *     java ReadPathBench [headers] [gets]</pre>
+ *
+ * @author Yao Yuan
+ *
+ */
+public class ReadPathBench {
+	static final int HEADER_SIZE = 22;
+
+	static long allocatedBytes() {
+		return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+				.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+
+	static ServerSocket startHeaderServer() throws IOException {
+		final ServerSocket server = new ServerSocket(0);
+		final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE * 1024);
+		while (header.hasRemaining()) {
+			header.put(Defines.XIXI_CATEGORY_CACHE);
+			header.put(Defines.XIXI_TYPE_GET_RES);
+			header.putLong(1234567890123L);
+			header.putInt(0);
+			header.putInt(Defines.NO_EXPIRATION);
+			header.putInt(0);
+		}
+		Thread t = new Thread("header-server") {
+			public void run() {
+				try {
+					Socket s = server.accept();
+					OutputStream out = s.getOutputStream();
+					while (true) {
+						out.write(header.array());
+					}
+				} catch (IOException e) {
+					// the client closed
+				}
+			}
+		};
+		t.setDaemon(true);
+		t.start();
+		return server;
+	}
+
+	static long readHeaders(TCPSocket socket, int count) throws IOException {
+		long sum = 0;
+		for (int i = 0; i < count; i++) {
+			byte category = socket.readByte();
+			byte type = socket.readByte();
+			if (category != Defines.XIXI_CATEGORY_CACHE || type != Defines.XIXI_TYPE_GET_RES) {
+				throw new IOException("bad header, category=" + category + " type=" + type);
+			}
+			sum += socket.readLong();
+			sum += socket.readInt();
+			sum += socket.readInt();
+			sum += socket.readInt();
+		}
+		return sum;
+	}
+
+	static void benchHeaders(int count) throws IOException {
+		ServerSocket server = startHeaderServer();
+		SocketManager manager = new SocketManager();
+		TCPSocket socket = new TCPSocket(manager, "localhost:" + server.getLocalPort(), 8 * 1024, 3000, 3000, true);
+		try {
+			readHeaders(socket, count);
+
+			long allocated = allocatedBytes();
+			long start = System.nanoTime();
+			long sum = readHeaders(socket, count);
+			long time = System.nanoTime() - start;
+			allocated = allocatedBytes() - allocated;
+
+			System.out.println("headers=" + count + " time=" + time / 1000000 + "ms"
+					+ " ns/header=" + time / count
+					+ " allocated=" + allocated + " bytes/header=" + (double) allocated / count
+					+ " (" + sum + ")");
+		} finally {
+			socket.trueClose();
+			server.close();
+		}
+	}
+
+	static void benchGetBase(int count) throws IOException {
+		MockServer server = new MockServer(0);
+		server.start();
+		XixiClientManager manager = XixiClientManager.getInstance("ReadPathBench");
+		manager.initialize(new String[] {server.getHost()}, false);
+		try {
+			XixiClient cc = manager.createClient();
+			cc.set("ReadPathBench", "value");
+			for (int i = 0; i < count; i++) {
+				cc.getBase("ReadPathBench");
+			}
+
+			long allocated = allocatedBytes();
+			long start = System.nanoTime();
+			for (int i = 0; i < count; i++) {
+				cc.getBase("ReadPathBench");
+			}
+			long time = System.nanoTime() - start;
+			allocated = allocatedBytes() - allocated;
+
+			System.out.println("getBase=" + count + " time=" + time / 1000000 + "ms"
+					+ " ns/op=" + time / count
+					+ " allocated=" + allocated + " bytes/op=" + allocated / count);
+		} finally {
+			manager.shutdown();
+			server.stop();
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
+		int headers = args.length > 0 ? Integer.parseInt(args[0]) : 10000000;
+		int gets = args.length > 1 ? Integer.parseInt(args[1]) : 100000;
+
+		benchHeaders(headers);
+		benchGetBase(gets);
+	}
+}
@@ -0,0 +1,125 @@
+/*
+   Copyright [2015] [Yao Yuan(yeaya@163.com)]
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.yeaya.xixibase.xixiclient;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+
+import com.yeaya.xixibase.xixiclient.network.SocketManager;
+
+/**
+ * Measures how long <tt>initialize</tt> takes with one unreachable host among many.
+ * <p>
+ * The live hosts are server sockets which never accept, the kernel completes the
+ * connects in their backlog. The unreachable host is a server socket whose backlog
+ * is full, so its connects hang until <tt>socketConnectTimeout</tt>. The warm-up
+ * runs one host after another (as initialize did before), in parallel with a
+ * startup deadline, and lazily. <tt>ready</tt> is the time until every live host
+ * has its initial connections.
+ * <pre>
+ *     java StartupBench [hosts] [initConn]</pre>
+ *
+ * @author Yao Yuan
+ *
+ */
+public class StartupBench {
+	static final InetAddress LOCALHOST;
+	static {
+		try {
+			LOCALHOST = InetAddress.getByName("127.0.0.1");
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	static ServerSocket createSilentServer(ArrayList<Socket> fillers) throws IOException {
+		ServerSocket server = new ServerSocket(0, 1, LOCALHOST);
+		// fill the backlog, the next connects are dropped
+		for (int i = 0; i < 4; i++) {
+			Socket s = new Socket();
+			try {
+				s.connect(new InetSocketAddress(LOCALHOST, server.getLocalPort()), 200);
+				fillers.add(s);
+			} catch (IOException e) {
+				s.close();
+				break;
+			}
+		}
+		return server;
+	}
+
+	static void bench(String name, String[] hosts, int initConn, int threads,
+			long startupTimeout, boolean lazy) throws InterruptedException {
+		SocketManager manager = new SocketManager();
+		manager.setInitConn(initConn);
+		manager.setWarmUpThreads(threads);
+		manager.setStartupTimeout(startupTimeout);
+		manager.setLazyInit(lazy);
+		long start = System.nanoTime();
+		manager.initialize(hosts, false);
+		long initTime = System.nanoTime() - start;
+		boolean ready = false;
+		while (!ready && System.nanoTime() - start < 60 * 1000000000L) {
+			ready = true;
+			for (int i = 0; i < hosts.length - 1 && ready; i++) {
+				ready = manager.getSocketPool(hosts[i]).getIdleCount() >= initConn;
+			}
+			if (!ready) {
+				Thread.sleep(1);
+			}
+		}
+		long readyTime = System.nanoTime() - start;
+		System.out.println(name + " hosts=" + hosts.length + " initConn=" + initConn
+				+ " initialize=" + initTime / 1000000 + "ms"
+				+ " ready=" + readyTime / 1000000 + "ms");
+		manager.shutdown();
+	}
+
+	public static void main(String[] args) throws IOException, InterruptedException {
+		int count = args.length > 0 ? Integer.parseInt(args[0]) : 40;
+		int initConn = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+
+		ArrayList<ServerSocket> servers = new ArrayList<ServerSocket>();
+		ArrayList<Socket> fillers = new ArrayList<Socket>();
+		String[] hosts = new String[count];
+		try {
+			for (int i = 0; i < count - 1; i++) {
+				ServerSocket server = new ServerSocket(0, 4096, LOCALHOST);
+				servers.add(server);
+				hosts[i] = "127.0.0.1:" + server.getLocalPort();
+			}
+			ServerSocket silent = createSilentServer(fillers);
+			servers.add(silent);
+			hosts[count - 1] = "127.0.0.1:" + silent.getLocalPort();
+
+			bench("sequential", hosts, initConn, 1, Long.MAX_VALUE, false);
+			bench("parallel", hosts, initConn, 16, 500, false);
+			bench("lazy", hosts, initConn, 16, 500, true);
+		} finally {
+			for (int i = 0; i < fillers.size(); i++) {
+				fillers.get(i).close();
+			}
+			for (int i = 0; i < servers.size(); i++) {
+				servers.get(i).close();
+			}
+		}
+	}
+}
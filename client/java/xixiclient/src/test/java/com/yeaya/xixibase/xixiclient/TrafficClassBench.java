@@ -0,0 +1,125 @@
+/*
+   Copyright [2015] [Yao Yuan(yeaya@163.com)]
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.yeaya.xixibase.xixiclient;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.yeaya.xixibase.xixiclient.network.TrafficClass;
+
+/**
+ * Measures the latency of small gets while bulk writers of large values run.
+ * <p>
+ * With one lane the gets and the bulk writes share <tt>maxConn</tt> sockets per host.
+ * With two lanes the bulk writers use a <tt>TrafficClass.BULK</tt> lane and the same
+ * number of sockets is split between the lanes. The hosts default to a
+ * {@link MockServer} on loopback.
+ * <pre>
+ *     java TrafficClassBench [gets] [bulkThreads] [host,host...]</pre>
+ *
+ * @author Yao Yuan
+ *
+ */
+public class TrafficClassBench {
+	static final int MAX_CONN = 8;
+	static final int BULK_CONN = 6;
+	static final int VALUE_SIZE = 256 * 1024;
+
+	static long percentile(long[] sorted, double p) {
+		int index = (int) Math.ceil(p / 100.0 * sorted.length) - 1;
+		return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+	}
+
+	static void bench(String name, String[] hosts, int count, int bulkThreads, boolean lanes)
+			throws InterruptedException {
+		final XixiClientManager manager = XixiClientManager.getInstance("TrafficClassBench" + name);
+		manager.setMaxWaitTime(60 * 1000);
+		if (lanes) {
+			manager.setMaxConn(MAX_CONN - BULK_CONN);
+			manager.addTrafficClass(TrafficClass.BULK, BULK_CONN, 32 * 1024, 60 * 1000);
+		} else {
+			manager.setMaxConn(MAX_CONN);
+		}
+		manager.initialize(hosts, false);
+		final AtomicBoolean running = new AtomicBoolean(true);
+		Thread[] writers = new Thread[bulkThreads];
+		try {
+			XixiClient cc = manager.createClient();
+			cc.set("TrafficClassBench", "value");
+			final byte[] value = new byte[VALUE_SIZE];
+			for (int i = 0; i < bulkThreads; i++) {
+				final XixiClient bulk = lanes ? manager.createClient(TrafficClass.BULK) : manager.createClient();
+				final String key = "TrafficClassBench" + i;
+				writers[i] = new Thread() {
+					public void run() {
+						while (running.get()) {
+							bulk.set(key, value);
+						}
+					}
+				};
+				writers[i].start();
+			}
+			Thread.sleep(200);
+
+			long[] times = new long[count];
+			for (int i = 0; i < count; i++) {
+				long start = System.nanoTime();
+				cc.getBase("TrafficClassBench");
+				times[i] = System.nanoTime() - start;
+			}
+			Arrays.sort(times);
+			TrafficClass interactive = manager.getTrafficClass(TrafficClass.INTERACTIVE);
+			System.out.println(name + " gets=" + count + " bulkThreads=" + bulkThreads
+					+ " p50=" + percentile(times, 50) / 1000.0 + "us"
+					+ " p99=" + percentile(times, 99) / 1000.0 + "us"
+					+ " max=" + times[count - 1] / 1000.0 + "us"
+					+ " interactiveWaits=" + interactive.getWaitCount()
+					+ " interactiveMeanWait=" + interactive.getMeanWaitTime() + "ms");
+		} finally {
+			running.set(false);
+			for (int i = 0; i < writers.length; i++) {
+				if (writers[i] != null) {
+					writers[i].join();
+				}
+			}
+			manager.shutdown();
+		}
+	}
+
+	public static void main(String[] args) throws IOException, InterruptedException {
+		int count = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+		int bulkThreads = args.length > 1 ? Integer.parseInt(args[1]) : 16;
+		MockServer server = null;
+		String[] hosts;
+		if (args.length > 2) {
+			hosts = args[2].split(",");
+		} else {
+			server = new MockServer(0);
+			server.start();
+			hosts = new String[] {server.getHost()};
+		}
+		try {
+			bench("shared", hosts, count, bulkThreads, false);
+			bench("lanes", hosts, count, bulkThreads, true);
+		} finally {
+			if (server != null) {
+				server.stop();
+			}
+		}
+	}
+}
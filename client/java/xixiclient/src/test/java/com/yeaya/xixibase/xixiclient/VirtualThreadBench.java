@@ -0,0 +1,105 @@
+/*
+   Copyright [2015] [Yao Yuan(yeaya@163.com)]
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.yeaya.xixibase.xixiclient;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.yeaya.xixibase.xixiclient.network.SocketPool;
+
+/**
+ * Runs many concurrent callers of the blocking client, one thread per caller,
+ * which share a small socket pool.
+ * <p>
+ * On Java 21 and later each caller is a virtual thread: a caller which waits for a
+ * socket or for a response parks and gives its carrier thread to another caller.
+ * The executor is looked up by reflection so that the client still builds for
+ * Java 8, on older JVMs the bench falls back to a pool of platform threads.
+ * <pre>
+ *     java VirtualThreadBench [callers] [maxConn]</pre>
+ *
+ * @author Yao Yuan
+ *
+ */
+public class VirtualThreadBench {
+	static ExecutorService createExecutor(int callers) {
+		try {
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (Exception e) {
+			int threads = Math.min(callers, 1000);
+			System.out.println("virtual threads are not available, use " + threads + " platform threads");
+			return Executors.newFixedThreadPool(threads);
+		}
+	}
+
+	public static void main(String[] args) throws IOException, InterruptedException {
+		int callers = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+		int maxConn = args.length > 1 ? Integer.parseInt(args[1]) : 32;
+
+		MockServer server = new MockServer(0);
+		server.start();
+		final XixiClientManager manager = XixiClientManager.getInstance("VirtualThreadBench");
+		manager.setInitConn(maxConn);
+		manager.setMaxConn(maxConn);
+		manager.setMaxWaitTime(60 * 1000);
+		manager.initialize(new String[] {server.getHost()}, false);
+		ExecutorService executor = createExecutor(callers);
+		try {
+			XixiClient cc = manager.createClient();
+			cc.set("VirtualThreadBench", "value");
+
+			final CountDownLatch latch = new CountDownLatch(callers);
+			final AtomicInteger errors = new AtomicInteger(0);
+			long start = System.nanoTime();
+			for (int i = 0; i < callers; i++) {
+				executor.execute(new Runnable() {
+					public void run() {
+						try {
+							XixiClient client = manager.createClient();
+							if (!"value".equals(client.getValue("VirtualThreadBench"))) {
+								errors.incrementAndGet();
+							}
+						} finally {
+							latch.countDown();
+						}
+					}
+				});
+			}
+			latch.await();
+			long time = System.nanoTime() - start;
+
+			SocketPool pool = manager.socketManager.getSocketPool(server.getHost());
+			System.out.println("callers=" + callers + " maxConn=" + maxConn
+					+ " time=" + time / 1000000 + "ms"
+					+ " ops/s=" + (long) (callers * 1000000000.0 / time)
+					+ " errors=" + errors.get()
+					+ " created=" + pool.getCreateCount()
+					+ " waits=" + pool.getWaitCount()
+					+ " waitTime=" + pool.getWaitTime() + "ms"
+					+ " exhausted=" + pool.getExhaustedCount());
+		} finally {
+			executor.shutdown();
+			executor.awaitTermination(10, TimeUnit.SECONDS);
+			manager.shutdown();
+			server.stop();
+		}
+	}
+}
@@ -0,0 +1,99 @@
+/*
+   Copyright [2015] [Yao Yuan(yeaya@163.com)]
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+
+package com.yeaya.xixibase.xixiclient;
+
+import java.lang.management.ManagementFactory;
+
+import com.yeaya.xixibase.xixiclient.util.WeightMap;
+
+/**
+ * Compares the lookup cost and the key balance of the weight maps.
+ * <p>
+ * For 10, 100 and 1000 servers of weight 1 it maps the keys, then prints the
+ * time and the heap allocated per lookup, and the standard deviation and the max
+ * of the keys per server relative to the mean.
+ * <pre>
+ *     java WeightMapBench [keys] [virtualNodes]</pre>
+ *
+ * @author Yao Yuan
+ *
+ */
+public class WeightMapBench {
+	static long allocatedBytes() {
+		return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+				.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+
+	static void bench(String name, WeightMap<Integer> map, int nodes, String[] keys) {
+		Integer[] values = new Integer[nodes];
+		for (int i = 0; i < nodes; i++) {
+			values[i] = Integer.valueOf(i);
+		}
+		map.set(values, null);
+
+		int[] counts = new int[nodes];
+		for (int i = 0; i < keys.length; i++) {
+			counts[map.get(keys[i]).intValue()]++;
+		}
+
+		long allocated = allocatedBytes();
+		long start = System.nanoTime();
+		long sum = 0;
+		for (int i = 0; i < keys.length; i++) {
+			sum += map.get(keys[i]).intValue();
+		}
+		long time = System.nanoTime() - start;
+		allocated = allocatedBytes() - allocated;
+
+		double mean = (double) keys.length / nodes;
+		double variance = 0;
+		int max = 0;
+		for (int i = 0; i < nodes; i++) {
+			variance += (counts[i] - mean) * (counts[i] - mean);
+			max = Math.max(max, counts[i]);
+		}
+		double stddev = Math.sqrt(variance / nodes);
+		System.out.println(String.format("%-16s nodes=%-5d ns/get=%-6d bytes/get=%-6.1f stddev=%6.2f%% max=%6.2f%% (%d)",
+				name, nodes, time / keys.length, (double) allocated / keys.length,
+				stddev * 100 / mean, max * 100 / mean, sum));
+	}
+
+	public static void main(String[] args) {
+		int keyCount = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+		int virtualNodes = args.length > 1 ? Integer.parseInt(args[1]) : KetamaWeightMap.DEFAULT_VIRTUAL_NODES;
+		String[] keys = new String[keyCount];
+		for (int i = 0; i < keyCount; i++) {
+			keys[i] = "xixi:user:" + i;
+		}
+		int[] nodeCounts = new int[] {10, 100, 1000};
+		for (int round = 0; round < 2; round++) {
+			if (round == 1) {
+				System.out.println("---");
+			}
+			for (int i = 0; i < nodeCounts.length; i++) {
+				int nodes = nodeCounts[i];
+				bench("modulo-native", new XixiWeightMap<Integer>(false, XixiWeightMap.NATIVE_HASH), nodes, keys);
+				bench("treemap-native", new XixiWeightMap<Integer>(true, XixiWeightMap.NATIVE_HASH), nodes, keys);
+				bench("treemap-md5", new XixiWeightMap<Integer>(true, XixiWeightMap.MD5_HASH), nodes, keys);
+				bench("ketama", new KetamaWeightMap<Integer>(virtualNodes), nodes, keys);
+				bench("jump", new JumpWeightMap<Integer>(), nodes, keys);
+				bench("rendezvous", new RendezvousWeightMap<Integer>(), nodes, keys);
+			}
+		}
+	}
+}